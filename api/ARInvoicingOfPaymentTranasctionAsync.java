@@ -23,6 +23,7 @@ import com.serviceco.coex.model.Scheme;
 import com.serviceco.coex.payment.api.request.InvoicingRequest;
 import com.serviceco.coex.payment.model.invoice.InvoiceTransactionWrapper;
 import com.serviceco.coex.payment.service.ARInvoiceGenerationServiceAsync;
+import com.serviceco.coex.payment.service.SchemeFanOutExecutor;
 import com.serviceco.coex.rest.annotation.ActionType;
 import com.serviceco.coex.rest.annotation.ResourceType;
 import com.serviceco.coex.rest.support.ResourceConstants;
@@ -55,6 +56,9 @@ public class ARInvoicingOfPaymentTranasctionAsync {
   @Autowired
   private LotItemService lotItemService;
 
+  @Autowired
+  private SchemeFanOutExecutor schemeFanOutExecutor;
+
   /**
    * Generates AR (Accounts Receivable) invoices for a particular scheme participant type (and optionally particular scheme participants and particular payment types) asynchronously.
    * 
@@ -69,7 +73,7 @@ public class ARInvoicingOfPaymentTranasctionAsync {
    *  @param request.include If true, the payment transaction types and scheme participant IDs passed in will be allowed and everything else excluded. If false, the payment transaction types and scheme participant IDs passed in will be excluded.
    *  @param request.calbackUrl The URL to post the result to. The body of the posted message will contain a {@link com.serviceco.coex.payment.model.invoice.AsyncCallbackRequest} converted to JSON.
    *  @param request.scheme Optional. If provided (for non-auction invoices), invoices will only be generated for the particular scheme. If not provided, invoices will be generated for all schemes,
-   *        but in separate batches, one after the other. This is ignored for auction invoices as the scheme is determined based on the auction lot identifier.
+   *        but in separate batches, several schemes at a time (see {@link com.serviceco.coex.payment.service.SchemeFanOutExecutor}). This is ignored for auction invoices as the scheme is determined based on the auction lot identifier.
    */
   @POST
   @Path("async/compute")
@@ -118,9 +122,8 @@ public class ARInvoicingOfPaymentTranasctionAsync {
         Scheme scheme = schemeOp.get();
         arInvoiceGenerationService.generateInvoices(request, scheme);
       } else {
-        for (Scheme scheme : schemeService.getAll()) {
-          arInvoiceGenerationService.generateInvoices(request, scheme);
-        }
+        // each scheme is invoiced in its own transaction and posts its own callback as soon as it finishes
+        schemeFanOutExecutor.execute(schemeService.getAll(), scheme -> arInvoiceGenerationService.generateInvoices(request, scheme));
       }
     }
   }
@@ -14,12 +14,24 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.stereotype.Component;
 
+import com.google.common.base.Preconditions;
 import com.serviceco.coex.exception.CoexRuntimeException;
 import com.serviceco.coex.exception.model.ExceptionConstants;
 import com.serviceco.coex.model.Scheme;
 import com.serviceco.coex.payment.api.request.PaymentCalculationRequest;
+import com.serviceco.coex.payment.api.request.PaymentSimulationRequest;
+import com.serviceco.coex.payment.api.request.PendingWorkRequest;
+import com.serviceco.coex.payment.calculation.FeeReferenceCache;
+import com.serviceco.coex.payment.calculation.PaymentSimulation;
+import com.serviceco.coex.payment.model.calculation.PaymentPendingWork.Source;
+import com.serviceco.coex.payment.model.calculation.PaymentSimulationResult;
 import com.serviceco.coex.payment.model.calculation.PaymentTransactionRec.PaymentBatchExecutionSummary;
 import com.serviceco.coex.payment.service.PaymentTransactionComputationService;
+import com.serviceco.coex.payment.service.PendingWorkLedger;
+import com.serviceco.coex.payment.support.InvoiceReferenceCache;
+import com.serviceco.coex.payment.support.ParticipantSiteDirectory;
+import com.serviceco.coex.payment.support.PaymentMetadataCache;
+import com.serviceco.coex.payment.support.PeriodCache;
 import com.serviceco.coex.rest.annotation.ActionType;
 import com.serviceco.coex.rest.annotation.ResourceType;
 import com.serviceco.coex.rest.support.ResourceConstants;
@@ -49,11 +61,29 @@ public class ComputationOfPaymentTransaction {
   @Autowired
   SchemeService schemeService;
 
+  @Autowired
+  PaymentMetadataCache paymentMetadataCache;
+
+  @Autowired
+  FeeReferenceCache feeReferenceCache;
+
+  @Autowired
+  PeriodCache periodCache;
+
+  @Autowired
+  ParticipantSiteDirectory participantSiteDirectory;
+
+  @Autowired
+  InvoiceReferenceCache invoiceReferenceCache;
+
+  @Autowired
+  PendingWorkLedger pendingWorkLedger;
+
   /**
    * <p>Creates payment transaction records for a specific scheme participant type (and optionally particular scheme participants) based on available or forecasted volume/claim data.</p>
    * <p>
    * This forwards the request on to instances of PaymentTransactionComputationService.
-   * If the request contains an auction lot identifier, the request is forwarded to {@link com.serviceco.coex.payment.service.AuctionComputationTemplateImpl}.
+   * If the request contains an auction lot identifier (or a batch of auction lots), the request is forwarded to {@link com.serviceco.coex.payment.service.AuctionComputationTemplateImpl}.
    * For everything else, the request goes to {@link com.serviceco.coex.payment.service.DefaultComputationTemplateImpl}.
    * </p>
    * @param request JSON request converted into a GenericRequest object. This includes the following data:
@@ -61,6 +91,7 @@ public class ComputationOfPaymentTransaction {
    * @param request.schemeParticipantType The scheme participant type you want to generate payment transaction records for.
    * @param request.auctionLotIdentifier For auction payments only. This specifies the LotItem identifier.
    * @param request.auctionLotItemManifestId For auction payments only. This specifies the LotItemManifest identifier.
+   * @param request.auctionLots For a batch of auction payments only, instead of the two identifiers above. This specifies the LotItem and LotItemManifest identifier of each lot, all computed in one payment batch.
    * @param request.include If true, payment transactions are generated for the scheme participants passed in. If false, payment transactions are generated for all of the scheme participants associated with the scheme participant type EXCLUDING the scheme participants passed in.
    * @param request.scheme Not used. A hard coded string "QLD" is used to lookup the scheme instead.
    * 
@@ -77,7 +108,7 @@ public class ComputationOfPaymentTransaction {
   public List<PaymentBatchExecutionSummary> create(PaymentCalculationRequest request) {
     String requestedSchemeId = request.getSchemeId();
     // For auctions, the scheme is determined based on the lot item identifier passed in. The scheme ID in the request is ignored.
-    if (request.getAuctionLotIdentifier() != null) {
+    if (request.isAuction()) {
       PaymentBatchExecutionSummary summary = executeForScheme(request, null);
       return Collections.singletonList(summary); 
     }
@@ -94,8 +125,127 @@ public class ComputationOfPaymentTransaction {
     return summaries;
   }
 
+  /**
+   * <p>Calculates what the payment transactions of a request would be with different scheme prices or fees, without saving anything.</p>
+   * <p>The request is the same as for {@link #create}, plus the scheme prices and fees to use for each material type ID. Auction payments can not
+   * be simulated.</p>
+   * @param request JSON request converted into a PaymentSimulationRequest object
+   * @return Returns the payment totals by scheme participant and material type, for the requested scheme or for each scheme
+   * 
+   * @see com.serviceco.coex.payment.service.DefaultComputationTemplateImpl#simulate
+   */
+  @POST
+  @Path("/simulate")
+  @ActionType("VIEW")
+  public List<PaymentSimulationResult> simulate(PaymentSimulationRequest request) {
+    final PaymentSimulation simulation = PaymentSimulation.of(request.getSchemePrices(), request.getProcessingFees(), request.getHandlingFees(), request.getRecoveryFees());
+    if (request.getSchemeId() != null) {
+      Scheme scheme = schemeService.getById(request.getSchemeId()).orElseThrow(() -> new CoexRuntimeException(ExceptionConstants.ERROR_CODES.VALIDATION, null, "Scheme ID is not valid"));
+      return Collections.singletonList(computationService.simulate(request, scheme, simulation));
+    }
+    List<PaymentSimulationResult> results = new ArrayList<PaymentSimulationResult>();
+    for (Scheme scheme : schemeService.getAll()) {
+      results.add(computationService.simulate(request, scheme, simulation));
+    }
+    return results;
+  }
+
+  /**
+   * Reloads the payment metadata used by the payment computation and invoicing services, e.g. after the PAYMENT_METADATA table has been changed.
+   * Computations which have already started keep the metadata they started with.
+   * @return Returns the version of the reloaded metadata
+   * 
+   * @see com.serviceco.coex.payment.support.PaymentMetadataCache
+   */
+  @POST
+  @Path("/metadata/refresh")
+  @ActionType("UPDATE")
+  public long refreshPaymentMetadata() {
+    return paymentMetadataCache.refresh();
+  }
+
+  /**
+   * Reloads the processing, handling and recovery fee reference data used by the payment computation, e.g. after a fee has been changed.
+   * Computations which have already started may still use the previous fees.
+   * 
+   * @see com.serviceco.coex.payment.calculation.FeeReferenceCache
+   */
+  @POST
+  @Path("/fee-references/refresh")
+  @ActionType("UPDATE")
+  public void refreshFeeReferences() {
+    feeReferenceCache.refresh();
+  }
+
+  /**
+   * Reloads all of the reference data held in memory by the payment computation and invoicing services: the date dimension and resolved
+   * periods, the participant sites, the payment metadata, the fee references and the invoice reference (LOV) tables. Otherwise each is
+   * reloaded when its copy is older than its {@code refresh-minutes} setting.
+   * @return Returns the version of the reloaded payment metadata
+   * 
+   * @see com.serviceco.coex.payment.support.RefreshingSnapshot
+   */
+  @POST
+  @Path("/reference-data/refresh")
+  @ActionType("UPDATE")
+  public long refreshReferenceData() {
+    periodCache.refresh();
+    participantSiteDirectory.refresh();
+    feeReferenceCache.refresh();
+    invoiceReferenceCache.refresh();
+    return paymentMetadataCache.refresh();
+  }
+
+  /**
+   * Adds volume or claim headers which have reached FINAL to the pending work ledger, so the next incremental computation of their scheme
+   * participant type computes them. Called by the services which finalise the headers.
+   * @param request The scheme, scheme participant type, scheme participant site number and header IDs
+   * 
+   * @see com.serviceco.coex.payment.service.PendingWorkLedger#enqueue
+   */
+  @POST
+  @Path("/pending-work")
+  @ActionType("CREATE")
+  public void enqueuePendingWork(PendingWorkRequest request) {
+    Preconditions.checkArgument(StringUtils.isNotEmpty(request.getSchemeParticipantId()), "scheme participant ID is mandatory for enqueueing pending work");
+    Preconditions.checkArgument((request.getTxnHeaderIds() != null) && !request.getTxnHeaderIds().isEmpty(), "header IDs are mandatory for enqueueing pending work");
+    Scheme scheme = schemeService.getById(request.getSchemeId()).orElseThrow(() -> new CoexRuntimeException(ExceptionConstants.ERROR_CODES.VALIDATION, null, "Scheme ID is not valid"));
+    pendingWorkLedger.enqueue(scheme, pendingWorkSource(request), request.getSchemeParticipantId(), request.getTxnHeaderIds());
+  }
+
+  /**
+   * Adds every FINAL header of the scheme participant type which has never been in the pending work ledger, e.g. those finalised before the
+   * ledger existed. This scans every FINAL header, so it is meant to be run once, before incremental computations are first used.
+   * @param request The scheme participant type, and the scheme to backfill (every scheme if it is not provided)
+   * @return Returns the number of headers added
+   * 
+   * @see com.serviceco.coex.payment.service.PendingWorkLedger#enqueueUnseenHeaders
+   */
+  @POST
+  @Path("/pending-work/backfill")
+  @ActionType("UPDATE")
+  public int backfillPendingWork(PendingWorkRequest request) {
+    final Source source = pendingWorkSource(request);
+    if (request.getSchemeId() != null) {
+      Scheme scheme = schemeService.getById(request.getSchemeId()).orElseThrow(() -> new CoexRuntimeException(ExceptionConstants.ERROR_CODES.VALIDATION, null, "Scheme ID is not valid"));
+      return pendingWorkLedger.enqueueUnseenHeaders(scheme, source);
+    }
+    int enqueued = 0;
+    for (Scheme scheme : schemeService.getAll()) {
+      enqueued += pendingWorkLedger.enqueueUnseenHeaders(scheme, source);
+    }
+    return enqueued;
+  }
+
+  private static Source pendingWorkSource(PendingWorkRequest request) {
+    Preconditions.checkArgument(request.getSchemeParticipantType() != null, "scheme participant type is mandatory for pending work");
+    final Source source = PendingWorkLedger.sourceOf(request.getSchemeParticipantType());
+    Preconditions.checkArgument(source != null, "there is no pending work for " + request.getSchemeParticipantType());
+    return source;
+  }
+
   private PaymentBatchExecutionSummary executeForScheme(PaymentCalculationRequest request, Scheme scheme) {
-    if (StringUtils.isNotEmpty(request.getAuctionLotIdentifier())) {
+    if (request.isAuction()) {
       return auctionComputationService.compute(request, scheme);
     }
     return computationService.compute(request, scheme);
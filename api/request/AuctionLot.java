@@ -0,0 +1,23 @@
+package com.serviceco.coex.payment.api.request;
+
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * An auction lot item and the manifest of the lot item to compute the auction payment of
+ */
+@Getter
+@Setter
+public class AuctionLot {
+
+  /**
+   * The ID of the auction lot item
+   */
+  private String auctionLotIdentifier;
+
+  /**
+   * The ID of the lot item manifest
+   */
+  private String auctionLotItemManifestIdentifier;
+
+}
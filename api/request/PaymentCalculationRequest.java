@@ -2,6 +2,8 @@ package com.serviceco.coex.payment.api.request;
 
 import java.util.List;
 
+import org.apache.commons.lang3.StringUtils;
+
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.serviceco.coex.model.constant.AuctionType;
 import com.serviceco.coex.model.constant.SchemeParticipantType;
@@ -52,6 +54,12 @@ public class PaymentCalculationRequest {
    */
   private String auctionLotItemManifestIdentifier;
 
+  /**
+   * Required for batch auction payment processing only, instead of the auction lot and manifest identifiers above. The payments of every lot are
+   * computed in a single payment batch.
+   */
+  private List<AuctionLot> auctionLots;
+
   /**
    * Required for the asynchronous web service call only
    */
@@ -62,4 +70,26 @@ public class PaymentCalculationRequest {
    */
   private String schemeId;
 
+  /**
+   * Optional. If provided, the computation resumes the specified payment batch from its last checkpoint instead of starting a new batch. The
+   * batch must be RESUMABLE. The other fields must be the same as in the request which started the batch.
+   */
+  private String resumePaymentBatchId;
+
+  /**
+   * Optional. If true, only the volume and claim headers which have reached FINAL since they were last computed (the pending work ledger)
+   * are computed, instead of every FINAL header of the scheme. Available for manufacturers, processors, MRFs and CRPs. Headers are added to
+   * the ledger when they are finalised, through the pending work endpoint (headers finalised before the ledger was used are added by its
+   * backfill).
+   */
+  private boolean incremental;
+
+  /**
+   * @return Returns true if the request computes auction payments, either of a single auction lot or of a batch of auction lots
+   */
+  @JsonIgnore
+  public boolean isAuction() {
+    return StringUtils.isNotEmpty(auctionLotIdentifier) || ((auctionLots != null) && !auctionLots.isEmpty());
+  }
+
 }
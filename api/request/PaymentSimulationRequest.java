@@ -0,0 +1,37 @@
+package com.serviceco.coex.payment.api.request;
+
+import java.math.BigDecimal;
+import java.util.Map;
+
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * A what-if payment calculation API request. The payments are calculated as for a {@link PaymentCalculationRequest}, with the scheme prices and
+ * fees below instead of the reference data, and nothing is saved.
+ */
+@Getter
+@Setter
+public class PaymentSimulationRequest extends PaymentCalculationRequest {
+
+  /**
+   * Optional. The manufacturer scheme price to use for each material type ID
+   */
+  private Map<String, BigDecimal> schemePrices;
+
+  /**
+   * Optional. The processor processing fee to use for each material type ID
+   */
+  private Map<String, BigDecimal> processingFees;
+
+  /**
+   * Optional. The CRP handling fee to use for each material type ID
+   */
+  private Map<String, BigDecimal> handlingFees;
+
+  /**
+   * Optional. The MRF recovery fee to use for each material type ID
+   */
+  private Map<String, BigDecimal> recoveryFees;
+
+}
@@ -0,0 +1,38 @@
+package com.serviceco.coex.payment.api.request;
+
+import java.util.List;
+
+import com.serviceco.coex.model.constant.SchemeParticipantType;
+
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * A pending work ledger API request, which adds volume or claim headers that have reached FINAL to the ledger of the incremental payment
+ * computation
+ */
+@Getter
+@Setter
+public class PendingWorkRequest {
+
+  /**
+   * mandatory argument, the type of the scheme participant of the headers (a manufacturer, processor, MRF or CRP)
+   */
+  private SchemeParticipantType schemeParticipantType;
+
+  /**
+   * mandatory argument, the scheme of the headers. When backfilling, optional: every scheme is backfilled if it is not provided.
+   */
+  private String schemeId;
+
+  /**
+   * the site number of the scheme participant of the headers. Not used when backfilling.
+   */
+  private String schemeParticipantId;
+
+  /**
+   * the IDs of the volume or claim headers which have reached FINAL. Not used when backfilling.
+   */
+  private List<String> txnHeaderIds;
+
+}
@@ -3,8 +3,16 @@ package com.serviceco.coex.payment.calculation;
 import java.math.BigDecimal;
 import java.math.RoundingMode;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 
 import javax.persistence.EntityManager;
@@ -14,7 +22,8 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 import org.springframework.transaction.annotation.Transactional;
 
-import com.querydsl.core.types.Predicate;
+import com.google.common.collect.Lists;
+import com.querydsl.core.Tuple;
 import com.querydsl.jpa.impl.JPAQueryFactory;
 import com.serviceco.coex.auction.model.LotItem;
 import com.serviceco.coex.auction.model.LotItemManifest;
@@ -28,7 +37,6 @@ import com.serviceco.coex.model.dto.Period;
 import com.serviceco.coex.mrf.model.MRFMaterialType;
 import com.serviceco.coex.payment.model.calculation.PaymentTransactionRec;
 import com.serviceco.coex.payment.model.calculation.QPaymentTransactionRec;
-import com.serviceco.coex.payment.repository.PaymentTransactionRecRepository;
 import com.serviceco.coex.payment.support.DateTimeSupport;
 import com.serviceco.coex.scheme.participant.model.MdtParticipant;
 import com.serviceco.coex.scheme.participant.model.MdtParticipantSite;
@@ -48,6 +56,8 @@ public class AuctionPaymentSupportImpl implements AuctionPaymentSupport {
   private static final String TRANS_TYPE_NEGATIVE_AUCTION = "NEGATIVE_AUCTION";
   private static final String TRANS_TYPE_POSITIVE_AUCTION = "POSITIVE_AUCTION";
 
+  private static final int CHUNK_SIZE = 99;
+
   @Autowired
   private DateTimeSupport dateTimeSupport;
 
@@ -55,7 +65,7 @@ public class AuctionPaymentSupportImpl implements AuctionPaymentSupport {
   private EntityManager em;
 
   @Autowired
-  private PaymentTransactionRecRepository paymentTransactionRepository;
+  private PaymentStaleMarker staleMarker;
 
   @Autowired
   private LotItemRepository lotItemRepository;
@@ -64,7 +74,8 @@ public class AuctionPaymentSupportImpl implements AuctionPaymentSupport {
    * <p>Generates {@link com.serviceco.coex.payment.model.calculation.PaymentTransactionRec} records based on auction lot items and a particular
    * lot item manifest which are provided in the parameter.</p>
    * 
-   * <p>This method loops through every auction lot item ID which was passed in ({@code param.allSalesVolumes}) and creates a PaymentTransactionRec record for each one.</p>
+   * <p>This method loops through every auction lot item ID which was passed in ({@code param.allSalesVolumes}) and creates a PaymentTransactionRec record for each one.
+   * The lot items, their manifests, the actual weights and the existing records are fetched for all of the lot items up front, 99 lot items per query.</p>
    * 
    * <p>Any existing PaymentTransactionRec records matching the scheme participant ID, lot item manifesct ID, period type, period, entryType, paymentBatch ID and a status of AWAITING_REVIEW will be updated to the STALE status.</p>
    * 
@@ -82,6 +93,7 @@ public class AuctionPaymentSupportImpl implements AuctionPaymentSupport {
    * @param param The data which was passed in to the {@link com.serviceco.coex.payment.api.ComputationOfPaymentTransaction} web service. It should include:
    * @param param.allSalesVolumes A list of auction lot item identifiers ({@link com.serviceco.coex.auction.model.LotItem}).
    * @param param.auctionLotItemManifestId The ID of the auction lot manifest ({@link com.serviceco.coex.auction.model.LotItemManifest}) which should be used to generate payment records.
+   * @param param.auctionLotItemManifestIds For a batch of auction lots, the manifest ID of each lot item ID instead of the single manifest ID above. Every lot item must belong to the same scheme.
    * @param param.currentPeriod The current payment period
    * @param param.scheme Ignored. The scheme will be determined from the lot item record.
    * 
@@ -89,16 +101,36 @@ public class AuctionPaymentSupportImpl implements AuctionPaymentSupport {
   @Override
   public List<PaymentTransactionRec> calculateViaActual(CalculationParameter<String> param) {
 
+    final Map<String, String> lotItemManifestIds = lotItemManifestIds(param);
+    final Map<String, LotItem> lotItems = fetchLotItems(lotItemManifestIds.keySet());
+    final Map<String, LotItemManifest> lotItemManifests = fetchLotItemManifests(lotItemManifestIds.values());
+    final Map<String, BigDecimal> actualVolumes = fetchActualVolumes(lotItemManifestIds.values());
+    final Map<String, List<PaymentTransactionRec>> oldPaymentTransactionRecs = fetchAwaitingInvoicing(lotItemManifestIds.values(), param.paymentBatch.getId());
+
     final List<PaymentTransactionRec> paymentTransactionRecords = new ArrayList<>();
-    for (final String auctionLotIdentifier : param.getAllSalesVolumes()) {
-      final LotItem lotItem = lotItemRepository.findById(auctionLotIdentifier).get();
+    // the IDs of the existing records superseded by the new ones, staled together once every new record has been created
+    final Set<String> staleRecordIds = new LinkedHashSet<>();
+    for (final Map.Entry<String, String> lotItemManifestId : lotItemManifestIds.entrySet()) {
+      final String auctionLotIdentifier = lotItemManifestId.getKey();
+      final String auctionLotItemManifestId = lotItemManifestId.getValue();
+      final LotItem lotItem = lotItems.get(auctionLotIdentifier);
+      if (lotItem == null) {
+        throw new RuntimeException("auction lot item " + auctionLotIdentifier + " not found");
+      }
       Scheme scheme = lotItem.getScheme();
+      if ((param.getPaymentBatch().getScheme() != null) && (lotItemManifestIds.size() > 1) && !scheme.equals(param.getPaymentBatch().getScheme())) {
+        throw new RuntimeException("auction lot item " + auctionLotIdentifier + " belongs to scheme " + scheme.getId() + ", the other lot items of the batch belong to scheme "
+            + param.getPaymentBatch().getScheme().getId());
+      }
       param.getPaymentBatch().setScheme(scheme);
 
       final MdtParticipantSite seller = lotItem.getSeller();
       final MRFMaterialType mrfMaterialType = lotItem.getMrfMaterialType();
       final MaterialType materialType = lotItem.getSchemeMaterialType();
-      final LotItemManifest lotItemManifest = fetchLotItemManifest(lotItem.getId(), param.getAuctionLotItemManifestId());
+      final LotItemManifest lotItemManifest = lotItemManifests.get(auctionLotItemManifestId);
+      if ((lotItemManifest == null) || !lotItem.getId().equals(lotItemManifest.getLotItem().getId())) {
+        throw new RuntimeException("lot item manifest " + auctionLotItemManifestId + " not found for auction lot item " + auctionLotIdentifier);
+      }
       Date soldOn = lotItem.getSoldOn() == null ? lotItemManifest.getManifestDate(): lotItem.getSoldOn();
       final String headerPeriod = DateUtility.formatDate(soldOn, "yyyy-MM-dd", scheme);
       final Period period = dateTimeSupport.periodFactory(headerPeriod, PeriodType.D);
@@ -106,7 +138,7 @@ public class AuctionPaymentSupportImpl implements AuctionPaymentSupport {
       final String arrear = isCurrent ? "N" : "Y";
 
       final BigDecimal salePriceInTonnes = lotItem.getSalePrice();
-      final BigDecimal volume = fetchActualVolume(lotItem.getId(),lotItemManifest.getId());
+      final BigDecimal volume = actualVolumes.get(lotItemManifest.getId());
       final BigDecimal unitSellingPrice = salePriceInTonnes.divide(new BigDecimal(1000));
       final BigDecimal grossAmount = volume.multiply(unitSellingPrice);
       final BigDecimal taxableAmount = BigDecimal.ZERO;
@@ -120,33 +152,14 @@ public class AuctionPaymentSupportImpl implements AuctionPaymentSupport {
       /*
        * create payment record
        */
-      final QPaymentTransactionRec qPaymentTransactionRec = QPaymentTransactionRec.paymentTransactionRec;
-
-      Predicate materialTypePredicate = null;
-      if (null != materialType) {
-        materialTypePredicate = qPaymentTransactionRec.materialType.eq(materialType);
-      }
-      if (null != mrfMaterialType) {
-        materialTypePredicate = qPaymentTransactionRec.mrfMaterialType.eq(mrfMaterialType);
-      }
-
       //@formatter:off
-        final List<PaymentTransactionRec> oldPaymentTransactionRecs = getQueryFactory().select(qPaymentTransactionRec)
-                                                                                   .from(qPaymentTransactionRec)
-                                                                                 .where(qPaymentTransactionRec.schemeParticipantId.eq(seller.getSiteNumber())
-                                                                                  .and(materialTypePredicate)
-                                                                                  .and(qPaymentTransactionRec.lotItemManifestId.eq(param.getAuctionLotItemManifestId()))
-                                                                                  .and(qPaymentTransactionRec.periodType.eq(PeriodType.D.name())
-                                                                                  .and(qPaymentTransactionRec.period.eq(headerPeriod)
-                                                                                  .and(qPaymentTransactionRec.entryType.eq(EntryType.R.name())
-                                                                                  .and(qPaymentTransactionRec.paymentBatch.id.ne(param.paymentBatch.getId()))
-                                                                                  .and(qPaymentTransactionRec.status.eq(PaymentTransactionRec.PaymentStatus.AWAITING_INVOICING)))))).fetch();
-              
-        oldPaymentTransactionRecs.stream().forEach(x -> {
-          x.setStatus(PaymentTransactionRec.PaymentStatus.STALE);
-          paymentTransactionRepository.save(x);
-        });
-        //@formatter:on
+      oldPaymentTransactionRecs.getOrDefault(auctionLotItemManifestId, Collections.emptyList())
+                               .stream()
+                               .filter(x -> seller.getSiteNumber().equals(x.getSchemeParticipantId())
+                                   && headerPeriod.equals(x.getPeriod())
+                                   && isSameMaterialType(x, materialType, mrfMaterialType))
+                               .forEach(x -> staleRecordIds.add(x.getId()));
+      //@formatter:on
 
       final PaymentTransactionRec paymentTransactionRec = new PaymentTransactionRec();
       
@@ -175,47 +188,123 @@ public class AuctionPaymentSupportImpl implements AuctionPaymentSupport {
       paymentTransactionRec.setStatus(PaymentTransactionRec.PaymentStatus.AWAITING_INVOICING);
       paymentTransactionRec.setLotItem(lotItem);
       paymentTransactionRec.setFinalManifest(lotItemManifest);
-      paymentTransactionRec.setLotItemManifestId(param.getAuctionLotItemManifestId());
+      paymentTransactionRec.setLotItemManifestId(auctionLotItemManifestId);
       paymentTransactionRec.setScheme(scheme);
 
-      paymentTransactionRepository.save(paymentTransactionRec);
+      param.getRecordSink().accept(paymentTransactionRec);
       paymentTransactionRecords.add(paymentTransactionRec);
 
     }
 
+    staleMarker.markStale(param.paymentBatch, staleRecordIds);
+    param.getRecordSink().flush();
     return paymentTransactionRecords;
   }
 
   /**
-   * Fetches a Lot Item Manifest matching a particular Lot Item and manifest ID
-   * @param id ID of a {@link com.serviceco.coex.auction.model.LotItem}
-   * @param manifestId ID of a {@link LotItemManifest}
-   * @return Returns the matching entity, or null if its not found
+   * @return Returns the manifest ID of each lot item of the parameter, in lot item order
    */
-  private LotItemManifest fetchLotItemManifest(String id, String manifestId) {
-    final QLotItemManifest qLotItemManifest = QLotItemManifest.lotItemManifest;
-    //@formatter:off
+  private Map<String, String> lotItemManifestIds(CalculationParameter<String> param) {
+    final Map<String, String> lotItemManifestIds = new LinkedHashMap<>();
+    for (final String auctionLotIdentifier : param.getAllSalesVolumes()) {
+      final String manifestId = (param.getAuctionLotItemManifestIds() != null) ? param.getAuctionLotItemManifestIds().get(auctionLotIdentifier)
+          : param.getAuctionLotItemManifestId();
+      lotItemManifestIds.put(auctionLotIdentifier, manifestId);
+    }
+    return lotItemManifestIds;
+  }
 
-    return getQueryFactory().select(qLotItemManifest).from(qLotItemManifest)
-        .where(qLotItemManifest.lotItem.id.eq(id).and(qLotItemManifest.id.eq(manifestId))).fetchOne();
-    //@formatter:on
+  /**
+   * Fetches the lot items with the IDs, 99 at a time.
+   * @param ids IDs of {@link LotItem}s
+   * @return Returns the lot items found, mapped by ID
+   */
+  private Map<String, LotItem> fetchLotItems(Collection<String> ids) {
+    final Map<String, LotItem> lotItems = new HashMap<>();
+    for (final List<String> chunk : Lists.partition(new ArrayList<>(ids), CHUNK_SIZE)) {
+      lotItemRepository.findAllById(chunk).forEach(lotItem -> lotItems.put(lotItem.getId(), lotItem));
+    }
+    return lotItems;
+  }
 
+  /**
+   * Fetches the lot item manifests with the IDs, 99 at a time.
+   * @param manifestIds IDs of {@link LotItemManifest}s
+   * @return Returns the manifests found, mapped by ID. The caller must check that each manifest belongs to its lot item.
+   */
+  private Map<String, LotItemManifest> fetchLotItemManifests(Collection<String> manifestIds) {
+    final QLotItemManifest qLotItemManifest = QLotItemManifest.lotItemManifest;
+    final Map<String, LotItemManifest> lotItemManifests = new HashMap<>();
+    for (final List<String> chunk : Lists.partition(new ArrayList<>(new HashSet<>(manifestIds)), CHUNK_SIZE)) {
+      //@formatter:off
+      getQueryFactory().select(qLotItemManifest).from(qLotItemManifest)
+                       .where(qLotItemManifest.id.in(chunk))
+                       .fetch()
+                       .forEach(lotItemManifest -> lotItemManifests.put(lotItemManifest.getId(), lotItemManifest));
+      //@formatter:on
+    }
+    return lotItemManifests;
   }
 
   /**
-   * Fetches the actual weight from a lot item manifest which matches a particular ID and lot item.
-   * @param id	ID of a {@link LotItem}
-   * @param lotItemManifest ID of a {@link LotItemManifest}
-   * @return Returns the actual weight value from the matching record, or null if no matching record is found
+   * Fetches the actual weight of the lot item manifests with the IDs, 99 at a time.
+   * @param manifestIds IDs of {@link LotItemManifest}s
+   * @return Returns the sum of the actual weight of each manifest, mapped by manifest ID
    */
-  private BigDecimal fetchActualVolume(String id,String lotItemManifest) {
+  private Map<String, BigDecimal> fetchActualVolumes(Collection<String> manifestIds) {
     final QLotItemManifest qLotItemManifest = QLotItemManifest.lotItemManifest;
-    //@formatter:off
-    final BigDecimal actualVolume = getQueryFactory().select(qLotItemManifest.actualWeight.sum())
-        .from(qLotItemManifest).where(qLotItemManifest.lotItem.id.eq(id).and(qLotItemManifest.id.eq(lotItemManifest))).fetchOne();
-    //@formatter:on
+    final Map<String, BigDecimal> actualVolumes = new HashMap<>();
+    for (final List<String> chunk : Lists.partition(new ArrayList<>(new HashSet<>(manifestIds)), CHUNK_SIZE)) {
+      //@formatter:off
+      final List<Tuple> rows = getQueryFactory().select(qLotItemManifest.id, qLotItemManifest.actualWeight.sum())
+                                                .from(qLotItemManifest)
+                                                .where(qLotItemManifest.id.in(chunk))
+                                                .groupBy(qLotItemManifest.id)
+                                                .fetch();
+      //@formatter:on
+      rows.forEach(row -> actualVolumes.put(row.get(qLotItemManifest.id), row.get(qLotItemManifest.actualWeight.sum())));
+    }
+    return actualVolumes;
+  }
+
+  /**
+   * Fetches the regular, daily {@code AWAITING_INVOICING} payment transaction records of the lot item manifests which were created by another
+   * payment batch, 99 manifests at a time. These are marked as stale when a new record is created for the same seller, material type and period.
+   * @param manifestIds IDs of {@link LotItemManifest}s
+   * @param paymentBatchId The ID of the current payment batch
+   * @return Returns the records mapped by lot item manifest ID
+   */
+  private Map<String, List<PaymentTransactionRec>> fetchAwaitingInvoicing(Collection<String> manifestIds, String paymentBatchId) {
+    final QPaymentTransactionRec qPaymentTransactionRec = QPaymentTransactionRec.paymentTransactionRec;
+    final Map<String, List<PaymentTransactionRec>> paymentTransactionRecs = new HashMap<>();
+    for (final List<String> chunk : Lists.partition(new ArrayList<>(new HashSet<>(manifestIds)), CHUNK_SIZE)) {
+      //@formatter:off
+      getQueryFactory().select(qPaymentTransactionRec)
+                       .from(qPaymentTransactionRec)
+                       .where(qPaymentTransactionRec.lotItemManifestId.in(chunk)
+                           .and(qPaymentTransactionRec.periodType.eq(PeriodType.D.name()))
+                           .and(qPaymentTransactionRec.entryType.eq(EntryType.R.name()))
+                           .and(qPaymentTransactionRec.paymentBatch.id.ne(paymentBatchId))
+                           .and(qPaymentTransactionRec.status.eq(PaymentTransactionRec.PaymentStatus.AWAITING_INVOICING)))
+                       .fetch()
+                       .forEach(x -> paymentTransactionRecs.computeIfAbsent(x.getLotItemManifestId(), k -> new ArrayList<>()).add(x));
+      //@formatter:on
+    }
+    return paymentTransactionRecs;
+  }
 
-    return actualVolume;
+  /**
+   * Matches a record by the MRF material type of the lot item if it has one, otherwise by its scheme material type. If the lot item has
+   * neither, every record matches.
+   */
+  private static boolean isSameMaterialType(PaymentTransactionRec record, MaterialType materialType, MRFMaterialType mrfMaterialType) {
+    if (null != mrfMaterialType) {
+      return (record.getMrfMaterialType() != null) && mrfMaterialType.getId().equals(record.getMrfMaterialType().getId());
+    }
+    if (null != materialType) {
+      return (record.getMaterialType() != null) && materialType.getId().equals(record.getMaterialType().getId());
+    }
+    return true;
   }
 
   /**
@@ -0,0 +1,85 @@
+package com.serviceco.coex.payment.calculation;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.EntityManager;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.serviceco.coex.payment.model.calculation.PaymentTransactionRec;
+import com.serviceco.coex.payment.support.BatchInsertSupport;
+
+/**
+ * A {@link PaymentRecordSink} which buffers records and writes them using JDBC batch inserts.
+ * 
+ * <p>Records are persisted (rather than merged through the Spring Data repository, which issues a SELECT for every record with an assigned
+ * id) in the order they were accepted. Once {@code batchSize} records have been buffered, they are persisted together and the persistence
+ * context is flushed with the Hibernate session's JDBC batch size set to {@code batchSize}, so that the buffered records are sent to the
+ * database as a single batch of INSERT statements.</p>
+ * 
+ * <p>The persistence context is not cleared after a flush: the records remain managed, so later changes made to them within the same
+ * transaction are still written, and the volume headers loaded by the calling support classes are not detached.</p>
+ * 
+ * <p>Instances are not thread safe. Use {@link PaymentRecordSinkFactory#open()} to create one.</p>
+ */
+public class BatchingPaymentRecordSink implements PaymentRecordSink {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(BatchingPaymentRecordSink.class);
+
+  private final EntityManager em;
+  private final int batchSize;
+  private final List<PaymentTransactionRec> buffer;
+
+  private long acceptedCount;
+  private long writtenCount;
+  private long writeNanos;
+
+  public BatchingPaymentRecordSink(EntityManager em, int batchSize) {
+    if (batchSize < 1) {
+      throw new IllegalArgumentException("Payment record sink batch size must be at least 1, but was " + batchSize);
+    }
+    this.em = em;
+    this.batchSize = batchSize;
+    this.buffer = new ArrayList<>(batchSize);
+  }
+
+  @Override
+  public PaymentTransactionRec accept(PaymentTransactionRec record) {
+    buffer.add(record);
+    acceptedCount++;
+    if (buffer.size() >= batchSize) {
+      write();
+    }
+    return record;
+  }
+
+  @Override
+  public void flush() {
+    if (!buffer.isEmpty()) {
+      write();
+    }
+    if (writtenCount > 0) {
+      final long millis = TimeUnit.NANOSECONDS.toMillis(writeNanos);
+      LOGGER.info("Payment record sink: {} records written in {} ms ({} rows/sec), batch size {}", writtenCount, millis,
+          millis == 0 ? writtenCount : (writtenCount * 1000) / millis, batchSize);
+    }
+  }
+
+  @Override
+  public long getAcceptedCount() {
+    return acceptedCount;
+  }
+
+  private void write() {
+    final long start = System.nanoTime();
+    BatchInsertSupport.persistAll(em, batchSize, buffer);
+    writtenCount += buffer.size();
+    writeNanos += System.nanoTime() - start;
+    LOGGER.debug("Payment record sink: flushed {} records", buffer.size());
+    buffer.clear();
+  }
+
+}
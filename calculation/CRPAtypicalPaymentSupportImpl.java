@@ -2,12 +2,12 @@ package com.serviceco.coex.payment.calculation;
 
 import java.math.BigDecimal;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 import java.util.function.BinaryOperator;
-import java.util.function.Function;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
@@ -32,7 +32,6 @@ import com.serviceco.coex.payment.model.calculation.CollectionFeeKey;
 import com.serviceco.coex.payment.model.calculation.CollectionFeeValue;
 import com.serviceco.coex.payment.model.calculation.PaymentBatch;
 import com.serviceco.coex.payment.model.calculation.PaymentTransactionRec;
-import com.serviceco.coex.payment.model.calculation.QPaymentTransactionRec;
 import com.serviceco.coex.payment.model.calculation.QVGstRecoverySchemeTxn;
 import com.serviceco.coex.payment.model.calculation.QVRecoveryAmountCashAdjustedTxn;
 import com.serviceco.coex.payment.model.calculation.QVRecoveryAmountCashTxn;
@@ -43,11 +42,10 @@ import com.serviceco.coex.payment.model.calculation.VRecoveryAmountCashAdjustedT
 import com.serviceco.coex.payment.model.calculation.VRecoveryAmountCashTxn;
 import com.serviceco.coex.payment.model.calculation.VRecoveryAmountSchemeAdjustedTxn;
 import com.serviceco.coex.payment.model.calculation.VRecoveryAmountSchemeTxn;
-import com.serviceco.coex.payment.repository.PaymentTransactionRecRepository;
-import com.serviceco.coex.payment.support.DateTimeSupport;
+import com.serviceco.coex.payment.support.ParticipantSiteDirectory;
+import com.serviceco.coex.payment.support.PeriodCache;
 import com.serviceco.coex.scheme.participant.model.MdtParticipant;
 import com.serviceco.coex.scheme.participant.model.MdtParticipantSite;
-import com.serviceco.coex.scheme.participant.model.QMdtParticipantSite;
 import com.serviceco.coex.util.ReferenceDataUtilityService;
 import com.serviceco.coex.util.model.SchemeRefCodes;
 import com.serviceco.coex.util.service.SchemeRefCodeService;
@@ -77,10 +75,13 @@ public class CRPAtypicalPaymentSupportImpl {
   private EntityManager em;
 
   @Autowired
-  private PaymentTransactionRecRepository paymentRepo;
+  private PaymentStaleMarker staleMarker;
 
   @Autowired
-  private DateTimeSupport dateTimeSupport;
+  private PeriodCache periodCache;
+
+  @Autowired
+  private ParticipantSiteDirectory participantSiteDirectory;
 
   @Autowired
   private ReferenceDataUtilityService referenceDataUtilityService;
@@ -143,10 +144,11 @@ public class CRPAtypicalPaymentSupportImpl {
    * @param period The current payment period
    * @param handlingFeePeriod Payment periods associated with handling fee claim records found by {@link com.serviceco.coex.payment.calculation.CRPPaymentSupportImpl}, mapped by the scheme participant ID  (CRP ID)
    * @param scheme Only transactions associated with this scheme will be processed
+   * @param recordSink The sink of the current computation run. The generated records are written through it once all of them have been built.
    * @return Returns a list of the {@code com.serviceco.coex.payment.model.calculation.PaymentTransactionRec} records which have been generated
    */
   public List<PaymentTransactionRec> calculateOnTransactionalData(PaymentBatch paymentBatch, List<MdtParticipantSite> participantIdList, boolean include, Period period,
-      Map<String, List<Period>> handlingFeePeriod, Scheme scheme) {
+      Map<String, List<Period>> handlingFeePeriod, Scheme scheme, PaymentRecordSink recordSink) {
 
     final List<PaymentTransactionRec> paymentTransactionRecords = new ArrayList<>();
     final Period currentPeriod = period;
@@ -156,42 +158,44 @@ public class CRPAtypicalPaymentSupportImpl {
 
     // Preparing a map for caching scheme participants for this run of payment computation
     Map<String, MdtParticipantSite> schemeParticipantMap = new HashMap<>();
-    Map<String, Period> periodMap = new HashMap<>();
 
     BigDecimal crpUnitSellingPrice = getUnitSellingPrice(scheme);
     LOG.info("Considering unit selling price {} for refund amount and collection fee payment transactions.", crpUnitSellingPrice);
 
+    // the refund handlers below feed the collection fees as they go
+    final CollectionFeeAggregator collectionFees = new CollectionFeeAggregator();
+
     // handle scheme payments - actual ------------------------------------------------------------------
 
-    List<VRecoveryAmountSchemeTxn> recoveryAmountSchemeTxns = handleRecoveryAmountSchemeTxns(handlingFeePeriod, scheme,
-        paymentTransactionRecords, currentPeriod, thisBatch, materialTypeMap, schemeParticipantMap, periodMap);
+    handleRecoveryAmountSchemeTxns(handlingFeePeriod, scheme, paymentTransactionRecords, currentPeriod, thisBatch, materialTypeMap, schemeParticipantMap,
+        collectionFees);
 
     // handle scheme payments - adjusted ------------------------------------------------------------------
   
-    List<VRecoveryAmountSchemeAdjustedTxn> recoveryAmountSchemeAdjTxns = handleRecoveryAmountSchemeAdjustedTxns(
-        handlingFeePeriod, scheme, paymentTransactionRecords, currentPeriod, thisBatch, materialTypeMap,
-        schemeParticipantMap, periodMap);
+    handleRecoveryAmountSchemeAdjustedTxns(handlingFeePeriod, scheme, paymentTransactionRecords, currentPeriod, thisBatch, materialTypeMap, schemeParticipantMap,
+        collectionFees);
    
     // handle cash payments ------------------------------------------------------------------
     
-    List<VRecoveryAmountCashTxn> recoveryAmountCashTxns = handleRecoveryAmountCashTxns(handlingFeePeriod, scheme,
-        paymentTransactionRecords, currentPeriod, thisBatch, materialTypeMap, schemeParticipantMap, periodMap);
+    handleRecoveryAmountCashTxns(handlingFeePeriod, scheme, paymentTransactionRecords, currentPeriod, thisBatch, materialTypeMap, schemeParticipantMap,
+        collectionFees);
 
     // handle cash payments - adjusted -----------------------------------------------------------------
     
-    List<VRecoveryAmountCashAdjustedTxn> recoveryAmountCashAdjTxns = handleRecoveryAmountCashAdjustedTxns(
-        handlingFeePeriod, scheme, paymentTransactionRecords, currentPeriod, thisBatch, materialTypeMap,
-        schemeParticipantMap, periodMap);
+    handleRecoveryAmountCashAdjustedTxns(handlingFeePeriod, scheme, paymentTransactionRecords, currentPeriod, thisBatch, materialTypeMap, schemeParticipantMap,
+        collectionFees);
 
     // handle gst payments -----------------------------------------------------------------------------------
 
     handleGstRecoverySchemeTxns(handlingFeePeriod, scheme, paymentTransactionRecords, currentPeriod, thisBatch,
-        materialTypeMap, periodMap, crpUnitSellingPrice);
+        materialTypeMap, crpUnitSellingPrice);
 
     // handle collection payments
-    handleCollectionFees(scheme, paymentTransactionRecords, currentPeriod, thisBatch, materialTypeMap, periodMap,
-        recoveryAmountSchemeTxns, recoveryAmountSchemeAdjTxns, recoveryAmountCashTxns,
-        recoveryAmountCashAdjTxns);
+    handleCollectionFees(scheme, paymentTransactionRecords, currentPeriod, thisBatch, materialTypeMap, schemeParticipantMap, collectionFees);
+
+    // the stale checks above exclude this batch, so the records can be written together
+    paymentTransactionRecords.forEach(recordSink::accept);
+    recordSink.flush();
 
     return paymentTransactionRecords;
 
@@ -199,112 +203,20 @@ public class CRPAtypicalPaymentSupportImpl {
 
   private void handleCollectionFees(Scheme scheme, final List<PaymentTransactionRec> paymentTransactionRecords,
       final Period currentPeriod, final PaymentBatch thisBatch, Map<String, MaterialType> materialTypeMap,
-      Map<String, Period> periodMap, List<VRecoveryAmountSchemeTxn> recoveryAmountSchemeTxns,
-      List<VRecoveryAmountSchemeAdjustedTxn> recoveryAmountSchemeAdjTxns,
-      List<VRecoveryAmountCashTxn> recoveryAmountCashTxns,
-      List<VRecoveryAmountCashAdjustedTxn> recoveryAmountCashAdjTxns) {
+      Map<String, MdtParticipantSite> schemeParticipantMap, CollectionFeeAggregator collectionFees) {
     
     String paymentType = PaymentTxnType.COLLECTION_FEES.name();
     
-    if (CollectionUtils.isNotEmpty(recoveryAmountSchemeTxns) || CollectionUtils.isNotEmpty(recoveryAmountCashTxns) || CollectionUtils.isNotEmpty(recoveryAmountSchemeAdjTxns)
-        || CollectionUtils.isNotEmpty(recoveryAmountCashAdjTxns)) {
-
-      Map<CollectionFeeKey, CollectionFeeValue> collectionFeeForScheme = new HashMap<>();
-      if (CollectionUtils.isNotEmpty(recoveryAmountSchemeTxns)) {
-        collectionFeeForScheme = recoveryAmountSchemeTxns.stream().collect(Collectors.toMap(new Function<VRecoveryAmountSchemeTxn, CollectionFeeKey>() {
-
-          @Override
-          public CollectionFeeKey apply(VRecoveryAmountSchemeTxn t) {
+    if (!collectionFees.isEmpty()) {
 
-            final CollectionFeeKey collectionFee = new CollectionFeeKey();
-            collectionFee.setCrpId(t.getCrpId());
-            collectionFee.setMaterialTypeId(t.getMaterialTypeId());
-            collectionFee.setTransactionWeek(t.getTransactionWeek());
-            return collectionFee;
-          }
-        }, n1 -> {
-          final BigDecimal grossAmountSum = n1.getGrossAmountSum();
-          final BigDecimal volume = n1.getVolume();
-          return new CollectionFeeValue(grossAmountSum, volume);
-        }));
-      }
-      // recoveryAmountSchemeAdjustedTxns
-      Map<CollectionFeeKey, CollectionFeeValue> collectionFeeForSchemeAdj = new HashMap<>();
-      if (CollectionUtils.isNotEmpty(recoveryAmountSchemeAdjTxns)) {
-        collectionFeeForSchemeAdj = recoveryAmountSchemeAdjTxns.stream().collect(Collectors.toMap(t -> {
-          final CollectionFeeKey collectionFee = new CollectionFeeKey();
-          collectionFee.setCrpId(t.getCrpId());
-          collectionFee.setMaterialTypeId(t.getMaterialTypeId());
-          collectionFee.setTransactionWeek(t.getTransactionWeek());
-          return collectionFee;
-        }, t -> {
-          final BigDecimal grossAmountSum = t.getGrossAmountSum();
-          final BigDecimal volume = t.getVolume();
-          return new CollectionFeeValue(grossAmountSum, volume);
-        }));
-
-      }
-      // recoveryAmountCashTxns;
-      Map<CollectionFeeKey, CollectionFeeValue> collectionFeeForCash = new HashMap<>();
-      if (CollectionUtils.isNotEmpty(recoveryAmountCashTxns)) {
-        collectionFeeForCash = recoveryAmountCashTxns.stream().collect(Collectors.toMap(new Function<VRecoveryAmountCashTxn, CollectionFeeKey>() {
-
-          @Override
-          public CollectionFeeKey apply(VRecoveryAmountCashTxn t) {
-
-            final CollectionFeeKey collectionFee = new CollectionFeeKey();
-            collectionFee.setCrpId(t.getCrpId());
-            collectionFee.setMaterialTypeId(t.getMaterialTypeId());
-            collectionFee.setTransactionWeek(t.getTransactionWeek());
-            return collectionFee;
-          }
-        }, n1 -> {
-          final BigDecimal grossAmountSum = n1.getGrossAmountSum();
-          final BigDecimal volume = n1.getVolume();
-          return new CollectionFeeValue(grossAmountSum, volume);
-        }));
-      }
-      // recoveryAmountCashAdjustedTxns
-
-      Map<CollectionFeeKey, CollectionFeeValue> collectionFeeForCashAdj = new HashMap<>();
-      if (CollectionUtils.isNotEmpty(recoveryAmountCashAdjTxns)) {
-        collectionFeeForCashAdj = recoveryAmountCashAdjTxns.stream().collect(Collectors.toMap(t -> {
-          final CollectionFeeKey collectionFee = new CollectionFeeKey();
-          collectionFee.setCrpId(t.getCrpId());
-          collectionFee.setMaterialTypeId(t.getMaterialTypeId());
-          collectionFee.setTransactionWeek(t.getTransactionWeek());
-          return collectionFee;
-        }, t -> {
-          final BigDecimal grossAmountSum = t.getGrossAmountSum();
-          final BigDecimal volume = t.getVolume();
-          return new CollectionFeeValue(grossAmountSum, volume);
-        }));
-      }
-
-      // Combines the gross amount and volume from two CollectionFeeValue's together into a single CollectionFeeValue.
-      final BinaryOperator<CollectionFeeValue> combiner = (n1, n2) -> {
-        final BigDecimal grossAmountSum = n1.getGrossAmountSum().add(n2.getGrossAmountSum());
-        final BigDecimal volume = n1.getVolume().add(n2.getVolume());
-        return new CollectionFeeValue(grossAmountSum, volume);
-      };
-
-      final Map<CollectionFeeKey, CollectionFeeValue> collectionFeeMapForScheme = merge(collectionFeeForScheme, collectionFeeForSchemeAdj, combiner);
-      final Map<CollectionFeeKey, CollectionFeeValue> collectionFeeMapForCash = merge(collectionFeeForCash, collectionFeeForCashAdj, combiner);
-      final Map<CollectionFeeKey, CollectionFeeValue> collectionFeeMap = merge(collectionFeeMapForScheme, collectionFeeMapForCash, combiner);
-
-      for (final Map.Entry<CollectionFeeKey, CollectionFeeValue> entry2 : collectionFeeMap.entrySet()) {
+      for (final Map.Entry<CollectionFeeKey, CollectionFeeValue> entry2 : collectionFees.getFees().entrySet()) {
         final CollectionFeeKey key = entry2.getKey();
         final CollectionFeeValue value = entry2.getValue();
 
-        final MdtParticipantSite crp = getQueryFactory().select(QMdtParticipantSite.mdtParticipantSite).from(QMdtParticipantSite.mdtParticipantSite)
-            .where(QMdtParticipantSite.mdtParticipantSite.siteNumber.eq(key.getCrpId())).fetchOne();
+        // every CRP with a collection fee has been looked up by the refund handlers
+        final MdtParticipantSite crp = schemeParticipantMap.get(key.getCrpId());
 
-        if (!periodMap.containsKey(key.getTransactionWeek())) {
-          Period tempPeriod = Period.parse(key.getTransactionWeek());
-          dateTimeSupport.setTerminalDates(tempPeriod);
-          periodMap.put(key.getTransactionWeek(), tempPeriod);
-        }
-        final Period periodForTransaction = periodMap.get(key.getTransactionWeek());
+        final Period periodForTransaction = periodCache.parse(key.getTransactionWeek());
         final String arrear = currentPeriod.getStart().isEqual(periodForTransaction.getStart()) || currentPeriod.getStart().isBefore(periodForTransaction.getStart()) ? "N" : "Y";
 
         stale(thisBatch, key.getCrpId(), key.getMaterialTypeId(), periodForTransaction, paymentType, "", scheme);
@@ -321,7 +233,7 @@ public class CRPAtypicalPaymentSupportImpl {
                                                                      , arrear
                                                                      , scheme);
       //@formatter:on
-        paymentTransactionRecords.add(paymentRepo.save(paymentTransactionRec));
+        paymentTransactionRecords.add(paymentTransactionRec);
 
       }
     }
@@ -329,7 +241,7 @@ public class CRPAtypicalPaymentSupportImpl {
 
   private void handleGstRecoverySchemeTxns(Map<String, List<Period>> handlingFeePeriod, Scheme scheme,
       final List<PaymentTransactionRec> paymentTransactionRecords, final Period currentPeriod,
-      final PaymentBatch thisBatch, Map<String, MaterialType> materialTypeMap, Map<String, Period> periodMap, 
+      final PaymentBatch thisBatch, Map<String, MaterialType> materialTypeMap,
       BigDecimal crpUnitSellingPrice) {
     final QVGstRecoverySchemeTxn qvGstRecoverySchemeTxn = QVGstRecoverySchemeTxn.vGstRecoverySchemeTxn;
     final List<VGstRecoverySchemeTxn> gstRecoverySchemeTxnsInitial = getQueryFactory().select(qvGstRecoverySchemeTxn).from(qvGstRecoverySchemeTxn)
@@ -364,8 +276,7 @@ public class CRPAtypicalPaymentSupportImpl {
         final String crpId = entry1.getKey();
         final List<VGstRecoverySchemeTxn> transactions1 = entry1.getValue();
 
-        final MdtParticipantSite crp = getQueryFactory().select(QMdtParticipantSite.mdtParticipantSite).from(QMdtParticipantSite.mdtParticipantSite)
-            .where(QMdtParticipantSite.mdtParticipantSite.siteNumber.eq(crpId)).fetchOne();
+        final MdtParticipantSite crp = participantSiteDirectory.findBySiteNumber(crpId).orElse(null);
 
         // transformation
         final Map<String, List<VGstRecoverySchemeTxn>> gstRecoveryAmountSchemeTxnGroupedByWeek = transactions1.stream()
@@ -375,12 +286,7 @@ public class CRPAtypicalPaymentSupportImpl {
           final List<VGstRecoverySchemeTxn> transactions2 = entry2.getValue();
           for (final VGstRecoverySchemeTxn row : transactions2) {
 
-            if (!periodMap.containsKey(week)) {
-              Period tempPeriod = Period.parse(week);
-              dateTimeSupport.setTerminalDates(tempPeriod);
-              periodMap.put(week, tempPeriod);
-            }
-            final Period periodForTransaction = periodMap.get(week);
+            final Period periodForTransaction = periodCache.parse(week);
             final String arrear =
                 currentPeriod.getStart().isEqual(periodForTransaction.getStart()) || currentPeriod.getStart().isBefore(periodForTransaction.getStart()) ? "N" : "Y";
 
@@ -398,7 +304,7 @@ public class CRPAtypicalPaymentSupportImpl {
                                                                          , arrear
                                                                          , scheme);
           //@formatter:on
-            paymentTransactionRecords.add(paymentRepo.save(paymentTransactionRec));
+            paymentTransactionRecords.add(paymentTransactionRec);
 
           }
 
@@ -407,11 +313,12 @@ public class CRPAtypicalPaymentSupportImpl {
     }
   }
 
-  private List<VRecoveryAmountCashAdjustedTxn> handleRecoveryAmountCashAdjustedTxns(
+  private void handleRecoveryAmountCashAdjustedTxns(
       Map<String, List<Period>> handlingFeePeriod, Scheme scheme,
       final List<PaymentTransactionRec> paymentTransactionRecords, final Period currentPeriod,
       final PaymentBatch thisBatch, Map<String, MaterialType> materialTypeMap,
-      Map<String, MdtParticipantSite> schemeParticipantMap, Map<String, Period> periodMap) {
+      Map<String, MdtParticipantSite> schemeParticipantMap,
+      CollectionFeeAggregator collectionFees) {
     
     String paymentType = PaymentTxnType.REFUND_AMOUNT.name();
     String paymentMethod = PaymentMethod.CASH.name();
@@ -442,8 +349,7 @@ public class CRPAtypicalPaymentSupportImpl {
         final List<VRecoveryAmountCashAdjustedTxn> transactions1 = entry1.getValue();
 
         if (!schemeParticipantMap.containsKey(crpId)) {
-          MdtParticipantSite tempVal = getQueryFactory().select(QMdtParticipantSite.mdtParticipantSite).from(QMdtParticipantSite.mdtParticipantSite)
-              .where(QMdtParticipantSite.mdtParticipantSite.siteNumber.eq(crpId)).fetchOne();
+          MdtParticipantSite tempVal = participantSiteDirectory.findBySiteNumber(crpId).orElse(null);
 
           schemeParticipantMap.put(crpId, tempVal);
         }
@@ -458,12 +364,7 @@ public class CRPAtypicalPaymentSupportImpl {
           final List<VRecoveryAmountCashAdjustedTxn> transactions2 = entry2.getValue();
           for (final VRecoveryAmountCashAdjustedTxn row : transactions2) {
 
-            if (!periodMap.containsKey(week)) {
-              Period tempPeriod = Period.parse(week);
-              dateTimeSupport.setTerminalDates(tempPeriod);
-              periodMap.put(week, tempPeriod);
-            }
-            final Period periodForTransaction = periodMap.get(week);
+            final Period periodForTransaction = periodCache.parse(week);
             final String arrear =
                 currentPeriod.getStart().isEqual(periodForTransaction.getStart()) || currentPeriod.getStart().isBefore(periodForTransaction.getStart()) ? "N" : "Y";
 
@@ -480,6 +381,8 @@ public class CRPAtypicalPaymentSupportImpl {
 
             row.setGrossAmountSum(row.getVolume().multiply(getUnitSellingPrice(scheme)));
 
+            collectionFees.add(row.getCrpId(), row.getMaterialTypeId(), row.getTransactionWeek(), row.getGrossAmountSum(), row.getVolume());
+
             //@formatter:off
             final PaymentTransactionRec paymentTransactionRec = buildRecovAmtCashAdjPayment(thisBatch
                                                                          , row
@@ -492,7 +395,7 @@ public class CRPAtypicalPaymentSupportImpl {
                                                                          , arrear
                                                                          , scheme);
             //@formatter:on
-            paymentTransactionRecords.add(paymentRepo.save(paymentTransactionRec));
+            paymentTransactionRecords.add(paymentTransactionRec);
 
           }
 
@@ -500,13 +403,13 @@ public class CRPAtypicalPaymentSupportImpl {
       }
 
     }
-    return recoveryAmountCashAdjTxns;
   }
 
-  private List<VRecoveryAmountCashTxn> handleRecoveryAmountCashTxns(Map<String, List<Period>> handlingFeePeriod,
+  private void handleRecoveryAmountCashTxns(Map<String, List<Period>> handlingFeePeriod,
       Scheme scheme, final List<PaymentTransactionRec> paymentTransactionRecords, final Period currentPeriod,
       final PaymentBatch thisBatch, Map<String, MaterialType> materialTypeMap,
-      Map<String, MdtParticipantSite> schemeParticipantMap, Map<String, Period> periodMap) {
+      Map<String, MdtParticipantSite> schemeParticipantMap,
+      CollectionFeeAggregator collectionFees) {
     
     String paymentType = PaymentTxnType.REFUND_AMOUNT.name();
     String paymentMethod = PaymentMethod.CASH.name();
@@ -543,8 +446,7 @@ public class CRPAtypicalPaymentSupportImpl {
         final List<VRecoveryAmountCashTxn> transactions1 = entry1.getValue();
 
         if (!schemeParticipantMap.containsKey(crpId)) {
-          MdtParticipantSite tempVal = getQueryFactory().select(QMdtParticipantSite.mdtParticipantSite).from(QMdtParticipantSite.mdtParticipantSite)
-              .where(QMdtParticipantSite.mdtParticipantSite.siteNumber.eq(crpId)).fetchOne();
+          MdtParticipantSite tempVal = participantSiteDirectory.findBySiteNumber(crpId).orElse(null);
 
           schemeParticipantMap.put(crpId, tempVal);
         }
@@ -559,17 +461,13 @@ public class CRPAtypicalPaymentSupportImpl {
           final List<VRecoveryAmountCashTxn> transactions2 = entry2.getValue();
           for (final VRecoveryAmountCashTxn row : transactions2) {
 
-            if (!periodMap.containsKey(week)) {
-              Period tempPeriod = Period.parse(week);
-              dateTimeSupport.setTerminalDates(tempPeriod);
-              periodMap.put(week, tempPeriod);
-            }
-            final Period periodForTransaction = periodMap.get(week);
+            final Period periodForTransaction = periodCache.parse(week);
             final String arrear =
                 currentPeriod.getStart().isEqual(periodForTransaction.getStart()) || currentPeriod.getStart().isBefore(periodForTransaction.getStart()) ? "N" : "Y";
 
             stale(thisBatch, crpId, row.getMaterialTypeId(), periodForTransaction, paymentType, paymentMethod, scheme);
             row.setGrossAmountSum(row.getVolume().multiply(getUnitSellingPrice(scheme, row.getMaterialTypeId())));
+            collectionFees.add(row.getCrpId(), row.getMaterialTypeId(), row.getTransactionWeek(), row.getGrossAmountSum(), row.getVolume());
             //@formatter:off
           final PaymentTransactionRec paymentTransactionRec = buildRecovCashPayment(thisBatch
                                                                          , row
@@ -582,21 +480,21 @@ public class CRPAtypicalPaymentSupportImpl {
                                                                          , arrear
                                                                          , scheme);
           //@formatter:on
-            paymentTransactionRecords.add(paymentRepo.save(paymentTransactionRec));
+            paymentTransactionRecords.add(paymentTransactionRec);
 
           }
 
         }
       }
     }
-    return recoveryAmountCashTxns;
   }
 
-  private List<VRecoveryAmountSchemeAdjustedTxn> handleRecoveryAmountSchemeAdjustedTxns(
+  private void handleRecoveryAmountSchemeAdjustedTxns(
       Map<String, List<Period>> handlingFeePeriod, Scheme scheme,
       final List<PaymentTransactionRec> paymentTransactionRecords, final Period currentPeriod,
       final PaymentBatch thisBatch, Map<String, MaterialType> materialTypeMap,
-      Map<String, MdtParticipantSite> schemeParticipantMap, Map<String, Period> periodMap) {
+      Map<String, MdtParticipantSite> schemeParticipantMap,
+      CollectionFeeAggregator collectionFees) {
     
     String paymentType = PaymentTxnType.REFUND_AMOUNT.name();
     String paymentMethod = PaymentMethod.SCHEME.name();
@@ -626,8 +524,7 @@ public class CRPAtypicalPaymentSupportImpl {
         final List<VRecoveryAmountSchemeAdjustedTxn> transactions1 = entry1.getValue();
 
         if (!schemeParticipantMap.containsKey(crpId)) {
-          MdtParticipantSite tempVal = getQueryFactory().select(QMdtParticipantSite.mdtParticipantSite).from(QMdtParticipantSite.mdtParticipantSite)
-              .where(QMdtParticipantSite.mdtParticipantSite.siteNumber.eq(crpId)).fetchOne();
+          MdtParticipantSite tempVal = participantSiteDirectory.findBySiteNumber(crpId).orElse(null);
 
           schemeParticipantMap.put(crpId, tempVal);
         }
@@ -642,12 +539,7 @@ public class CRPAtypicalPaymentSupportImpl {
           final List<VRecoveryAmountSchemeAdjustedTxn> transactions2 = entry2.getValue();
           for (final VRecoveryAmountSchemeAdjustedTxn row : transactions2) {
 
-            if (!periodMap.containsKey(week)) {
-              Period tempPeriod = Period.parse(week);
-              dateTimeSupport.setTerminalDates(tempPeriod);
-              periodMap.put(week, tempPeriod);
-            }
-            final Period periodForTransaction = periodMap.get(week);
+            final Period periodForTransaction = periodCache.parse(week);
             final String arrear =
                 currentPeriod.getStart().isEqual(periodForTransaction.getStart()) || currentPeriod.getStart().isBefore(periodForTransaction.getStart()) ? "N" : "Y";
 
@@ -662,6 +554,7 @@ public class CRPAtypicalPaymentSupportImpl {
              * BigDecimal unitSellingPrice = new BigDecimal(reference.getRefundAmount());
              */
             row.setGrossAmountSum(row.getVolume().multiply(getUnitSellingPrice(scheme)));
+            collectionFees.add(row.getCrpId(), row.getMaterialTypeId(), row.getTransactionWeek(), row.getGrossAmountSum(), row.getVolume());
 
             //@formatter:off
             final PaymentTransactionRec paymentTransactionRec = buildRocovAmountSchAdjPayment(thisBatch
@@ -675,7 +568,7 @@ public class CRPAtypicalPaymentSupportImpl {
                                                                          , arrear
                                                                          , scheme);
             //@formatter:on
-            paymentTransactionRecords.add(paymentRepo.save(paymentTransactionRec));
+            paymentTransactionRecords.add(paymentTransactionRec);
 
           }
 
@@ -683,13 +576,13 @@ public class CRPAtypicalPaymentSupportImpl {
       }
 
     }
-    return recoveryAmountSchemeAdjTxns;
   }
 
-  private List<VRecoveryAmountSchemeTxn> handleRecoveryAmountSchemeTxns(Map<String, List<Period>> handlingFeePeriod,
+  private void handleRecoveryAmountSchemeTxns(Map<String, List<Period>> handlingFeePeriod,
       Scheme scheme, final List<PaymentTransactionRec> paymentTransactionRecords, final Period currentPeriod,
       final PaymentBatch thisBatch, Map<String, MaterialType> materialTypeMap,
-      Map<String, MdtParticipantSite> schemeParticipantMap, Map<String, Period> periodMap) {
+      Map<String, MdtParticipantSite> schemeParticipantMap,
+      CollectionFeeAggregator collectionFees) {
     
     String paymentType = PaymentTxnType.REFUND_AMOUNT.name();
     String paymentMethod = PaymentMethod.SCHEME.name();
@@ -723,8 +616,7 @@ public class CRPAtypicalPaymentSupportImpl {
         final List<VRecoveryAmountSchemeTxn> transactions1 = entry1.getValue(); // recovery amount transactions for the CRP ID 
 
         if (!schemeParticipantMap.containsKey(crpId)) {
-          MdtParticipantSite tempVal = getQueryFactory().select(QMdtParticipantSite.mdtParticipantSite).from(QMdtParticipantSite.mdtParticipantSite)
-              .where(QMdtParticipantSite.mdtParticipantSite.siteNumber.eq(crpId)).fetchOne();
+          MdtParticipantSite tempVal = participantSiteDirectory.findBySiteNumber(crpId).orElse(null);
 
           schemeParticipantMap.put(crpId, tempVal);
         }
@@ -739,18 +631,15 @@ public class CRPAtypicalPaymentSupportImpl {
           final List<VRecoveryAmountSchemeTxn> transactions2 = entry2.getValue();
           for (final VRecoveryAmountSchemeTxn row : transactions2) {
 
-            if (!periodMap.containsKey(week)) {
-              Period tempPeriod = Period.parse(week);
-              dateTimeSupport.setTerminalDates(tempPeriod);
-              periodMap.put(week, tempPeriod);
-            }
-            final Period periodForTransaction = periodMap.get(week);
+            final Period periodForTransaction = periodCache.parse(week);
             final String arrear =
                 currentPeriod.getStart().isEqual(periodForTransaction.getStart()) || currentPeriod.getStart().isBefore(periodForTransaction.getStart()) ? "N" : "Y";
 
             stale(thisBatch, crpId, row.getMaterialTypeId(), periodForTransaction, paymentType, paymentMethod, scheme);
 
             row.setGrossAmountSum(row.getVolume().multiply(getUnitSellingPrice(scheme, row.getMaterialTypeId())));
+
+            collectionFees.add(row.getCrpId(), row.getMaterialTypeId(), row.getTransactionWeek(), row.getGrossAmountSum(), row.getVolume());
             //@formatter:off
           final PaymentTransactionRec paymentTransactionRec = buildRecovAmtSchmPayment(thisBatch
                                                                          , row
@@ -764,14 +653,13 @@ public class CRPAtypicalPaymentSupportImpl {
                                                                          , arrear
                                                                          , scheme);
           //@formatter:on
-            paymentTransactionRecords.add(paymentRepo.save(paymentTransactionRec));
+            paymentTransactionRecords.add(paymentTransactionRec);
 
           }
 
         }
       }
     }
-    return recoveryAmountSchemeTxns;
   }
 
   /**
@@ -1035,27 +923,19 @@ public class CRPAtypicalPaymentSupportImpl {
    * @param paymentMethod
    */
   private void stale(final PaymentBatch thisBatch, final String crpId, final String materialTypeId, final Period periodForTransaction, String paymentType, String paymentMethod, Scheme scheme) {
-
-    final QPaymentTransactionRec qPaymentTransactionRec = QPaymentTransactionRec.paymentTransactionRec;
     //@formatter:off
-    final List<PaymentTransactionRec> oldPaymentTransactionRecs = getQueryFactory().select(qPaymentTransactionRec)
-                                                                               .from(qPaymentTransactionRec)
-                                                                             .where(qPaymentTransactionRec.schemeParticipantId.eq(crpId)
-                                                                              .and(qPaymentTransactionRec.materialType.id.eq(materialTypeId))
-                                                                              .and(qPaymentTransactionRec.periodType.eq(periodForTransaction.getType().name()))
-                                                                              .and(qPaymentTransactionRec.paymentType.eq(paymentType))
-                                                                              .and(qPaymentTransactionRec.paymentMethod.eq(paymentMethod))
-                                                                              .and(qPaymentTransactionRec.period.eq(periodForTransaction.getValue()))
-                                                                              .and(qPaymentTransactionRec.entryType.eq(EntryType.R.name()))
-                                                                              .and(qPaymentTransactionRec.paymentBatch.id.ne(thisBatch.getId()))
-                                                                              .and(qPaymentTransactionRec.status.eq(PaymentTransactionRec.PaymentStatus.AWAITING_REVIEW))
-                                                                              .and(qPaymentTransactionRec.scheme.eq(scheme))
-                                                                              ).fetch();
-    
-    oldPaymentTransactionRecs.stream().forEach(x -> {
-      x.setStatus(PaymentTransactionRec.PaymentStatus.STALE);
-      paymentRepo.save(x);
-    });
+    staleMarker.markStale(StalePaymentCriteria.builder()
+                                              .paymentBatch(thisBatch)
+                                              .schemeParticipantIds(Collections.singletonList(crpId))
+                                              .materialTypeId(materialTypeId)
+                                              .periodType(periodForTransaction.getType().name())
+                                              .period(periodForTransaction.getValue())
+                                              .entryTypes(Collections.singletonList(EntryType.R.name()))
+                                              .paymentType(paymentType)
+                                              .paymentMethod(paymentMethod)
+                                              .scheme(scheme)
+                                              .build());
+    //@formatter:on
   }
 
   /**
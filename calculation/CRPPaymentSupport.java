@@ -6,7 +6,9 @@ import com.serviceco.coex.crp.model.CRPClaimHeader;
 import com.serviceco.coex.masterdata.model.HandlingFeeReference;
 import com.serviceco.coex.model.Scheme;
 import com.serviceco.coex.model.dto.Period;
+import com.serviceco.coex.payment.model.calculation.PaymentBatch;
 import com.serviceco.coex.payment.model.calculation.PaymentTransactionRec;
+import com.serviceco.coex.payment.service.volume.VolumeSource;
 import com.serviceco.coex.scheme.participant.model.MdtParticipantSite;
 
 public interface CRPPaymentSupport extends CalculationSupport<CRPClaimHeader> {
@@ -16,6 +18,12 @@ public interface CRPPaymentSupport extends CalculationSupport<CRPClaimHeader> {
   @Override
   List<PaymentTransactionRec> calculateViaActual(CalculationParameter<CRPClaimHeader> param);
 
-  List<CRPClaimHeader> getUnprocessedVolume(List<String> schemeParticipantSiteNumbers, Scheme scheme);
+  VolumeSource<CRPClaimHeader> getUnprocessedVolume(List<String> schemeParticipantSiteNumbers, Scheme scheme);
+
+  /**
+   * Fetches the unprocessed volume of the headers which have been claimed from the pending work ledger by the payment batch. See
+   * {@link com.serviceco.coex.payment.service.PendingWorkLedger}.
+   */
+  VolumeSource<CRPClaimHeader> getPendingVolume(List<String> schemeParticipantSiteNumbers, Scheme scheme, PaymentBatch paymentBatch);
 
 }
@@ -3,13 +3,14 @@ package com.serviceco.coex.payment.calculation;
 import java.math.BigDecimal;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 import java.util.UUID;
 
 import javax.persistence.EntityManager;
-import javax.persistence.NonUniqueResultException;
 import javax.persistence.PersistenceContext;
 
 import org.apache.commons.collections.CollectionUtils;
@@ -28,14 +29,16 @@ import com.serviceco.coex.crp.repository.CRPClaimUtilityService;
 import com.serviceco.coex.exporter.model.dto.EntryStatus;
 import com.serviceco.coex.masterdata.model.HandlingFeeReference;
 import com.serviceco.coex.masterdata.model.MaterialType;
-import com.serviceco.coex.masterdata.model.QHandlingFeeReference;
 import com.serviceco.coex.masterdata.model.QMaterialType;
 import com.serviceco.coex.model.DateDimension;
 import com.serviceco.coex.model.Scheme;
 import com.serviceco.coex.model.dto.Period;
+import com.serviceco.coex.payment.model.calculation.PaymentBatch;
+import com.serviceco.coex.payment.model.calculation.PaymentPendingWork.Source;
 import com.serviceco.coex.payment.model.calculation.PaymentTransactionRec;
-import com.serviceco.coex.payment.model.calculation.QPaymentTransactionRec;
-import com.serviceco.coex.payment.repository.PaymentTransactionRecRepository;
+import com.serviceco.coex.payment.service.PendingWorkLedger;
+import com.serviceco.coex.payment.service.volume.VolumeSource;
+import com.serviceco.coex.payment.service.volume.VolumeSourceFactory;
 import com.serviceco.coex.payment.support.DateTimeSupport;
 import com.serviceco.coex.scheme.participant.model.MdtParticipantSite;
 
@@ -64,7 +67,16 @@ public class CRPPaymentSupportImpl implements CRPPaymentSupport {
   private EntityManager em;
 
   @Autowired
-  private PaymentTransactionRecRepository paymentTransactionRepository;
+  private PaymentStaleMarker staleMarker;
+
+  @Autowired
+  private FeeReferenceCache feeReferenceCache;
+
+  @Autowired
+  private VolumeSourceFactory volumeSourceFactory;
+
+  @Autowired
+  private PendingWorkLedger pendingWorkLedger;
 
   @Autowired
   private CRPClaimUtilityService crpClaimUtilityService;
@@ -108,6 +120,8 @@ public class CRPPaymentSupportImpl implements CRPPaymentSupport {
   public List<PaymentTransactionRec> calculateViaActual(CalculationParameter<CRPClaimHeader> param) {
 
     final List<PaymentTransactionRec> paymentTransactionRecords = new ArrayList<>();
+    // the existing records superseded by the new ones, staled together once every new record has been created
+    final Set<StalePaymentKey> staleKeys = new LinkedHashSet<>();
     final Scheme scheme = param.getScheme();
     for (final CRPClaimHeader header : param.getAllSalesVolumes()) {
       final Period period = dateTimeSupport.periodFactory(header.getPeriod(), header.getPeriodType());
@@ -120,7 +134,7 @@ public class CRPPaymentSupportImpl implements CRPPaymentSupport {
         final String materialTypeId = materialTypeHeaderVolumeEntry.getKey();
         final BigDecimal volume = materialTypeHeaderVolumeEntry.getValue();
         final HandlingFeeReference feeReference = fetchHandlingFeeReference(scheme, crp, materialTypeId, period);
-        final BigDecimal fee = (null != feeReference) ? feeReference.getFee() : BigDecimal.ZERO;
+        final BigDecimal fee = param.getSimulation().handlingFee(materialTypeId, (null != feeReference) ? feeReference.getFee() : BigDecimal.ZERO);
         final BigDecimal grossAmount = volume.multiply(fee);
         if (grossAmount.compareTo(BigDecimal.ZERO) == 0) {
           // skip transaction creation for zero amounts;
@@ -132,26 +146,7 @@ public class CRPPaymentSupportImpl implements CRPPaymentSupport {
         /*
          * create payment record
          */
-        final QPaymentTransactionRec qPaymentTransactionRec = QPaymentTransactionRec.paymentTransactionRec;
-
-        //@formatter:off
-        final List<PaymentTransactionRec> oldPaymentTransactionRecs = getQueryFactory().select(qPaymentTransactionRec)
-                                                                                   .from(qPaymentTransactionRec)
-                                                                                 .where(qPaymentTransactionRec.schemeParticipantId.eq(header.getCrp().getSiteNumber())
-                                                                                  .and(qPaymentTransactionRec.materialType.id.eq(materialTypeId))
-                                                                                  .and(qPaymentTransactionRec.periodType.eq(header.getPeriodType().name()))
-                                                                                  .and(qPaymentTransactionRec.period.eq(header.getPeriod()))
-                                                                                  .and(qPaymentTransactionRec.entryType.eq(header.getEntryType().name()))
-                                                                                  .and(qPaymentTransactionRec.paymentBatch.id.ne(param.paymentBatch.getId()))
-                                                                                  .and(qPaymentTransactionRec.status.eq(PaymentTransactionRec.PaymentStatus.AWAITING_REVIEW))
-                                                                                  .and(qPaymentTransactionRec.scheme.eq(scheme))
-                                                                                  ).fetch();
-        
-        oldPaymentTransactionRecs.stream().forEach(x -> {
-          x.setStatus(PaymentTransactionRec.PaymentStatus.STALE);
-          paymentTransactionRepository.save(x);
-        });
-        //@formatter:on
+        staleKeys.add(new StalePaymentKey(header.getCrp().getSiteNumber(), materialTypeId, header.getPeriodType().name(), header.getPeriod(), header.getEntryType().name()));
 
         // TODO : cache this ... otherwise too expensive
         final MaterialType materialType = getQueryFactory().select(QMaterialType.materialType).from(QMaterialType.materialType)
@@ -182,48 +177,42 @@ public class CRPPaymentSupportImpl implements CRPPaymentSupport {
         paymentTransactionRec.setStatus(PaymentTransactionRec.PaymentStatus.AWAITING_REVIEW);
         paymentTransactionRec.setScheme(scheme);
 
-        paymentTransactionRepository.save(paymentTransactionRec);
+        param.getRecordSink().accept(paymentTransactionRec);
         paymentTransactionRecords.add(paymentTransactionRec);
 
       }
     }
 
+    // the records of this batch are never staled, so the existing records can be staled after the new ones are created
+    if (!param.getSimulation().isSimulated()) {
+      //@formatter:off
+      staleMarker.markStale(StalePaymentCriteria.builder()
+                                                .paymentBatch(param.paymentBatch)
+                                                .keys(staleKeys)
+                                                .scheme(scheme)
+                                                .claimedSource(param.getPendingWorkSource())
+                                                .build());
+      //@formatter:on
+    }
+
+    param.getRecordSink().flush();
     return paymentTransactionRecords;
   }
 
   @Override
   public HandlingFeeReference fetchHandlingFeeReference(final Scheme scheme, final MdtParticipantSite crp, final String materialTypeId, final Period period) {
-    try {
-      LOGGER.info("fetching handling fee for material type {}, period {}, scheme {}, processor {}", materialTypeId, period, scheme.getName(), crp.getSiteNumber());
-      final QHandlingFeeReference feeReference = QHandlingFeeReference.handlingFeeReference;
-      final DateDimension effectiveFromDate = dateTimeSupport.correspondingDateDimension(period.getStart());
-      final Date periodStartDate = effectiveFromDate.getStartOfDay(scheme);
-
-      //@formatter:off
-      HandlingFeeReference reference = getQueryFactory().select(feeReference)
-      
-                                                      .from(feeReference)
-                                                      .where(feeReference.crp.siteNumber.eq(crp.getSiteNumber())
-                                                          .and(feeReference.materialType.id.eq(materialTypeId))
-                                                       .and(feeReference.effectiveFrom.loe(periodStartDate))
-                                                       .and(feeReference.effectiveTo.isNull().or(feeReference.effectiveTo.goe(periodStartDate))))
-                                                      .fetchOne();
-      if (reference == null) {   
-                          reference = getQueryFactory().select(feeReference)
-                                        .from(feeReference)
-                                        .where(feeReference.materialType.id.eq(materialTypeId)
-                                         .and(feeReference.effectiveFrom.loe(periodStartDate))
-                                         .and(feeReference.effectiveTo.isNull().or(feeReference.effectiveTo.goe(periodStartDate)))
-                                         .and(feeReference.scheme.id.eq(scheme.getId()))
-                                         .and(feeReference.crp.isNull()))
-                                        .fetchOne();
-      }
-      //@formatter:on 
-      return reference;
-    } catch (final NonUniqueResultException exception) {
-      throw new RuntimeException(
-          exception.getMessage() + " multiple reference data found for period : " + period + " scheme participant " + crp + " material type " + materialTypeId);
+    LOGGER.info("fetching handling fee for material type {}, period {}, scheme {}, processor {}", materialTypeId, period, scheme.getName(), crp.getSiteNumber());
+    final DateDimension effectiveFromDate = dateTimeSupport.correspondingDateDimension(period.getStart());
+    final Date periodStartDate = effectiveFromDate.getStartOfDay(scheme);
+    final FeeReferenceIndex<HandlingFeeReference> fees = feeReferenceCache.handlingFees();
+    List<HandlingFeeReference> references = fees.participantFees(FeeReferenceIndex.key(crp.getSiteNumber(), materialTypeId), periodStartDate);
+    if (references.isEmpty()) {
+      references = fees.defaultFees(FeeReferenceIndex.key(scheme.getId(), materialTypeId), periodStartDate);
     }
+    if (references.size() > 1) {
+      throw new RuntimeException("multiple reference data found for period : " + period + " scheme participant " + crp + " material type " + materialTypeId);
+    }
+    return references.isEmpty() ? null : references.get(0);
   }
 
   private JPAQueryFactory getQueryFactory() {
@@ -239,21 +228,37 @@ public class CRPPaymentSupportImpl implements CRPPaymentSupport {
    * <p>If the {@code schemeParticipantIds} passed in is not empty and does not contain "ALL", then the records are filtered to those which have a CRP ID that matches a scheme participant ID in {@code schemeParticipantIds}.</p>
    * 
    * @param schemeParticipantIds A list of scheme participant IDs for the participants you want to fetch volume data for. Or, pass an empty list/"ALL" to retrieve volume data for all participants.
-   * @return Returns {@link com.serviceco.coex.crp.model.CRPClaimHeader} objects which link to the claim details.  
+   * @return Returns a source which streams {@link com.serviceco.coex.crp.model.CRPClaimHeader} objects which link to the claim details. The headers are
+   *         detached once they have been processed.
    * 
    */
   @Override
-  public List<CRPClaimHeader> getUnprocessedVolume(List<String> schemeParticipantIds, Scheme scheme) {
+  public VolumeSource<CRPClaimHeader> getUnprocessedVolume(List<String> schemeParticipantIds, Scheme scheme) {
 
     final QCRPClaimHeader qCRPClaimHeader = QCRPClaimHeader.cRPClaimHeader;
     final JPAQuery<CRPClaimHeader> processorClaimVolumesQuery = getQueryFactory().select(qCRPClaimHeader).from(qCRPClaimHeader);
-    final BooleanExpression whereClause = qCRPClaimHeader.entryStatus.eq(EntryStatus.FINAL).and(qCRPClaimHeader.scheme.eq(scheme));
+    return volumeSourceFactory.open(processorClaimVolumesQuery.where(unprocessedClaims(schemeParticipantIds, scheme)));
+  }
+
+  /**
+   * Fetches the same claims as {@link #getUnprocessedVolume}, restricted to the claim headers claimed from the pending work ledger by the
+   * payment batch.
+   */
+  @Override
+  public VolumeSource<CRPClaimHeader> getPendingVolume(List<String> schemeParticipantIds, Scheme scheme, PaymentBatch paymentBatch) {
+
+    final QCRPClaimHeader qCRPClaimHeader = QCRPClaimHeader.cRPClaimHeader;
+    final BooleanExpression whereClause = unprocessedClaims(schemeParticipantIds, scheme).and(pendingWorkLedger.claimedBy(qCRPClaimHeader.id, paymentBatch, Source.CRP_CLAIM));
+    return volumeSourceFactory.open(getQueryFactory().select(qCRPClaimHeader).from(qCRPClaimHeader).where(whereClause));
+  }
+
+  private BooleanExpression unprocessedClaims(List<String> schemeParticipantIds, Scheme scheme) {
+    final QCRPClaimHeader qCRPClaimHeader = QCRPClaimHeader.cRPClaimHeader;
+    BooleanExpression whereClause = qCRPClaimHeader.entryStatus.eq(EntryStatus.FINAL).and(qCRPClaimHeader.scheme.eq(scheme));
     if (CollectionUtils.isNotEmpty(schemeParticipantIds) && !schemeParticipantIds.contains(ALL_SCHEME_PART_IDS)) {
-      whereClause.and(qCRPClaimHeader.crp.siteNumber.in(schemeParticipantIds));
+      whereClause = whereClause.and(qCRPClaimHeader.crp.siteNumber.in(schemeParticipantIds));
     }
-    final List<CRPClaimHeader> processorClaimVolumes = processorClaimVolumesQuery.where(whereClause).fetch();
-
-    return processorClaimVolumes;
+    return whereClause;
   }
 
 }
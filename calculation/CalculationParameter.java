@@ -1,6 +1,7 @@
 package com.serviceco.coex.payment.calculation;
 
 import java.util.List;
+import java.util.Map;
 
 import com.serviceco.coex.model.DateDimension;
 import com.serviceco.coex.model.Scheme;
@@ -9,6 +10,7 @@ import com.serviceco.coex.model.constant.SchemeParticipantType;
 import com.serviceco.coex.model.dto.Period;
 import com.serviceco.coex.payment.model.calculation.PaymentBatch;
 import com.serviceco.coex.payment.model.calculation.PaymentMetadata;
+import com.serviceco.coex.payment.model.calculation.PaymentPendingWork.Source;
 import com.serviceco.coex.scheme.participant.model.MdtParticipantSite;
 
 import lombok.AllArgsConstructor;
@@ -30,14 +32,14 @@ public class CalculationParameter<T> {
 	 * @param scheme	The scheme the participant is apart of &amp; the payment transaction is related to
 	 * @param schemeParticipantType The type of scheme participant. Payment transactions are only generated for participants of a particular type at a time.
 	 * @param schemeParticipants The scheme participants to generate the payment transactions for. These should all be of the of the scheme participant type above.	
-	 * @param allSalesVolumes The source volume / claim records which will be converted into payment transaction records. 
+	 * @param allSalesVolumes The source volume / claim records which will be converted into payment transaction records. These may be streamed from the database (see {@link com.serviceco.coex.payment.service.volume.VolumeSource}), so they can only be iterated once.
 	 * @param today	The current date (including day, month, year, quarter, etc.)
 	 * @param paymentBatch The record which identifies the current payment calculation batch. See @{link com.serviceco.coex.payment.service.ComputationTemplate}.
 	 * @param currentPeriod
 	 * @param paymentMetadata
 	 * @param auctionLotItemManifestId
 	 */
-  public CalculationParameter(Scheme scheme, SchemeParticipantType schemeParticipantType, List<MdtParticipantSite> schemeParticipants, List<T> allSalesVolumes, DateDimension today,
+  public CalculationParameter(Scheme scheme, SchemeParticipantType schemeParticipantType, List<MdtParticipantSite> schemeParticipants, Iterable<T> allSalesVolumes, DateDimension today,
       PaymentBatch paymentBatch, Period currentPeriod, PaymentMetadata paymentMetadata, String auctionLotItemManifestId) {
     this.scheme = scheme;
     this.schemeParticipantType = schemeParticipantType;
@@ -53,7 +55,7 @@ public class CalculationParameter<T> {
   public Scheme scheme;
   public SchemeParticipantType schemeParticipantType;
   public List<MdtParticipantSite> schemeParticipants;
-  public List<T> allSalesVolumes;
+  public Iterable<T> allSalesVolumes;
   public DateDimension today;
   public PaymentBatch paymentBatch;
   public Period currentPeriod;
@@ -61,5 +63,19 @@ public class CalculationParameter<T> {
   private String auctionLotIdentifier;
   private AuctionType auctionType;
   private String auctionLotItemManifestId;
+  /**
+   * The manifest ID of each auction lot item of a batch auction computation. If null, every lot item uses the auctionLotItemManifestId.
+   */
+  private Map<String, String> auctionLotItemManifestIds;
+  private PaymentRecordSink recordSink;
+  /**
+   * The overrides of a what-if computation, or {@link PaymentSimulation#NONE} for a real computation
+   */
+  private PaymentSimulation simulation = PaymentSimulation.NONE;
+  /**
+   * The pending work ledger source of an incremental computation, or null. If set, only the existing records of the headers the payment batch
+   * has claimed from the ledger are marked as stale.
+   */
+  private Source pendingWorkSource;
 
 }
\ No newline at end of file
@@ -0,0 +1,54 @@
+package com.serviceco.coex.payment.calculation;
+
+import java.math.BigDecimal;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.serviceco.coex.payment.model.calculation.CollectionFeeKey;
+import com.serviceco.coex.payment.model.calculation.CollectionFeeValue;
+
+/**
+ * Sums the gross amounts and volumes of the CRP refund transactions (scheme, scheme adjusted, cash and cash adjusted) by CRP, material type
+ * and transaction week, as the refund transactions are generated. The sums are the basis of the collection fee payments.
+ *
+ * <p>Each key has a single {@link CollectionFeeValue} which is added to in place. Instances are not thread safe; one is used per
+ * calculation.</p>
+ */
+final class CollectionFeeAggregator {
+
+  private final Map<CollectionFeeKey, CollectionFeeValue> fees = new LinkedHashMap<>();
+
+  /**
+   * Adds a refund transaction to the collection fee of its CRP, material type and week.
+   * @param crpId The CRP site number
+   * @param materialTypeId The material type ID
+   * @param transactionWeek The week of the transaction
+   * @param grossAmount The gross amount of the refund
+   * @param volume The volume of the refund
+   */
+  void add(String crpId, String materialTypeId, String transactionWeek, BigDecimal grossAmount, BigDecimal volume) {
+    final CollectionFeeKey key = new CollectionFeeKey();
+    key.setCrpId(crpId);
+    key.setMaterialTypeId(materialTypeId);
+    key.setTransactionWeek(transactionWeek);
+    final CollectionFeeValue value = fees.get(key);
+    if (value == null) {
+      fees.put(key, new CollectionFeeValue(grossAmount, volume));
+    } else {
+      value.add(grossAmount, volume);
+    }
+  }
+
+  boolean isEmpty() {
+    return fees.isEmpty();
+  }
+
+  /**
+   * @return Returns the collection fees, in the order their keys were first added
+   */
+  Map<CollectionFeeKey, CollectionFeeValue> getFees() {
+    return Collections.unmodifiableMap(fees);
+  }
+
+}
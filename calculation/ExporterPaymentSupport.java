@@ -6,12 +6,13 @@ import com.serviceco.coex.exporter.model.ExportVolumeHeader;
 import com.serviceco.coex.model.Scheme;
 import com.serviceco.coex.payment.model.calculation.PaymentTransactionRec;
 import com.serviceco.coex.payment.model.calculation.VExporterPaymentTxn;
+import com.serviceco.coex.payment.service.volume.VolumeSource;
 
 public interface ExporterPaymentSupport extends CalculationSupport<VExporterPaymentTxn> {
 
   @Override
   List<PaymentTransactionRec> calculateViaActual(CalculationParameter<VExporterPaymentTxn> paramExporter);
 
-  List<VExporterPaymentTxn> getExporterPaymentUnprocessedVolumes(List<String> schemeParticipantIds, Scheme scheme);
+  VolumeSource<VExporterPaymentTxn> getExporterPaymentUnprocessedVolumes(List<String> schemeParticipantIds, Scheme scheme);
 
 }
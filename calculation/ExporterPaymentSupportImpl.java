@@ -3,13 +3,19 @@ package com.serviceco.coex.payment.calculation;
 import java.math.BigDecimal;
 import java.time.LocalDate;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.stream.Collectors;
 
 import javax.persistence.EntityManager;
 import javax.persistence.PersistenceContext;
@@ -19,8 +25,10 @@ import org.apache.commons.collections.CollectionUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
+import com.querydsl.core.Tuple;
 import com.querydsl.core.types.dsl.BooleanExpression;
 import com.querydsl.core.types.dsl.BooleanOperation;
 import com.querydsl.jpa.impl.JPAQueryFactory;
@@ -37,12 +45,12 @@ import com.serviceco.coex.model.constant.PeriodType;
 import com.serviceco.coex.model.dto.Period;
 import com.serviceco.coex.payment.model.calculation.PaymentBatchGenericHdrRel;
 import com.serviceco.coex.payment.model.calculation.PaymentTransactionRec;
-import com.serviceco.coex.payment.model.calculation.QPaymentTransactionRec;
 import com.serviceco.coex.payment.model.calculation.QVExporterPaymentTxn;
 import com.serviceco.coex.payment.model.calculation.VExporterPaymentTxn;
-import com.serviceco.coex.payment.repository.PaymentBatchGenericHdrRelRepository;
-import com.serviceco.coex.payment.repository.PaymentTransactionRecRepository;
 import com.serviceco.coex.payment.service.DefaultComputationTemplateImpl;
+import com.serviceco.coex.payment.service.volume.VolumeSource;
+import com.serviceco.coex.payment.service.volume.VolumeSourceFactory;
+import com.serviceco.coex.payment.support.BatchInsertSupport;
 import com.serviceco.coex.payment.support.DateTimeSupport;
 import com.serviceco.coex.util.DateUtility;
 
@@ -58,6 +66,11 @@ import com.serviceco.coex.util.DateUtility;
 @Transactional
 public class ExporterPaymentSupportImpl implements ExporterPaymentSupport {
 
+  /**
+   * The number of volume records whose headers are loaded together, so the IN clauses of the header query never exceed 99 values
+   */
+  private static final int VOLUME_WINDOW_SIZE = 99;
+
   private static final Logger LOGGER = LoggerFactory.getLogger(DefaultComputationTemplateImpl.class);
 
   @Autowired
@@ -67,13 +80,16 @@ public class ExporterPaymentSupportImpl implements ExporterPaymentSupport {
   private EntityManager em;
 
   @Autowired
-  private PaymentTransactionRecRepository paymentTransactionRepository;
+  private PaymentStaleMarker staleMarker;
 
   @Autowired
   private MaterialTypeRepository materialTypeRepository;
 
   @Autowired
-  private PaymentBatchGenericHdrRelRepository paymentBatchGenericHdrRepo;
+  private VolumeSourceFactory volumeSourceFactory;
+
+  @Value("${payment.computation.record-sink.batch-size:500}")
+  private int batchSize;
 
   /**
    * <p>Generates payment transaction records based on exporter volume data.</p>
@@ -103,122 +119,113 @@ public class ExporterPaymentSupportImpl implements ExporterPaymentSupport {
 
     Map<String, Map<LocalDate, Map<String, SchemePriceReference>>> schemePriceReferencePerSP = new HashMap<>();
     Map<LocalDate, Map<String, SchemePriceReference>> schemePriceReferencePerS = new HashMap<>();
-    Map<String, Period> periodCache = new HashMap<>();
-    Map<String, DateDimension> dateDimensionCache = new HashMap<>();
-    Set<String> exportVolumeHeaders = new HashSet<>();
-    List<PaymentBatchGenericHdrRel> paymentBatchExporterHeaders = new ArrayList<>();
+    // keyed by export volume header ID, so that each header is only related to the batch once
+    Map<String, PaymentBatchGenericHdrRel> paymentBatchExporterHeaders = new LinkedHashMap<>();
     
     Scheme scheme = param.getScheme();
 
     preparePriceReference(schemePriceReferencePerSP, schemePriceReferencePerS, scheme);
 
+    final Map<String, MaterialType> materialTypes = new HashMap<>();
     final List<PaymentTransactionRec> paymentTransactionRecords = new ArrayList<>();
 
-    for (final VExporterPaymentTxn header : param.getAllSalesVolumes()) {
+    // the volume data is streamed, so its material types and export volume headers are loaded a window of records at a time
+    final Iterator<VExporterPaymentTxn> volumeIterator = param.getAllSalesVolumes().iterator();
+    while (volumeIterator.hasNext()) {
+      final List<VExporterPaymentTxn> volumes = nextWindow(volumeIterator);
+      fetchMaterialTypes(volumes, materialTypes);
+      final Map<List<Object>, List<String>> unprocessedHeaders = fetchUnprocessedHeaders(volumes, scheme);
+      // the existing records superseded by the window's new records, staled together with a single UPDATE once the window is done
+      final Set<StalePaymentKey> staleKeys = new LinkedHashSet<>();
+
+      for (final VExporterPaymentTxn header : volumes) {
+
+        final Period period = dateTimeSupport.periodFactory(header.getPeriod(), header.getPeriodType());
+        final DateDimension dateDimension = dateTimeSupport.correspondingDateDimension(period.getStart());
+        final boolean isCurrent = param.currentPeriod.getStart().isEqual(period.getStart()) || period.getStart().isBefore(period.getStart());
+        final String arrear = isCurrent ? "N" : "Y";
+        final MaterialType materialType = materialTypes.get(header.getMaterialTypeId());
+        final String materialTypeId = header.getMaterialTypeId();
+        final BigDecimal volume = header.getVolume();
+
+        if (volume.compareTo(BigDecimal.ZERO) == 0) {
+          continue;
+        }
+        SchemePriceReference schemePrice = fetchPriceReference(materialTypeId, dateDimension, scheme, header.getExporterId(), schemePriceReferencePerSP,
+            schemePriceReferencePerS, scheme);
+        if (null == schemePrice) {
+          LOGGER.error("No scheme price reference found for " + materialTypeId + " and " + header.getPeriod() + " (" + header.getExporterId() + ")");
+          schemePrice = SchemePriceReference.ZERO_VALUE();
+        }
+        final BigDecimal grossAmount = volume.multiply(schemePrice.getSchemePrice());
+        if (grossAmount.compareTo(BigDecimal.ZERO) == 0) {
+          // skip transaction creation for zero amounts;
+          continue;
+        }
+        final BigDecimal taxableAmount = BigDecimal.ZERO;
+        final BigDecimal gstAmount = BigDecimal.ZERO;
+
+        /*
+         * create payment record
+         */
+        staleKeys.add(new StalePaymentKey(header.getExporterId(), materialType.getId(), header.getPeriodType().name(), header.getPeriod(), header.getEntryType().name()));
+
+        final PaymentTransactionRec paymentTransactionRec = new PaymentTransactionRec();
+        paymentTransactionRec.setPaymentType(param.getPaymentMetadata().getTransactionType());
+        paymentTransactionRec.setId(UUID.randomUUID().toString());
+        paymentTransactionRec.setPaymentBatch(param.paymentBatch);
+        paymentTransactionRec.setSchemeParticipantId(header.getExporterId());
+        paymentTransactionRec.setSchemeParticipantName(header.getExporterName());
+        paymentTransactionRec.setSchemeParticipantType(param.getSchemeParticipantType().name());
+        paymentTransactionRec.setMaterialType(materialType);
+        paymentTransactionRec.setPaymentPeriod(param.getCurrentPeriod().toString());
+        paymentTransactionRec.setPeriodType(header.getPeriodType().name());
+        paymentTransactionRec.setPeriod(header.getPeriod());
+        paymentTransactionRec.setEntryType(header.getEntryType().name());
+        paymentTransactionRec.setUnitSellingPrice(schemePrice.getSchemePrice());
+        paymentTransactionRec.setArrear(arrear);
+        paymentTransactionRec.setGrossAmount(grossAmount);
+        paymentTransactionRec.setTaxableAmount(taxableAmount);
+        paymentTransactionRec.setGstAmount(gstAmount);
+        paymentTransactionRec.setLineType("ITEM");
+        paymentTransactionRec.setVolume(header.getVolume());
+        paymentTransactionRec.setUom("Ea");
+        paymentTransactionRec.setPaymentTimestamp(param.paymentBatch.getStartTimeStamp());
+        paymentTransactionRec.setStatus(PaymentTransactionRec.PaymentStatus.AWAITING_REVIEW);
+        paymentTransactionRec.setScheme(scheme);
+
+        param.getRecordSink().accept(paymentTransactionRec);
+        paymentTransactionRecords.add(paymentTransactionRec);
+
+        List<String> headers = unprocessedHeaders.getOrDefault(headerKey(header.getExporterId(), materialTypeId, header.getPeriodType(), header.getPeriod(), header.getEntryType()),
+            Collections.emptyList());
+        LOGGER.info("headers>>"+headers+">>"+materialTypeId+">>"+header.getExporterId()+">>"+header.getPeriodType()+">>"+header.getPeriod()+">>"+header.getEntryType());
+        // add the unique transaction header records so that we can know which exact ones to be invoiced
+        for (String exportHeaderId : headers) {
+          paymentBatchExporterHeaders.computeIfAbsent(exportHeaderId, id -> {
+            PaymentBatchGenericHdrRel rel = new PaymentBatchGenericHdrRel();
+            rel.setId(UUID.randomUUID().toString());
+            rel.setPaymentBatchId(param.paymentBatch.getId());
+            rel.setSchemeParticipantId(header.getExporterId());
+            rel.setTxnHeaderId(id);
+            rel.setScheme(scheme);
+            return rel;
+          });
+        }
 
-      if (!periodCache.containsKey(header.getPeriod())) {
-        final Period tempPeriod = dateTimeSupport.periodFactory(header.getPeriod(), header.getPeriodType());
-        DateDimension dateDimension = dateTimeSupport.correspondingDateDimension(tempPeriod.getStart());
-        periodCache.put(header.getPeriod(), tempPeriod);
-        dateDimensionCache.put(header.getPeriod(), dateDimension);
-      }
-      final Period period = periodCache.get(header.getPeriod());
-      final boolean isCurrent = param.currentPeriod.getStart().isEqual(period.getStart()) || period.getStart().isBefore(period.getStart());
-      final String arrear = isCurrent ? "N" : "Y";
-      final MaterialType materialType = materialTypeRepository.findById(header.getMaterialTypeId()).get();
-      final String materialTypeId = header.getMaterialTypeId();
-      final BigDecimal volume = header.getVolume();
-
-      if (volume.compareTo(BigDecimal.ZERO) == 0) {
-        continue;
       }
-      SchemePriceReference schemePrice = fetchPriceReference(materialTypeId, dateDimensionCache.get(header.getPeriod()), scheme, header.getExporterId(), schemePriceReferencePerSP,
-          schemePriceReferencePerS, scheme);
-      if (null == schemePrice) {
-        LOGGER.error("No scheme price reference found for " + materialTypeId + " and " + header.getPeriod() + " (" + header.getExporterId() + ")");
-        schemePrice = SchemePriceReference.ZERO_VALUE();
-      }
-      final BigDecimal grossAmount = volume.multiply(schemePrice.getSchemePrice());
-      if (grossAmount.compareTo(BigDecimal.ZERO) == 0) {
-        // skip transaction creation for zero amounts;
-        continue;
-      }
-      final BigDecimal taxableAmount = BigDecimal.ZERO;
-      final BigDecimal gstAmount = BigDecimal.ZERO;
-
-      /*
-       * create payment record
-       */
-      final QPaymentTransactionRec qPaymentTransactionRec = QPaymentTransactionRec.paymentTransactionRec;
 
       //@formatter:off
-        final List<PaymentTransactionRec> oldPaymentTransactionRecs = getQueryFactory().select(qPaymentTransactionRec)
-                                                                                   .from(qPaymentTransactionRec)
-                                                                                 .where(qPaymentTransactionRec.schemeParticipantId.eq(header.getExporterId())
-                                                                                  .and(qPaymentTransactionRec.materialType.eq(materialType))
-                                                                                  .and(qPaymentTransactionRec.periodType.eq(header.getPeriodType().name()))
-                                                                                  .and(qPaymentTransactionRec.period.eq(header.getPeriod()))
-                                                                                  .and(qPaymentTransactionRec.entryType.eq(header.getEntryType().name()))
-                                                                                  .and(qPaymentTransactionRec.paymentBatch.id.ne(param.paymentBatch.getId()))
-                                                                                  .and(qPaymentTransactionRec.status.eq(PaymentTransactionRec.PaymentStatus.AWAITING_REVIEW))
-                                                                                  .and(qPaymentTransactionRec.scheme.eq(scheme))
-                                                                                 ).fetch();
-        
-        oldPaymentTransactionRecs.stream().forEach(x -> {
-          x.setStatus(PaymentTransactionRec.PaymentStatus.STALE);
-          paymentTransactionRepository.save(x);
-        });
-        //@formatter:on
-
-      final PaymentTransactionRec paymentTransactionRec = new PaymentTransactionRec();
-      paymentTransactionRec.setPaymentType(param.getPaymentMetadata().getTransactionType());
-      paymentTransactionRec.setId(UUID.randomUUID().toString());
-      paymentTransactionRec.setPaymentBatch(param.paymentBatch);
-      paymentTransactionRec.setSchemeParticipantId(header.getExporterId());
-      paymentTransactionRec.setSchemeParticipantName(header.getExporterName());
-      paymentTransactionRec.setSchemeParticipantType(param.getSchemeParticipantType().name());
-      paymentTransactionRec.setMaterialType(materialType);
-      paymentTransactionRec.setPaymentPeriod(param.getCurrentPeriod().toString());
-      paymentTransactionRec.setPeriodType(header.getPeriodType().name());
-      paymentTransactionRec.setPeriod(header.getPeriod());
-      paymentTransactionRec.setEntryType(header.getEntryType().name());
-      paymentTransactionRec.setUnitSellingPrice(schemePrice.getSchemePrice());
-      paymentTransactionRec.setArrear(arrear);
-      paymentTransactionRec.setGrossAmount(grossAmount);
-      paymentTransactionRec.setTaxableAmount(taxableAmount);
-      paymentTransactionRec.setGstAmount(gstAmount);
-      paymentTransactionRec.setLineType("ITEM");
-      paymentTransactionRec.setVolume(header.getVolume());
-      paymentTransactionRec.setUom("Ea");
-      paymentTransactionRec.setPaymentTimestamp(param.paymentBatch.getStartTimeStamp());
-      paymentTransactionRec.setStatus(PaymentTransactionRec.PaymentStatus.AWAITING_REVIEW);
-      paymentTransactionRec.setScheme(scheme);
-
-      paymentTransactionRepository.save(paymentTransactionRec);
-      paymentTransactionRecords.add(paymentTransactionRec);
-
-      List<String> headers = getUnprocessedHeaders(materialTypeId, header.getExporterId(), header.getPeriodType(), header.getPeriod(), header.getEntryType(), scheme);
-      LOGGER.info("headers>>"+headers+">>"+materialTypeId+">>"+header.getExporterId()+">>"+header.getPeriodType()+">>"+header.getPeriod()+">>"+header.getEntryType());
-      // add the unique transaction header records to the set so that we can know which exact ones to be invoiced
-      for (String exportHeaderId : headers) {
-        if (!exportVolumeHeaders.contains(exportHeaderId)) {
-          PaymentBatchGenericHdrRel rel = new PaymentBatchGenericHdrRel();
-          rel.setId(UUID.randomUUID().toString());
-          rel.setPaymentBatchId(param.paymentBatch.getId());
-          rel.setSchemeParticipantId(header.getExporterId());
-          rel.setTxnHeaderId(exportHeaderId);
-          rel.setScheme(scheme);
-          // adding all headers
-          paymentBatchExporterHeaders.add(rel);
-          // adding to set so that duplicates are not processed
-          exportVolumeHeaders.add(exportHeaderId);
-        }
-      }
-
-      paymentBatchGenericHdrRepo.saveAll(paymentBatchExporterHeaders);
-
+      staleMarker.markStale(StalePaymentCriteria.builder()
+                                                .paymentBatch(param.paymentBatch)
+                                                .keys(staleKeys)
+                                                .scheme(scheme)
+                                                .build());
+      //@formatter:on
     }
 
+    saveHeaderRelations(paymentBatchExporterHeaders.values());
+    param.getRecordSink().flush();
     return paymentTransactionRecords;
   }
 
@@ -284,35 +291,92 @@ public class ExporterPaymentSupportImpl implements ExporterPaymentSupport {
    * If the {@code schemeParticipantIds} is empty or contains "ALL", all of the records are returned. <br>
    * Otherwise, only the records which have a exporterId matching one of the schemeParticipantIds are returned.
    * 
-   * @return Returns a list of {@link com.serviceco.coex.payment.model.calculation.VExporterPaymentTxn} objects containing the exporter volume data.
+   * @return Returns a source which streams the {@link com.serviceco.coex.payment.model.calculation.VExporterPaymentTxn} objects containing the exporter volume data.
    */
   @Override
-  public List<VExporterPaymentTxn> getExporterPaymentUnprocessedVolumes(List<String> schemeParticipantIds, Scheme scheme) {
+  public VolumeSource<VExporterPaymentTxn> getExporterPaymentUnprocessedVolumes(List<String> schemeParticipantIds, Scheme scheme) {
     QVExporterPaymentTxn exporterPayment = QVExporterPaymentTxn.vExporterPaymentTxn;
 
     BooleanExpression whereClause = exporterPayment.multiSchemeId.eq(scheme.getMultiSchemeId());
     if (CollectionUtils.isNotEmpty(schemeParticipantIds) && !schemeParticipantIds.contains("ALL")) {
       whereClause = whereClause.and(exporterPayment.exporterId.in(schemeParticipantIds));
     }
-    return getQueryFactory().select(exporterPayment).from(exporterPayment).where(whereClause).fetch();
+    return volumeSourceFactory.open(getQueryFactory().select(exporterPayment).from(exporterPayment).where(whereClause));
   }
 
-  private List<String> getUnprocessedHeaders(String materialTypeId, String exporterId, PeriodType periodType, String period, EntryType entryType, Scheme scheme) {
+  /**
+   * Reads the next window of up to {@value #VOLUME_WINDOW_SIZE} volume records from the (streamed) volume data.
+   */
+  private static List<VExporterPaymentTxn> nextWindow(Iterator<VExporterPaymentTxn> volumes) {
+    final List<VExporterPaymentTxn> window = new ArrayList<>(VOLUME_WINDOW_SIZE);
+    while (volumes.hasNext() && (window.size() < VOLUME_WINDOW_SIZE)) {
+      window.add(volumes.next());
+    }
+    return window;
+  }
+
+  /**
+   * Loads the material types of the volume data which have not been loaded yet, with a single query.
+   * @param volumes A window of the exporter volume data
+   * @param materialTypes The material types loaded so far, keyed by ID. The new ones are added to it.
+   */
+  private void fetchMaterialTypes(List<VExporterPaymentTxn> volumes, Map<String, MaterialType> materialTypes) {
+    final Set<String> materialTypeIds = volumes.stream().map(VExporterPaymentTxn::getMaterialTypeId).filter(id -> !materialTypes.containsKey(id)).collect(Collectors.toSet());
+    if (!materialTypeIds.isEmpty()) {
+      materialTypeRepository.findAllById(materialTypeIds).forEach(materialType -> materialTypes.put(materialType.getId(), materialType));
+    }
+  }
+
+  /**
+   * Loads the export volume headers of a window of the volume data with a single query, instead of querying the headers of each volume
+   * record separately. Only the headers of the exporters, periods and material types in the window are selected; the exact combinations
+   * are matched by {@link #headerKey}.
+   * @param volumes A window of up to {@value #VOLUME_WINDOW_SIZE} exporter volume records
+   * @param scheme The scheme
+   * @return Returns the distinct header IDs keyed by {@link #headerKey}
+   */
+  private Map<List<Object>, List<String>> fetchUnprocessedHeaders(List<VExporterPaymentTxn> volumes, Scheme scheme) {
     final QExportVolumeHeader qExportVolumeHeader = QExportVolumeHeader.exportVolumeHeader;
     final QExportVolumeDetail qExportVolumeDetail = QExportVolumeDetail.exportVolumeDetail;
+    final Set<String> exporterIds = volumes.stream().map(VExporterPaymentTxn::getExporterId).collect(Collectors.toSet());
+    final Set<String> periods = volumes.stream().map(VExporterPaymentTxn::getPeriod).collect(Collectors.toSet());
+    final Set<String> materialTypeIds = volumes.stream().map(VExporterPaymentTxn::getMaterialTypeId).collect(Collectors.toSet());
 
     //@formatter:off
-    return getQueryFactory().select(qExportVolumeHeader.id).from(qExportVolumeDetail,qExportVolumeHeader)
-                                  .where(qExportVolumeHeader.id.eq(qExportVolumeDetail.header.id)
-                                    .and(qExportVolumeDetail.materialType.id.eq(materialTypeId))
-                                    .and(qExportVolumeHeader.period.eq(period))
-                                    .and(qExportVolumeHeader.exporter.siteNumber.eq(exporterId))
-                                    .and(qExportVolumeHeader.entryType.eq(entryType))
-                                    .and(qExportVolumeHeader.periodType.eq(periodType))
-                                    .and(qExportVolumeHeader.scheme.eq(scheme))
-                                    ).distinct().fetch(); 
+    final List<Tuple> rows = getQueryFactory().select(qExportVolumeHeader.exporter.siteNumber, qExportVolumeDetail.materialType.id, qExportVolumeHeader.periodType,
+                                                      qExportVolumeHeader.period, qExportVolumeHeader.entryType, qExportVolumeHeader.id)
+                                              .from(qExportVolumeDetail,qExportVolumeHeader)
+                                              .where(qExportVolumeHeader.id.eq(qExportVolumeDetail.header.id)
+                                                .and(qExportVolumeHeader.exporter.siteNumber.in(exporterIds))
+                                                .and(qExportVolumeHeader.period.in(periods))
+                                                .and(qExportVolumeDetail.materialType.id.in(materialTypeIds))
+                                                .and(qExportVolumeHeader.scheme.eq(scheme))
+                                                ).distinct().fetch();
     //@formatter:on
+    final Map<List<Object>, List<String>> headers = new HashMap<>();
+    for (final Tuple row : rows) {
+      final List<Object> key = headerKey(row.get(qExportVolumeHeader.exporter.siteNumber), row.get(qExportVolumeDetail.materialType.id),
+          row.get(qExportVolumeHeader.periodType), row.get(qExportVolumeHeader.period), row.get(qExportVolumeHeader.entryType));
+      headers.computeIfAbsent(key, k -> new ArrayList<>()).add(row.get(qExportVolumeHeader.id));
+    }
+    return headers;
+  }
+
+  private static List<Object> headerKey(String exporterId, String materialTypeId, PeriodType periodType, String period, EntryType entryType) {
+    return Arrays.asList(exporterId, materialTypeId, periodType, period, entryType);
+  }
 
+  /**
+   * Persists the batch to header relations with JDBC batch inserts (persist rather than the repository's saveAll, which merges and so
+   * selects every relation with an assigned id first).
+   * @param relations The relations to save
+   */
+  private void saveHeaderRelations(Collection<PaymentBatchGenericHdrRel> relations) {
+    if (relations.isEmpty()) {
+      return;
+    }
+    BatchInsertSupport.persistAll(em, batchSize, relations);
+    LOGGER.info("saved {} payment batch exporter header relations", relations.size());
   }
 
 }
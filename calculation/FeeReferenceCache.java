@@ -0,0 +1,167 @@
+package com.serviceco.coex.payment.calculation;
+
+import java.time.Duration;
+import java.util.List;
+
+import javax.annotation.PostConstruct;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.querydsl.jpa.impl.JPAQueryFactory;
+import com.serviceco.coex.masterdata.model.HandlingFeeReference;
+import com.serviceco.coex.masterdata.model.ProcessingFeeReference;
+import com.serviceco.coex.masterdata.model.QHandlingFeeReference;
+import com.serviceco.coex.masterdata.model.QProcessingFeeReference;
+import com.serviceco.coex.payment.model.calculation.QRecoveryFeeReference;
+import com.serviceco.coex.payment.model.calculation.RecoveryFeeReference;
+import com.serviceco.coex.payment.support.RefreshingSnapshot;
+
+/**
+ * Serves processing, handling and recovery fee lookups from memory.
+ *
+ * <p>The PROCESSING_FEE_REFERENCE, HANDLING_FEE_REFERENCE and RECOVERY_FEE_REFERENCE tables are loaded into {@link FeeReferenceIndex}es
+ * the first time a fee is needed. The indexes are replaced (never modified) when they are older than
+ * {@code payment.fee-reference.refresh-minutes} (defaults to five minutes) or when {@link #refresh()} is called (see the
+ * {@code /fee-references/refresh} and {@code /reference-data/refresh} payment transaction endpoints).</p>
+ *
+ * <p>The tables are loaded through their own entity manager, so the rows are detached and are not tied to the persistence context of any
+ * caller. Callers only read their fees.</p>
+ */
+@Component
+public class FeeReferenceCache {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(FeeReferenceCache.class);
+
+  @PersistenceUnit
+  private EntityManagerFactory emf;
+
+  @Value("${payment.fee-reference.refresh-minutes:5}")
+  private long refreshMinutes;
+
+  private RefreshingSnapshot<Indexes> indexes;
+
+  private static final class Indexes {
+
+    private final FeeReferenceIndex<ProcessingFeeReference> processingFees;
+
+    private final FeeReferenceIndex<HandlingFeeReference> handlingFees;
+
+    private final FeeReferenceIndex<RecoveryFeeReference> recoveryFees;
+
+    private Indexes(FeeReferenceIndex<ProcessingFeeReference> processingFees, FeeReferenceIndex<HandlingFeeReference> handlingFees,
+        FeeReferenceIndex<RecoveryFeeReference> recoveryFees) {
+      this.processingFees = processingFees;
+      this.handlingFees = handlingFees;
+      this.recoveryFees = recoveryFees;
+    }
+  }
+
+  @PostConstruct
+  void init() {
+    indexes = new RefreshingSnapshot<>(Duration.ofMinutes(refreshMinutes), this::load);
+  }
+
+  /**
+   * Processing fees are keyed by processor site number and material type ID. The scheme defaults are keyed by scheme ID and material type
+   * ID and include every row of the scheme.
+   * @return Returns the processing fee index
+   */
+  FeeReferenceIndex<ProcessingFeeReference> processingFees() {
+    return indexes().processingFees;
+  }
+
+  /**
+   * Handling fees are keyed by CRP site number and material type ID. The scheme defaults are keyed by scheme ID and material type ID and
+   * only include the rows without a CRP.
+   * @return Returns the handling fee index
+   */
+  FeeReferenceIndex<HandlingFeeReference> handlingFees() {
+    return indexes().handlingFees;
+  }
+
+  /**
+   * Recovery fees are keyed by scheme ID, MRF site number and material type ID. The scheme defaults are keyed by scheme ID and material
+   * type ID and include every row of the scheme.
+   * @return Returns the recovery fee index
+   */
+  FeeReferenceIndex<RecoveryFeeReference> recoveryFees() {
+    return indexes().recoveryFees;
+  }
+
+  /**
+   * Reloads the fee reference tables. Lookups made while the tables are being loaded use the previous copy.
+   */
+  public void refresh() {
+    indexes.refresh();
+  }
+
+  private Indexes indexes() {
+    return indexes.get();
+  }
+
+  private Indexes load() {
+    final QProcessingFeeReference qProcessingFee = QProcessingFeeReference.processingFeeReference;
+    final QHandlingFeeReference qHandlingFee = QHandlingFeeReference.handlingFeeReference;
+    final QRecoveryFeeReference qRecoveryFee = QRecoveryFeeReference.recoveryFeeReference;
+    final List<ProcessingFeeReference> processingRows;
+    final List<HandlingFeeReference> handlingRows;
+    final List<RecoveryFeeReference> recoveryRows;
+    final EntityManager em = emf.createEntityManager();
+    try {
+      final JPAQueryFactory queryFactory = new JPAQueryFactory(em);
+      //@formatter:off
+      processingRows = queryFactory.select(qProcessingFee).from(qProcessingFee)
+                                   .leftJoin(qProcessingFee.processor).fetchJoin()
+                                   .leftJoin(qProcessingFee.scheme).fetchJoin()
+                                   .leftJoin(qProcessingFee.materialType).fetchJoin()
+                                   .fetch();
+      handlingRows = queryFactory.select(qHandlingFee).from(qHandlingFee)
+                                 .leftJoin(qHandlingFee.crp).fetchJoin()
+                                 .leftJoin(qHandlingFee.scheme).fetchJoin()
+                                 .leftJoin(qHandlingFee.materialType).fetchJoin()
+                                 .fetch();
+      recoveryRows = queryFactory.select(qRecoveryFee).from(qRecoveryFee)
+                                 .leftJoin(qRecoveryFee.mrf).fetchJoin()
+                                 .leftJoin(qRecoveryFee.scheme).fetchJoin()
+                                 .leftJoin(qRecoveryFee.materialType).fetchJoin()
+                                 .fetch();
+      //@formatter:on
+    } finally {
+      em.close();
+    }
+
+    //@formatter:off
+    final FeeReferenceIndex<ProcessingFeeReference> processingFees = FeeReferenceIndex.build(processingRows,
+        ProcessingFeeReference::getEffectiveFrom,
+        ProcessingFeeReference::getEffectiveTo,
+        row -> row.getProcessor() == null ? null : FeeReferenceIndex.key(row.getProcessor().getSiteNumber(), row.getMaterialType().getId()),
+        row -> row.getScheme() == null ? null : FeeReferenceIndex.key(row.getScheme().getId(), row.getMaterialType().getId()));
+    //@formatter:on
+
+    //@formatter:off
+    final FeeReferenceIndex<HandlingFeeReference> handlingFees = FeeReferenceIndex.build(handlingRows,
+        HandlingFeeReference::getEffectiveFrom,
+        HandlingFeeReference::getEffectiveTo,
+        row -> row.getCrp() == null ? null : FeeReferenceIndex.key(row.getCrp().getSiteNumber(), row.getMaterialType().getId()),
+        row -> (row.getScheme() == null) || (row.getCrp() != null) ? null : FeeReferenceIndex.key(row.getScheme().getId(), row.getMaterialType().getId()));
+    //@formatter:on
+
+    //@formatter:off
+    final FeeReferenceIndex<RecoveryFeeReference> recoveryFees = FeeReferenceIndex.build(recoveryRows,
+        RecoveryFeeReference::getEffectiveFrom,
+        RecoveryFeeReference::getEffectiveTo,
+        row -> (row.getScheme() == null) || (row.getMrf() == null) ? null : FeeReferenceIndex.key(row.getScheme().getId(), row.getMrf().getSiteNumber(), row.getMaterialType().getId()),
+        row -> row.getScheme() == null ? null : FeeReferenceIndex.key(row.getScheme().getId(), row.getMaterialType().getId()));
+    //@formatter:on
+
+    LOGGER.info("loaded {} processing, {} handling and {} recovery fee references", processingFees.size(), handlingFees.size(), recoveryFees.size());
+    return new Indexes(processingFees, handlingFees, recoveryFees);
+  }
+
+}
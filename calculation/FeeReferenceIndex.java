@@ -0,0 +1,180 @@
+package com.serviceco.coex.payment.calculation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * An immutable, in memory copy of an effective dated fee reference table (processing, handling or recovery fees).
+ *
+ * <p>The rows are grouped twice: by a participant key (e.g. the site number and material type) and by a scheme default key (e.g. the
+ * scheme and material type). Within each group the rows are sorted by their effective from date, so the rows in effect on a date are
+ * found with a binary search followed by a short backwards scan. The scan is bounded by the running maximum of the effective to dates and
+ * only visits more than one row when the intervals of a group overlap.</p>
+ *
+ * <p>The rows in effect on a date are returned in the order they were loaded in, so the first of them is the row an unordered query of
+ * the table would have returned first.</p>
+ *
+ * <p>Instances are built once by {@link FeeReferenceCache} and are safe to share between threads.</p>
+ *
+ * @param <T> The type of the fee reference entity
+ */
+final class FeeReferenceIndex<T> {
+
+  private final Map<List<String>, Intervals<T>> byParticipant;
+
+  private final Map<List<String>, Intervals<T>> byDefault;
+
+  private final int size;
+
+  private FeeReferenceIndex(Map<List<String>, Intervals<T>> byParticipant, Map<List<String>, Intervals<T>> byDefault, int size) {
+    this.byParticipant = byParticipant;
+    this.byDefault = byDefault;
+    this.size = size;
+  }
+
+  /**
+   * Builds the index.
+   * @param rows All of the rows of the fee reference table. They do not need to be sorted.
+   * @param effectiveFrom Returns the effective from date of a row
+   * @param effectiveTo Returns the effective to date of a row, or null if the row is open ended
+   * @param participantKey Returns the participant key of a row, or null if the row is not specific to a participant
+   * @param defaultKey Returns the scheme default key of a row, or null if the row can not be used as a scheme default
+   * @return Returns the index
+   */
+  static <T> FeeReferenceIndex<T> build(List<T> rows, Function<T, Date> effectiveFrom, Function<T, Date> effectiveTo, Function<T, List<String>> participantKey,
+      Function<T, List<String>> defaultKey) {
+    final Map<List<String>, List<T>> participantRows = new HashMap<>();
+    final Map<List<String>, List<T>> defaultRows = new HashMap<>();
+    for (final T row : rows) {
+      final List<String> participant = participantKey.apply(row);
+      if (participant != null) {
+        participantRows.computeIfAbsent(participant, k -> new ArrayList<>()).add(row);
+      }
+      final List<String> scheme = defaultKey.apply(row);
+      if (scheme != null) {
+        defaultRows.computeIfAbsent(scheme, k -> new ArrayList<>()).add(row);
+      }
+    }
+    return new FeeReferenceIndex<>(intervalsOf(participantRows, effectiveFrom, effectiveTo), intervalsOf(defaultRows, effectiveFrom, effectiveTo), rows.size());
+  }
+
+  /**
+   * @param parts The values making up a key, e.g. the site number and the material type ID
+   * @return Returns a key which can be used to look up the index
+   */
+  static List<String> key(String... parts) {
+    return Collections.unmodifiableList(Arrays.asList(parts));
+  }
+
+  private static <T> Map<List<String>, Intervals<T>> intervalsOf(Map<List<String>, List<T>> grouped, Function<T, Date> effectiveFrom, Function<T, Date> effectiveTo) {
+    final Map<List<String>, Intervals<T>> intervals = new HashMap<>();
+    grouped.forEach((key, rows) -> intervals.put(key, new Intervals<>(rows, effectiveFrom, effectiveTo)));
+    return intervals;
+  }
+
+  /**
+   * @param participantKey The participant key
+   * @param date The date the fee must be in effect on
+   * @return Returns the participant specific rows in effect on the date, in the order they were loaded in. Usually zero or one row.
+   */
+  List<T> participantFees(List<String> participantKey, Date date) {
+    return inEffect(byParticipant.get(participantKey), date);
+  }
+
+  /**
+   * @param defaultKey The scheme default key
+   * @param date The date the fee must be in effect on
+   * @return Returns the scheme default rows in effect on the date, in the order they were loaded in. Usually zero or one row.
+   */
+  List<T> defaultFees(List<String> defaultKey, Date date) {
+    return inEffect(byDefault.get(defaultKey), date);
+  }
+
+  int size() {
+    return size;
+  }
+
+  private List<T> inEffect(Intervals<T> intervals, Date date) {
+    return intervals == null ? Collections.emptyList() : intervals.inEffect(date.getTime());
+  }
+
+  /**
+   * The rows of a single key, sorted by effective from date. {@code maxTo[i]} is the latest effective to date of the rows 0 to i, so no
+   * row before i can be in effect on a date after {@code maxTo[i]}. {@code loadOrder[i]} is the position row i was loaded in.
+   */
+  private static final class Intervals<T> {
+
+    private final List<T> rows;
+
+    private final int[] loadOrder;
+
+    private final long[] from;
+
+    private final long[] to;
+
+    private final long[] maxTo;
+
+    private Intervals(List<T> unsorted, Function<T, Date> effectiveFrom, Function<T, Date> effectiveTo) {
+      final List<Integer> positions = new ArrayList<>(unsorted.size());
+      for (int i = 0; i < unsorted.size(); i++) {
+        positions.add(i);
+      }
+      positions.sort(Comparator.comparingLong(i -> effectiveFrom.apply(unsorted.get(i)).getTime()));
+      rows = new ArrayList<>(unsorted.size());
+      loadOrder = new int[unsorted.size()];
+      from = new long[unsorted.size()];
+      to = new long[unsorted.size()];
+      maxTo = new long[unsorted.size()];
+      for (int i = 0; i < positions.size(); i++) {
+        rows.add(unsorted.get(positions.get(i)));
+        loadOrder[i] = positions.get(i);
+      }
+      for (int i = 0; i < rows.size(); i++) {
+        final Date end = effectiveTo.apply(rows.get(i));
+        from[i] = effectiveFrom.apply(rows.get(i)).getTime();
+        to[i] = end == null ? Long.MAX_VALUE : end.getTime();
+        maxTo[i] = i == 0 ? to[i] : Math.max(maxTo[i - 1], to[i]);
+      }
+    }
+
+    private List<T> inEffect(long date) {
+      // index of the last row which became effective on or before the date
+      int low = 0;
+      int high = from.length - 1;
+      int last = -1;
+      while (low <= high) {
+        final int mid = (low + high) >>> 1;
+        if (from[mid] <= date) {
+          last = mid;
+          low = mid + 1;
+        } else {
+          high = mid - 1;
+        }
+      }
+      List<Integer> matches = Collections.emptyList();
+      for (int i = last; (i >= 0) && (maxTo[i] >= date); i--) {
+        if (to[i] >= date) {
+          if (matches.isEmpty()) {
+            matches = new ArrayList<>(1);
+          }
+          matches.add(i);
+        }
+      }
+      if (matches.isEmpty()) {
+        return Collections.emptyList();
+      }
+      matches.sort(Comparator.comparingInt(i -> loadOrder[i]));
+      final List<T> inEffect = new ArrayList<>(matches.size());
+      matches.forEach(i -> inEffect.add(rows.get(i)));
+      return inEffect;
+    }
+  }
+
+}
@@ -0,0 +1,140 @@
+package com.serviceco.coex.payment.calculation;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.DoubleSummaryStatistics;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+import com.serviceco.coex.model.dto.Period;
+import com.serviceco.coex.payment.model.calculation.ForecastedSalesVolume;
+import com.serviceco.coex.payment.model.calculation.VHistoricVolumeForForcast;
+
+/**
+ * Forecasts the monthly sales volume of non-declaring manufacturers from their historic volumes ({@code V_HISTORIC_VOL_FOR_FORCAST}).
+ *
+ * <p>The historic volumes are grouped by scheme participant and material type in a single pass. Each group keeps its period start dates
+ * and sales volumes in arrays ordered from the latest period to the earliest, so a forecast only reads the few entries of its own group
+ * instead of filtering and sorting the whole history. The sales volumes are kept as they were loaded and only parsed when a forecast
+ * averages them, so a volume which can not be parsed only fails the forecasts it is part of.</p>
+ *
+ * <p>Instances are immutable and can be reused for every participant, material type and forecast period of a batch.</p>
+ */
+final class HistoricVolumeForecast {
+
+  private static final Set<String> FORECASTABLE_ENTRY_TYPES = new HashSet<>(Arrays.asList("R", "L"));
+
+  private static final int MINIMUM_NUMBER_OF_MONTHS = 3;
+
+  private final int maxNumberOfMonths;
+
+  private final Map<String, Map<String, Series>> seriesByParticipant;
+
+  private HistoricVolumeForecast(int maxNumberOfMonths, Map<String, Map<String, Series>> seriesByParticipant) {
+    this.maxNumberOfMonths = maxNumberOfMonths;
+    this.seriesByParticipant = seriesByParticipant;
+  }
+
+  /**
+   * Builds the forecast from the historic volumes.
+   *
+   * <p>Only volumes with an entry type of R or L are used. If a participant has more than one volume for the same period and material
+   * type, the first one is used.</p>
+   *
+   * @param volumes The historic volumes of all of the participants to forecast
+   * @param periodResolver Returns the resolved period (with its start date set) of a historic volume
+   * @param maxNumberOfMonths The maximum number of previous months to average
+   * @return Returns the forecast
+   */
+  static HistoricVolumeForecast build(List<VHistoricVolumeForForcast> volumes, Function<VHistoricVolumeForForcast, Period> periodResolver, int maxNumberOfMonths) {
+    final Map<String, Map<String, Map<Period, String>>> grouped = new HashMap<>();
+    for (final VHistoricVolumeForForcast volume : volumes) {
+      if (!FORECASTABLE_ENTRY_TYPES.contains(volume.getEntryType())) {
+        continue;
+      }
+      final Period period = periodResolver.apply(volume);
+      if (period.getStart() == null) {
+        continue;
+      }
+      //@formatter:off
+      grouped.computeIfAbsent(volume.getSchemeParticipantId(), k -> new HashMap<>())
+             .computeIfAbsent(volume.getMaterialTypeId(), k -> new HashMap<>())
+             .putIfAbsent(period, volume.getSalesVolume());
+      //@formatter:on
+    }
+
+    final Map<String, Map<String, Series>> seriesByParticipant = new HashMap<>();
+    grouped.forEach((participant, byMaterial) -> {
+      final Map<String, Series> seriesByMaterial = new HashMap<>();
+      byMaterial.forEach((material, byPeriod) -> seriesByMaterial.put(material, new Series(byPeriod)));
+      seriesByParticipant.put(participant, seriesByMaterial);
+    });
+    return new HistoricVolumeForecast(maxNumberOfMonths, seriesByParticipant);
+  }
+
+  /**
+   * Calculates the rolling monthly average of the latest (up to {@code maxNumberOfMonths}) historic volumes which started no more than
+   * {@code maxNumberOfMonths} months before the forecast period.
+   *
+   * @param schemeParticipantId The scheme participant to forecast
+   * @param materialTypeId The material type to forecast
+   * @param period The forecast period
+   * @return Returns the forecasted sales volume, or {@link ForecastedSalesVolume#ZERO_VOLUME()} if there are less than three historic
+   *         volumes to average
+   */
+  ForecastedSalesVolume forecast(String schemeParticipantId, String materialTypeId, Period period) {
+    final Map<String, Series> seriesByMaterial = seriesByParticipant.get(schemeParticipantId);
+    final Series series = seriesByMaterial == null ? null : seriesByMaterial.get(materialTypeId);
+    if (series == null) {
+      return ForecastedSalesVolume.ZERO_VOLUME();
+    }
+
+    final LocalDate currentPeriodStartDate = period.getStart();
+    // the start dates are in descending order, so once a period is too old all of the remaining ones are too
+    int count = 0;
+    while ((count < series.starts.length) && (count < maxNumberOfMonths)
+        && (java.time.Period.between(series.starts[count], currentPeriodStartDate).toTotalMonths() <= maxNumberOfMonths)) {
+      count++;
+    }
+
+    if (count < MINIMUM_NUMBER_OF_MONTHS) {
+      return ForecastedSalesVolume.ZERO_VOLUME();
+    }
+    final DoubleSummaryStatistics summaryStatistics = new DoubleSummaryStatistics();
+    for (int i = 0; i < count; i++) {
+      summaryStatistics.accept(Double.parseDouble(series.volumes[i]));
+    }
+    final ForecastedSalesVolume forecasted = new ForecastedSalesVolume();
+    forecasted.setRollingMonthlyAverage(BigDecimal.valueOf(summaryStatistics.getAverage()));
+    return forecasted;
+  }
+
+  /**
+   * The historic volumes of one participant and material type, ordered by period start date, latest first.
+   */
+  private static final class Series {
+
+    private final LocalDate[] starts;
+
+    private final String[] volumes;
+
+    private Series(Map<Period, String> byPeriod) {
+      final List<Map.Entry<Period, String>> entries = new ArrayList<>(byPeriod.entrySet());
+      entries.sort(Comparator.comparing((Map.Entry<Period, String> e) -> e.getKey().getStart()).reversed());
+      starts = new LocalDate[entries.size()];
+      volumes = new String[entries.size()];
+      for (int i = 0; i < entries.size(); i++) {
+        starts[i] = entries.get(i).getKey().getStart();
+        volumes[i] = entries.get(i).getValue();
+      }
+    }
+  }
+
+}
@@ -0,0 +1,29 @@
+package com.serviceco.coex.payment.calculation;
+
+import com.serviceco.coex.payment.model.calculation.PaymentTransactionRec;
+
+/**
+ * A sink which keeps the payment transaction records in memory only. Used by what-if computations (see {@link PaymentSimulation}), which
+ * must not write to the database. The records are returned by the calculation support classes as usual.
+ */
+class InMemoryPaymentRecordSink implements PaymentRecordSink {
+
+  private long acceptedCount;
+
+  @Override
+  public PaymentTransactionRec accept(PaymentTransactionRec record) {
+    acceptedCount++;
+    return record;
+  }
+
+  @Override
+  public void flush() {
+    // nothing is written
+  }
+
+  @Override
+  public long getAcceptedCount() {
+    return acceptedCount;
+  }
+
+}
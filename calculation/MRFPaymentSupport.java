@@ -5,8 +5,10 @@ import java.util.List;
 import com.serviceco.coex.model.Scheme;
 import com.serviceco.coex.model.dto.Period;
 import com.serviceco.coex.mrf.model.MRFClaimHdr;
+import com.serviceco.coex.payment.model.calculation.PaymentBatch;
 import com.serviceco.coex.payment.model.calculation.PaymentTransactionRec;
 import com.serviceco.coex.payment.model.calculation.RecoveryFeeReference;
+import com.serviceco.coex.payment.service.volume.VolumeSource;
 
 public interface MRFPaymentSupport extends CalculationSupport<MRFClaimHdr> {
 
@@ -21,6 +23,12 @@ public interface MRFPaymentSupport extends CalculationSupport<MRFClaimHdr> {
   @Override
   List<PaymentTransactionRec> calculateViaActual(CalculationParameter<MRFClaimHdr> param);
 
-  List<MRFClaimHdr> getUnprocessedVolume(List<String> schemeParticipantIds, Scheme scheme);
+  VolumeSource<MRFClaimHdr> getUnprocessedVolume(List<String> schemeParticipantIds, Scheme scheme);
+
+  /**
+   * Fetches the unprocessed volume of the headers which have been claimed from the pending work ledger by the payment batch. See
+   * {@link com.serviceco.coex.payment.service.PendingWorkLedger}.
+   */
+  VolumeSource<MRFClaimHdr> getPendingVolume(List<String> schemeParticipantIds, Scheme scheme, PaymentBatch paymentBatch);
 
 }
@@ -5,20 +5,25 @@ import java.time.LocalDate;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.stream.Collectors;
 
 import javax.persistence.EntityManager;
 import javax.persistence.PersistenceContext;
 
 import org.apache.commons.collections.CollectionUtils;
+import org.hibernate.annotations.QueryHints;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 import org.springframework.transaction.annotation.Transactional;
 
+import com.google.common.collect.Lists;
 import com.querydsl.core.types.dsl.BooleanExpression;
 import com.querydsl.jpa.impl.JPAQuery;
 import com.querydsl.jpa.impl.JPAQueryFactory;
@@ -34,11 +39,13 @@ import com.serviceco.coex.model.dto.Period;
 import com.serviceco.coex.mrf.model.MRFClaimDtl;
 import com.serviceco.coex.mrf.model.MRFClaimHdr;
 import com.serviceco.coex.mrf.model.QMRFClaimHdr;
+import com.serviceco.coex.payment.model.calculation.PaymentBatch;
+import com.serviceco.coex.payment.model.calculation.PaymentPendingWork.Source;
 import com.serviceco.coex.payment.model.calculation.PaymentTransactionRec;
-import com.serviceco.coex.payment.model.calculation.QPaymentTransactionRec;
-import com.serviceco.coex.payment.model.calculation.QRecoveryFeeReference;
 import com.serviceco.coex.payment.model.calculation.RecoveryFeeReference;
-import com.serviceco.coex.payment.repository.PaymentTransactionRecRepository;
+import com.serviceco.coex.payment.service.PendingWorkLedger;
+import com.serviceco.coex.payment.service.volume.VolumeSource;
+import com.serviceco.coex.payment.service.volume.VolumeSourceFactory;
 import com.serviceco.coex.payment.support.DateTimeSupport;
 
 /**
@@ -52,12 +59,12 @@ import com.serviceco.coex.payment.support.DateTimeSupport;
 @Transactional
 public class MRFPaymentSupportImpl implements MRFPaymentSupport {
 
+  private static final int HEADER_CHUNK_SIZE = 99;
+
   private static final String ALL_SCHEME_PART_IDS = "ALL";
 
   private static final String UNIT_UNITS = "UNIT";
 
-  private static final String KILOGRAM_UNITS = "KILOGRAM";
-
   private static final String INELIGIBLE_MATERIAL_TYPE = MaterialType.INELIGIBLE;
 
   private static final Logger LOGGER = LoggerFactory.getLogger(MRFPaymentSupportImpl.class);
@@ -69,10 +76,19 @@ public class MRFPaymentSupportImpl implements MRFPaymentSupport {
   private EntityManager em;
 
   @Autowired
-  private PaymentTransactionRecRepository paymentTransactionRepository;
+  private PaymentStaleMarker staleMarker;
+
+  @Autowired
+  private FeeReferenceCache feeReferenceCache;
+
+  @Autowired
+  private VolumeSourceFactory volumeSourceFactory;
 
   @Autowired
   private ReferenceDataService referenceDataService;
+
+  @Autowired
+  private PendingWorkLedger pendingWorkLedger;
   
   /**
    * <p>Generates payment transaction records based on the MRF claims associated with the current payment period.</p>
@@ -111,25 +127,29 @@ public class MRFPaymentSupportImpl implements MRFPaymentSupport {
 
     Scheme scheme = param.getScheme();
     
+    // the conversion rates of each MRF are loaded once, when the first of its claims needs them
+    final UomConversionMatrix uomConversions = new UomConversionMatrix(siteNumber -> fetchUomConversionRates(siteNumber, param.currentPeriod.getStart(), scheme));
+
     final List<PaymentTransactionRec> paymentTransactionRecords = new ArrayList<>();
+    // the existing records superseded by the new ones, staled together once every new record has been created
+    final Set<StalePaymentKey> staleKeys = new LinkedHashSet<>();
     for (final MRFClaimHdr header : param.getAllSalesVolumes()) {
       final Period period = dateTimeSupport.periodFactory(header.getPeriod(), header.getPeriodType());
       final List<MRFClaimDtl> details = header.getLines();
       final boolean isCurrent = param.currentPeriod.getStart().isEqual(period.getStart()) || param.currentPeriod.getStart().isBefore(period.getStart());
       final String arrear = isCurrent ? "N" : "Y";
 
-      Map<String, Map<String, Float>> uomConversionRates = fetchUomConversionRates(header.getMrf().getSiteNumber(), param.currentPeriod.getStart(), scheme);
       for (final MRFClaimDtl detail : details) {
         final MaterialType materialType = detail.getMaterialType();
 
         BigDecimal volumeInUnits = detail.getUnits();
         if (null == volumeInUnits || volumeInUnits.compareTo(BigDecimal.ZERO) == 0) {
           final BigDecimal volumeInKilos = detail.getKilos();
-          volumeInUnits = convertVolumeFromKgsToUnits(header.getMrf().getSiteNumber(), materialType.getId(), volumeInKilos, uomConversionRates);
+          volumeInUnits = convertVolumeFromKgsToUnits(header.getMrf().getSiteNumber(), materialType.getId(), volumeInKilos, uomConversions);
         }
 
         final RecoveryFeeReference feeReference = fetchRecoveryFeeReference(scheme, header.getMrf().getSiteNumber(), materialType.getId(), period);
-        BigDecimal fee = (null != feeReference) ? feeReference.getRecoveryFee() : BigDecimal.ZERO;
+        BigDecimal fee = param.getSimulation().recoveryFee(materialType.getId(), (null != feeReference) ? feeReference.getRecoveryFee() : BigDecimal.ZERO);
         final BigDecimal grossAmount = volumeInUnits.multiply(fee);
         if (grossAmount.compareTo(BigDecimal.ZERO) == 0) {
           // skip transaction creation for zero amounts;
@@ -141,27 +161,7 @@ public class MRFPaymentSupportImpl implements MRFPaymentSupport {
         /*
          * create payment record
          */
-        final QPaymentTransactionRec qPaymentTransactionRec = QPaymentTransactionRec.paymentTransactionRec;
-
-        //@formatter:off
-        final List<PaymentTransactionRec> oldPaymentTransactionRecs = getQueryFactory().select(qPaymentTransactionRec)
-                                                                                   .from(qPaymentTransactionRec)
-                                                                                 .where(qPaymentTransactionRec.schemeParticipantId.eq(header.getMrf().getSiteNumber())
-                                                                                  .and(qPaymentTransactionRec.materialType.eq(materialType))
-                                                                                  .and(qPaymentTransactionRec.periodType.eq(header.getPeriodType().name()))
-                                                                                  .and(qPaymentTransactionRec.period.eq(header.getPeriod()))
-                                                                                  .and(qPaymentTransactionRec.entryType.eq(header.getEntryType().name()))
-                                                                                  .and(qPaymentTransactionRec.paymentBatch.id.ne(param.paymentBatch.getId()))
-                                                                                  .and(qPaymentTransactionRec.status.eq(PaymentTransactionRec.PaymentStatus.AWAITING_REVIEW))
-                                                                                  .and(qPaymentTransactionRec.scheme.eq(scheme))
-                                                                                 )
-                                                                                 .fetch();
-        
-        oldPaymentTransactionRecs.stream().forEach(x -> {
-          x.setStatus(PaymentTransactionRec.PaymentStatus.STALE);
-          paymentTransactionRepository.save(x);
-        });
-        //@formatter:on
+        staleKeys.add(new StalePaymentKey(header.getMrf().getSiteNumber(), materialType.getId(), header.getPeriodType().name(), header.getPeriod(), header.getEntryType().name()));
 
         final PaymentTransactionRec paymentTransactionRec = new PaymentTransactionRec();
         paymentTransactionRec.setPaymentType(param.getPaymentMetadata().getTransactionType());
@@ -188,43 +188,42 @@ public class MRFPaymentSupportImpl implements MRFPaymentSupport {
         paymentTransactionRec.setStatus(PaymentTransactionRec.PaymentStatus.AWAITING_REVIEW);
         paymentTransactionRec.setScheme(scheme);
 
-        paymentTransactionRepository.save(paymentTransactionRec);
+        param.getRecordSink().accept(paymentTransactionRec);
         paymentTransactionRecords.add(paymentTransactionRec);
 
       }
     }
 
+    // the records of this batch are never staled, so the existing records can be staled after the new ones are created
+    if (!param.getSimulation().isSimulated()) {
+      //@formatter:off
+      staleMarker.markStale(StalePaymentCriteria.builder()
+                                                .paymentBatch(param.paymentBatch)
+                                                .keys(staleKeys)
+                                                .scheme(scheme)
+                                                .claimedSource(param.getPendingWorkSource())
+                                                .build());
+      //@formatter:on
+    }
+
+    param.getRecordSink().flush();
     return paymentTransactionRecords;
   }
 
   @Override
   public RecoveryFeeReference fetchRecoveryFeeReference(final Scheme scheme, final String schemeParticipantId, final String materialTypeId, final Period period) {
     LOGGER.info("fetching processing fee for material type {}, period {}", materialTypeId, period);
-    final QRecoveryFeeReference feeReference = QRecoveryFeeReference.recoveryFeeReference;
     final DateDimension effectiveFromDate = dateTimeSupport.correspondingDateDimension(period.getStart());
     final Date periodStartDate = effectiveFromDate.getStartOfDay(scheme);
-    //@formatter:off
-    RecoveryFeeReference refData= getQueryFactory().select(feeReference)
-                                  .from(feeReference)
-                                  .where(feeReference.materialType.id.eq(materialTypeId)
-                                      .and(feeReference.mrf.siteNumber.eq(schemeParticipantId))
-                                      .and(feeReference.scheme.eq(scheme))
-                                      .and(feeReference.effectiveFrom.loe(periodStartDate))
-                                      .and(feeReference.effectiveTo.isNull().or(feeReference.effectiveTo.goe(periodStartDate))))
-                                  .fetchOne();
-    //@formatter:on 
-    if (refData == null) {
-      //@formatter:off
-      refData= getQueryFactory().select(feeReference)
-              .from(feeReference)
-              .where(feeReference.materialType.id.eq(materialTypeId)
-                  .and(feeReference.scheme.eq(scheme))
-                  .and(feeReference.effectiveFrom.loe(periodStartDate))
-                  .and(feeReference.effectiveTo.isNull().or(feeReference.effectiveTo.goe(periodStartDate))))
-              .fetchOne();
-      //@formatter:on
+    final FeeReferenceIndex<RecoveryFeeReference> fees = feeReferenceCache.recoveryFees();
+    List<RecoveryFeeReference> refData = fees.participantFees(FeeReferenceIndex.key(scheme.getId(), schemeParticipantId, materialTypeId), periodStartDate);
+    if (refData.isEmpty()) {
+      refData = fees.defaultFees(FeeReferenceIndex.key(scheme.getId(), materialTypeId), periodStartDate);
+    }
+    if (refData.size() > 1) {
+      throw new RuntimeException("multiple reference data found for period : " + period + " scheme participant " + schemeParticipantId + " material type " + materialTypeId);
     }
-    return refData;
+    return refData.isEmpty() ? null : refData.get(0);
   }
 
   private JPAQueryFactory getQueryFactory() {
@@ -239,20 +238,57 @@ public class MRFPaymentSupportImpl implements MRFPaymentSupport {
    * <p>If the {@code schemeParticipantIds} passed in is not empty and does not contain "ALL", then the records are filtered to those which have a MRF ID that matches a scheme participant ID in {@code schemeParticipantIds}.</p>
    * 
    * @param schemeParticipantIds A list of scheme participant IDs for the participants you want to fetch volume data for. Or, pass an empty list/"ALL" to retrieve volume data for all participants.
-   * @return Returns {@link com.serviceco.coex.mrf.model.MRFClaimHdr} objects which link to the claim details.  
+   * @return Returns a source which streams {@link com.serviceco.coex.mrf.model.MRFClaimHdr} objects which link to the claim details. The headers and their
+   *         claim details are detached once they have been processed.
    * 
    */
   @Override
-  public List<MRFClaimHdr> getUnprocessedVolume(List<String> schemeParticipantIds, Scheme scheme) {
+  public VolumeSource<MRFClaimHdr> getUnprocessedVolume(List<String> schemeParticipantIds, Scheme scheme) {
 
     final QMRFClaimHdr qMRFClaimHdr = QMRFClaimHdr.mRFClaimHdr;
     JPAQuery<MRFClaimHdr> mrfClaimVolumesQuery = getQueryFactory().select(qMRFClaimHdr).from(qMRFClaimHdr);
+    return volumeSourceFactory.open(mrfClaimVolumesQuery.where(unprocessedClaims(schemeParticipantIds, scheme)), MRFClaimHdr::getLines, this::fetchLines);
+  }
+
+  /**
+   * Fetches the same claims as {@link #getUnprocessedVolume}, restricted to the claim headers claimed from the pending work ledger by the
+   * payment batch.
+   */
+  @Override
+  public VolumeSource<MRFClaimHdr> getPendingVolume(List<String> schemeParticipantIds, Scheme scheme, PaymentBatch paymentBatch) {
+
+    final QMRFClaimHdr qMRFClaimHdr = QMRFClaimHdr.mRFClaimHdr;
+    final BooleanExpression whereClause = unprocessedClaims(schemeParticipantIds, scheme).and(pendingWorkLedger.claimedBy(qMRFClaimHdr.id, paymentBatch, Source.MRF_CLAIM));
+    return volumeSourceFactory.open(getQueryFactory().select(qMRFClaimHdr).from(qMRFClaimHdr).where(whereClause), MRFClaimHdr::getLines, this::fetchLines);
+  }
+
+  private BooleanExpression unprocessedClaims(List<String> schemeParticipantIds, Scheme scheme) {
+    final QMRFClaimHdr qMRFClaimHdr = QMRFClaimHdr.mRFClaimHdr;
     BooleanExpression whereClause = qMRFClaimHdr.entryStatus.eq(EntryStatus.FINAL).and(qMRFClaimHdr.scheme.eq(scheme));
     if (CollectionUtils.isNotEmpty(schemeParticipantIds) && !schemeParticipantIds.contains(ALL_SCHEME_PART_IDS)) {
-      whereClause.and(qMRFClaimHdr.mrf.siteNumber.in(schemeParticipantIds));
+      whereClause = whereClause.and(qMRFClaimHdr.mrf.siteNumber.in(schemeParticipantIds));
+    }
+    return whereClause;
+  }
+
+  /**
+   * Loads the claim details of a chunk of headers with one fetch join query per {@value #HEADER_CHUNK_SIZE} headers, instead of one query
+   * per header the first time its {@code getLines()} is called. The headers are already in the persistence context, so the query
+   * initialises their lines in place.
+   */
+  private void fetchLines(List<MRFClaimHdr> headers) {
+    final QMRFClaimHdr qMRFClaimHdr = QMRFClaimHdr.mRFClaimHdr;
+    final List<String> headerIds = headers.stream().map(MRFClaimHdr::getId).collect(Collectors.toList());
+    for (final List<String> chunk : Lists.partition(headerIds, HEADER_CHUNK_SIZE)) {
+      //@formatter:off
+      getQueryFactory().select(qMRFClaimHdr).distinct()
+                       .from(qMRFClaimHdr)
+                       .leftJoin(qMRFClaimHdr.lines).fetchJoin()
+                       .where(qMRFClaimHdr.id.in(chunk))
+                       .setHint(QueryHints.READ_ONLY, true)
+                       .fetch();
+      //@formatter:on
     }
-    final List<MRFClaimHdr> mrfClaimVolumes = mrfClaimVolumesQuery.where(whereClause).fetch();
-    return mrfClaimVolumes;
   }
 
   private Map<String, Map<String, Float>> fetchUomConversionRates(String processorId, LocalDate date, Scheme scheme) {
@@ -276,19 +312,11 @@ public class MRFPaymentSupportImpl implements MRFPaymentSupport {
     return materialTypeUomKiloConversions;
   }
 
-  private BigDecimal convertVolumeFromKgsToUnits(String siteNumber, String materialTypeId, BigDecimal volume, Map<String, Map<String, Float>> conversionRatesMap) {
+  private BigDecimal convertVolumeFromKgsToUnits(String siteNumber, String materialTypeId, BigDecimal volume, UomConversionMatrix uomConversions) {
     if (materialTypeId != null && materialTypeId.endsWith(INELIGIBLE_MATERIAL_TYPE)) {
       return BigDecimal.ZERO;
     }
-    Map<String, Float> conversionsForMaterial = conversionRatesMap.get(materialTypeId);
-    if (conversionsForMaterial == null) {
-      throw new RuntimeException("There are no UMO conversion mappings for material " + materialTypeId + " and site " + siteNumber);
-    }
-    Float conversionRate = conversionsForMaterial.get(KILOGRAM_UNITS);
-    if (conversionRate == null) {
-      throw new RuntimeException("There is no UMO conversion mapping from " + KILOGRAM_UNITS + " for material " + materialTypeId + " and site " + siteNumber);
-    }
-    return volume.multiply(new BigDecimal(conversionRate));
+    return uomConversions.kilosToUnits(siteNumber, materialTypeId, volume);
   }
 
 }
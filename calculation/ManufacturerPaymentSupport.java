@@ -1,8 +1,10 @@
 package com.serviceco.coex.payment.calculation;
 
 import com.serviceco.coex.model.Scheme;
+import com.serviceco.coex.payment.model.calculation.PaymentBatch;
 import com.serviceco.coex.payment.model.calculation.PaymentTransactionRec;
 import com.serviceco.coex.payment.model.calculation.VUnprocessedVolume;
+import com.serviceco.coex.payment.service.volume.VolumeSource;
 
 import java.util.List;
 
@@ -13,6 +15,12 @@ public interface ManufacturerPaymentSupport extends CalculationSupport<VUnproces
 
   List<PaymentTransactionRec> calculateViaForecast(CalculationParameter<VUnprocessedVolume> param);
 
-  List<VUnprocessedVolume> getUnprocessedVolume(List<String> schemeParticipantIds, Scheme scheme);
+  VolumeSource<VUnprocessedVolume> getUnprocessedVolume(List<String> schemeParticipantIds, Scheme scheme);
+
+  /**
+   * Fetches the unprocessed volume of the headers which have been claimed from the pending work ledger by the payment batch. See
+   * {@link com.serviceco.coex.payment.service.PendingWorkLedger}.
+   */
+  VolumeSource<VUnprocessedVolume> getPendingVolume(List<String> schemeParticipantIds, Scheme scheme, PaymentBatch paymentBatch);
 
 }
@@ -3,17 +3,14 @@ package com.serviceco.coex.payment.calculation;
 import java.math.BigDecimal;
 import java.time.LocalDate;
 import java.util.ArrayList;
-import java.util.Comparator;
+import java.util.Arrays;
 import java.util.Date;
-import java.util.DoubleSummaryStatistics;
 import java.util.HashMap;
-import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
+import java.util.Set;
 import java.util.UUID;
-import java.util.function.Function;
-import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
 import javax.persistence.EntityManager;
@@ -29,6 +26,7 @@ import org.springframework.stereotype.Component;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.querydsl.core.types.dsl.BooleanExpression;
 import com.querydsl.jpa.impl.JPAQueryFactory;
 import com.serviceco.coex.exporter.model.dto.EntryType;
 import com.serviceco.coex.manufacturer.dto.SalesVolumeDto;
@@ -47,18 +45,20 @@ import com.serviceco.coex.model.dto.ContainerVolumeLine.Containers;
 import com.serviceco.coex.model.dto.Period;
 import com.serviceco.coex.payment.model.calculation.ForecastedSalesVolume;
 import com.serviceco.coex.payment.model.calculation.PaymentBatch;
+import com.serviceco.coex.payment.model.calculation.PaymentPendingWork.Source;
 import com.serviceco.coex.payment.model.calculation.PaymentTransactionRec;
-import com.serviceco.coex.payment.model.calculation.QPaymentTransactionRec;
 import com.serviceco.coex.payment.model.calculation.QSeasonalityIndex;
 import com.serviceco.coex.payment.model.calculation.QVHistoricVolumeForForcast;
 import com.serviceco.coex.payment.model.calculation.QVUnprocessedVolume;
 import com.serviceco.coex.payment.model.calculation.SeasonalityIndex;
 import com.serviceco.coex.payment.model.calculation.VHistoricVolumeForForcast;
 import com.serviceco.coex.payment.model.calculation.VUnprocessedVolume;
-import com.serviceco.coex.payment.repository.PaymentTransactionRecRepository;
 import com.serviceco.coex.payment.service.DefaultComputationTemplateImpl;
 import com.serviceco.coex.payment.service.PaymentTransactionService;
+import com.serviceco.coex.payment.service.PendingWorkLedger;
 import com.serviceco.coex.payment.service.volume.GenericVolumeFinder;
+import com.serviceco.coex.payment.service.volume.VolumeSource;
+import com.serviceco.coex.payment.service.volume.VolumeSourceFactory;
 import com.serviceco.coex.payment.support.DateTimeSupport;
 import com.serviceco.coex.processor.model.UnitOfMeasure;
 import com.serviceco.coex.rest.support.ObjectMapperFactory;
@@ -94,10 +94,10 @@ public class ManufacturerPaymentSupportImpl implements ManufacturerPaymentSuppor
   EntityManager em;
 
   @Autowired
-  private PaymentTransactionRecRepository paymentRepository;
+  private PaymentTransactionService paymentTransactionService;
 
   @Autowired
-  private PaymentTransactionService paymentTransactionService;
+  private PaymentStaleMarker staleMarker;
 
   @Autowired
   private MaterialTypeRepository materialTypeRepo;
@@ -108,6 +108,12 @@ public class ManufacturerPaymentSupportImpl implements ManufacturerPaymentSuppor
   @Autowired
   private DateTimeSupport periodSupport;
 
+  @Autowired
+  private VolumeSourceFactory volumeSourceFactory;
+
+  @Autowired
+  private PendingWorkLedger pendingWorkLedger;
+
   /**
    * <p>Calculates payment transactions based on actual volume data.</p>
    * 
@@ -146,21 +152,20 @@ public class ManufacturerPaymentSupportImpl implements ManufacturerPaymentSuppor
 
     Map<String, MdtParticipantSite> mapOfSchemeParticipants = param.schemeParticipants.stream().collect(Collectors.toMap(sp -> sp.getSiteNumber(), sp -> sp));
     Map<String, MaterialType> mapOfMaterialTypes = materialTypeRepo.findAll().stream().collect(Collectors.toMap(m -> m.getId(), m -> m));
-    Map<String, Period> mapOfVolumePeriods = new HashMap<>();
-    Map<String, DateDimension> mapOfDateDimensions = new HashMap<>();
     
     Scheme scheme = param.getScheme();
 
     final List<PaymentTransactionRec> paymentTransactionRecords = new ArrayList<>();
-    logger.info("filtering sales volume based on business size of the manufacturer");
-    final List<VUnprocessedVolume> filteredBySchemeParticipantType = param.allSalesVolumes.stream()
-        .filter(volume -> StringUtils.equals(volume.getSchemeParticipantType(), param.getSchemeParticipantType().name())).collect(Collectors.toList());
-
-    List<String> schemeParticipantIds = filteredBySchemeParticipantType.stream().map(v -> v.getSchemeParticipantId()).collect(Collectors.toList());
-    staleRecords(param.paymentBatch.getId(), schemeParticipantIds, scheme);
+    // the volumes may be streamed, so they are filtered and staled in the same single pass which creates the records
+    final Set<String> schemeParticipantIds = new LinkedHashSet<>();
 
     Map<String, Map<LocalDate, SchemePriceReference>> schemePriceReferences = fetchSchemePriceReference(param.getScheme());
-    for (final VUnprocessedVolume volume : filteredBySchemeParticipantType) {
+    for (final VUnprocessedVolume volume : param.allSalesVolumes) {
+      // filter sales volume based on business size of the manufacturer
+      if (!StringUtils.equals(volume.getSchemeParticipantType(), param.getSchemeParticipantType().name())) {
+        continue;
+      }
+      schemeParticipantIds.add(volume.getSchemeParticipantId());
 
       logger.info("processing volume : {}", volume);
 
@@ -173,19 +178,9 @@ public class ManufacturerPaymentSupportImpl implements ManufacturerPaymentSuppor
       } else {
         entryType = volume.getEntryType();
       }
-      Period volumePeriod = null;
-      DateDimension dateDimension = null;
       final Period currentPeriod = param.getCurrentPeriod();
-
-      if (mapOfVolumePeriods.containsKey(volume.getPeriod())) {
-        volumePeriod = mapOfVolumePeriods.get(volume.getPeriod());
-        dateDimension = mapOfDateDimensions.get(volume.getPeriod());
-      } else {
-        volumePeriod = periodSupport.periodFactory(volume.getPeriod(), PeriodType.valueOf(volume.getPeriodType()));
-        mapOfVolumePeriods.put(volume.getPeriod(), volumePeriod);
-        dateDimension = periodSupport.correspondingDateDimension(volumePeriod.getStart());
-        mapOfDateDimensions.put(volume.getPeriod(), dateDimension);
-      }
+      final Period volumePeriod = periodSupport.periodFactory(volume.getPeriod(), PeriodType.valueOf(volume.getPeriodType()));
+      final DateDimension dateDimension = periodSupport.correspondingDateDimension(volumePeriod.getStart());
 
       final boolean isCurrent = currentPeriod.getStart().isEqual(volumePeriod.getStart()) || currentPeriod.getStart().isBefore(volumePeriod.getStart());
       final String arrear = isCurrent ? "N" : "Y";
@@ -219,12 +214,13 @@ public class ManufacturerPaymentSupportImpl implements ManufacturerPaymentSuppor
         throw new RuntimeException("scheme price is unavailable for following period " + volumePeriod + " and material type " + volume.getMaterialTypeId());
       }
 
-      logger.info("fetched scheme price {} for the current period {}, material type {} and scheme {}", referenceSchemePrice.getSchemePrice(), volumePeriod,
+      final BigDecimal schemePrice = param.getSimulation().schemePrice(volume.getMaterialTypeId(), referenceSchemePrice.getSchemePrice());
+      logger.info("fetched scheme price {} for the current period {}, material type {} and scheme {}", schemePrice, volumePeriod,
           volume.getMaterialTypeId(), scheme.getName());
 
       final BigDecimal salesVol = new BigDecimal(volume.getSalesVolume());
       logger.info("sales volume is {}", salesVol.intValue());
-      final BigDecimal price = referenceSchemePrice.getSchemePrice().multiply(salesVol);
+      final BigDecimal price = schemePrice.multiply(salesVol);
       logger.info("computed price is {}", price.doubleValue());
 
       final BigDecimal grossAmount = price;
@@ -245,7 +241,7 @@ public class ManufacturerPaymentSupportImpl implements ManufacturerPaymentSuppor
       paymentTransactionRec.setPeriodType(volume.getPeriodType());
       paymentTransactionRec.setPeriod(volume.getPeriod());
       paymentTransactionRec.setEntryType(entryType);
-      paymentTransactionRec.setUnitSellingPrice(referenceSchemePrice.getSchemePrice());
+      paymentTransactionRec.setUnitSellingPrice(schemePrice);
       paymentTransactionRec.setArrear(arrear);
       paymentTransactionRec.setGrossAmount(grossAmount);
       paymentTransactionRec.setTaxableAmount(taxableAmount);
@@ -259,46 +255,32 @@ public class ManufacturerPaymentSupportImpl implements ManufacturerPaymentSuppor
       paymentTransactionRec.setVolumeHdrEntryType(volume.getEntryType());
       paymentTransactionRec.setScheme(scheme);
 
-      paymentRepository.save(paymentTransactionRec);
+      param.getRecordSink().accept(paymentTransactionRec);
       paymentTransactionRecords.add(paymentTransactionRec);
 
       // }
     }
 
+    // the records of this batch are never staled, so the existing records can be staled after the new ones are created
+    if (!param.getSimulation().isSimulated()) {
+      staleRecords(param.paymentBatch, new ArrayList<>(schemeParticipantIds), scheme, param.getPendingWorkSource());
+    }
+
+    param.getRecordSink().flush();
     return paymentTransactionRecords;
   }
 
-  private void staleRecords(String paymentBatchId, List<String> schemeParticipantIds, Scheme scheme) {
-
-    final QPaymentTransactionRec qPaymentTransactionRec = QPaymentTransactionRec.paymentTransactionRec;
-
-    List<PaymentTransactionRec> oldPaymentTransactionRecs = new ArrayList<>();
-    List<String> schemeParticipantIdCopy = new ArrayList<>();
-    schemeParticipantIdCopy.addAll(schemeParticipantIds);
-    while (schemeParticipantIdCopy.size() > 0) {
-      List<String> schemeParticipantIds_99recs = schemeParticipantIdCopy.stream().limit(99).collect(Collectors.toList());
-      // @formatter:off
-     List<PaymentTransactionRec> oldPaymentTransactionRecsTemp = getQueryFactory()
-                                                                  .select(qPaymentTransactionRec)
-                                                                  .from(qPaymentTransactionRec)
-                                                                  .where(qPaymentTransactionRec.schemeParticipantId.in(schemeParticipantIds_99recs)
-                                                                  .and(qPaymentTransactionRec.periodType.eq(PeriodType.M.name()))
-                                                                  .and(qPaymentTransactionRec.entryType.in(EntryType.R.name(),EntryType.A.name()))
-                                                                  .and(qPaymentTransactionRec.paymentBatch.id.ne(paymentBatchId))
-                                                                  .and(qPaymentTransactionRec.status.eq(PaymentTransactionRec.PaymentStatus.AWAITING_REVIEW))
-                                                                  .and(qPaymentTransactionRec.scheme.multiSchemeId.eq(scheme.getMultiSchemeId()))
-                                                                  ).fetch();
+  private void staleRecords(PaymentBatch paymentBatch, List<String> schemeParticipantIds, Scheme scheme, Source pendingWorkSource) {
+    //@formatter:off
+    staleMarker.markStale(StalePaymentCriteria.builder()
+                                              .paymentBatch(paymentBatch)
+                                              .schemeParticipantIds(schemeParticipantIds)
+                                              .periodType(PeriodType.M.name())
+                                              .entryTypes(Arrays.asList(EntryType.R.name(), EntryType.A.name()))
+                                              .multiSchemeId(scheme.getMultiSchemeId())
+                                              .claimedSource(pendingWorkSource)
+                                              .build());
     //@formatter:on
-      oldPaymentTransactionRecs.addAll(oldPaymentTransactionRecsTemp);
-      schemeParticipantIdCopy.removeAll(schemeParticipantIds_99recs);
-    }
-
-    if (oldPaymentTransactionRecs.size() > 0) {
-      oldPaymentTransactionRecs.stream().forEach(x -> {
-        x.setStatus(PaymentTransactionRec.PaymentStatus.STALE);
-        paymentRepository.save(x);
-      });
-    }
   }
 
   /**
@@ -331,6 +313,11 @@ public class ManufacturerPaymentSupportImpl implements ManufacturerPaymentSuppor
     List<VHistoricVolumeForForcast> allHistoricVolumesForForcast = getHistoricVolumesForForcast(listOfSchemeParticipants);
     logger.info("list of scheme participants {}", listOfSchemeParticipants);
     logger.info("size of historic sales volumes for forcasting {}", allHistoricVolumesForForcast.size());
+    //@formatter:off
+    final HistoricVolumeForecast historicVolumeForecast = HistoricVolumeForecast.build(allHistoricVolumesForForcast
+                                                                                      , volume -> periodSupport.periodFactory(volume.getPeriod(), PeriodType.valueOf(volume.getPeriodType()))
+                                                                                      , MAX_NUMBER_OF_PREVIOUS_MONTHS_TO_CONSIDER);
+    //@formatter:on
 
     switch (argument.schemeParticipantType) {
     //@formatter:off
@@ -339,11 +326,12 @@ public class ManufacturerPaymentSupportImpl implements ManufacturerPaymentSuppor
                                         , argument.schemeParticipantType
                                         , schemeParticipants
                                         , argument.paymentBatch
-                                        , argument.allSalesVolumes
                                         , paymentTransactionRecords
                                         , argument.getCurrentPeriod()
                                         , argument.getCurrentPeriod()
-                                        , allHistoricVolumesForForcast);
+                                        , historicVolumeForecast
+                                        , argument.getRecordSink()
+                                        , argument.getSimulation());
       break;
     case SML_MANUFACTURER:
       
@@ -353,23 +341,25 @@ public class ManufacturerPaymentSupportImpl implements ManufacturerPaymentSuppor
                                           , argument.schemeParticipantType
                                           , schemeParticipants
                                           , argument.paymentBatch
-                                          , argument.allSalesVolumes
                                           , paymentTransactionRecords
                                           , argument.getCurrentPeriod()
                                           , monthForPaymentPeriod
-                                          ,allHistoricVolumesForForcast);
+                                          , historicVolumeForecast
+                                          , argument.getRecordSink()
+                                          , argument.getSimulation());
       }
       break;
     default:
       break;
     }
     //@formatter:on
+    argument.getRecordSink().flush();
     return paymentTransactionRecords;
   }
 
   private void createPaymentTransactionViaForecast(Scheme scheme, final SchemeParticipantType schemeParticipantType, final List<MdtParticipantSite> schemeParticipants,
-      final PaymentBatch paymentBatch, List<VUnprocessedVolume> allSalesVolumes, final List<PaymentTransactionRec> paymentTransactionRecords, final Period paymentPeriod,
-      final Period period, List<VHistoricVolumeForForcast> allHistoricVolumesForForcast) {
+      final PaymentBatch paymentBatch, final List<PaymentTransactionRec> paymentTransactionRecords, final Period paymentPeriod,
+      final Period period, final HistoricVolumeForecast historicVolumeForecast, final PaymentRecordSink recordSink, final PaymentSimulation simulation) {
 
     final String periodValue = period.getValue();
     logger.info("creating payment transaction for the payment period {}", period);
@@ -377,7 +367,6 @@ public class ManufacturerPaymentSupportImpl implements ManufacturerPaymentSuppor
     final DateDimension effectiveFromDate = periodSupport.correspondingDateDimension(period.getStart());
 
     Map<String, MaterialType> materialTypes = materialTypeRepo.findAllByScheme(scheme).stream().collect(Collectors.toMap(m -> m.getId(), m -> m));
-    Map<String, Period> periodMap = new HashMap<>();
     Map<String, Map<Date, SeasonalityIndex>> seasonalityIndexes = findSeasonalityIndex(scheme);
     Map<String, Map<LocalDate, SchemePriceReference>> schemePriceReferences = fetchSchemePriceReference(scheme);
 
@@ -400,14 +389,14 @@ public class ManufacturerPaymentSupportImpl implements ManufacturerPaymentSuppor
         } else {
 
           final SalesVolumeDto salesVolume = SalesVolumeDto.factory(EntryType.F);
-          final List<PaymentTransactionRec> persistedListOfPaymentRecords = new ArrayList<>();
+          final List<PaymentTransactionRec> forecastPaymentRecords = new ArrayList<>();
           boolean paymentRecordsCreated = false;
 
           //Cashing Period
           for (final MaterialType materialType : materialTypes.values()) {
 
             logger.info("proceeding to forecast for material type - {}", materialType.getName());
-            final ForecastedSalesVolume esv = forecastVolume(schemeParticipant.getSiteNumber(), materialType.getId(), allHistoricVolumesForForcast, period, periodMap);
+            final ForecastedSalesVolume esv = historicVolumeForecast.forecast(schemeParticipant.getSiteNumber(), materialType.getId(), period);
             SeasonalityIndex seasonalityIndex = null;
             if ((esv != null) && (esv.getRollingMonthlyAverage() != BigDecimal.ZERO)) {
               seasonalityIndex = seasonalityIndexes.get(materialType.getId()) != null ? seasonalityIndexes.get(materialType.getId()).get(effectiveFromDate.getStartOfDayUTC()) : null;
@@ -422,13 +411,15 @@ public class ManufacturerPaymentSupportImpl implements ManufacturerPaymentSuppor
                 referenceSchemePrice = SchemePriceReference.ZERO_VALUE();
               }
 
-              final BigDecimal grossAmount = referenceSchemePrice.getSchemePrice().multiply(totalVolume);
+              final BigDecimal schemePrice = simulation.schemePrice(materialType.getId(), referenceSchemePrice.getSchemePrice());
+              final BigDecimal grossAmount = schemePrice.multiply(totalVolume);
               final BigDecimal taxableAmount = BigDecimal.ZERO;
               final BigDecimal gstAmount = BigDecimal.ZERO;
 
               final PaymentTransactionRec record = paymentTransactionService
                   .createPaymentTransaction(paymentBatch, new Period(periodValue, PeriodType.M), paymentPeriod, schemeParticipant, materialType, totalVolume, referenceSchemePrice,
                       grossAmount, taxableAmount, gstAmount, scheme);
+              record.setUnitSellingPrice(schemePrice);
               paymentRecordsCreated = true;
               paymentTransactionRecords.add(record);
 
@@ -439,19 +430,19 @@ public class ManufacturerPaymentSupportImpl implements ManufacturerPaymentSuppor
               containerVolumeLine.setMaterialTypeId(materialType.getId());
               containerVolumeLine.setContainers(containers);
               salesVolume.getCurrentVolume().getLines().add(containerVolumeLine);
-              final PaymentTransactionRec persistedPaymentRecord = paymentRepository.save(record);
-              persistedListOfPaymentRecords.add(persistedPaymentRecord);
+              forecastPaymentRecords.add(record);
             }
           }
           if (paymentRecordsCreated) {
-            // persist the forecasted volume for the period
-            final SalesVolumeDto volumeHeader = volumeService.saveSalesVolumes(schemeParticipant.getSiteNumber(), period.toString(), salesVolume, scheme);
-            // associate payment row with the header value
-            if (null != volumeHeader) {
-              for (final PaymentTransactionRec payment : persistedListOfPaymentRecords) {
+            // persist the forecasted volume for the period, unless this is a what-if computation
+            final SalesVolumeDto volumeHeader = simulation.isSimulated() ? null
+                : volumeService.saveSalesVolumes(schemeParticipant.getSiteNumber(), period.toString(), salesVolume, scheme);
+            // associate payment row with the header value before it is written
+            for (final PaymentTransactionRec payment : forecastPaymentRecords) {
+              if (null != volumeHeader) {
                 payment.setVolumeHeaderId(volumeHeader.getSalesVolumeHdr().getId());
-                paymentRepository.save(payment);
               }
+              recordSink.accept(payment);
             }
           }
         }
@@ -513,77 +504,6 @@ public class ManufacturerPaymentSupportImpl implements ManufacturerPaymentSuppor
     return seasonalityIndexMap;
   }
 
-  /**
-   * forecast sales volume based on previous sales
-   *
-   * @return forecasted sales volume
-   */
-  private ForecastedSalesVolume forecastVolume(String schemeParticipantId, String materialTypeId, List<VHistoricVolumeForForcast> volumes, final Period period,
-      Map<String, Period> periodMap) {
-
-    // compress volumes by adding
-
-    // step 1: filter
-    final List<VHistoricVolumeForForcast> filtered = volumes.stream().filter(new Predicate<VHistoricVolumeForForcast>() {
-      @Override
-      public boolean test(VHistoricVolumeForForcast t) {
-
-        return StringUtils.equals(t.getSchemeParticipantId(), schemeParticipantId) && StringUtils.equals(t.getMaterialTypeId(), materialTypeId) && (
-            StringUtils.equals(t.getEntryType(), "R") || StringUtils.equals(t.getEntryType(), "L"));
-      }
-    }).collect(Collectors.toList());
-
-    // step 2: mapped as period - volume
-
-    final Map<Period, VHistoricVolumeForForcast> mappedToPeriod = filtered.stream().collect(Collectors.toMap(new Function<VHistoricVolumeForForcast, Period>() {
-
-      @Override
-      public Period apply(VHistoricVolumeForForcast volume) {
-
-        // important: at this point the start date of a given period is updated
-        if (periodMap.containsKey(volume.getPeriod())) {
-          return periodMap.get(volume.getPeriod());
-        } else {
-          final Period period = new Period(volume.getPeriod(), PeriodType.valueOf(volume.getPeriodType()));
-          periodSupport.setTerminalDates(period);
-          periodMap.put(volume.getPeriod(), period);
-          return period;
-        }
-      }
-    }, t -> t));
-
-    // step 3: ordered over period start date
-
-    final LinkedHashMap<Period, VHistoricVolumeForForcast> elements = mappedToPeriod.entrySet().stream().sorted(new Comparator<Entry<Period, VHistoricVolumeForForcast>>() {
-
-      @Override
-      public int compare(Entry<Period, VHistoricVolumeForForcast> o1, Entry<Period, VHistoricVolumeForForcast> o2) {
-        // sort the collection
-        return o2.getKey().getStart().compareTo(o1.getKey().getStart());
-      }
-    }).filter(e -> {
-      final Period periodForHistoricalSalesVolume = e.getKey();
-      //I dont think we need this.terminal date would already be there
-      // periodSupport.setTerminalDates(periodForHistoricalSalesVolume);
-      final LocalDate historicalStartDate = periodForHistoricalSalesVolume.getStart();
-      final LocalDate currentPeriodStartDate = period.getStart();
-
-      final java.time.Period diff = java.time.Period.between(historicalStartDate, currentPeriodStartDate);
-      return diff.toTotalMonths() <= MAX_NUMBER_OF_PREVIOUS_MONTHS_TO_CONSIDER;
-    }).limit(MAX_NUMBER_OF_PREVIOUS_MONTHS_TO_CONSIDER).collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue, (e1, e2) -> e1, LinkedHashMap::new));
-
-    if (elements.isEmpty() || (elements.size() < 3)) {
-      return ForecastedSalesVolume.ZERO_VOLUME();
-
-    } else {
-      final DoubleSummaryStatistics summaryStatistics = elements.values().stream().mapToDouble(x -> Double.parseDouble(x.getSalesVolume())).summaryStatistics();
-      final ForecastedSalesVolume forecasted = new ForecastedSalesVolume();
-      forecasted.setRollingMonthlyAverage(BigDecimal.valueOf(summaryStatistics.getAverage()));
-
-      return forecasted;
-    }
-  }
-
   private JPAQueryFactory getQueryFactory() {
 
     final JPAQueryFactory factory = new JPAQueryFactory(em);
@@ -597,20 +517,36 @@ public class ManufacturerPaymentSupportImpl implements ManufacturerPaymentSuppor
    * Otherwise, the only the records matching the IDs in {@code schemeParticipantIds} will be fetched from the {@code vUnprocessedVolume} table
    * 
    *  @param schemeParticipantIds A list containing the IDs of the scheme participants you want to obtain volume data from.
-   *  @return Returns a list of unprocessed volume data ({@link com.serviceco.coex.payment.model.calculation.VUnprocessedVolume})
+   *  @return Returns a source which streams the unprocessed volume data ({@link com.serviceco.coex.payment.model.calculation.VUnprocessedVolume}). The volumes are
+   *  detached once they have been processed.
+   */
+  @Override
+  public VolumeSource<VUnprocessedVolume> getUnprocessedVolume(List<String> schemeParticipantIds, Scheme scheme) {
+
+    final QVUnprocessedVolume qUnprocessedVolume = QVUnprocessedVolume.vUnprocessedVolume;
+    return volumeSourceFactory.open(getQueryFactory().select(qUnprocessedVolume).from(qUnprocessedVolume).where(unprocessedVolumes(schemeParticipantIds, scheme)));
+  }
+
+  /**
+   * Fetches the same volume data as {@link #getUnprocessedVolume}, restricted to the volume headers claimed from the pending work ledger by
+   * the payment batch.
    */
   @Override
-  public List<VUnprocessedVolume> getUnprocessedVolume(List<String> schemeParticipantIds, Scheme scheme) {
+  public VolumeSource<VUnprocessedVolume> getPendingVolume(List<String> schemeParticipantIds, Scheme scheme, PaymentBatch paymentBatch) {
+
+    final QVUnprocessedVolume qUnprocessedVolume = QVUnprocessedVolume.vUnprocessedVolume;
+    final BooleanExpression whereClause = unprocessedVolumes(schemeParticipantIds, scheme)
+        .and(pendingWorkLedger.claimedBy(qUnprocessedVolume.volumeHdrId, paymentBatch, Source.MANUFACTURER_VOLUME));
+    return volumeSourceFactory.open(getQueryFactory().select(qUnprocessedVolume).from(qUnprocessedVolume).where(whereClause));
+  }
 
-    GenericVolumeFinder<VUnprocessedVolume> factory = GenericVolumeFinder.<VUnprocessedVolume>factory(getQueryFactory());
-    List<VUnprocessedVolume> unprocessedVolumes = null;
+  private BooleanExpression unprocessedVolumes(List<String> schemeParticipantIds, Scheme scheme) {
+    final QVUnprocessedVolume qUnprocessedVolume = QVUnprocessedVolume.vUnprocessedVolume;
+    BooleanExpression whereClause = qUnprocessedVolume.multiSchemeId.eq(scheme.getMultiSchemeId());
     if (CollectionUtils.isNotEmpty(schemeParticipantIds) && !schemeParticipantIds.contains("ALL")) {
-      unprocessedVolumes = factory.find(QVUnprocessedVolume.vUnprocessedVolume, QVUnprocessedVolume.vUnprocessedVolume.schemeParticipantId.in(schemeParticipantIds).
-          and(QVUnprocessedVolume.vUnprocessedVolume.multiSchemeId.eq(scheme.getMultiSchemeId())));
-    } else {
-      unprocessedVolumes = factory.find(QVUnprocessedVolume.vUnprocessedVolume, QVUnprocessedVolume.vUnprocessedVolume.multiSchemeId.eq(scheme.getMultiSchemeId()));
+      whereClause = qUnprocessedVolume.schemeParticipantId.in(schemeParticipantIds).and(whereClause);
     }
-    return unprocessedVolumes;
+    return whereClause;
   }
 
   /**
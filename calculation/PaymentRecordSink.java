@@ -0,0 +1,30 @@
+package com.serviceco.coex.payment.calculation;
+
+import com.serviceco.coex.payment.model.calculation.PaymentTransactionRec;
+
+/**
+ * A destination for the payment transaction records generated by the calculation support classes.
+ * 
+ * <p>Records handed to the sink are not guaranteed to be written until {@link #flush()} is called. A sink is opened once per computation
+ * run (see {@link PaymentRecordSinkFactory}) and is shared by every support class participating in that run.</p>
+ */
+public interface PaymentRecordSink {
+
+  /**
+   * Accepts a newly created payment transaction record for writing.
+   * @param record The record to write. It must not have been persisted already.
+   * @return Returns the record which was accepted
+   */
+  PaymentTransactionRec accept(PaymentTransactionRec record);
+
+  /**
+   * Writes any records which are still buffered.
+   */
+  void flush();
+
+  /**
+   * @return Returns the number of records accepted by this sink so far
+   */
+  long getAcceptedCount();
+
+}
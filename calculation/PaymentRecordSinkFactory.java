@@ -0,0 +1,40 @@
+package com.serviceco.coex.payment.calculation;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Opens the {@link PaymentRecordSink} used by a payment computation run.
+ * 
+ * <p>The JDBC batch size is configured through the {@code payment.computation.record-sink.batch-size} property (defaults to 500).</p>
+ */
+@Component
+public class PaymentRecordSinkFactory {
+
+  @PersistenceContext
+  private EntityManager em;
+
+  @Value("${payment.computation.record-sink.batch-size:500}")
+  private int batchSize;
+
+  /**
+   * Opens a new sink. The sink writes through the transactional entity manager, so it must be flushed before the surrounding transaction
+   * commits.
+   * @return Returns a new, empty sink
+   */
+  public PaymentRecordSink open() {
+    return new BatchingPaymentRecordSink(em, batchSize);
+  }
+
+  /**
+   * Opens a sink for a what-if computation, which accepts the records without writing them.
+   * @return Returns a new, empty sink
+   */
+  public PaymentRecordSink openInMemory() {
+    return new InMemoryPaymentRecordSink();
+  }
+
+}
@@ -0,0 +1,106 @@
+package com.serviceco.coex.payment.calculation;
+
+import java.math.BigDecimal;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The overrides of a what-if payment computation, which calculates the payment transactions without writing anything to the database (see
+ * {@link com.serviceco.coex.payment.service.DefaultComputationTemplateImpl#simulate}).
+ *
+ * <p>Each override table maps a material type ID to the scheme price or fee used instead of the reference data, for every participant and
+ * period. Material types without an override use the reference data as usual.</p>
+ *
+ * <p>While a calculation parameter holds a simulation (see {@link #isSimulated()}), the calculation support classes do not mark existing
+ * payment transactions as stale and do not save forecasted sales volumes.</p>
+ */
+public final class PaymentSimulation {
+
+  /**
+   * Used by every real computation: no overrides, and the support classes write as usual
+   */
+  public static final PaymentSimulation NONE = new PaymentSimulation(false, null, null, null, null);
+
+  private final boolean simulated;
+
+  private final Map<String, BigDecimal> schemePrices;
+
+  private final Map<String, BigDecimal> processingFees;
+
+  private final Map<String, BigDecimal> handlingFees;
+
+  private final Map<String, BigDecimal> recoveryFees;
+
+  private PaymentSimulation(boolean simulated, Map<String, BigDecimal> schemePrices, Map<String, BigDecimal> processingFees, Map<String, BigDecimal> handlingFees,
+      Map<String, BigDecimal> recoveryFees) {
+    this.simulated = simulated;
+    this.schemePrices = copy(schemePrices);
+    this.processingFees = copy(processingFees);
+    this.handlingFees = copy(handlingFees);
+    this.recoveryFees = copy(recoveryFees);
+  }
+
+  /**
+   * @param schemePrices The manufacturer scheme price of each material type ID, or null for none
+   * @param processingFees The processor processing fee of each material type ID, or null for none
+   * @param handlingFees The CRP handling fee of each material type ID, or null for none
+   * @param recoveryFees The MRF recovery fee of each material type ID, or null for none
+   * @return Returns a simulation with the overrides
+   */
+  public static PaymentSimulation of(Map<String, BigDecimal> schemePrices, Map<String, BigDecimal> processingFees, Map<String, BigDecimal> handlingFees,
+      Map<String, BigDecimal> recoveryFees) {
+    return new PaymentSimulation(true, schemePrices, processingFees, handlingFees, recoveryFees);
+  }
+
+  /**
+   * @return Returns true if the computation must not write to the database
+   */
+  public boolean isSimulated() {
+    return simulated;
+  }
+
+  /**
+   * @param materialTypeId The material type ID
+   * @param referencePrice The scheme price from the reference data
+   * @return Returns the overridden scheme price of the material type, otherwise the reference price
+   */
+  public BigDecimal schemePrice(String materialTypeId, BigDecimal referencePrice) {
+    return schemePrices.getOrDefault(materialTypeId, referencePrice);
+  }
+
+  /**
+   * @param materialTypeId The material type ID
+   * @param referenceFee The processing fee from the reference data
+   * @return Returns the overridden processing fee of the material type, otherwise the reference fee
+   */
+  public BigDecimal processingFee(String materialTypeId, BigDecimal referenceFee) {
+    return processingFees.getOrDefault(materialTypeId, referenceFee);
+  }
+
+  /**
+   * @param materialTypeId The material type ID
+   * @param referenceFee The handling fee from the reference data
+   * @return Returns the overridden handling fee of the material type, otherwise the reference fee
+   */
+  public BigDecimal handlingFee(String materialTypeId, BigDecimal referenceFee) {
+    return handlingFees.getOrDefault(materialTypeId, referenceFee);
+  }
+
+  /**
+   * @param materialTypeId The material type ID
+   * @param referenceFee The recovery fee from the reference data
+   * @return Returns the overridden recovery fee of the material type, otherwise the reference fee
+   */
+  public BigDecimal recoveryFee(String materialTypeId, BigDecimal referenceFee) {
+    return recoveryFees.getOrDefault(materialTypeId, referenceFee);
+  }
+
+  private static Map<String, BigDecimal> copy(Map<String, BigDecimal> overrides) {
+    if ((overrides == null) || overrides.isEmpty()) {
+      return Collections.emptyMap();
+    }
+    return Collections.unmodifiableMap(new HashMap<>(overrides));
+  }
+
+}
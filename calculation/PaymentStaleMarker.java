@@ -0,0 +1,179 @@
+package com.serviceco.coex.payment.calculation;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.querydsl.core.BooleanBuilder;
+import com.querydsl.jpa.JPAExpressions;
+import com.querydsl.jpa.impl.JPAQueryFactory;
+import com.serviceco.coex.model.QScheme;
+import com.serviceco.coex.payment.model.calculation.PaymentBatch;
+import com.serviceco.coex.payment.model.calculation.PaymentTransactionRec;
+import com.serviceco.coex.payment.model.calculation.QPaymentTransactionRec;
+import com.serviceco.coex.payment.service.PendingWorkLedger;
+
+/**
+ * Marks superseded payment transaction records as {@code STALE}.
+ * 
+ * <p>The records are updated with bulk UPDATE statements, so they are never loaded into the persistence context. The scheme participant IDs,
+ * or the {@link StalePaymentKey}s, are split into chunks of {@value #PARTICIPANT_CHUNK_SIZE} and one UPDATE statement is executed per
+ * chunk.</p>
+ * 
+ * <p>The number of records marked as stale is added to {@link com.serviceco.coex.payment.model.calculation.PaymentBatch#getStaleRecordCount()}
+ * so it can be reported in the batch summary.</p>
+ */
+@Component
+@Transactional
+public class PaymentStaleMarker {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(PaymentStaleMarker.class);
+
+  static final int PARTICIPANT_CHUNK_SIZE = 99;
+
+  @PersistenceContext
+  private EntityManager em;
+
+  @Autowired
+  private PendingWorkLedger pendingWorkLedger;
+
+  /**
+   * Marks every {@code AWAITING_REVIEW} payment transaction record matching the criteria, and not created by the criteria's payment batch,
+   * as {@code STALE}.
+   * 
+   * @param criteria The records to mark. See {@link StalePaymentCriteria}.
+   * @return Returns the number of records marked as stale
+   */
+  public long markStale(StalePaymentCriteria criteria) {
+    Preconditions.checkArgument(null != criteria.getPaymentBatch(), "payment batch is mandatory for marking payment transactions as stale");
+
+    final QPaymentTransactionRec qPaymentTransactionRec = QPaymentTransactionRec.paymentTransactionRec;
+    final BooleanBuilder predicate = basePredicate(criteria);
+
+    final List<String> schemeParticipantIds = criteria.getSchemeParticipantIds();
+    long staleCount = 0;
+    if (null != criteria.getKeys()) {
+      Preconditions.checkArgument((null == schemeParticipantIds) && (null == criteria.getMaterialTypeId()) && (null == criteria.getPeriodType())
+          && (null == criteria.getPeriod()) && (null == criteria.getEntryTypes()), "stale payment keys can not be combined with the attributes they hold");
+      for (final List<StalePaymentKey> chunk : Lists.partition(new ArrayList<>(criteria.getKeys()), PARTICIPANT_CHUNK_SIZE)) {
+        staleCount += update(new BooleanBuilder(predicate).and(anyOf(chunk)));
+      }
+    } else if (null == schemeParticipantIds) {
+      staleCount = update(predicate);
+    } else {
+      for (final List<String> chunk : Lists.partition(schemeParticipantIds, PARTICIPANT_CHUNK_SIZE)) {
+        staleCount += update(new BooleanBuilder(predicate).and(qPaymentTransactionRec.schemeParticipantId.in(chunk)));
+      }
+    }
+
+    if (staleCount > 0) {
+      LOGGER.info("marked {} payment transactions as stale for payment batch {}", staleCount, criteria.getPaymentBatch().getId());
+      criteria.getPaymentBatch().addStaleRecordCount(staleCount);
+    }
+    return staleCount;
+  }
+
+  /**
+   * Marks the payment transaction records with the IDs as {@code STALE}, whatever their status, for callers which have already selected the
+   * superseded records (e.g. auction records, which are {@code AWAITING_INVOICING}). The IDs are split into chunks of
+   * {@value #PARTICIPANT_CHUNK_SIZE}.
+   * 
+   * @param paymentBatch The current payment batch, which the number of records marked as stale is added to
+   * @param paymentTransactionIds The IDs of the records to mark
+   * @return Returns the number of records marked as stale
+   */
+  public long markStale(PaymentBatch paymentBatch, Collection<String> paymentTransactionIds) {
+    Preconditions.checkArgument(null != paymentBatch, "payment batch is mandatory for marking payment transactions as stale");
+
+    final QPaymentTransactionRec qPaymentTransactionRec = QPaymentTransactionRec.paymentTransactionRec;
+    long staleCount = 0;
+    for (final List<String> chunk : Lists.partition(new ArrayList<>(paymentTransactionIds), PARTICIPANT_CHUNK_SIZE)) {
+      staleCount += update(new BooleanBuilder(qPaymentTransactionRec.id.in(chunk)));
+    }
+
+    if (staleCount > 0) {
+      LOGGER.info("marked {} payment transactions as stale for payment batch {}", staleCount, paymentBatch.getId());
+      paymentBatch.addStaleRecordCount(staleCount);
+    }
+    return staleCount;
+  }
+
+  private BooleanBuilder basePredicate(StalePaymentCriteria criteria) {
+    final QPaymentTransactionRec qPaymentTransactionRec = QPaymentTransactionRec.paymentTransactionRec;
+
+    final BooleanBuilder predicate = new BooleanBuilder();
+    predicate.and(qPaymentTransactionRec.paymentBatch.id.ne(criteria.getPaymentBatch().getId()));
+    predicate.and(qPaymentTransactionRec.status.eq(PaymentTransactionRec.PaymentStatus.AWAITING_REVIEW));
+    if (null != criteria.getMaterialTypeId()) {
+      predicate.and(qPaymentTransactionRec.materialType.id.eq(criteria.getMaterialTypeId()));
+    }
+    if (null != criteria.getPeriodType()) {
+      predicate.and(qPaymentTransactionRec.periodType.eq(criteria.getPeriodType()));
+    }
+    if (null != criteria.getPeriod()) {
+      predicate.and(qPaymentTransactionRec.period.eq(criteria.getPeriod()));
+    }
+    if ((null != criteria.getEntryTypes()) && !criteria.getEntryTypes().isEmpty()) {
+      predicate.and(qPaymentTransactionRec.entryType.in(criteria.getEntryTypes()));
+    }
+    if (null != criteria.getPaymentType()) {
+      predicate.and(qPaymentTransactionRec.paymentType.eq(criteria.getPaymentType()));
+    }
+    if (null != criteria.getPaymentMethod()) {
+      predicate.and(qPaymentTransactionRec.paymentMethod.eq(criteria.getPaymentMethod()));
+    }
+    if (null != criteria.getScheme()) {
+      predicate.and(qPaymentTransactionRec.scheme.eq(criteria.getScheme()));
+    }
+    if (null != criteria.getMultiSchemeId()) {
+      // bulk updates can not join, so the multi scheme ID is resolved through a sub query
+      final QScheme qScheme = new QScheme("staleScheme");
+      predicate.and(qPaymentTransactionRec.scheme.in(JPAExpressions.selectFrom(qScheme).where(qScheme.multiSchemeId.eq(criteria.getMultiSchemeId()))));
+    }
+    if (null != criteria.getClaimedSource()) {
+      predicate.and(pendingWorkLedger.claimedBy(qPaymentTransactionRec.volumeHeaderId, criteria.getPaymentBatch(), criteria.getClaimedSource()));
+    }
+    return predicate;
+  }
+
+  private static BooleanBuilder anyOf(List<StalePaymentKey> keys) {
+    final QPaymentTransactionRec qPaymentTransactionRec = QPaymentTransactionRec.paymentTransactionRec;
+    final BooleanBuilder anyKey = new BooleanBuilder();
+    for (final StalePaymentKey key : keys) {
+      //@formatter:off
+      anyKey.or(qPaymentTransactionRec.schemeParticipantId.eq(key.getSchemeParticipantId())
+                                                          .and(qPaymentTransactionRec.materialType.id.eq(key.getMaterialTypeId()))
+                                                          .and(qPaymentTransactionRec.periodType.eq(key.getPeriodType()))
+                                                          .and(qPaymentTransactionRec.period.eq(key.getPeriod()))
+                                                          .and(qPaymentTransactionRec.entryType.eq(key.getEntryType())));
+      //@formatter:on
+    }
+    return anyKey;
+  }
+
+  private long update(BooleanBuilder predicate) {
+    final QPaymentTransactionRec qPaymentTransactionRec = QPaymentTransactionRec.paymentTransactionRec;
+    //@formatter:off
+    return getQueryFactory().update(qPaymentTransactionRec)
+                            .set(qPaymentTransactionRec.status, PaymentTransactionRec.PaymentStatus.STALE)
+                            .where(predicate)
+                            .execute();
+    //@formatter:on
+  }
+
+  private JPAQueryFactory getQueryFactory() {
+    return new JPAQueryFactory(em);
+  }
+
+}
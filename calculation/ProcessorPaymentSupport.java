@@ -5,7 +5,9 @@ import java.util.List;
 import com.serviceco.coex.masterdata.model.ProcessingFeeReference;
 import com.serviceco.coex.model.Scheme;
 import com.serviceco.coex.model.dto.Period;
+import com.serviceco.coex.payment.model.calculation.PaymentBatch;
 import com.serviceco.coex.payment.model.calculation.PaymentTransactionRec;
+import com.serviceco.coex.payment.service.volume.VolumeSource;
 import com.serviceco.coex.processor.model.ProcessorClaimHeader;
 import com.serviceco.coex.scheme.participant.model.MdtParticipantSite;
 
@@ -24,6 +26,12 @@ public interface ProcessorPaymentSupport extends CalculationSupport<ProcessorCla
   @Override
   List<PaymentTransactionRec> calculateViaActual(CalculationParameter<ProcessorClaimHeader> param);
 
-  List<ProcessorClaimHeader> getUnprocessedVolume(List<String> schemeParticipantIds, Scheme scheme);
+  VolumeSource<ProcessorClaimHeader> getUnprocessedVolume(List<String> schemeParticipantIds, Scheme scheme);
+
+  /**
+   * Fetches the unprocessed volume of the headers which have been claimed from the pending work ledger by the payment batch. See
+   * {@link com.serviceco.coex.payment.service.PendingWorkLedger}.
+   */
+  VolumeSource<ProcessorClaimHeader> getPendingVolume(List<String> schemeParticipantIds, Scheme scheme, PaymentBatch paymentBatch);
 
 }
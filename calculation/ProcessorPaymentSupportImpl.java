@@ -3,33 +3,39 @@ package com.serviceco.coex.payment.calculation;
 import java.math.BigDecimal;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.UUID;
+import java.util.stream.Collectors;
 
 import javax.persistence.EntityManager;
-import javax.persistence.NonUniqueResultException;
 import javax.persistence.PersistenceContext;
 
 import org.apache.commons.collections.CollectionUtils;
+import org.hibernate.annotations.QueryHints;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 import org.springframework.transaction.annotation.Transactional;
 
+import com.google.common.collect.Lists;
 import com.querydsl.core.types.dsl.BooleanExpression;
 import com.querydsl.jpa.impl.JPAQuery;
 import com.querydsl.jpa.impl.JPAQueryFactory;
 import com.serviceco.coex.exporter.model.dto.EntryStatus;
 import com.serviceco.coex.masterdata.model.MaterialType;
 import com.serviceco.coex.masterdata.model.ProcessingFeeReference;
-import com.serviceco.coex.masterdata.model.QProcessingFeeReference;
 import com.serviceco.coex.model.DateDimension;
 import com.serviceco.coex.model.Scheme;
 import com.serviceco.coex.model.dto.Period;
+import com.serviceco.coex.payment.model.calculation.PaymentBatch;
+import com.serviceco.coex.payment.model.calculation.PaymentPendingWork.Source;
 import com.serviceco.coex.payment.model.calculation.PaymentTransactionRec;
-import com.serviceco.coex.payment.model.calculation.QPaymentTransactionRec;
-import com.serviceco.coex.payment.repository.PaymentTransactionRecRepository;
+import com.serviceco.coex.payment.service.PendingWorkLedger;
+import com.serviceco.coex.payment.service.volume.VolumeSource;
+import com.serviceco.coex.payment.service.volume.VolumeSourceFactory;
 import com.serviceco.coex.payment.support.DateTimeSupport;
 import com.serviceco.coex.processor.model.ProcessorClaimDetail;
 import com.serviceco.coex.processor.model.ProcessorClaimHeader;
@@ -49,6 +55,8 @@ public class ProcessorPaymentSupportImpl implements ProcessorPaymentSupport {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(ProcessorPaymentSupportImpl.class);
 
+  private static final int HEADER_CHUNK_SIZE = 99;
+
   @Autowired
   private DateTimeSupport dateTimeSupport;
 
@@ -56,7 +64,16 @@ public class ProcessorPaymentSupportImpl implements ProcessorPaymentSupport {
   private EntityManager em;
 
   @Autowired
-  private PaymentTransactionRecRepository paymentTransactionRepository;
+  private PaymentStaleMarker staleMarker;
+
+  @Autowired
+  private FeeReferenceCache feeReferenceCache;
+
+  @Autowired
+  private VolumeSourceFactory volumeSourceFactory;
+
+  @Autowired
+  private PendingWorkLedger pendingWorkLedger;
 
   /**
    * <p>Generates payment transaction records based on processor volume data.</p>
@@ -91,6 +108,8 @@ public class ProcessorPaymentSupportImpl implements ProcessorPaymentSupport {
   public List<PaymentTransactionRec> calculateViaActual(CalculationParameter<ProcessorClaimHeader> param) {
 
     final List<PaymentTransactionRec> paymentTransactionRecords = new ArrayList<>();
+    // the existing records superseded by the new ones, staled together once every new record has been created
+    final Set<StalePaymentKey> staleKeys = new LinkedHashSet<>();
     final Scheme scheme = param.getScheme();
     for (final ProcessorClaimHeader header : param.getAllSalesVolumes()) {
       final Period period = dateTimeSupport.periodFactory(header.getPeriod(), header.getPeriodType());
@@ -103,7 +122,7 @@ public class ProcessorPaymentSupportImpl implements ProcessorPaymentSupport {
         final MaterialType materialType = detail.getMaterialType();
         final BigDecimal volume = detail.getVolume();
         final ProcessingFeeReference feeReference = fetchProcessingFeeReference(scheme, processor, materialType.getId(), period);
-        final BigDecimal fee = (null != feeReference) ? feeReference.getFee() : BigDecimal.ZERO;
+        final BigDecimal fee = param.getSimulation().processingFee(materialType.getId(), (null != feeReference) ? feeReference.getFee() : BigDecimal.ZERO);
         final BigDecimal grossAmount = volume.multiply(fee);
         if (grossAmount.compareTo(BigDecimal.ZERO) == 0) {
           // skip transaction creation for zero amounts;
@@ -115,26 +134,7 @@ public class ProcessorPaymentSupportImpl implements ProcessorPaymentSupport {
         /*
          * create payment record
          */
-        final QPaymentTransactionRec qPaymentTransactionRec = QPaymentTransactionRec.paymentTransactionRec;
-
-        //@formatter:off
-        final List<PaymentTransactionRec> oldPaymentTransactionRecs = getQueryFactory().select(qPaymentTransactionRec)
-                                                                                   .from(qPaymentTransactionRec)
-                                                                                 .where(qPaymentTransactionRec.schemeParticipantId.eq(header.getProcessor().getSiteNumber())
-                                                                                  .and(qPaymentTransactionRec.materialType.eq(materialType))
-                                                                                  .and(qPaymentTransactionRec.periodType.eq(header.getPeriodType().name()))
-                                                                                  .and(qPaymentTransactionRec.period.eq(header.getPeriod()))
-                                                                                  .and(qPaymentTransactionRec.entryType.eq(header.getEntryType().name()))
-                                                                                  .and(qPaymentTransactionRec.paymentBatch.id.ne(param.paymentBatch.getId()))
-                                                                                  .and(qPaymentTransactionRec.status.eq(PaymentTransactionRec.PaymentStatus.AWAITING_REVIEW))
-                                                                                  .and(qPaymentTransactionRec.scheme.eq(scheme))
-                                                                                  ).fetch();
-        
-        oldPaymentTransactionRecs.stream().forEach(x -> {
-          x.setStatus(PaymentTransactionRec.PaymentStatus.STALE);
-          paymentTransactionRepository.save(x);
-        });
-        //@formatter:on
+        staleKeys.add(new StalePaymentKey(header.getProcessor().getSiteNumber(), materialType.getId(), header.getPeriodType().name(), header.getPeriod(), header.getEntryType().name()));
 
         final PaymentTransactionRec paymentTransactionRec = new PaymentTransactionRec();
         paymentTransactionRec.setPaymentType(param.getPaymentMetadata().getTransactionType());
@@ -161,12 +161,25 @@ public class ProcessorPaymentSupportImpl implements ProcessorPaymentSupport {
         paymentTransactionRec.setStatus(PaymentTransactionRec.PaymentStatus.AWAITING_REVIEW);
         paymentTransactionRec.setScheme(scheme);
 
-        paymentTransactionRepository.save(paymentTransactionRec);
+        param.getRecordSink().accept(paymentTransactionRec);
         paymentTransactionRecords.add(paymentTransactionRec);
 
       }
     }
 
+    // the records of this batch are never staled, so the existing records can be staled after the new ones are created
+    if (!param.getSimulation().isSimulated()) {
+      //@formatter:off
+      staleMarker.markStale(StalePaymentCriteria.builder()
+                                                .paymentBatch(param.paymentBatch)
+                                                .keys(staleKeys)
+                                                .scheme(scheme)
+                                                .claimedSource(param.getPendingWorkSource())
+                                                .build());
+      //@formatter:on
+    }
+
+    param.getRecordSink().flush();
     return paymentTransactionRecords;
   }
 
@@ -184,36 +197,20 @@ public class ProcessorPaymentSupportImpl implements ProcessorPaymentSupport {
    */
   @Override
   public ProcessingFeeReference fetchProcessingFeeReference(final Scheme scheme, final MdtParticipantSite processor, final String materialTypeId, final Period period) {
-    try {
-      LOGGER.info("fetching processing fee for material type {}, period {}, scheme {}, processor {}", materialTypeId, period, scheme.getName(), processor.getSiteNumber());
-      final QProcessingFeeReference feeReference = QProcessingFeeReference.processingFeeReference;
-      final DateDimension effectiveFromDate = dateTimeSupport.correspondingDateDimension(period.getStart());
-      final Date periodStartDate = effectiveFromDate.getStartOfDay(scheme);
-      ProcessingFeeReference pfr = getQueryFactory().select(feeReference)
-      //@formatter:off
-                                                          .from(feeReference)
-                                                          .where(feeReference.processor.siteNumber.eq(processor.getSiteNumber())
-                                                              .and(feeReference.materialType.id.eq(materialTypeId))
-                                                           .and(feeReference.effectiveFrom.loe(periodStartDate))
-                                                           .and(feeReference.effectiveTo.isNull().or(feeReference.effectiveTo.goe(periodStartDate))))
-                                                          .fetchOne();
-    if (pfr == null) {
-                          pfr =  getQueryFactory().select(feeReference)
-                                                        //@formatter:off
-                                                        .from(feeReference)
-                                                        .where(feeReference.scheme.eq(scheme)
-                                                            .and(feeReference.materialType.id.eq(materialTypeId))
-                                                         .and(feeReference.effectiveFrom.loe(periodStartDate))
-                                                         .and(feeReference.effectiveTo.isNull().or(feeReference.effectiveTo.goe(periodStartDate))))
-                                                        .fetchFirst();
+    LOGGER.info("fetching processing fee for material type {}, period {}, scheme {}, processor {}", materialTypeId, period, scheme.getName(), processor.getSiteNumber());
+    final DateDimension effectiveFromDate = dateTimeSupport.correspondingDateDimension(period.getStart());
+    final Date periodStartDate = effectiveFromDate.getStartOfDay(scheme);
+    final FeeReferenceIndex<ProcessingFeeReference> fees = feeReferenceCache.processingFees();
+    final List<ProcessingFeeReference> processorFees = fees.participantFees(FeeReferenceIndex.key(processor.getSiteNumber(), materialTypeId), periodStartDate);
+    if (processorFees.size() > 1) {
+      throw new RuntimeException("multiple reference data found for period : " + period + " scheme participant " + processor + " material type " + materialTypeId);
     }
-    //@formatter:on
-      return pfr;
-    } catch (final NonUniqueResultException exception) {
-      throw new RuntimeException(
-          exception.getMessage() + " multiple reference data found for period : " + period + " scheme participant " + processor + " material type " + materialTypeId);
+    if (!processorFees.isEmpty()) {
+      return processorFees.get(0);
     }
-
+    // the first fee of the scheme, as the scheme query returned it
+    final List<ProcessingFeeReference> schemeFees = fees.defaultFees(FeeReferenceIndex.key(scheme.getId(), materialTypeId), periodStartDate);
+    return schemeFees.isEmpty() ? null : schemeFees.get(0);
   }
 
   private JPAQueryFactory getQueryFactory() {
@@ -229,19 +226,58 @@ public class ProcessorPaymentSupportImpl implements ProcessorPaymentSupport {
    * <p>The processor volume data is obtained from the {@code processorClaimHeader} table where the {@code entryStatus} is FINAL.</p> 
    * <p>If {@code schemaParticipantIds} is not empty and does not contain "ALL", then the records must also have a processor id which matches one of the {@code schemaParticipantIds}.</p>
    * 
-   * @return Returns a list of volume data in {@link com.serviceco.coex.processor.model.ProcessorClaimHeader} objects.
+   * @return Returns a source which streams the volume data in {@link com.serviceco.coex.processor.model.ProcessorClaimHeader} objects. The headers and their
+   *         claim details are detached once they have been processed.
    */
   @Override
-  public List<ProcessorClaimHeader> getUnprocessedVolume(List<String> schemeParticipantIds, Scheme scheme) {
+  public VolumeSource<ProcessorClaimHeader> getUnprocessedVolume(List<String> schemeParticipantIds, Scheme scheme) {
 
     final QProcessorClaimHeader qProcessorClaimHeader = QProcessorClaimHeader.processorClaimHeader;
 
     final JPAQuery<ProcessorClaimHeader> processorClaimVolumesQuery = getQueryFactory().select(qProcessorClaimHeader).from(qProcessorClaimHeader);
+    return volumeSourceFactory.open(processorClaimVolumesQuery.where(unprocessedClaims(schemeParticipantIds, scheme)), ProcessorClaimHeader::getLines, this::fetchLines);
+  }
+
+  /**
+   * Fetches the same claims as {@link #getUnprocessedVolume}, restricted to the claim headers claimed from the pending work ledger by the
+   * payment batch.
+   */
+  @Override
+  public VolumeSource<ProcessorClaimHeader> getPendingVolume(List<String> schemeParticipantIds, Scheme scheme, PaymentBatch paymentBatch) {
+
+    final QProcessorClaimHeader qProcessorClaimHeader = QProcessorClaimHeader.processorClaimHeader;
+    final BooleanExpression whereClause = unprocessedClaims(schemeParticipantIds, scheme)
+        .and(pendingWorkLedger.claimedBy(qProcessorClaimHeader.id, paymentBatch, Source.PROCESSOR_CLAIM));
+    return volumeSourceFactory.open(getQueryFactory().select(qProcessorClaimHeader).from(qProcessorClaimHeader).where(whereClause), ProcessorClaimHeader::getLines,
+        this::fetchLines);
+  }
+
+  private BooleanExpression unprocessedClaims(List<String> schemeParticipantIds, Scheme scheme) {
+    final QProcessorClaimHeader qProcessorClaimHeader = QProcessorClaimHeader.processorClaimHeader;
     BooleanExpression whereClause = qProcessorClaimHeader.entryStatus.eq(EntryStatus.FINAL).and(qProcessorClaimHeader.scheme.eq(scheme));
     if (CollectionUtils.isNotEmpty(schemeParticipantIds) && !schemeParticipantIds.contains("ALL")) {
       whereClause = whereClause.and(qProcessorClaimHeader.processor.siteNumber.in(schemeParticipantIds));
     }
-    final List<ProcessorClaimHeader> processorClaimVolumes = processorClaimVolumesQuery.where(whereClause).fetch();
-    return processorClaimVolumes;
+    return whereClause;
+  }
+
+  /**
+   * Loads the claim details of a chunk of headers with one fetch join query per {@value #HEADER_CHUNK_SIZE} headers, instead of one query
+   * per header the first time its {@code getLines()} is called. The headers are already in the persistence context, so the query
+   * initialises their lines in place.
+   */
+  private void fetchLines(List<ProcessorClaimHeader> headers) {
+    final QProcessorClaimHeader qProcessorClaimHeader = QProcessorClaimHeader.processorClaimHeader;
+    final List<String> headerIds = headers.stream().map(ProcessorClaimHeader::getId).collect(Collectors.toList());
+    for (final List<String> chunk : Lists.partition(headerIds, HEADER_CHUNK_SIZE)) {
+      //@formatter:off
+      getQueryFactory().select(qProcessorClaimHeader).distinct()
+                       .from(qProcessorClaimHeader)
+                       .leftJoin(qProcessorClaimHeader.lines).fetchJoin()
+                       .where(qProcessorClaimHeader.id.in(chunk))
+                       .setHint(QueryHints.READ_ONLY, true)
+                       .fetch();
+      //@formatter:on
+    }
   }
 }
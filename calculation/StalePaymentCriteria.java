@@ -0,0 +1,67 @@
+package com.serviceco.coex.payment.calculation;
+
+import java.util.Collection;
+import java.util.List;
+
+import com.serviceco.coex.model.Scheme;
+import com.serviceco.coex.payment.model.calculation.PaymentBatch;
+import com.serviceco.coex.payment.model.calculation.PaymentPendingWork.Source;
+
+import lombok.Builder;
+import lombok.Getter;
+
+/**
+ * Identifies the {@code AWAITING_REVIEW} payment transaction records which are superseded by the current payment batch. Used by
+ * {@link PaymentStaleMarker}.
+ * 
+ * <p>Only the payment batch is mandatory. Every other attribute which is left null is not used to filter the records.</p>
+ */
+@Getter
+@Builder
+public class StalePaymentCriteria {
+
+  /**
+   * The current payment batch. Records created by this batch are never marked as stale.
+   */
+  private final PaymentBatch paymentBatch;
+
+  /**
+   * The scheme participant (site number) IDs. There is no limit on the size of the list.
+   */
+  private final List<String> schemeParticipantIds;
+
+  private final String materialTypeId;
+
+  private final String periodType;
+
+  private final String period;
+
+  private final List<String> entryTypes;
+
+  private final String paymentType;
+
+  private final String paymentMethod;
+
+  /**
+   * Matches records of this exact scheme.
+   */
+  private final Scheme scheme;
+
+  /**
+   * Matches records of any scheme with this multi scheme ID.
+   */
+  private final String multiSchemeId;
+
+  /**
+   * Matches records with the scheme participant, material type, period and entry type of any of the keys. There is no limit on the number of
+   * keys. Can not be combined with the scheme participant IDs, material type, period type, period or entry types. If the keys are empty,
+   * no record is matched.
+   */
+  private final Collection<StalePaymentKey> keys;
+
+  /**
+   * Matches records computed from the volume or claim headers which the payment batch has claimed from this pending work ledger source.
+   */
+  private final Source claimedSource;
+
+}
@@ -0,0 +1,27 @@
+package com.serviceco.coex.payment.calculation;
+
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+
+/**
+ * Identifies the payment transaction records superseded by a single new record: those of the same scheme participant, material type,
+ * period and entry type. Used with {@link StalePaymentCriteria#getKeys()}, so the records superseded by many new records are marked as
+ * stale together.
+ */
+@Getter
+@EqualsAndHashCode
+@AllArgsConstructor
+public class StalePaymentKey {
+
+  private final String schemeParticipantId;
+
+  private final String materialTypeId;
+
+  private final String periodType;
+
+  private final String period;
+
+  private final String entryType;
+
+}
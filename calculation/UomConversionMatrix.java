@@ -0,0 +1,91 @@
+package com.serviceco.coex.payment.calculation;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * The kilogram to unit conversion rates of the MRF sites of a payment batch.
+ *
+ * <p>Material types are numbered as they are first seen, and each site keeps its rates in a float array indexed by that number, so a
+ * conversion is a map lookup of the site and the material type followed by an array read. The rates of a site (the scheme rates with the
+ * site's own overrides applied by the reference data service) are loaded the first time the site needs a conversion, and are then shared by
+ * every claim header of the site.</p>
+ *
+ * <p>Instances are not thread safe; one is used per calculation.</p>
+ */
+final class UomConversionMatrix {
+
+  private static final String KILOGRAM_UNITS = "KILOGRAM";
+
+  private final Function<String, Map<String, Map<String, Float>>> siteRates;
+
+  private final Map<String, Integer> materialOrdinals = new HashMap<>();
+
+  private final Map<String, SiteRates> ratesBySite = new HashMap<>();
+
+  /**
+   * @param siteRates Loads the unit conversion rates of a site: the conversion factors to units from each unit of measure, keyed by
+   *          material type ID
+   */
+  UomConversionMatrix(Function<String, Map<String, Map<String, Float>>> siteRates) {
+    this.siteRates = siteRates;
+  }
+
+  /**
+   * @param siteNumber The MRF site number
+   * @param materialTypeId The material type ID
+   * @param volume The volume in kilograms
+   * @return Returns the volume in units
+   * @throws RuntimeException if the site has no conversion mappings for the material type, or none from kilograms
+   */
+  BigDecimal kilosToUnits(String siteNumber, String materialTypeId, BigDecimal volume) {
+    final SiteRates rates = ratesBySite.computeIfAbsent(siteNumber, this::load);
+    final Integer ordinal = materialOrdinals.get(materialTypeId);
+    if ((ordinal == null) || (ordinal >= rates.mapped.length) || !rates.mapped[ordinal]) {
+      throw new RuntimeException("There are no UMO conversion mappings for material " + materialTypeId + " and site " + siteNumber);
+    }
+    final float conversionRate = rates.kiloRates[ordinal];
+    if (Float.isNaN(conversionRate)) {
+      throw new RuntimeException("There is no UMO conversion mapping from " + KILOGRAM_UNITS + " for material " + materialTypeId + " and site " + siteNumber);
+    }
+    return volume.multiply(new BigDecimal(conversionRate));
+  }
+
+  private SiteRates load(String siteNumber) {
+    final Map<String, Map<String, Float>> conversions = siteRates.apply(siteNumber);
+    conversions.keySet().forEach(materialTypeId -> materialOrdinals.computeIfAbsent(materialTypeId, k -> materialOrdinals.size()));
+
+    final float[] kiloRates = new float[materialOrdinals.size()];
+    final boolean[] mapped = new boolean[materialOrdinals.size()];
+    Arrays.fill(kiloRates, Float.NaN);
+    conversions.forEach((materialTypeId, conversionsForMaterial) -> {
+      final int ordinal = materialOrdinals.get(materialTypeId);
+      final Float kiloRate = conversionsForMaterial.get(KILOGRAM_UNITS);
+      mapped[ordinal] = true;
+      if (kiloRate != null) {
+        kiloRates[ordinal] = kiloRate;
+      }
+    });
+    return new SiteRates(kiloRates, mapped);
+  }
+
+  /**
+   * The kilogram to unit rate of each material type of a site, or NaN if the material type has no mapping from kilograms.
+   * {@code mapped[i]} is false if the site has no conversion mappings for material type i at all.
+   */
+  private static final class SiteRates {
+
+    private final float[] kiloRates;
+
+    private final boolean[] mapped;
+
+    private SiteRates(float[] kiloRates, boolean[] mapped) {
+      this.kiloRates = kiloRates;
+      this.mapped = mapped;
+    }
+  }
+
+}
@@ -21,4 +21,14 @@ public class CollectionFeeValue {
   
   // private String paymentMethod;
 
+  /**
+   * Adds the gross amount and volume of another transaction to this value.
+   * @param grossAmount The gross amount to add
+   * @param volume The volume to add
+   */
+  public void add(BigDecimal grossAmount, BigDecimal volume) {
+    this.grossAmountSum = this.grossAmountSum.add(grossAmount);
+    this.volume = this.volume.add(volume);
+  }
+
 }
@@ -3,13 +3,13 @@ package com.serviceco.coex.payment.model.calculation;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.serviceco.coex.model.constant.SchemeParticipantType;
 import com.serviceco.coex.payment.calculation.PaymentTxnType;
+import com.serviceco.coex.payment.support.MoneyAccumulator;
 import com.serviceco.coex.util.BigDecimalUtility;
 import lombok.Getter;
 import lombok.Setter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.math.BigDecimal;
 import java.math.RoundingMode;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
@@ -158,37 +158,26 @@ public class PaymentAggregateView {
 
       final List<PaymentTransactionRec> relevantTransactions = paymentTransactionRecLines.stream().filter(x -> x.getSchemeParticipantId().equals(id)).collect(Collectors.toList());
 
-      BigDecimal totalWeightOrQuantityInBigDec = BigDecimal.ZERO;
+      // a single pass over the participant's transactions for all four totals
+      final MoneyAccumulator totalWeightOrQuantityAccumulator = new MoneyAccumulator();
+      final MoneyAccumulator totalGrossAmountAccumulator = new MoneyAccumulator();
+      final MoneyAccumulator totalTaxableAmountAccumulator = new MoneyAccumulator();
+      final MoneyAccumulator totalGSTAmountAccumulator = new MoneyAccumulator();
       for (PaymentTransactionRec r : relevantTransactions) {
-        if (SchemeParticipantType.CRP.name().equals(schemeParticipantType)) {
-          if (!r.getPaymentType().equals(PaymentTxnType.COLLECTION_FEES.name())) {
-            continue;
-          }
+        if (!SchemeParticipantType.CRP.name().equals(schemeParticipantType) || r.getPaymentType().equals(PaymentTxnType.COLLECTION_FEES.name())) {
+          totalWeightOrQuantityAccumulator.add(r.getVolume());
         }
-        totalWeightOrQuantityInBigDec = totalWeightOrQuantityInBigDec.add(r.getVolume());
+        totalGrossAmountAccumulator.add(r.getGrossAmount());
+        totalTaxableAmountAccumulator.add(r.getTaxableAmount());
+        totalGSTAmountAccumulator.add(r.getGstAmount());
       }
-      final double totalWeightOrQuantity = round(BigDecimalUtility.asDouble(totalWeightOrQuantityInBigDec));
+      final double totalWeightOrQuantity = round(BigDecimalUtility.asDouble(totalWeightOrQuantityAccumulator.toBigDecimal()));
+      final double totalGrossAmount = round(BigDecimalUtility.asDouble(totalGrossAmountAccumulator.toBigDecimal()));
+      final double totalTaxableAmount = round(BigDecimalUtility.asDouble(totalTaxableAmountAccumulator.toBigDecimal()));
+      final double totalGSTAmount = round(BigDecimalUtility.asDouble(totalGSTAmountAccumulator.toBigDecimal()));
 
       final String paymentDate = relevantTransactions.stream().findFirst().get().getPaymentTimestamp().toString();
 
-      BigDecimal totalGrossAmountInBigDec = BigDecimal.ZERO;
-      for (PaymentTransactionRec r : relevantTransactions) {
-        totalGrossAmountInBigDec = totalGrossAmountInBigDec.add(r.getGrossAmount());
-      }
-      final double totalGrossAmount = round(BigDecimalUtility.asDouble(totalGrossAmountInBigDec));
-
-      BigDecimal totalTaxableAmountInBigDec = BigDecimal.ZERO;
-      for (PaymentTransactionRec r : relevantTransactions) {
-        totalTaxableAmountInBigDec = totalTaxableAmountInBigDec.add(r.getTaxableAmount());
-      }
-      final double totalTaxableAmount = round(BigDecimalUtility.asDouble(totalTaxableAmountInBigDec));
-
-      BigDecimal totalGSTAmountInBigDec = BigDecimal.ZERO;
-      for (PaymentTransactionRec r : relevantTransactions) {
-        totalGSTAmountInBigDec = totalGSTAmountInBigDec.add(r.getGstAmount());
-      }
-      final double totalGSTAmount = round(BigDecimalUtility.asDouble(totalGSTAmountInBigDec));
-
       String overallStatus = derivePaymentStatus(relevantTransactions);
 
       schemeParticipantPayment.setPaymentState(overallStatus);
@@ -211,23 +200,17 @@ public class PaymentAggregateView {
         final List<PaymentTransactionRec> records = entry.getValue();
         final String paymentState = derivePaymentStatus(records);
 
-        BigDecimal paymentGrossAmountInBigDec = BigDecimal.ZERO;
-        for (PaymentTransactionRec r : records) {
-          paymentGrossAmountInBigDec = paymentGrossAmountInBigDec.add(r.getGrossAmount());
-        }
-        final double paymentGrossAmount = round(BigDecimalUtility.asDouble(paymentGrossAmountInBigDec));
-
-        BigDecimal paymentTaxableAmountInBigDec = BigDecimal.ZERO;
-        for (PaymentTransactionRec r : records) {
-          paymentTaxableAmountInBigDec = paymentTaxableAmountInBigDec.add(r.getTaxableAmount());
-        }
-        final double paymentTaxableAmount = round(BigDecimalUtility.asDouble(paymentTaxableAmountInBigDec));
-
-        BigDecimal paymentGSTAmountInBigDec = BigDecimal.ZERO;
+        final MoneyAccumulator paymentGrossAmountAccumulator = new MoneyAccumulator();
+        final MoneyAccumulator paymentTaxableAmountAccumulator = new MoneyAccumulator();
+        final MoneyAccumulator paymentGSTAmountAccumulator = new MoneyAccumulator();
         for (PaymentTransactionRec r : records) {
-          paymentGSTAmountInBigDec = paymentGSTAmountInBigDec.add(r.getGstAmount());
+          paymentGrossAmountAccumulator.add(r.getGrossAmount());
+          paymentTaxableAmountAccumulator.add(r.getTaxableAmount());
+          paymentGSTAmountAccumulator.add(r.getGstAmount());
         }
-        final double paymentGSTAmount = round(BigDecimalUtility.asDouble(paymentGSTAmountInBigDec));
+        final double paymentGrossAmount = round(BigDecimalUtility.asDouble(paymentGrossAmountAccumulator.toBigDecimal()));
+        final double paymentTaxableAmount = round(BigDecimalUtility.asDouble(paymentTaxableAmountAccumulator.toBigDecimal()));
+        final double paymentGSTAmount = round(BigDecimalUtility.asDouble(paymentGSTAmountAccumulator.toBigDecimal()));
 
         schemeParticipantPaymentTransaction.setPaymentType(paymentType);
         schemeParticipantPaymentTransaction.setPaymentState(paymentState);
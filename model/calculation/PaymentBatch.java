@@ -15,6 +15,7 @@ import javax.persistence.OneToMany;
 import javax.persistence.Table;
 import javax.persistence.Temporal;
 import javax.persistence.TemporalType;
+import javax.persistence.Transient;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.serviceco.coex.model.EntityBase;
@@ -64,10 +65,31 @@ public class PaymentBatch extends EntityBase {
   private Scheme scheme;
 
   /**
-   * The different states possible for a PaymentBatch
+   * The number of existing payment transaction records marked as stale by this batch. This is not persisted; it is only reported in the
+   * batch execution summary.
+   */
+  @JsonIgnore
+  @Transient
+  private long staleRecordCount;
+
+  public synchronized void addStaleRecordCount(long count) {
+    this.staleRecordCount += count;
+  }
+
+  /**
+   * The site number of the last scheme participant whose payment transaction records have been committed, when the batch is computed in
+   * checkpointed chunks. A batch which failed or was stopped part way through is resumed after this participant. Null if no chunk has been
+   * committed yet.
+   */
+  @Column(name = "LAST_CHECKPOINT", length = 50)
+  private String lastCheckpoint;
+
+  /**
+   * The different states possible for a PaymentBatch. A RESUMABLE batch failed part way through a checkpointed computation and can be
+   * resumed from its last checkpoint.
    */
   public static enum RUN_STATUS {
-    STARTED, IN_PROGRESS, ERROR, ABORT, SUCCESS;
+    STARTED, IN_PROGRESS, ERROR, ABORT, SUCCESS, RESUMABLE;
   }
 
   /**
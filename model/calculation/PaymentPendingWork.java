@@ -0,0 +1,81 @@
+package com.serviceco.coex.payment.model.calculation;
+
+import java.util.Date;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.EnumType;
+import javax.persistence.Enumerated;
+import javax.persistence.JoinColumn;
+import javax.persistence.ManyToOne;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+
+import com.serviceco.coex.model.EntityBase;
+import com.serviceco.coex.model.Scheme;
+
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * An entry of the pending work ledger: a volume or claim header which has reached FINAL and has not yet been computed by an incremental
+ * payment computation. The entry is consumed (its payment batch is set) in the same transaction as the payment transactions computed from
+ * the header.
+ */
+@Getter
+@Setter
+@Table(name = "PAYMENT_PENDING_WORK")
+@Entity
+public class PaymentPendingWork extends EntityBase {
+
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * The volume or claim header table the entry refers to
+   */
+  @Column(name = "SOURCE", length = 50)
+  @Enumerated(EnumType.STRING)
+  private Source source;
+
+  /**
+   * The site number of the scheme participant of the header
+   */
+  @Column(name = "SCHEME_PARTICIPANT_ID")
+  private String schemeParticipantId;
+
+  @Column(name = "TXN_HEADER_ID")
+  private String txnHeaderId;
+
+  @Temporal(TemporalType.TIMESTAMP)
+  @Column(name = "ENQUEUED_TIMESTAMP")
+  private Date enqueuedTimeStamp;
+
+  /**
+   * The payment batch which consumed the entry, or null while the entry is pending
+   */
+  @Column(name = "PAYMENT_BATCH_ID")
+  private String paymentBatchId;
+
+  @Temporal(TemporalType.TIMESTAMP)
+  @Column(name = "CONSUMED_TIMESTAMP")
+  private Date consumedTimeStamp;
+
+  @JoinColumn(name = "MULTI_SCHEME_ID", referencedColumnName = "MULTI_SCHEME_ID", nullable = true)
+  @ManyToOne
+  private Scheme scheme;
+
+  /**
+   * The volume and claim headers tracked by the ledger
+   */
+  public static enum Source {
+    /**
+     * Manufacturer sales volume headers ({@code V_UNPROCESSED_VOL.VOLUME_HDR_ID})
+     */
+    MANUFACTURER_VOLUME,
+    PROCESSOR_CLAIM,
+    MRF_CLAIM,
+    CRP_CLAIM;
+  }
+
+}
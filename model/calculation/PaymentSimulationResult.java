@@ -0,0 +1,88 @@
+package com.serviceco.coex.payment.model.calculation;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.serviceco.coex.payment.support.MoneyAccumulator;
+
+import lombok.Getter;
+
+/**
+ * The totals of a what-if payment computation, by scheme participant and material type.
+ *
+ * <p>The totals are held in columns: the values at the same index of each list belong to the same scheme participant and material type,
+ * in the order the pair was first calculated.</p>
+ *
+ * See {@link #of}
+ */
+@Getter
+public class PaymentSimulationResult {
+
+  private final String schemeId;
+
+  private final String schemeParticipantType;
+
+  private final String paymentPeriod;
+
+  private final List<String> schemeParticipantIds = new ArrayList<>();
+
+  private final List<String> materialTypeIds = new ArrayList<>();
+
+  private final List<BigDecimal> volumes = new ArrayList<>();
+
+  private final List<BigDecimal> grossAmounts = new ArrayList<>();
+
+  /**
+   * The number of payment transactions of each scheme participant and material type
+   */
+  private final List<Integer> transactionCounts = new ArrayList<>();
+
+  private BigDecimal totalGrossAmount = BigDecimal.ZERO;
+
+  private int transactionCount;
+
+  private PaymentSimulationResult(String schemeId, String schemeParticipantType, String paymentPeriod) {
+    this.schemeId = schemeId;
+    this.schemeParticipantType = schemeParticipantType;
+    this.paymentPeriod = paymentPeriod;
+  }
+
+  /**
+   * Totals the payment transactions calculated by a what-if computation.
+   * @param schemeId The scheme of the computation
+   * @param schemeParticipantType The scheme participant type of the computation
+   * @param paymentPeriod The payment period of the computation
+   * @param records The payment transaction records which were calculated, but not saved
+   * @return Returns the totals
+   */
+  public static PaymentSimulationResult of(String schemeId, String schemeParticipantType, String paymentPeriod, List<PaymentTransactionRec> records) {
+    final PaymentSimulationResult result = new PaymentSimulationResult(schemeId, schemeParticipantType, paymentPeriod);
+    final Map<List<String>, MoneyAccumulator> volumes = MoneyAccumulator.sumBy(records, PaymentSimulationResult::key, PaymentTransactionRec::getVolume);
+    final Map<List<String>, MoneyAccumulator> grossAmounts = MoneyAccumulator.sumBy(records, PaymentSimulationResult::key, PaymentTransactionRec::getGrossAmount);
+    final Map<List<String>, Integer> counts = new HashMap<>();
+    records.forEach(record -> counts.merge(key(record), 1, Integer::sum));
+
+    final MoneyAccumulator total = new MoneyAccumulator();
+    for (final Map.Entry<List<String>, MoneyAccumulator> entry : grossAmounts.entrySet()) {
+      result.schemeParticipantIds.add(entry.getKey().get(0));
+      result.materialTypeIds.add(entry.getKey().get(1));
+      result.volumes.add(volumes.get(entry.getKey()).toBigDecimal());
+      result.grossAmounts.add(entry.getValue().toBigDecimal());
+      result.transactionCounts.add(counts.get(entry.getKey()));
+      total.add(entry.getValue());
+    }
+    result.totalGrossAmount = total.toBigDecimal();
+    result.transactionCount = records.size();
+    return result;
+  }
+
+  private static List<String> key(PaymentTransactionRec record) {
+    final String materialTypeId = (record.getMaterialType() != null) ? record.getMaterialType().getId() : null;
+    return Arrays.asList(record.getSchemeParticipantId(), materialTypeId);
+  }
+
+}
@@ -291,6 +291,8 @@ public class PaymentTransactionRec extends EntityBase {
     
     private String schemeId;
 
+    private Long numberOfStaleTransactions;
+
   }
 
   @Getter
@@ -1,10 +1,10 @@
 package com.serviceco.coex.payment.service;
 
 import java.math.BigDecimal;
-import java.math.RoundingMode;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -42,6 +42,7 @@ import com.serviceco.coex.payment.repository.PaymentInvoiceStatusRepository;
 import com.serviceco.coex.payment.service.APInvoiceGenerationService.LegalEntityTuple;
 import com.serviceco.coex.payment.service.TransactionHeaderRepositoryFacade.PaymentType;
 import com.serviceco.coex.payment.support.DateTimeSupport;
+import com.serviceco.coex.payment.support.MoneyAccumulator;
 import com.serviceco.coex.scheme.participant.model.MdtParticipant;
 import com.serviceco.coex.scheme.participant.model.MdtParticipantSite;
 
@@ -63,9 +64,6 @@ public class APInvoiceGenerationPersistenceService extends GenericService {
   private static final String YYYY_MM_DD = "yyyy/MM/dd";
   private static final String AUDITED_REC_DESCRIPTION = "AUDIT_ADJUSTMENT";
 
-  @Autowired
-  private TransactionHeaderRepositoryFacade headerRepoFacade;
-
   @Autowired
   private DateTimeSupport dateTimeSupport;
 
@@ -97,7 +95,9 @@ public class APInvoiceGenerationPersistenceService extends GenericService {
    * <p>There is also a {@link PaymentInvoiceStatus} record created and persisted for each invoice detail line. The status given to the {@code PaymentInvoiceStatus}
    * record is {@code GENERATED}.</p>
    * 
-   * <p>The status of the volume/claim records associated with the payment transaction records are updated through {@link com.serviceco.coex.payment.service.TransactionHeaderRepositoryFacade#updateHeader}</p>
+   * <p>The IDs of the volume/claim records associated with the payment transaction records are added to {@code invoicedHeaderIds}, so that the caller
+   * can update their status through {@link com.serviceco.coex.payment.service.TransactionHeaderRepositoryFacade#updateHeaders} once all of its invoices
+   * have been generated.</p>
    * 
    * <p>The invoice header and associated detail records are persisted and then appended to the {@code from} list.</p>
    *  
@@ -110,11 +110,11 @@ public class APInvoiceGenerationPersistenceService extends GenericService {
    * @param paymentsLevel3 The payment transactions to invoice
    * @param entity The legal entity the invoice targets
    * @param scheme The scheme associated with the invoice \ payments
-   * @param cachedPeriod Used to temporarily cache payment periods. This can be an empty Map initially.
+   * @param invoicedHeaderIds The IDs of the volume/claim records which have been invoiced, by payment type. The IDs of the payments are added to it.
    */
   public void process(final List<APInvoiceTransactionRecHeader> from, final String invoiceBatchId, final BigDecimal invoiceGroupNumber, final MdtParticipantSite schemeParticipant,
       final String paymentTransactionType, final String paymentMethod, final List<PaymentTransactionRec> paymentsLevel3, LegalEntityTuple entity,
-      Map<String, Period> cachedPeriod, InvoiceAttributeCache attributeCache, Scheme scheme) {
+      InvoiceAttributeCache attributeCache, Scheme scheme, Map<PaymentType, Set<String>> invoicedHeaderIds) {
     final APInvoiceTransactionRecHeader header = buildHeader(invoiceGroupNumber, schemeParticipant, paymentTransactionType, paymentsLevel3, paymentMethod, entity, null, attributeCache, scheme);
     header.setInvoiceBatchId(invoiceBatchId);
 
@@ -125,10 +125,10 @@ public class APInvoiceGenerationPersistenceService extends GenericService {
       APInvoiceTransactionRecDetail invoiceItemLine = null;
       if (payment.getPaymentType().equals(PaymentTxnType.REFUND_AMOUNT.name())) {
         invoiceItemLine = buildDetail(schemeParticipant, invoiceGroupNumber, invoiceLineNumber, header, paymentTransactionType, payment, entity, isTax, 
-            null, cachedPeriod, attributeCache, scheme);
+            null, attributeCache, scheme);
       } else {
         invoiceItemLine = buildDetail(schemeParticipant, invoiceGroupNumber, invoiceLineNumber, header, paymentTransactionType, payment, null, isTax, 
-            null, cachedPeriod, attributeCache, scheme);
+            null, attributeCache, scheme);
       }
 
       // create status record
@@ -145,7 +145,7 @@ public class APInvoiceGenerationPersistenceService extends GenericService {
       header.getLines().add(invoiceItemLine);
       detailLineNum = invoiceLineNumber;
 
-      headerRepoFacade.updateHeader(PaymentType.valueOf(payment.getPaymentType()), null, payment.getVolumeHeaderId());
+      invoicedHeaderIds.computeIfAbsent(PaymentType.valueOf(payment.getPaymentType()), type -> new LinkedHashSet<>()).add(payment.getVolumeHeaderId());
     }
     apInvoiceTransactionRecrepo.save(header);
     from.add(header);
@@ -179,7 +179,6 @@ public class APInvoiceGenerationPersistenceService extends GenericService {
    * @param paymentMethod If the transactions have been grouped by the payment method, this is the payment method associated with the transactions. Otherwise set to an empty string.
    * @param payments The payment transactions to invoice
    * @param additionalInfo Key/value pairs which override particular details. This can include the following keys: {@code InvoiceConstants.AdditionInfo.UNIT_SELLING_PRICE}, {@code InvoiceConstants.AdditionInfo.TAX_CLASSIFICATION_REF}, and {@code InvoiceConstants.AdditionInfo.INVOICE_AMOUNT}. If these keys are present, their values are used. If the keys are not present, the values are looked up from the other data provided.
-   * @param cachedPeriod Used to temporarily cache payment periods. This can be an empty Map initially.
    * @param scheme Scheme associated with the payments
    */
   //@formatter:off
@@ -191,7 +190,6 @@ public class APInvoiceGenerationPersistenceService extends GenericService {
                     , final String paymentMethod
                     , final List<PaymentTransactionRec> payments
                     , Map<String,String> additionalInfo
-                    , Map<String, Period> cachedPeriod
                     , InvoiceAttributeCache attributeCache
                     , Scheme scheme) {
     
@@ -210,7 +208,7 @@ public class APInvoiceGenerationPersistenceService extends GenericService {
       final BigDecimal invoiceLineNumber = detailLineNum.add(new BigDecimal(1));
       APInvoiceTransactionRecDetail invoiceItemLine = null;
       invoiceItemLine = buildDetail(schemeParticipant, invoiceGroupNumber, invoiceLineNumber, header, paymentTransactionType, payment, 
-          null, isTax, additionalInfo, cachedPeriod, attributeCache, scheme);
+          null, isTax, additionalInfo, attributeCache, scheme);
       header.getLines().add(invoiceItemLine);
 
       detailLineNum = invoiceLineNumber;
@@ -340,11 +338,11 @@ public class APInvoiceGenerationPersistenceService extends GenericService {
   }
 
   private BigDecimal sum(List<PaymentTransactionRec> paymentTransactionRecords) {
-    BigDecimal totalPaymentAmount = BigDecimal.ZERO;
+    final MoneyAccumulator totalPaymentAmount = new MoneyAccumulator();
     for (PaymentTransactionRec rec : paymentTransactionRecords) {
-      totalPaymentAmount = totalPaymentAmount.add(rec.getGrossAmount().setScale(2, RoundingMode.HALF_UP));
+      totalPaymentAmount.addRounded(rec.getGrossAmount(), 2);
     }
-    return totalPaymentAmount;
+    return totalPaymentAmount.toBigDecimal();
   }
 
   /**
@@ -360,12 +358,11 @@ public class APInvoiceGenerationPersistenceService extends GenericService {
    * @param legalEntity The legal entity the invoice targets. If this is null, it will be looked up based on distribution meta data. See {@link com.serviceco.coex.payment.service.InvoiceAtrributeFinder#findDistributionLine}.
    * @param taxLine If true, the invoice line type will be looked up using index "2", otherwise index "1". See {@link com.serviceco.coex.payment.service.InvoiceAtrributeFinder#findTaxInvoiceLineType}.
    * @param additionalInfo Key/value pairs which override particular details. This can include the following keys: {@code InvoiceConstants.AdditionInfo.UNIT_SELLING_PRICE}, {@code InvoiceConstants.AdditionInfo.TAX_CLASSIFICATION_REF}, and {@code InvoiceConstants.AdditionInfo.INVOICE_AMOUNT}. If these keys are present, their values are used. If the keys are not present, the values are looked up from the other data provided. 
-   * @param cachedPeriod Used to temporarily cache payment periods. This can be an empty Map initially.
    * @return Returns an {@code APInvoiceTransactionRecDetail} object which has been constructed and filled in with the details.
    */
   private APInvoiceTransactionRecDetail buildDetail(MdtParticipantSite schemeParticipant, BigDecimal invoiceGroupNum, BigDecimal invoiceLineNum,
       APInvoiceTransactionRecHeader header, String paymentType, PaymentTransactionRec payment, LegalEntityTuple legalEntity, boolean taxLine, Map<String, String> additionalInfo,
-      Map<String, Period> cachedPeriod, InvoiceAttributeCache attributeCache, Scheme scheme) {
+      InvoiceAttributeCache attributeCache, Scheme scheme) {
 
     if (additionalInfo == null) {
       additionalInfo = new HashMap<>();
@@ -374,11 +371,7 @@ public class APInvoiceGenerationPersistenceService extends GenericService {
     invoiceLine.setId(UUID.randomUUID().toString());
     invoiceLine.setInvoiceApTxnHdr(header);
 
-    if (cachedPeriod != null && !cachedPeriod.containsKey(payment.getPeriod())) {
-      Period tempPeriod = dateTimeSupport.periodFactory(payment.getPeriod(), PeriodType.valueOf(payment.getPeriodType()));
-      cachedPeriod.put(payment.getPeriod(), tempPeriod);
-    }
-    final Period detailPeriod = cachedPeriod.get(payment.getPeriod());
+    final Period detailPeriod = dateTimeSupport.periodFactory(payment.getPeriod(), PeriodType.valueOf(payment.getPeriodType()));
     final String periodStartDate = detailPeriod.getStart().format(DateTimeFormatter.ofPattern(InvoiceConstants.YYYY_MM_DD));
     final String periodEndDate = detailPeriod.getEnd().format(DateTimeFormatter.ofPattern(InvoiceConstants.YYYY_MM_DD));
     final BigDecimal volume = payment.getVolume();
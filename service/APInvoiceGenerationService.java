@@ -3,13 +3,21 @@ package com.serviceco.coex.payment.service;
 import java.math.BigDecimal;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 
@@ -20,6 +28,7 @@ import org.hibernate.Session;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
@@ -28,12 +37,10 @@ import com.serviceco.coex.exception.InvoiceAttributeNotFoundException;
 import com.serviceco.coex.masterdata.model.MaterialType;
 import com.serviceco.coex.model.Scheme;
 import com.serviceco.coex.model.constant.SchemeParticipantType;
-import com.serviceco.coex.model.dto.Period;
 import com.serviceco.coex.payment.api.request.InvoicingRequest;
 import com.serviceco.coex.payment.calculation.PaymentTxnType;
 import com.serviceco.coex.payment.model.calculation.PaymentMetadata;
 import com.serviceco.coex.payment.model.calculation.PaymentTransactionRec;
-import com.serviceco.coex.payment.model.calculation.QPaymentMetadata;
 import com.serviceco.coex.payment.model.calculation.QVGenericPaymentRecord;
 import com.serviceco.coex.payment.model.calculation.VGenericPaymentRecord;
 import com.serviceco.coex.payment.model.calculation.View;
@@ -41,16 +48,18 @@ import com.serviceco.coex.payment.model.invoice.InvoiceTransaction;
 import com.serviceco.coex.payment.model.invoice.InvoiceTransactionWrapper;
 import com.serviceco.coex.payment.model.invoice.ap.APInvoiceTransactionHeader;
 import com.serviceco.coex.payment.model.invoice.ap.APInvoiceTransactionRecHeader;
+import com.serviceco.coex.payment.service.TransactionHeaderRepositoryFacade.PaymentType;
 import com.serviceco.coex.payment.support.Filter;
 import com.serviceco.coex.payment.support.FilteringDecoratorByPaymentType;
 import com.serviceco.coex.payment.support.FilteringDecoratorBySchemeParticipantId;
 import com.serviceco.coex.payment.support.FilteringDecoratorBySchemeParticipantType;
+import com.serviceco.coex.payment.support.ParticipantSiteDirectory;
+import com.serviceco.coex.payment.support.PaymentMetadataCache;
 import com.serviceco.coex.scheme.participant.model.MdtParticipant;
 import com.serviceco.coex.scheme.participant.model.MdtParticipantSite;
 import com.serviceco.coex.scheme.participant.model.QSchemeParticipantRelationshipHeader;
 import com.serviceco.coex.scheme.participant.model.SchemeParticipantRelationshipDetail;
 import com.serviceco.coex.scheme.participant.model.SchemeParticipantRelationshipHeader;
-import com.serviceco.coex.scheme.participant.repository.MdtParticipantSiteRepository;
 import com.serviceco.coex.util.DateUtility;
 import com.serviceco.coex.util.model.SchemeRefCodes;
 
@@ -75,6 +84,12 @@ public class APInvoiceGenerationService extends GenericService implements Invoic
   @Autowired
   private APTransactionIsolator transactionIsolator;
 
+  @Autowired
+  private PaymentMetadataCache paymentMetadataCache;
+
+  @Value("${payment.ap-invoicing.max-parallelism:4}")
+  private int maxParallelism;
+
   public List<InvoiceTransaction> map(List<APInvoiceTransactionRecHeader> source) {
     final List<InvoiceTransaction> generatedInvoices = new ArrayList<>();
     for (final APInvoiceTransactionRecHeader row : source) {
@@ -101,6 +116,9 @@ public class APInvoiceGenerationService extends GenericService implements Invoic
    * 
    * <p>The filtered records are grouped by the scheme participant IDs. Invoices are then generated for each scheme participant ID by calling
    *  {@link com.serviceco.coex.payment.service.APInvoiceGenerationService.APTransactionIsolator#isolateTransactionAndProcess} </p>
+   *
+   * <p>The scheme participants are independent of each other, so up to {@code payment.ap-invoicing.max-parallelism} of them (defaults to 4) are
+   * processed at the same time. The invoices and errors are returned in scheme participant ID order, however many are processed at a time.</p>
    *  
    *  @param request The request body which was sent to to the APInvoicingOfPaymentTransaction web service. It should contain:
    *  @param request.schemeParticipantType The type of scheme participant this should generate invoices for. The participants (if specified) should be of this type.  
@@ -120,11 +138,7 @@ public class APInvoiceGenerationService extends GenericService implements Invoic
     
     final SchemeParticipantType schemeParticipantType = request.getSchemeParticipantType();
 
-    final QPaymentMetadata qPaymentMetadata = QPaymentMetadata.paymentMetadata;
-    final List<PaymentMetadata> metadata = getQueryFactory().select(qPaymentMetadata).from(qPaymentMetadata)
-        .where(qPaymentMetadata.schemeParticipantType.eq(request.getSchemeParticipantType())
-            .and(qPaymentMetadata.invoiceType.eq(InvoiceConstants.AP.INVOICE_TYPE)))
-        .fetch();
+    final List<PaymentMetadata> metadata = paymentMetadataCache.snapshot().findByInvoiceType(request.getSchemeParticipantType(), InvoiceConstants.AP.INVOICE_TYPE);
 
     // find all payment records which can be processed
     final QVGenericPaymentRecord qvProcessablePaymentRecord = QVGenericPaymentRecord.vGenericPaymentRecord;
@@ -142,51 +156,99 @@ public class APInvoiceGenerationService extends GenericService implements Invoic
     // filter payment records by payment type, scheme participant id and scheme participant type
     final List<View> filteredPayments0 = filter.doFilter(request, viableRecords);
 
-    // get all payment records which should be processed
-    final List<PaymentTransactionRec> allPayments = new ArrayList<>();
-
-    List<String> paymentTransactionIds = filteredPayments0.stream().map(t -> t.getPaymentTransactionId()).collect(Collectors.toList());
-
-    Session session = em.unwrap(Session.class);
-    MultiIdentifierLoadAccess<PaymentTransactionRec> multiLoadAccess = session.byMultipleIds(PaymentTransactionRec.class);
-    List<PaymentTransactionRec> recs = multiLoadAccess.withBatchSize(paymentTransactionIds.size() % 999).multiLoad(paymentTransactionIds);
-    allPayments.addAll(recs);
-
     final List<APInvoiceTransactionRecHeader> from = new ArrayList<>();
     final List<String> errors = new ArrayList<>();
 
     // QCRS-1213 generating all invoices of one run under one batch id.
     String invoiceBatchId = UUID.randomUUID().toString();
 
-    //@formatter:on
-
-    // group by scheme participant ids
-    final Map<String, List<PaymentTransactionRec>> paymentsGroupedBySchemeParticipants = allPayments.stream()
-        .collect(Collectors.groupingBy(PaymentTransactionRec::getSchemeParticipantId));
-
-    Map<String, Period> cachedPeriod = new HashMap<>();
-    for (final Map.Entry<String, List<PaymentTransactionRec>> entry1 : paymentsGroupedBySchemeParticipants.entrySet()) {
-      try {
-        LOG.info("Processing invoices for scheme participant : " + entry1.getKey());
-        List<APInvoiceTransactionRecHeader> invoices = transactionIsolator.isolateTransactionAndProcess(request, invoiceBatchId, entry1.getKey(), entry1.getValue(), 
-            cachedPeriod, attributesCache, scheme, errors);
-        from.addAll(invoices);
-      } catch (Exception e) {
-        LOG.error("Could not process payment transaction for scheme participant " + entry1.getKey(), e);
-        String errorMessage = e.getMessage();
-        if (e instanceof InvoiceAttributeNotFoundException) {
-          InvoiceAttributeNotFoundException ex = (InvoiceAttributeNotFoundException) e;
-          if (ex.getErrorMessage() != null) {
-            if (CollectionUtils.isNotEmpty(ex.getErrorMessage().getErrors())) {
-              errorMessage = ex.getErrorMessage().getErrors().get(0).getAdditionalInfo();
-            }
+    // group the payment transaction ids by scheme participant id, in scheme participant id order
+    final Map<String, List<String>> paymentsGroupedBySchemeParticipants = filteredPayments0.stream()
+        .collect(Collectors.groupingBy(View::getSchemeParticipantId, TreeMap::new, Collectors.mapping(View::getPaymentTransactionId, Collectors.toList())));
+
+    final List<ParticipantInvoices> results = processSchemeParticipants(paymentsGroupedBySchemeParticipants,
+        (schemeParticipantId, paymentTransactionIds) -> process(request, invoiceBatchId, schemeParticipantId, paymentTransactionIds, attributesCache, scheme));
+    for (final ParticipantInvoices result : results) {
+      from.addAll(result.invoices);
+      errors.addAll(result.errors);
+    }
+    return new InvoiceTransactionWrapper(map(from), errors, invoiceBatchId, scheme.getId());
+  }
+
+  /**
+   * Generates the invoices of a single scheme participant in its own transaction. An exception is logged and reported as an error of the
+   * scheme participant, and the invoices generated for it are rolled back.
+   */
+  private ParticipantInvoices process(InvoicingRequest request, String invoiceBatchId, String schemeParticipantId, List<String> paymentTransactionIds,
+      InvoiceAttributeCache attributesCache, Scheme scheme) {
+    final ParticipantInvoices result = new ParticipantInvoices();
+    try {
+      LOG.info("Processing invoices for scheme participant : " + schemeParticipantId);
+      result.invoices.addAll(transactionIsolator.isolateTransactionAndProcess(request, invoiceBatchId, schemeParticipantId, paymentTransactionIds,
+          attributesCache, scheme, result.errors));
+    } catch (Exception e) {
+      LOG.error("Could not process payment transaction for scheme participant " + schemeParticipantId, e);
+      String errorMessage = e.getMessage();
+      if (e instanceof InvoiceAttributeNotFoundException) {
+        InvoiceAttributeNotFoundException ex = (InvoiceAttributeNotFoundException) e;
+        if (ex.getErrorMessage() != null) {
+          if (CollectionUtils.isNotEmpty(ex.getErrorMessage().getErrors())) {
+            errorMessage = ex.getErrorMessage().getErrors().get(0).getAdditionalInfo();
           }
         }
-        errors.add(String.format("Scheme participant id: %s, error-message: %s", entry1.getKey(), errorMessage));
       }
+      result.errors.add(String.format("Scheme participant id: %s, error-message: %s", schemeParticipantId, errorMessage));
+    }
+    return result;
+  }
 
+  /**
+   * Runs the work for every scheme participant, on up to {@code payment.ap-invoicing.max-parallelism} threads, and waits for all of them to
+   * finish.
+   * @return Returns the result of each scheme participant, in the order of {@code paymentsGroupedBySchemeParticipants}
+   */
+  private List<ParticipantInvoices> processSchemeParticipants(Map<String, List<String>> paymentsGroupedBySchemeParticipants,
+      BiFunction<String, List<String>, ParticipantInvoices> work) {
+    final List<ParticipantInvoices> results = new ArrayList<>();
+    final int threads = Math.min(maxParallelism, paymentsGroupedBySchemeParticipants.size());
+    if (threads <= 1) {
+      paymentsGroupedBySchemeParticipants.forEach((schemeParticipantId, paymentTransactionIds) -> results.add(work.apply(schemeParticipantId, paymentTransactionIds)));
+      return results;
     }
-    return new InvoiceTransactionWrapper(map(from), errors, invoiceBatchId, scheme.getId());
+
+    LOG.info("processing invoices for {} scheme participants on {} threads", paymentsGroupedBySchemeParticipants.size(), threads);
+    final AtomicInteger threadNumber = new AtomicInteger();
+    final ExecutorService executor = Executors.newFixedThreadPool(threads, runnable -> {
+      final Thread thread = new Thread(runnable, "ap-invoicing-" + threadNumber.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+
+    try {
+      final List<Future<ParticipantInvoices>> futures = new ArrayList<>();
+      paymentsGroupedBySchemeParticipants.forEach((schemeParticipantId, paymentTransactionIds) -> futures.add(executor.submit(() -> work.apply(schemeParticipantId, paymentTransactionIds))));
+      for (final Future<ParticipantInvoices> future : futures) {
+        try {
+          results.add(future.get());
+        } catch (final ExecutionException e) {
+          throw new RuntimeException("AP invoice generation failed", e.getCause());
+        } catch (final InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new RuntimeException("interrupted while waiting for AP invoice generation", e);
+        }
+      }
+      return results;
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * The invoices generated and the errors reported for a single scheme participant
+   */
+  private static final class ParticipantInvoices {
+    private final List<APInvoiceTransactionRecHeader> invoices = new ArrayList<>();
+    private final List<String> errors = new ArrayList<>();
   }
 
   private final class VGenericPaymentToViewFunction implements Function<VGenericPaymentRecord, View> {
@@ -257,7 +319,7 @@ public class APInvoiceGenerationService extends GenericService implements Invoic
     private TransactionHeaderRepositoryFacade headerRepoFacade;
 
     @Autowired
-    private MdtParticipantSiteRepository schemeParticipantRepository;
+    private ParticipantSiteDirectory participantSiteDirectory;
 
     @Autowired
     private APInvoiceGenerationPersistenceService apInvoiceGenerationPersistenceService;
@@ -280,26 +342,31 @@ public class APInvoiceGenerationService extends GenericService implements Invoic
      * the 'other' transactions are for exporters.
      * </p>
      * 
-     * <p>Each individual invoice is generated by calling {@link com.serviceco.coex.payment.service.APInvoiceGenerationPersistenceService#process}.</p>
+     * <p>Each individual invoice is generated by calling {@link com.serviceco.coex.payment.service.APInvoiceGenerationPersistenceService#process}. Once all of the invoices
+     * have been generated, the volume/claim records of the payments are set to INVOICED through {@link com.serviceco.coex.payment.service.TransactionHeaderRepositoryFacade#updateHeaders}.</p>
      *  
      * 
      * @param request The invoicing request which was passed to the  APInvoicingOfPaymentTransaction web service. The data should include:
      * @param request.schemeParticipantType	The scheme participant type to generate invoices for.
      * @param invoiceBatchId An ID which can be used to identify the current batch of invoice generation.
      * @param schemeParticipantId  The ID of the scheme participant this should generate invoices for.
-     * @param allPaymentsForSpecificSchemeParticipant The payment transaction records to include in the invoices.
-     * @param cachedPeriod Used to temporarily cache payment periods. This can be an empty Map initially.
+     * @param paymentTransactionIds The IDs of the payment transaction records to include in the invoices. The records are loaded in the transaction of this method.
      * @param scheme The scheme associated with the payments
      * @param errors An existing list where errors can be appended to (for reporting in the results)
      * @return Returns a list of the generated AP invoice transaction headers.
      */
     public List<APInvoiceTransactionRecHeader> isolateTransactionAndProcess(InvoicingRequest request, String invoiceBatchId, String schemeParticipantId,
-        List<PaymentTransactionRec> allPaymentsForSpecificSchemeParticipant, Map<String, Period> cachedPeriod, InvoiceAttributeCache attributesCache, Scheme scheme, List<String> errors) {
+        List<String> paymentTransactionIds, InvoiceAttributeCache attributesCache, Scheme scheme, List<String> errors) {
 
       List<APInvoiceTransactionRecHeader> from = new ArrayList<>();
+      final Map<PaymentType, Set<String>> invoicedHeaderIds = new EnumMap<>(PaymentType.class);
+      Session session = em.unwrap(Session.class);
+      MultiIdentifierLoadAccess<PaymentTransactionRec> multiLoadAccess = session.byMultipleIds(PaymentTransactionRec.class);
+      List<PaymentTransactionRec> allPaymentsForSpecificSchemeParticipant = multiLoadAccess.withBatchSize(Math.min(paymentTransactionIds.size(), 999))
+          .multiLoad(paymentTransactionIds);
       final BigDecimal invoiceGroupNumber = new BigDecimal(1);
 
-      final MdtParticipantSite schemeParticipant = schemeParticipantRepository.findBySiteNumber(schemeParticipantId).get();
+      final MdtParticipantSite schemeParticipant = participantSiteDirectory.findBySiteNumber(schemeParticipantId).get();
       final Map<String, List<PaymentTransactionRec>> paymentsGroupedByPaymentType = allPaymentsForSpecificSchemeParticipant.stream()
           .collect(Collectors.groupingBy(new Function<PaymentTransactionRec, String>() {
 
@@ -322,26 +389,27 @@ public class APInvoiceGenerationService extends GenericService implements Invoic
         // A refund or collection fees where the scheme participant type is CRP
         if (isRefundOrCollectionPaymentTransactionType) {
 
-          handleCrpRefundOrCollectionFees(invoiceBatchId, cachedPeriod, from, invoiceGroupNumber, schemeParticipant,
-              paymentTransactionType, allPaymentsForSpecificPaymentTransactionType, attributesCache, scheme, errors);
+          handleCrpRefundOrCollectionFees(invoiceBatchId, from, invoiceGroupNumber, schemeParticipant,
+              paymentTransactionType, allPaymentsForSpecificPaymentTransactionType, attributesCache, scheme, errors, invoicedHeaderIds);
 
         } else {
           apInvoiceGenerationPersistenceService.process(from, invoiceBatchId, invoiceGroupNumber, schemeParticipant, paymentTransactionType, StringUtils.EMPTY,
-              allPaymentsForSpecificPaymentTransactionType, null, cachedPeriod, attributesCache, scheme);
+              allPaymentsForSpecificPaymentTransactionType, null, attributesCache, scheme, invoicedHeaderIds);
           
           List<String> paymentBatchIds=allPaymentsForSpecificPaymentTransactionType.stream().map(p->p.getPaymentBatch().getId()).collect(Collectors.toList());
           headerRepoFacade.updateExporterRefundTxnHeader(paymentBatchIds, schemeParticipant.getSiteNumber());
         }
       }
+      headerRepoFacade.updateHeaders(invoicedHeaderIds);
       return from;
     }
 
-    private void handleCrpRefundOrCollectionFees(String invoiceBatchId, Map<String, Period> cachedPeriod,
+    private void handleCrpRefundOrCollectionFees(String invoiceBatchId,
         List<APInvoiceTransactionRecHeader> from, final BigDecimal invoiceGroupNumber,
         final MdtParticipantSite schemeParticipant, final String paymentTransactionType,
         final List<PaymentTransactionRec> allPaymentsForSpecificPaymentTransactionType,
         InvoiceAttributeCache attributesCache,
-        Scheme scheme, List<String> errors) {
+        Scheme scheme, List<String> errors, Map<PaymentType, Set<String>> invoicedHeaderIds) {
       final QSchemeParticipantRelationshipHeader qSchemeParticipantRelationshipHeader = QSchemeParticipantRelationshipHeader.schemeParticipantRelationshipHeader;
       // @formatter:off
       // Gets all processors which have a relationship with the scheme participant & the material types each processor accepts
@@ -436,7 +504,7 @@ public class APInvoiceGenerationService extends GenericService implements Invoic
           final List<PaymentTransactionRec> allPaymentsPerPaymentMethod = entryPerPaymentMethod.getValue();
           final String paymentMethod = entryPerPaymentMethod.getKey();
           apInvoiceGenerationPersistenceService.process(from, invoiceBatchId, invoiceGroupNumber, schemeParticipant, paymentTransactionType, paymentMethod,
-              allPaymentsPerPaymentMethod, entity, cachedPeriod, attributesCache, scheme);
+              allPaymentsPerPaymentMethod, entity, attributesCache, scheme, invoicedHeaderIds);
         }
 
       }
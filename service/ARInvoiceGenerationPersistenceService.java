@@ -3,11 +3,15 @@ package com.serviceco.coex.payment.service;
 import java.math.BigDecimal;
 import java.math.RoundingMode;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
 import java.util.function.Predicate;
 
@@ -15,13 +19,12 @@ import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
-import com.serviceco.coex.exporter.model.dto.EntryStatus;
+import com.google.common.base.Preconditions;
 import com.serviceco.coex.exporter.model.dto.EntryType;
-import com.serviceco.coex.manufacturer.model.SalesVolumeHdr;
-import com.serviceco.coex.manufacturer.repository.SalesVolumeHeaderRepository;
 import com.serviceco.coex.masterdata.model.MaterialType;
 import com.serviceco.coex.model.Scheme;
 import com.serviceco.coex.model.constant.SchemeParticipantType;
@@ -35,6 +38,8 @@ import com.serviceco.coex.payment.model.invoice.ar.InvoiceARTransactionRec;
 import com.serviceco.coex.payment.model.invoice.reference.InvDistributionCodeLov;
 import com.serviceco.coex.payment.repository.ARInvoiceTransactionRecRepository;
 import com.serviceco.coex.payment.repository.PaymentInvoiceStatusRepository;
+import com.serviceco.coex.payment.service.TransactionHeaderRepositoryFacade.PaymentType;
+import com.serviceco.coex.payment.support.BatchInsertSupport;
 import com.serviceco.coex.scheme.participant.model.MdtParticipantSite;
 import com.serviceco.coex.scheme.participant.model.QSchemeParticipantRelationshipHeader;
 import com.serviceco.coex.scheme.participant.model.SchemeParticipantRelationshipDetail;
@@ -72,9 +77,6 @@ public class ARInvoiceGenerationPersistenceService extends GenericService {
   @Autowired
   private InvoiceNumberGenerator invoiceNumberGenerator;
 
-  @Autowired
-  private SalesVolumeHeaderRepository salesVolumeRepo;
-
   @Autowired
   private PaymentInvoiceStatusRepository paymentInvoiceStatusRepo;
 
@@ -87,33 +89,69 @@ public class ARInvoiceGenerationPersistenceService extends GenericService {
   @Autowired
   private SchemeRefCodeService schemeRefCodeService;
 
+  @Autowired
+  private TransactionHeaderRepositoryFacade headerRepoFacade;
+
+  @Value("${payment.invoicing.ar.batch-size:500}")
+  private int batchSize;
+
+  /**
+   * Persists a single invoice line and its {@code PaymentInvoiceStatus}. See {@link #postSteps}.
+   * @param schemeParticipantType The scheme participant type of the invoice
+   * @param payment The payment transaction record the invoice line was built from
+   * @param invoice The invoice line
+   * @return Returns the persisted invoice line
+   */
   public InvoiceARTransactionRec postStep(final SchemeParticipantType schemeParticipantType, final PaymentTransactionRec payment, final InvoiceARTransactionRec invoice) {
+    return postSteps(schemeParticipantType, Collections.singletonList(payment), Collections.singletonList(invoice)).get(0);
+  }
 
-    final PaymentInvoiceStatus paymentInvoiceStatusPOJO = new PaymentInvoiceStatus();
-    paymentInvoiceStatusPOJO.setId(UUID.randomUUID().toString());
-    paymentInvoiceStatusPOJO.setPayment(payment);
-    paymentInvoiceStatusPOJO.setStatus(InvoiceStatus.GENERATED);
-    paymentInvoiceStatusPOJO.setInvoiceId(invoice.getId());
-    paymentInvoiceStatusPOJO.setScheme(payment.getScheme());
-    final PaymentInvoiceStatus paymentInvoiceStatusEntity = paymentInvoiceStatusRepo.save(paymentInvoiceStatusPOJO);
-
-    // payment.setStatus(PaymentStatus.INVOICED);
-
-    if ((schemeParticipantType == SchemeParticipantType.LRG_MANUFACTURER) || (schemeParticipantType == SchemeParticipantType.SML_MANUFACTURER)) {
-      final String volumeHeaderId = payment.getVolumeHeaderId();
-      if (volumeHeaderId != null) {
-        final Optional<SalesVolumeHdr> header = salesVolumeRepo.findById(volumeHeaderId);
-        if (header.isPresent()) {
-          header.get().setEntryStatus(EntryStatus.INVOICED);
+  /**
+   * Persists invoice lines, with a {@code PaymentInvoiceStatus} of GENERATED for each line.
+   *
+   * <p>The status rows and then the invoice lines are inserted in JDBC batches of {@code payment.invoicing.ar.batch-size} rows (defaults to 500),
+   * in the order of the invoice lines. For manufacturers, the {@code SalesVolumeHdr} records of the payments are then set to INVOICED through
+   * {@link com.serviceco.coex.payment.service.TransactionHeaderRepositoryFacade#updateHeaders}.</p>
+   *
+   * @param schemeParticipantType The scheme participant type of the invoices
+   * @param payments The payment transaction record each invoice line was built from
+   * @param invoices The invoice lines, in the same order as the payments
+   * @return Returns the persisted invoice lines, in the order they were passed in
+   */
+  public List<InvoiceARTransactionRec> postSteps(final SchemeParticipantType schemeParticipantType, final List<PaymentTransactionRec> payments,
+      final List<InvoiceARTransactionRec> invoices) {
+    Preconditions.checkArgument(payments.size() == invoices.size(), "Expected a payment for each of the %s invoices, but got %s", invoices.size(), payments.size());
+
+    final List<PaymentInvoiceStatus> statuses = new ArrayList<>(invoices.size());
+    final Set<String> volumeHeaderIds = new LinkedHashSet<>();
+    final boolean isManufacturer = (schemeParticipantType == SchemeParticipantType.LRG_MANUFACTURER) || (schemeParticipantType == SchemeParticipantType.SML_MANUFACTURER);
+    for (int i = 0; i < invoices.size(); i++) {
+      final PaymentTransactionRec payment = payments.get(i);
+      final InvoiceARTransactionRec invoice = invoices.get(i);
+
+      final PaymentInvoiceStatus paymentInvoiceStatusPOJO = new PaymentInvoiceStatus();
+      paymentInvoiceStatusPOJO.setId(UUID.randomUUID().toString());
+      paymentInvoiceStatusPOJO.setPayment(payment);
+      paymentInvoiceStatusPOJO.setStatus(InvoiceStatus.GENERATED);
+      paymentInvoiceStatusPOJO.setInvoiceId(invoice.getId());
+      paymentInvoiceStatusPOJO.setScheme(payment.getScheme());
+      statuses.add(paymentInvoiceStatusPOJO);
+      invoice.setPaymentInvoiceStatus(paymentInvoiceStatusPOJO);
+
+      if (isManufacturer) {
+        final String volumeHeaderId = payment.getVolumeHeaderId();
+        if (volumeHeaderId != null) {
+          volumeHeaderIds.add(volumeHeaderId);
+        } else {
+          LOGGER.warn("Payment " + payment.getId() + " does not have a SalesVolumeHdr linked. Can not update entry status to INVOICED.");
         }
-      } else {
-        LOGGER.warn("Payment " + payment.getId() + " does not have a SalesVolumeHdr linked. Can not update entry status to INVOICED.");
       }
     }
 
-    invoice.setPaymentInvoiceStatus(paymentInvoiceStatusEntity);
-    return invoiceRepo.save(invoice);
-    // paymentRepo.save(payment);
+    BatchInsertSupport.persistAll(em, batchSize, statuses, invoices);
+
+    headerRepoFacade.updateHeaders(Collections.singletonMap(PaymentType.SCHEME_CONTRIBUTION, volumeHeaderIds));
+    return invoices;
   }
 
   //@formatter:on
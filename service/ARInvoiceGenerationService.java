@@ -27,7 +27,6 @@ import com.serviceco.coex.model.dto.Period;
 import com.serviceco.coex.payment.api.request.InvoicingRequest;
 import com.serviceco.coex.payment.model.calculation.PaymentMetadata;
 import com.serviceco.coex.payment.model.calculation.PaymentTransactionRec;
-import com.serviceco.coex.payment.model.calculation.QPaymentMetadata;
 import com.serviceco.coex.payment.model.calculation.QVGenericPaymentRecordAR;
 import com.serviceco.coex.payment.model.calculation.QVProcessablePaymentRecord;
 import com.serviceco.coex.payment.model.calculation.VGenericPaymentRecordAR;
@@ -42,6 +41,7 @@ import com.serviceco.coex.payment.support.Filter;
 import com.serviceco.coex.payment.support.FilteringDecoratorByPaymentType;
 import com.serviceco.coex.payment.support.FilteringDecoratorBySchemeParticipantId;
 import com.serviceco.coex.payment.support.FilteringDecoratorBySchemeParticipantType;
+import com.serviceco.coex.payment.support.PaymentMetadataCache;
 import com.serviceco.coex.scheme.participant.model.MdtParticipantSite;
 import com.serviceco.coex.scheme.participant.model.QMdtParticipantSite;
 
@@ -59,6 +59,9 @@ public class ARInvoiceGenerationService extends GenericService implements Invoic
   @Autowired
   private ARTransactionIsolator transactionIsolator;
 
+  @Autowired
+  private PaymentMetadataCache paymentMetadataCache;
+
   /**
    * Generates AR (Accounts Receivable) invoices for a particular type of scheme participants.
    * 
@@ -102,9 +105,7 @@ public class ARInvoiceGenerationService extends GenericService implements Invoic
 
     List<View> viableRecords0 = null;
 
-    final QPaymentMetadata qPaymentMetadata = QPaymentMetadata.paymentMetadata;
-    final List<PaymentMetadata> metadata = getQueryFactory().select(qPaymentMetadata).from(qPaymentMetadata)
-        .where(qPaymentMetadata.schemeParticipantType.eq(request.getSchemeParticipantType()).and(qPaymentMetadata.invoiceType.eq(INVOICE_TYPE_AR))).fetch();
+    final List<PaymentMetadata> metadata = paymentMetadataCache.snapshot().findByInvoiceType(request.getSchemeParticipantType(), INVOICE_TYPE_AR);
 
     if (request.getSchemeParticipantType().equals(SchemeParticipantType.LRG_MANUFACTURER) || request.getSchemeParticipantType().equals(SchemeParticipantType.SML_MANUFACTURER)) {
 
@@ -317,7 +318,7 @@ public class ARInvoiceGenerationService extends GenericService implements Invoic
      * 
      * <p>The actual invoice lines are built and persisted through {@link com.serviceco.coex.payment.service.ARInvoiceGenerationPersistenceService#buildInvoice}. </p>
      * 
-     * <p>After each invoice is generated, there is an additional step to set/update statuses associated with the invoice. See {@link com.serviceco.coex.payment.service.ARInvoiceGenerationPersistenceService#postStep}.</p> 
+     * <p>Once all of the invoices have been built, they are persisted together with the statuses associated with them. See {@link com.serviceco.coex.payment.service.ARInvoiceGenerationPersistenceService#postSteps}.</p> 
      * 
      * @param request The input parameters which were passed into the invoice generation web service.
      * @param schemeParticipantId Not used
@@ -330,6 +331,7 @@ public class ARInvoiceGenerationService extends GenericService implements Invoic
         String invoiceBatchId, InvoiceAttributeCache attributeCache, Scheme scheme) {
 
       List<InvoiceARTransactionRec> invoices = new ArrayList<>();
+      List<PaymentTransactionRec> invoicedPayments = new ArrayList<>();
       // final String schemeParticipantId = entry1.getKey();
       // final List<PaymentTransactionRec> paymentsLevel2 = entry1.getValue();
       final Map<String, List<PaymentTransactionRec>> paymentsGroupedByPaymentType = paymentsLevel2.stream().collect(Collectors.groupingBy(PaymentTransactionRec::getPaymentType));
@@ -360,13 +362,13 @@ public class ARInvoiceGenerationService extends GenericService implements Invoic
                 .buildInvoice(participant, period, transactionNumber, invoiceLineNumberPrefix + invoiceLineNumber, payment, null, invoiceBatchId, netAmount, 
                     attributeCache, scheme);
 
-            arInvoiceGenerationPersistenceService.postStep(request.getSchemeParticipantType(), payment, invoice);
+            invoicedPayments.add(payment);
             invoices.add(invoice);
 
           }
         }
       }
-      return invoices;
+      return arInvoiceGenerationPersistenceService.postSteps(request.getSchemeParticipantType(), invoicedPayments, invoices);
     }
 
   }
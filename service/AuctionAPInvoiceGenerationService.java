@@ -28,7 +28,6 @@ import com.serviceco.coex.exception.InvoiceAttributeNotFoundException;
 import com.serviceco.coex.model.Scheme;
 import com.serviceco.coex.model.constant.AuctionType;
 import com.serviceco.coex.model.constant.SchemeParticipantType;
-import com.serviceco.coex.model.dto.Period;
 import com.serviceco.coex.payment.api.request.InvoicingRequest;
 import com.serviceco.coex.payment.model.calculation.PaymentTransactionRec;
 import com.serviceco.coex.payment.model.calculation.VAuctionPaymentTransactionRecAP;
@@ -107,12 +106,11 @@ public class AuctionAPInvoiceGenerationService extends GenericService implements
         paymentTransactionType = TRANS_TYPE_NEGATIVE_AUCTION;
       }
       
-      Map<String, Period> cachedPeriod = new HashMap<>();
       InvoiceAttributeCache attributesCache = new InvoiceAttributeCache(scheme);
       for (PaymentTransactionRec paymentTransactionRec : recs) {
         final List<PaymentTransactionRec> paymentRecords = Collections.singletonList(paymentTransactionRec);
         List<APInvoiceTransactionRecHeader> generatedInvoice = transactionIsolator.isolateTransactionAndProcess(request, invoiceBatchId, seller, buyer, paymentTransactionType,
-            paymentRecords, cachedPeriod, attributesCache, scheme);
+            paymentRecords, attributesCache, scheme);
         from.addAll(generatedInvoice);
       }
     } catch (Exception e) {
@@ -162,12 +160,11 @@ public class AuctionAPInvoiceGenerationService extends GenericService implements
      * @param buyer The scheme participant who has purchased the auction lot item
      * @param paymentTransactionType The payment transaction type. I believe this should be "POSITIVE_AUCTION" or "NEGATIVE_AUCTION".
      * @param paymentRecords The payment transaction item records which should be invoiced.
-     * @param cachedPeriod Used to temporarily cache payment periods. This can be an empty Map initially.
      * @param scheme The scheme associated with the auction lot item sold
      * @return Returns a list of {@link com.serviceco.coex.payment.model.invoice.ap.APInvoiceTransactionRecHeader} records, one for each invoice created.
      */
     public List<APInvoiceTransactionRecHeader> isolateTransactionAndProcess(InvoicingRequest request, String invoiceBatchId, MdtParticipantSite seller, MdtParticipantSite buyer,
-        String paymentTransactionType, List<PaymentTransactionRec> paymentRecords, Map<String, Period> cachedPeriod, InvoiceAttributeCache attributesCache, Scheme scheme) {
+        String paymentTransactionType, List<PaymentTransactionRec> paymentRecords, InvoiceAttributeCache attributesCache, Scheme scheme) {
       List<APInvoiceTransactionRecHeader> from = new ArrayList<>();
       Map<String, String> additionalInfo = new HashMap<>();
 
@@ -180,12 +177,12 @@ public class AuctionAPInvoiceGenerationService extends GenericService implements
 
           additionalInfo.put(InvoiceConstants.AdditionInfo.INVOICE_AMOUNT, paymentRecords.get(0).getGrossAmount().toString());
           aPInvoiceGenerationPersistenceService.processAuction(from, invoiceBatchId, invoiceGroupNumber, seller, paymentTransactionType, PaymentMethod.SCHEME.name(),
-              paymentRecords, additionalInfo, cachedPeriod, attributesCache, scheme);
+              paymentRecords, additionalInfo, attributesCache, scheme);
         } else if (request.getAuctionType() == AuctionType.NEGATIVE) {
           additionalInfo.put(InvoiceConstants.AdditionInfo.INVOICE_AMOUNT, BigDecimal.ZERO.toString());
           additionalInfo.put(InvoiceConstants.AdditionInfo.UNIT_SELLING_PRICE, BigDecimal.ZERO.toString());
           aPInvoiceGenerationPersistenceService.processAuction(from, invoiceBatchId, invoiceGroupNumber, seller, paymentTransactionType, PaymentMethod.SCHEME.name(),
-              paymentRecords, additionalInfo, cachedPeriod, attributesCache, scheme);
+              paymentRecords, additionalInfo, attributesCache, scheme);
 
           additionalInfo.remove(InvoiceConstants.AdditionInfo.UNIT_SELLING_PRICE);
           if (isBuyerOverseas(request.getAuctionLotIdentifier())) {
@@ -193,21 +190,21 @@ public class AuctionAPInvoiceGenerationService extends GenericService implements
           }
           additionalInfo.put(InvoiceConstants.AdditionInfo.INVOICE_AMOUNT, paymentRecords.get(0).getGrossAmount().abs().toString());
           aPInvoiceGenerationPersistenceService.processAuction(from, invoiceBatchId, invoiceGroupNumber, buyer, paymentTransactionType, PaymentMethod.SCHEME.name(), paymentRecords,
-              additionalInfo, cachedPeriod, attributesCache, scheme);
+              additionalInfo, attributesCache, scheme);
         }
       } else if (request.getSchemeParticipantType().equals(SchemeParticipantType.MRF)) {
         if (request.getAuctionType() == AuctionType.POSITIVE) {
 
           additionalInfo.put(InvoiceConstants.AdditionInfo.INVOICE_AMOUNT, paymentRecords.get(0).getGrossAmount().toString());
           aPInvoiceGenerationPersistenceService.processAuction(from, invoiceBatchId, invoiceGroupNumber, seller, paymentTransactionType, PaymentMethod.SCHEME.name(),
-              paymentRecords, additionalInfo, cachedPeriod, attributesCache, scheme);
+              paymentRecords, additionalInfo, attributesCache, scheme);
         } else if (request.getAuctionType() == AuctionType.NEGATIVE) {
           if (isBuyerOverseas(request.getAuctionLotIdentifier())) {
             additionalInfo.put(InvoiceConstants.AdditionInfo.TAX_CLASSIFICATION_REF, InvoiceConstants.GST_FREE_AP);
           }
           additionalInfo.put(InvoiceConstants.AdditionInfo.INVOICE_AMOUNT, paymentRecords.get(0).getGrossAmount().abs().toString());
           aPInvoiceGenerationPersistenceService.processAuction(from, invoiceBatchId, invoiceGroupNumber, buyer, paymentTransactionType, PaymentMethod.SCHEME.name(), paymentRecords,
-              additionalInfo, cachedPeriod, attributesCache, scheme);
+              additionalInfo, attributesCache, scheme);
         }
       }
       return from;
@@ -1,9 +1,11 @@
 package com.serviceco.coex.payment.service;
 
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
+import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -16,13 +18,16 @@ import com.serviceco.coex.model.Scheme;
 import com.serviceco.coex.model.constant.AuctionType;
 import com.serviceco.coex.model.constant.PeriodType;
 import com.serviceco.coex.model.dto.Period;
+import com.serviceco.coex.payment.api.request.AuctionLot;
 import com.serviceco.coex.payment.api.request.PaymentCalculationRequest;
 import com.serviceco.coex.payment.calculation.AuctionPaymentSupport;
 import com.serviceco.coex.payment.calculation.CalculationParameter;
+import com.serviceco.coex.payment.calculation.PaymentRecordSink;
+import com.serviceco.coex.payment.calculation.PaymentRecordSinkFactory;
 import com.serviceco.coex.payment.model.calculation.PaymentBatch;
 import com.serviceco.coex.payment.model.calculation.PaymentMetadata;
 import com.serviceco.coex.payment.model.calculation.PaymentTransactionRec;
-import com.serviceco.coex.payment.model.calculation.QPaymentMetadata;
+import com.serviceco.coex.payment.support.PaymentMetadataCache;
 import com.serviceco.coex.scheme.participant.model.MdtParticipantSite;
 
 import lombok.NoArgsConstructor;
@@ -48,6 +53,12 @@ public class AuctionComputationTemplateImpl extends ComputationTemplate {
   @Autowired
   private AuctionPaymentSupport auctionPaymentSupport;
 
+  @Autowired
+  private PaymentRecordSinkFactory recordSinkFactory;
+
+  @Autowired
+  private PaymentMetadataCache paymentMetadataCache;
+
   /**
    * <p>Generates {@link com.serviceco.coex.payment.model.calculation.PaymentTransactionRec} records based on a particular auction lot manifest.</p>
    * 
@@ -65,6 +76,7 @@ public class AuctionComputationTemplateImpl extends ComputationTemplate {
    * @param request.include  If true, payment transactions are generated for the scheme participants passed in. If false, payment transactions are generated for all of the scheme participants associated with the scheme participant type EXCLUDING the scheme participants passed in.
    * @param request.auctionLotIdentifier The ID of the auction lot item ({@link com.serviceco.coex.auction.model.LotItem})).
    * @param request.auctionLotItemManifestId The ID of the auction lot manifest ({@link com.serviceco.coex.auction.model.LotItemManifest}) which should be used to generate payment records.
+   * @param request.auctionLots Instead of the lot item and manifest IDs above, a batch of lot items and the manifest of each. The payment records of every lot are generated in this payment batch.
    * @param request.scheme Ignored. The scheme will be determined from the lot item record.
    * 
    * 
@@ -87,15 +99,15 @@ public class AuctionComputationTemplateImpl extends ComputationTemplate {
     /**
      * set payment metadata
      */
-    final QPaymentMetadata qPaymentMetadata = QPaymentMetadata.paymentMetadata;
-    final List<PaymentMetadata> paymentMetadata = getQueryFactory().select(qPaymentMetadata).from(qPaymentMetadata)
-        .where(qPaymentMetadata.schemeParticipantType.eq(request.getSchemeParticipantType()), qPaymentMetadata.transactionType.eq(paymentTransactionType)).fetch();
+    final List<PaymentMetadata> paymentMetadata = paymentMetadataCache.snapshot().findByTransactionType(request.getSchemeParticipantType(), paymentTransactionType);
     final PaymentMetadata firstElement = paymentMetadata.stream().findFirst().get();
     request.setPaymentMetadata(firstElement);
     final Period paymentPeriodForSchemeParticipant = assertPaymentPeriod(firstElement, scheme);
     final Period paymentPeriodForSchemParticipantEnriched = periodSupport.periodFactory(paymentPeriodForSchemeParticipant.getValue(), paymentPeriodForSchemeParticipant.getType());
 
     final List<MdtParticipantSite> declaringSchemeParticipants = super.partitionByDeclaration(request, scheme);
+    final PaymentRecordSink recordSink = recordSinkFactory.open();
+    final Map<String, String> lotItemManifestIds = getLotItemManifestIds(request);
 
     switch (request.getSchemeParticipantType()) {
 
@@ -104,12 +116,14 @@ public class AuctionComputationTemplateImpl extends ComputationTemplate {
        final CalculationParameter<String> paramProcessor = new CalculationParameter<String>(scheme
                                                                   , request.getSchemeParticipantType()
                                                                   , declaringSchemeParticipants
-                                                                  , getLotItem(request.getAuctionLotIdentifier())
+                                                                  , new ArrayList<>(lotItemManifestIds.keySet())
                                                                   , periodSupport.getToday(scheme)
                                                                   , paymentBatch
                                                                   , paymentPeriodForSchemParticipantEnriched
                                                                   , firstElement
                                                                   , request.getAuctionLotItemManifestIdentifier());
+       paramProcessor.setRecordSink(recordSink);
+       paramProcessor.setAuctionLotItemManifestIds(lotItemManifestIds);
        paymentRecordForDeclaringParticipants = auctionPaymentSupport.calculateViaActual(paramProcessor);
 
        //@formatter:on
@@ -119,12 +133,14 @@ public class AuctionComputationTemplateImpl extends ComputationTemplate {
        final CalculationParameter<String> paramMrf = new CalculationParameter<String>(scheme
                                                                   , request.getSchemeParticipantType()
                                                                   , declaringSchemeParticipants
-                                                                  , getLotItem(request.getAuctionLotIdentifier())
+                                                                  , new ArrayList<>(lotItemManifestIds.keySet())
                                                                   , periodSupport.getToday(scheme)
                                                                   , paymentBatch
                                                                   , paymentPeriodForSchemParticipantEnriched
                                                                   , firstElement
                                                                   , request.getAuctionLotItemManifestIdentifier());
+       paramMrf.setRecordSink(recordSink);
+       paramMrf.setAuctionLotItemManifestIds(lotItemManifestIds);
        paymentRecordForDeclaringParticipants = auctionPaymentSupport.calculateViaActual(paramMrf);
        //@formatter:on
 
@@ -134,6 +150,7 @@ public class AuctionComputationTemplateImpl extends ComputationTemplate {
       break;
     }
 
+    recordSink.flush();
     allRecords.addAll(paymentRecordForDeclaringParticipants);
     allRecords.addAll(paymentRecordForNonDeclaringParticipants);
 
@@ -143,11 +160,31 @@ public class AuctionComputationTemplateImpl extends ComputationTemplate {
   @Override
   protected void validate(PaymentCalculationRequest request) {
     Preconditions.checkArgument((null != request.getSchemeParticipantType()), "scheme participant type is a mandatory for running payment computation process");
+    if ((request.getAuctionLots() != null) && !request.getAuctionLots().isEmpty()) {
+      Preconditions.checkArgument(StringUtils.isEmpty(request.getAuctionLotIdentifier()), "either an auction lot identifier or a list of auction lots can be computed, not both");
+      for (final AuctionLot auctionLot : request.getAuctionLots()) {
+        Preconditions.checkArgument(StringUtils.isNotEmpty(auctionLot.getAuctionLotIdentifier()) && StringUtils.isNotEmpty(auctionLot.getAuctionLotItemManifestIdentifier()),
+            "the auction lot identifier and the auction lot item manifest identifier are mandatory for every auction lot");
+      }
+    }
   }
 
-
-  protected List<String> getLotItem(String auctionLotIdentifier) {
-    return Collections.singletonList(auctionLotIdentifier);
+  /**
+   * @return Returns the manifest ID of each lot item ID of the request: either the single lot item and manifest, or every lot of a batch, in request order
+   * @throws IllegalArgumentException if a lot item is listed twice with different manifests
+   */
+  protected Map<String, String> getLotItemManifestIds(PaymentCalculationRequest request) {
+    final Map<String, String> lotItemManifestIds = new LinkedHashMap<>();
+    if ((request.getAuctionLots() == null) || request.getAuctionLots().isEmpty()) {
+      lotItemManifestIds.put(request.getAuctionLotIdentifier(), request.getAuctionLotItemManifestIdentifier());
+      return lotItemManifestIds;
+    }
+    for (final AuctionLot auctionLot : request.getAuctionLots()) {
+      final String previous = lotItemManifestIds.put(auctionLot.getAuctionLotIdentifier(), auctionLot.getAuctionLotItemManifestIdentifier());
+      Preconditions.checkArgument((previous == null) || previous.equals(auctionLot.getAuctionLotItemManifestIdentifier()),
+          "auction lot " + auctionLot.getAuctionLotIdentifier() + " is listed with more than one manifest");
+    }
+    return lotItemManifestIds;
   }
 
   @Override
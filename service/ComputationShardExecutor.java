@@ -0,0 +1,218 @@
+package com.serviceco.coex.payment.service;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.google.common.collect.Lists;
+import com.querydsl.jpa.impl.JPAQueryFactory;
+import com.serviceco.coex.model.Scheme;
+import com.serviceco.coex.payment.model.calculation.PaymentBatch;
+import com.serviceco.coex.payment.model.calculation.QPaymentBatch;
+import com.serviceco.coex.scheme.participant.model.MdtParticipantSite;
+import com.serviceco.coex.scheme.participant.model.QMdtParticipantSite;
+
+/**
+ * Splits the scheme participants of a payment computation into shards and computes the shards in parallel, or one after the other with a
+ * checkpoint after each shard.
+ *
+ * <p>In parallel, each shard holds at most {@code payment.computation.parallel.shard-size} participants (defaults to 99, so the shard fits
+ * in a single IN clause) and is computed on one of {@code payment.computation.parallel.workers} threads (defaults to 4) in its own
+ * transaction. Each thread holds a database connection while the caller holds another, and up to
+ * {@code payment.scheme-fan-out.max-parallelism} schemes (defaults to 4, see {@link SchemeFanOutExecutor}) are computed at the same time.
+ * The {@code spring.datasource.hikari.maximum-pool-size} connections (defaults to 10) are therefore shared between the schemes, and each
+ * computation starts no more threads than its share less the caller's connection. When its share has no connection to spare, the shards
+ * are computed one after the other on the calling thread, in the caller's transaction.</p>
+ *
+ * <p>A shard which fails is rolled back on its own, but the shards which have already been committed are not undone: their payment
+ * transactions stay with the payment batch, which the caller marks as {@code ERROR}. They are marked as stale, like those of any other
+ * batch, when the same participants are computed again. Use checkpoints where a failed computation has to be completed rather than
+ * repeated.</p>
+ *
+ * <p>With checkpoints, each shard holds at most {@code payment.computation.checkpoint.chunk-size} participants (defaults to 99). The shards
+ * are computed in site number order, each in its own transaction, which also records the shard's last site number against the payment
+ * batch.</p>
+ *
+ * <p>Either way, the participants are passed to each shard by site number and are loaded again in the shard's own transaction, so a shard
+ * never uses an entity of the caller's persistence context. The work of a shard must load any other entity it needs (e.g. the scheme or the
+ * payment batch) in the same way.</p>
+ */
+@Component
+public class ComputationShardExecutor {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ComputationShardExecutor.class);
+
+  @Autowired
+  private TransactionIsolator transactionIsolator;
+
+  @Value("${payment.computation.parallel.workers:4}")
+  private int workers;
+
+  @Value("${payment.computation.parallel.shard-size:99}")
+  private int shardSize;
+
+  @Value("${payment.computation.checkpoint.chunk-size:99}")
+  private int checkpointChunkSize;
+
+  @Value("${spring.datasource.hikari.maximum-pool-size:10}")
+  private int connectionPoolSize;
+
+  @Value("${payment.scheme-fan-out.max-parallelism:4}")
+  private int schemeConcurrency;
+
+  @PersistenceContext
+  private EntityManager em;
+
+  /**
+   * Computes every shard of the participants and waits for all of them to finish.
+   *
+   * @param scheme The scheme of the participants
+   * @param participants The scheme participants to compute, in the order the results should be returned in
+   * @param work Computes a single shard. It is called on a worker thread, inside a new transaction, with the participants of the shard loaded
+   *          in that transaction. Without a spare connection, it is called on the calling thread, in the caller's transaction.
+   * @return Returns the result of each shard, in participant order
+   * @throws RuntimeException if any of the shards failed. The message lists every failed shard with its participants and the cause.
+   */
+  public <R> List<R> execute(Scheme scheme, List<MdtParticipantSite> participants, Function<List<MdtParticipantSite>, R> work) {
+    final String schemeId = scheme.getId();
+    final List<List<String>> shards = Lists.partition(siteNumbersOf(participants), shardSize);
+    if (shards.isEmpty()) {
+      return new ArrayList<>();
+    }
+
+    final int spareConnections = (connectionPoolSize / Math.max(1, schemeConcurrency)) - 1;
+    final int threads = Math.min(Math.min(workers, shards.size()), spareConnections);
+    if (threads < 1) {
+      LOGGER.info("computing {} participants in {} shards on the calling thread, there is no spare database connection", participants.size(), shards.size());
+      final List<R> results = new ArrayList<>();
+      for (final List<String> shard : shards) {
+        results.add(work.apply(load(schemeId, shard)));
+      }
+      return results;
+    }
+
+    LOGGER.info("computing {} participants in {} shards on {} threads", participants.size(), shards.size(), threads);
+    final AtomicInteger threadNumber = new AtomicInteger();
+    final ExecutorService executor = Executors.newFixedThreadPool(threads, runnable -> {
+      final Thread thread = new Thread(runnable, "payment-computation-shard-" + threadNumber.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+
+    try {
+      final List<Future<R>> futures = new ArrayList<>();
+      for (final List<String> shard : shards) {
+        futures.add(executor.submit(() -> transactionIsolator.inNewTransaction(() -> work.apply(load(schemeId, shard)))));
+      }
+
+      final List<R> results = new ArrayList<>();
+      final List<String> failures = new ArrayList<>();
+      for (int i = 0; i < futures.size(); i++) {
+        try {
+          results.add(futures.get(i).get());
+        } catch (final ExecutionException e) {
+          final String failure = describe(i, shards.get(i)) + " failed: " + ExceptionUtils.getRootCauseMessage(e.getCause());
+          LOGGER.error(failure, e.getCause());
+          failures.add(failure);
+        } catch (final InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new RuntimeException("interrupted while waiting for " + describe(i, shards.get(i)), e);
+        }
+      }
+
+      if (!failures.isEmpty()) {
+        throw new RuntimeException(failures.size() + " of " + shards.size() + " shards failed, the other shards were committed. " + String.join("; ", failures));
+      }
+      return results;
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Computes the participants after the last checkpoint of the payment batch, one shard at a time, in site number order. Each shard is
+   * committed together with its new checkpoint, so if a shard fails, every shard before it is kept and the batch can be resumed from the
+   * failed shard.
+   *
+   * @param paymentBatch The payment batch. Its last checkpoint is updated once each shard has been committed.
+   * @param participants All of the scheme participants of the computation, including those already computed before the last checkpoint
+   * @param work Computes a single shard. It is called inside a new transaction, with the participants of the shard loaded in that transaction.
+   * @return Returns the result of each shard computed by this call, in site number order
+   */
+  public <R> List<R> executeCheckpointed(PaymentBatch paymentBatch, List<MdtParticipantSite> participants, Function<List<MdtParticipantSite>, R> work) {
+    final String schemeId = paymentBatch.getScheme().getId();
+    final String checkpoint = paymentBatch.getLastCheckpoint();
+    //@formatter:off
+    final List<String> remaining = siteNumbersOf(participants).stream()
+                                                             .filter(siteNumber -> (checkpoint == null) || (siteNumber.compareTo(checkpoint) > 0))
+                                                             .sorted(Comparator.naturalOrder())
+                                                             .collect(Collectors.toList());
+    //@formatter:on
+    final List<List<String>> shards = Lists.partition(remaining, checkpointChunkSize);
+    LOGGER.info("computing {} of {} participants in {} checkpointed shards, resuming after {}", remaining.size(), participants.size(), shards.size(), checkpoint);
+
+    final QPaymentBatch qPaymentBatch = QPaymentBatch.paymentBatch;
+    final List<R> results = new ArrayList<>();
+    for (int i = 0; i < shards.size(); i++) {
+      final List<String> shard = shards.get(i);
+      final String shardCheckpoint = shard.get(shard.size() - 1);
+      try {
+        results.add(transactionIsolator.inNewTransaction(() -> {
+          final R result = work.apply(load(schemeId, shard));
+          new JPAQueryFactory(em).update(qPaymentBatch).set(qPaymentBatch.lastCheckpoint, shardCheckpoint).where(qPaymentBatch.id.eq(paymentBatch.getId())).execute();
+          return result;
+        }));
+      } catch (final RuntimeException e) {
+        throw new RuntimeException(describe(i, shard) + " failed, the batch can be resumed after " + paymentBatch.getLastCheckpoint(), e);
+      }
+      // only move the checkpoint once the shard has been committed
+      paymentBatch.setLastCheckpoint(shardCheckpoint);
+    }
+    return results;
+  }
+
+  /**
+   * Loads the participant sites of a shard, with their participants, in the persistence context of the current (shard) transaction.
+   * @return Returns the sites in the order of the site numbers
+   */
+  private List<MdtParticipantSite> load(String schemeId, List<String> siteNumbers) {
+    final QMdtParticipantSite qSite = QMdtParticipantSite.mdtParticipantSite;
+    //@formatter:off
+    final Map<String, MdtParticipantSite> sites = new JPAQueryFactory(em).select(qSite).from(qSite)
+                                                                         .leftJoin(qSite.participant).fetchJoin()
+                                                                         .where(qSite.scheme.id.eq(schemeId).and(qSite.siteNumber.in(siteNumbers)))
+                                                                         .fetch()
+                                                                         .stream()
+                                                                         .collect(Collectors.toMap(MdtParticipantSite::getSiteNumber, Function.identity(), (first, second) -> first));
+    //@formatter:on
+    return siteNumbers.stream().map(sites::get).filter(Objects::nonNull).collect(Collectors.toList());
+  }
+
+  private static List<String> siteNumbersOf(List<MdtParticipantSite> participants) {
+    return participants.stream().map(MdtParticipantSite::getSiteNumber).collect(Collectors.toList());
+  }
+
+  private static String describe(int index, List<String> shard) {
+    return "shard " + (index + 1) + " (" + shard.size() + " participants, " + shard.get(0) + " to " + shard.get(shard.size() - 1) + ")";
+  }
+
+}
@@ -1,6 +1,5 @@
 package com.serviceco.coex.payment.service;
 
-import java.math.BigDecimal;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Date;
@@ -8,21 +7,28 @@ import java.util.List;
 import java.util.Optional;
 import java.util.stream.Collectors;
 
+import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.exception.ExceptionUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
+import com.google.common.base.Preconditions;
 import com.serviceco.coex.model.Scheme;
 import com.serviceco.coex.model.dto.Period;
 import com.serviceco.coex.payment.api.request.PaymentCalculationRequest;
+import com.serviceco.coex.payment.calculation.PaymentSimulation;
 import com.serviceco.coex.payment.model.calculation.PaymentBatch;
 import com.serviceco.coex.payment.model.calculation.PaymentBatch.RUN_STATUS;
 import com.serviceco.coex.payment.model.calculation.PaymentMetadata;
+import com.serviceco.coex.payment.model.calculation.PaymentSimulationResult;
 import com.serviceco.coex.payment.model.calculation.PaymentTransactionRec;
 import com.serviceco.coex.payment.model.calculation.PaymentTransactionRec.PaymentBatchExecutionSummary;
+import com.serviceco.coex.payment.model.calculation.QPaymentBatch;
+import com.serviceco.coex.payment.support.MoneyAccumulator;
 import com.serviceco.coex.payment.support.PartitionSupport;
 import com.serviceco.coex.scheme.participant.model.MdtParticipantSite;
 import com.serviceco.coex.util.BigDecimalUtility;
@@ -42,6 +48,9 @@ public abstract class ComputationTemplate extends GenericService implements Paym
 
   private static final Logger LOGGER = LoggerFactory.getLogger(ComputationTemplate.class);
 
+  @Autowired
+  private TransactionIsolator transactionIsolator;
+
   // utility service
   /**
    * Handles an exception which was caught during the exception of the run method. Unless overridden,
@@ -86,10 +95,7 @@ public abstract class ComputationTemplate extends GenericService implements Paym
     
     if ((paymentTransactionRecords != null) && !paymentTransactionRecords.isEmpty()) {
       final long numberOfPaymentTransactions = paymentTransactionRecords.stream().count();
-      BigDecimal totalPaymentAmount = BigDecimal.ZERO;
-      for (PaymentTransactionRec rec : paymentTransactionRecords) {
-        totalPaymentAmount = totalPaymentAmount.add(rec.getGrossAmount());
-      }
+      final MoneyAccumulator totalPaymentAmount = MoneyAccumulator.sum(paymentTransactionRecords, PaymentTransactionRec::getGrossAmount);
       
       //@formatter:off
       final int numberOfSchemeParticipants = paymentTransactionRecords.stream()
@@ -102,9 +108,10 @@ public abstract class ComputationTemplate extends GenericService implements Paym
                                                                     PaymentBatchExecutionSummary.dateFormatter(paymentBatch.getEndTimeStamp()), 
                                                                     numberOfPaymentTransactions, 
                                                                     numberOfSchemeParticipants,
-                                                                    BigDecimalUtility.asDouble(totalPaymentAmount),
+                                                                    BigDecimalUtility.asDouble(totalPaymentAmount.toBigDecimal()),
                                                                     assertPaymentPeriod(request.getPaymentMetadata(), scheme).toString(),
-                                                                    paymentBatch.getScheme().getId());
+                                                                    paymentBatch.getScheme().getId(),
+                                                                    paymentBatch.getStaleRecordCount());
     } else {
       return new PaymentTransactionRec.PaymentBatchExecutionSummary(paymentBatch.getId(), 
                                                                     paymentBatch.getStatus(), 
@@ -114,7 +121,8 @@ public abstract class ComputationTemplate extends GenericService implements Paym
                                                                     new Integer(0),
                                                                     new Double(0),
                                                                     assertPaymentPeriod(request.getPaymentMetadata(), scheme).toString(),
-                                                                    paymentBatch.getScheme().getId());
+                                                                    paymentBatch.getScheme().getId(),
+                                                                    paymentBatch.getStaleRecordCount());
       //@formatter:on
     }
   }
@@ -126,12 +134,25 @@ public abstract class ComputationTemplate extends GenericService implements Paym
    * <p>The {@link #run} method is then execute to perform the actual processing of the request.</p>
    * <p>If there are any exceptions thrown from the run method, the {@code PaymentBatch} record is updated with the status {@code ERROR}. The {@link #handle} method is also called to handle the exception.</p>
    * <p>If there are no exceptions caught during the processing of the run method, the {@code PaymentBatch} record is updated with the status {@code SUCCESS}. </p>
+   * <p>If the request is computed in shards (see {@link #isComputedInShards}), every status change of the {@code PaymentBatch} record is committed straight away,
+   * so the shards can refer to the batch and the {@code ERROR} status survives a failed shard.</p>
+   * <p>If the request can be resumed (see {@link #isResumable}), a failure marks the {@code PaymentBatch} record as {@code RESUMABLE} instead of {@code ERROR}.
+   * If {@code request.resumePaymentBatchId} is set, that batch (which must be {@code RESUMABLE}) is claimed as {@code IN_PROGRESS} and run again instead of creating a new batch; the run method skips
+   * the participants before the batch's last checkpoint.</p>
    */
   @Override
   @Transactional
   public PaymentBatchExecutionSummary compute(PaymentCalculationRequest request, Scheme scheme) {
     validate(request);
-    final PaymentBatch instance = mark(PaymentBatch._new(scheme), PaymentBatch.RUN_STATUS.STARTED);
+    final boolean sharded = isComputedInShards(request);
+    final boolean resumable = isResumable(request);
+    final PaymentBatch instance;
+    if (StringUtils.isNotEmpty(request.getResumePaymentBatchId())) {
+      Preconditions.checkArgument(resumable, "payment computation for " + request.getSchemeParticipantType() + " can not be resumed, checkpoints are not enabled");
+      instance = mark(claimResumableBatch(request.getResumePaymentBatchId(), scheme), PaymentBatch.RUN_STATUS.IN_PROGRESS, sharded);
+    } else {
+      instance = mark(PaymentBatch._new(scheme), PaymentBatch.RUN_STATUS.STARTED, sharded);
+    }
     boolean error = false;
     List<PaymentTransactionRec> records = new ArrayList<>();
     try {
@@ -141,15 +162,24 @@ public abstract class ComputationTemplate extends GenericService implements Paym
       handle(ex);
     } finally {
       if (error) {
-        mark(instance, PaymentBatch.RUN_STATUS.ERROR);
+        mark(instance, resumable ? PaymentBatch.RUN_STATUS.RESUMABLE : PaymentBatch.RUN_STATUS.ERROR, sharded);
       } else {
-        mark(instance, PaymentBatch.RUN_STATUS.SUCCESS);
+        mark(instance, PaymentBatch.RUN_STATUS.SUCCESS, sharded);
       }
     }
     return summarize(request, instance, records);
   }
 
-  private PaymentBatch mark(PaymentBatch instance, PaymentBatch.RUN_STATUS status) {
+  /**
+   * What-if computations are not supported unless overridden.
+   * @throws RuntimeException always
+   */
+  @Override
+  public PaymentSimulationResult simulate(PaymentCalculationRequest request, Scheme scheme, PaymentSimulation simulation) {
+    throw new RuntimeException("payment computation for " + request.getSchemeParticipantType() + " can not be simulated");
+  }
+
+  private PaymentBatch mark(PaymentBatch instance, PaymentBatch.RUN_STATUS status, boolean commitImmediately) {
     if (null == instance.getStartTimeStamp()) {
       instance.setStartTimeStamp(Date.from(Instant.now()));
     }
@@ -157,9 +187,66 @@ public abstract class ComputationTemplate extends GenericService implements Paym
       instance.setEndTimeStamp(Date.from(Instant.now()));
     }
     instance.setStatus(status);
+    if (commitImmediately) {
+      return transactionIsolator.inNewTransaction(() -> paymentBatchRepository.save(instance));
+    }
     return super.paymentBatchRepository.save(instance);
   }
 
+  /**
+   * Claims a payment batch to resume, outside of the current transaction. Only a {@code RESUMABLE} batch can be resumed: it is moved to
+   * {@code IN_PROGRESS} by a conditional update, so if two requests resume the same batch, only one of them claims it. A batch which is
+   * {@code STARTED} or {@code IN_PROGRESS} may still be running and is never resumed.
+   * @param paymentBatchId The ID of the batch
+   * @param scheme The scheme of the computation
+   * @return Returns the claimed batch
+   * @throws RuntimeException if the batch does not exist, belongs to another scheme, is not {@code RESUMABLE} or has been claimed by another request
+   */
+  private PaymentBatch claimResumableBatch(String paymentBatchId, Scheme scheme) {
+    final PaymentBatch paymentBatch = transactionIsolator.inNewTransaction(() -> paymentBatchRepository.findById(paymentBatchId))
+        .orElseThrow(() -> new RuntimeException("payment batch " + paymentBatchId + " not found"));
+    if ((scheme != null) && !scheme.getId().equals(paymentBatch.getScheme().getId())) {
+      throw new RuntimeException("payment batch " + paymentBatchId + " belongs to scheme " + paymentBatch.getScheme().getId() + ", not " + scheme.getId());
+    }
+    if (paymentBatch.getStatus() != RUN_STATUS.RESUMABLE) {
+      throw new RuntimeException("payment batch " + paymentBatchId + " can not be resumed, its status is " + paymentBatch.getStatus());
+    }
+
+    final QPaymentBatch qPaymentBatch = QPaymentBatch.paymentBatch;
+    //@formatter:off
+    final long claimed = transactionIsolator.inNewTransaction(() -> getQueryFactory().update(qPaymentBatch)
+                                                                                    .set(qPaymentBatch.status, RUN_STATUS.IN_PROGRESS)
+                                                                                    .where(qPaymentBatch.id.eq(paymentBatchId).and(qPaymentBatch.status.eq(RUN_STATUS.RESUMABLE)))
+                                                                                    .execute());
+    //@formatter:on
+    if (claimed == 0) {
+      throw new RuntimeException("payment batch " + paymentBatchId + " can not be resumed, it has been resumed by another request");
+    }
+    paymentBatch.setStatus(RUN_STATUS.IN_PROGRESS);
+    LOGGER.info("resuming payment batch {} after checkpoint {}", paymentBatchId, paymentBatch.getLastCheckpoint());
+    return paymentBatch;
+  }
+
+  /**
+   * Determines whether the run method checkpoints its progress, so that a failed computation can be resumed. Unless overridden, this returns
+   * false and a failed computation is marked as {@code ERROR}.
+   * @param request The data passed into the payment computation
+   * @return Returns true if the computation can be resumed
+   */
+  protected boolean isResumable(PaymentCalculationRequest request) {
+    return false;
+  }
+
+  /**
+   * Determines whether the run method computes the request in shards, each of which is committed in its own transaction. Unless overridden,
+   * this returns false and the whole computation is done in the transaction of {@link #compute}.
+   * @param request The data passed into the payment computation
+   * @return Returns true if the request is computed in shards
+   */
+  protected boolean isComputedInShards(PaymentCalculationRequest request) {
+    return false;
+  }
+
   public abstract List<PaymentTransactionRec> run(PaymentBatch paymentBatch, PaymentCalculationRequest request);
 
   protected abstract void validate(PaymentCalculationRequest request);
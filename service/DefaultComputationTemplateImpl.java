@@ -3,9 +3,11 @@ package com.serviceco.coex.payment.service;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Function;
 import java.util.function.Predicate;
@@ -16,10 +18,12 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import com.google.common.base.Preconditions;
+import com.querydsl.core.Tuple;
 import com.serviceco.coex.crp.model.CRPClaimHeader;
 import com.serviceco.coex.model.Scheme;
 import com.serviceco.coex.model.constant.PeriodType;
@@ -33,16 +37,25 @@ import com.serviceco.coex.payment.calculation.CalculationParameter;
 import com.serviceco.coex.payment.calculation.ExporterPaymentSupport;
 import com.serviceco.coex.payment.calculation.MRFPaymentSupport;
 import com.serviceco.coex.payment.calculation.ManufacturerPaymentSupport;
+import com.serviceco.coex.payment.calculation.PaymentRecordSink;
+import com.serviceco.coex.payment.calculation.PaymentRecordSinkFactory;
+import com.serviceco.coex.payment.calculation.PaymentSimulation;
 import com.serviceco.coex.payment.calculation.ProcessorPaymentSupport;
 import com.serviceco.coex.payment.model.calculation.PaymentBatch;
 import com.serviceco.coex.payment.model.calculation.PaymentMetadata;
+import com.serviceco.coex.payment.model.calculation.PaymentPendingWork.Source;
+import com.serviceco.coex.payment.model.calculation.PaymentSimulationResult;
 import com.serviceco.coex.payment.model.calculation.PaymentTransactionRec;
-import com.serviceco.coex.payment.model.calculation.QPaymentMetadata;
+import com.serviceco.coex.payment.model.calculation.QPaymentTransactionRec;
 import com.serviceco.coex.payment.model.calculation.VExporterPaymentTxn;
 import com.serviceco.coex.payment.model.calculation.VUnprocessedVolume;
+import com.serviceco.coex.payment.service.volume.VolumeSource;
+import com.serviceco.coex.payment.support.PaymentMetadataCache;
 import com.serviceco.coex.processor.model.ProcessorClaimHeader;
 import com.serviceco.coex.scheme.participant.model.MdtParticipantSite;
 
+import lombok.AllArgsConstructor;
+import lombok.Getter;
 import lombok.NoArgsConstructor;
 
 /**
@@ -83,8 +96,42 @@ public class DefaultComputationTemplateImpl extends ComputationTemplate {
   @Autowired
   private CRPPaymentSupport crpPaymentSupport;
 
-  private static final String AUCTION_METADATA = "AUCTION";
-  private static final String CRP_HANDLING_FEES = "HANDLING_FEES";
+  @Autowired
+  private PaymentRecordSinkFactory recordSinkFactory;
+
+  @Autowired
+  private ComputationShardExecutor shardExecutor;
+
+  @Autowired
+  private PendingWorkLedger pendingWorkLedger;
+
+  @Autowired
+  private PaymentMetadataCache paymentMetadataCache;
+
+  @Value("${payment.computation.parallel.enabled:false}")
+  private boolean parallelEnabled;
+
+  @Value("${payment.computation.checkpoint.enabled:false}")
+  private boolean checkpointEnabled;
+
+  private static final Set<SchemeParticipantType> SHARDABLE_PARTICIPANT_TYPES = Collections.unmodifiableSet(EnumSet.of(SchemeParticipantType.LRG_MANUFACTURER,
+      SchemeParticipantType.SML_MANUFACTURER, SchemeParticipantType.PROCESSOR, SchemeParticipantType.MRF, SchemeParticipantType.CRP));
+
+  private static final Set<SchemeParticipantType> SIMULATED_PARTICIPANT_TYPES = Collections.unmodifiableSet(EnumSet.of(SchemeParticipantType.LRG_MANUFACTURER,
+      SchemeParticipantType.SML_MANUFACTURER, SchemeParticipantType.PROCESSOR, SchemeParticipantType.MRF, SchemeParticipantType.CRP));
+
+  /**
+   * The payment transaction records calculated for the declaring and the non-declaring (forecasted) scheme participants, and the number of
+   * existing records marked as stale on the payment batch instance they were calculated with (a shard's own copy of the batch when computed
+   * in shards).
+   */
+  @Getter
+  @AllArgsConstructor
+  private static class ComputedRecords {
+    private final List<PaymentTransactionRec> declaring;
+    private final List<PaymentTransactionRec> nonDeclaring;
+    private final long staleRecordCount;
+  }
 
   /**
    * <p>
@@ -93,6 +140,7 @@ public class DefaultComputationTemplateImpl extends ComputationTemplate {
    *  
    * <p>
    * This uses the first payment meta data record found which matches the scheme participant type (in the request), excluding meta data related to AUCTION transaction types and excluding meta data related to CRP participant types where the transaction type is not CPP_HANLDING_FEES.
+   * The metadata is served from memory (see {@link PaymentMetadataCache}).
    * </p>
    * 
    * 
@@ -112,6 +160,20 @@ public class DefaultComputationTemplateImpl extends ComputationTemplate {
    * <li>{@link com.serviceco.coex.payment.calculation.ConsumerAtypicalPaymentSupportImpl}</li>
    * </ul>
    * 
+   * <p>If {@code payment.computation.parallel.enabled} is set, manufacturer, processor, MRF and CRP participants are split into shards which are computed in parallel,
+   * each in its own transaction (see {@link ComputationShardExecutor}). Each shard fetches the volume data of its own participants. The records are returned in shard order.
+   * If a shard fails, the other shards are still committed and the batch is marked as {@code ERROR} with a report of the failed shards.
+   * The CRP atypical (refund) transactions are calculated once every shard has been committed, in the transaction of the computation, for the handling fees
+   * committed by the shards.</p>
+   * 
+   * <p>If {@code payment.computation.checkpoint.enabled} is set instead (or as well), the shards are computed one after the other in site number order, and each
+   * committed shard moves the checkpoint of the batch forward. If a shard fails, the batch is marked as {@code RESUMABLE}; a request with the same data and
+   * {@code resumePaymentBatchId} set computes the remaining participants only. The records returned are those computed by this call.</p>
+   * 
+   * <p>If {@code request.incremental} is set, only the volume and claim headers in the pending work ledger are computed (see {@link PendingWorkLedger}).
+   * The ledger entries of the participants are consumed in the same transaction as their payment transactions, and only the existing records of the
+   * claimed headers are marked as stale.</p>
+   * 
    * @param paymentBatch The record which identifies the current batch processing and keeps track of the result. See {@link com.serviceco.coex.payment.service.ComputationTemplate}. 
    * @param request The data which was passed in to the {@link com.serviceco.coex.payment.api.ComputationOfPaymentTransaction} web service. It should include:
    * @param request.schemeParticipants The participants to create payment transactions for, or the participants to exclude (see request.include)
@@ -122,8 +184,6 @@ public class DefaultComputationTemplateImpl extends ComputationTemplate {
   @Override
   public List<PaymentTransactionRec> run(PaymentBatch paymentBatch, PaymentCalculationRequest request) {
     final List<PaymentTransactionRec> allRecords = new ArrayList<>();
-    List<PaymentTransactionRec> paymentRecordForNonDeclaringParticipants = new ArrayList<>();
-    List<PaymentTransactionRec> paymentRecordForDeclaringParticipants = new ArrayList<>();
 
     LOGGER.info("Computation service: starts.");
     LOGGER.info("Computation service: input argument: schemeParticipantType {}, schemeParticipants {}, include {}, scheme {}", request.getSchemeParticipantType(),
@@ -134,115 +194,244 @@ public class DefaultComputationTemplateImpl extends ComputationTemplate {
     /**
      * set payment metadata
      */
-    final QPaymentMetadata qPaymentMetadata = QPaymentMetadata.paymentMetadata;
-    final List<PaymentMetadata> paymentMetadata = getQueryFactory().select(qPaymentMetadata).from(qPaymentMetadata)
-        .where(qPaymentMetadata.schemeParticipantType.eq(request.getSchemeParticipantType())).fetch();
-    final PaymentMetadata firstPaymentMetadata = paymentMetadata.stream().filter(pm -> shouldConsiderMetadata(pm)).findFirst().get();
+    final PaymentMetadata firstPaymentMetadata = findPaymentMetadata(request, scheme);
     request.setPaymentMetadata(firstPaymentMetadata);
     final Period paymentPeriodForSchemeParticipant = assertPaymentPeriod(firstPaymentMetadata, scheme);
     final Period paymentPeriodForSchemParticipantEnriched = periodSupport.periodFactory(paymentPeriodForSchemeParticipant.getValue(), paymentPeriodForSchemeParticipant.getType());
 
     final List<MdtParticipantSite> declaringSchemeParticipants = super.partitionByDeclaration(request, scheme);
+    if (declaringSchemeParticipants.isEmpty()) {
+      LOGGER.info("Computation service: no scheme participants to compute for scheme {}", scheme.getId());
+      return allRecords;
+    }
+
+    if (isComputedInShards(request)) {
+      // each shard fetches and computes the volume data of its own participants, in its own transaction, with its own copy of the scheme and batch
+      final String schemeId = scheme.getId();
+      final String paymentBatchId = paymentBatch.getId();
+      final Function<List<MdtParticipantSite>, ComputedRecords> computeShard = shard -> {
+        final Scheme shardScheme = em.find(Scheme.class, schemeId);
+        final PaymentBatch shardPaymentBatch = em.find(PaymentBatch.class, paymentBatchId);
+        final List<String> shardParticipantIds = shard.stream().map(MdtParticipantSite::getSiteNumber).collect(Collectors.toList());
+        final PaymentRecordSink shardRecordSink = recordSinkFactory.open();
+        final ComputedRecords computed = calculate(request, shardPaymentBatch, shardScheme, shardParticipantIds, shard, paymentPeriodForSchemParticipantEnriched,
+            firstPaymentMetadata, shardRecordSink, PaymentSimulation.NONE);
+        shardRecordSink.flush();
+        // computed on the calling thread (without a spare connection), the shard shares the caller's batch, which already has its stale count
+        final long staleRecordCount = (shardPaymentBatch == paymentBatch) ? 0L : computed.getStaleRecordCount();
+        return new ComputedRecords(computed.getDeclaring(), computed.getNonDeclaring(), staleRecordCount);
+      };
+      //@formatter:off
+      final List<ComputedRecords> shards = isResumable(request)
+                                             ? shardExecutor.executeCheckpointed(paymentBatch, declaringSchemeParticipants, computeShard)
+                                             : shardExecutor.execute(scheme, declaringSchemeParticipants, computeShard);
+      //@formatter:on
+      shards.forEach(shard -> allRecords.addAll(shard.getDeclaring()));
+      shards.forEach(shard -> allRecords.addAll(shard.getNonDeclaring()));
+      // the shards marked records as stale on their own copies of the batch, whose counts are reported with the caller's batch
+      shards.forEach(shard -> paymentBatch.addStaleRecordCount(shard.getStaleRecordCount()));
+      if (request.getSchemeParticipantType() == SchemeParticipantType.CRP) {
+        // the atypical views cover every CRP of the scheme, so they are scanned once for all of the shards
+        final PaymentRecordSink atypicalRecordSink = recordSinkFactory.open();
+        allRecords.addAll(calculateAtypical(paymentBatch, declaringSchemeParticipants, request, paymentPeriodForSchemParticipantEnriched,
+            fetchHandlingFeePeriods(paymentBatch, firstPaymentMetadata), scheme, atypicalRecordSink));
+      }
+      return allRecords;
+    }
+
+    final PaymentRecordSink recordSink = recordSinkFactory.open();
+    final ComputedRecords computed = calculate(request, paymentBatch, scheme, volumeParticipantIds(request, declaringSchemeParticipants), declaringSchemeParticipants,
+        paymentPeriodForSchemParticipantEnriched, firstPaymentMetadata, recordSink, PaymentSimulation.NONE);
+    recordSink.flush();
+    allRecords.addAll(computed.getDeclaring());
+    allRecords.addAll(computed.getNonDeclaring());
+
+    return allRecords;
+  }
+
+  /**
+   * <p>Calculates the payment transactions of the request as {@link #run} would, with the scheme prices and fees overridden by the simulation, and
+   * totals them by scheme participant and material type.</p>
+   *
+   * <p>Nothing is written to the database: the payment batch is never saved, the records are kept in memory, existing records are not marked
+   * as stale and forecasted sales volumes are not saved. The transaction is read only, so a simulation can run at the same time as a real
+   * computation of the same participants.</p>
+   *
+   * <p>Manufacturers, processors, MRFs and CRPs can be simulated. The CRP atypical (refund) transactions are not included in the result.</p>
+   */
+  @Override
+  @Transactional(readOnly = true)
+  public PaymentSimulationResult simulate(PaymentCalculationRequest request, Scheme scheme, PaymentSimulation simulation) {
+    validate(request);
+    Preconditions.checkArgument(SIMULATED_PARTICIPANT_TYPES.contains(request.getSchemeParticipantType()),
+        "payment computation for " + request.getSchemeParticipantType() + " can not be simulated");
+    Preconditions.checkArgument(!request.isIncremental() && StringUtils.isEmpty(request.getResumePaymentBatchId()),
+        "a simulated payment computation can not be incremental or resumed");
+    Preconditions.checkArgument(simulation.isSimulated(), "simulation overrides are mandatory");
+
+    // never saved, it only identifies the records of the simulation
+    final PaymentBatch paymentBatch = PaymentBatch._new(scheme);
+    final PaymentMetadata paymentMetadata = findPaymentMetadata(request, scheme);
+    request.setPaymentMetadata(paymentMetadata);
+    final Period paymentPeriod = assertPaymentPeriod(paymentMetadata, scheme);
+    final Period paymentPeriodEnriched = periodSupport.periodFactory(paymentPeriod.getValue(), paymentPeriod.getType());
+    final List<MdtParticipantSite> declaringSchemeParticipants = super.partitionByDeclaration(request, scheme);
+
+    final PaymentRecordSink recordSink = recordSinkFactory.openInMemory();
+    final List<PaymentTransactionRec> records = new ArrayList<>();
+    if (!declaringSchemeParticipants.isEmpty()) {
+      final ComputedRecords computed = calculate(request, paymentBatch, scheme, volumeParticipantIds(request, declaringSchemeParticipants), declaringSchemeParticipants,
+          paymentPeriodEnriched, paymentMetadata, recordSink, simulation);
+      records.addAll(computed.getDeclaring());
+      records.addAll(computed.getNonDeclaring());
+    }
+    LOGGER.info("simulated {} payment transactions of {} participants for scheme {}", recordSink.getAcceptedCount(), declaringSchemeParticipants.size(), scheme.getId());
+    return PaymentSimulationResult.of(scheme.getId(), request.getSchemeParticipantType().name(), paymentPeriodEnriched.toString(), records);
+  }
+
+  /**
+   * Fetches the volume data of the scheme participants and calculates their payment transaction records.
+   * @param request The data passed into the payment computation
+   * @param paymentBatch The current payment batch
+   * @param scheme The scheme
+   * @param schemeParticipantIds The IDs used to fetch the volume data. An empty list, or a list containing "ALL", fetches the volume data of every participant.
+   * @param declaringSchemeParticipants The scheme participants to calculate payment transactions for
+   * @param paymentPeriod The current payment period
+   * @param paymentMetadata The payment metadata for the scheme participant type
+   * @param recordSink The sink the new payment transaction records are written to
+   * @param simulation The overrides of a what-if computation, or {@link PaymentSimulation#NONE}
+   * @return Returns the records of the declaring and non-declaring participants
+   */
+  private ComputedRecords calculate(PaymentCalculationRequest request, PaymentBatch paymentBatch, Scheme scheme, List<String> schemeParticipantIds,
+      List<MdtParticipantSite> declaringSchemeParticipants, Period paymentPeriod, PaymentMetadata paymentMetadata, PaymentRecordSink recordSink,
+      PaymentSimulation simulation) {
+    List<PaymentTransactionRec> paymentRecordForNonDeclaringParticipants = new ArrayList<>();
+    List<PaymentTransactionRec> paymentRecordForDeclaringParticipants = new ArrayList<>();
+    final PaymentBatch pendingWorkBatch = claimPendingWork(request, paymentBatch, declaringSchemeParticipants);
 
     switch (request.getSchemeParticipantType()) {
     case LRG_MANUFACTURER:
       //@formatter:off
-      List<VUnprocessedVolume> sourceData = getSalesVolumeForManufacturer(request.getSchemeParticipantIds(), scheme);
-      final CalculationParameter<VUnprocessedVolume> paramLargeManufacturer = new CalculationParameter<VUnprocessedVolume>(
-                                                                  scheme
-                                                                , request.getSchemeParticipantType()          
-                                                                , declaringSchemeParticipants
-                                                                , sourceData
-                                                                , periodSupport.getToday(scheme)
-                                                                , paymentBatch
-                                                                , paymentPeriodForSchemParticipantEnriched
-                                                                , firstPaymentMetadata
-                                                                , null);
-      paymentRecordForDeclaringParticipants = manufacturerPaymentSupport.calculateViaActual(paramLargeManufacturer);
-      paymentRecordForNonDeclaringParticipants = manufacturerPaymentSupport.calculateViaForecast(paramLargeManufacturer);
+      try (VolumeSource<VUnprocessedVolume> sourceData = getSalesVolumeForManufacturer(schemeParticipantIds, scheme, pendingWorkBatch)) {
+        final CalculationParameter<VUnprocessedVolume> paramLargeManufacturer = new CalculationParameter<VUnprocessedVolume>(
+                                                                    scheme
+                                                                  , request.getSchemeParticipantType()          
+                                                                  , declaringSchemeParticipants
+                                                                  , sourceData
+                                                                  , periodSupport.getToday(scheme)
+                                                                  , paymentBatch
+                                                                  , paymentPeriod
+                                                                  , paymentMetadata
+                                                                  , null);
+        paramLargeManufacturer.setRecordSink(recordSink);
+        paramLargeManufacturer.setSimulation(simulation);
+        paramLargeManufacturer.setPendingWorkSource(pendingWorkSource(request, pendingWorkBatch));
+        paymentRecordForDeclaringParticipants = manufacturerPaymentSupport.calculateViaActual(paramLargeManufacturer);
+        paymentRecordForNonDeclaringParticipants = manufacturerPaymentSupport.calculateViaForecast(paramLargeManufacturer);
+      }
       //@formatter:on  
       break;
     case SML_MANUFACTURER:
       //@formatter:off
-      List<VUnprocessedVolume> manufacturerSourceData = getSalesVolumeForManufacturer(request.getSchemeParticipantIds(), scheme);
-      final CalculationParameter<VUnprocessedVolume> paramSmallManufacturer = new CalculationParameter<VUnprocessedVolume>(scheme
-                                                                , request.getSchemeParticipantType()
-                                                                , declaringSchemeParticipants
-                                                                , manufacturerSourceData
-                                                                , periodSupport.getToday(scheme)
-                                                                , paymentBatch
-                                                                , paymentPeriodForSchemParticipantEnriched
-                                                                , firstPaymentMetadata
-                                                                , null);
-      paymentRecordForDeclaringParticipants = manufacturerPaymentSupport.calculateViaActual(paramSmallManufacturer);
-      paymentRecordForNonDeclaringParticipants = manufacturerPaymentSupport.calculateViaForecast(paramSmallManufacturer);
+      try (VolumeSource<VUnprocessedVolume> manufacturerSourceData = getSalesVolumeForManufacturer(schemeParticipantIds, scheme, pendingWorkBatch)) {
+        final CalculationParameter<VUnprocessedVolume> paramSmallManufacturer = new CalculationParameter<VUnprocessedVolume>(scheme
+                                                                  , request.getSchemeParticipantType()
+                                                                  , declaringSchemeParticipants
+                                                                  , manufacturerSourceData
+                                                                  , periodSupport.getToday(scheme)
+                                                                  , paymentBatch
+                                                                  , paymentPeriod
+                                                                  , paymentMetadata
+                                                                  , null);
+        paramSmallManufacturer.setRecordSink(recordSink);
+        paramSmallManufacturer.setSimulation(simulation);
+        paramSmallManufacturer.setPendingWorkSource(pendingWorkSource(request, pendingWorkBatch));
+        paymentRecordForDeclaringParticipants = manufacturerPaymentSupport.calculateViaActual(paramSmallManufacturer);
+        paymentRecordForNonDeclaringParticipants = manufacturerPaymentSupport.calculateViaForecast(paramSmallManufacturer);
+      }
       //@formatter:on
       break;
     case EXPORTER:
-      List<VExporterPaymentTxn> exporterTransactionSourceData = exporterPaymentSupport.getExporterPaymentUnprocessedVolumes(request.getSchemeParticipantIds(), scheme);
       //@formatter:off
-      final CalculationParameter<VExporterPaymentTxn> paramExporter = new CalculationParameter<VExporterPaymentTxn>(scheme
-                                                                , request.getSchemeParticipantType()
-                                                                , declaringSchemeParticipants
-                                                                , exporterTransactionSourceData
-                                                                , periodSupport.getToday(scheme)
-                                                                , paymentBatch
-                                                                , paymentPeriodForSchemParticipantEnriched
-                                                                , firstPaymentMetadata
-                                                                , null);
-      paymentRecordForDeclaringParticipants = exporterPaymentSupport.calculateViaActual(paramExporter);      
+      try (VolumeSource<VExporterPaymentTxn> exporterTransactionSourceData = exporterPaymentSupport.getExporterPaymentUnprocessedVolumes(schemeParticipantIds, scheme)) {
+        final CalculationParameter<VExporterPaymentTxn> paramExporter = new CalculationParameter<VExporterPaymentTxn>(scheme
+                                                                  , request.getSchemeParticipantType()
+                                                                  , declaringSchemeParticipants
+                                                                  , exporterTransactionSourceData
+                                                                  , periodSupport.getToday(scheme)
+                                                                  , paymentBatch
+                                                                  , paymentPeriod
+                                                                  , paymentMetadata
+                                                                  , null);
+        paramExporter.setRecordSink(recordSink);
+        paramExporter.setSimulation(simulation);
+        paymentRecordForDeclaringParticipants = exporterPaymentSupport.calculateViaActual(paramExporter);
+      }
       //@formatter:on
       break;
     case PROCESSOR:
 
-      List<ProcessorClaimHeader> processorTxnSourceData = getProcessorClaimVolumesForProcessor(request.getSchemeParticipantIds(), scheme);
-      //@formatter:off
-      final CalculationParameter<ProcessorClaimHeader> paramProcessor = new CalculationParameter<ProcessorClaimHeader>(scheme
-                                                                , request.getSchemeParticipantType()
-                                                                , declaringSchemeParticipants
-                                                                , processorTxnSourceData
-                                                                , periodSupport.getToday(scheme)
-                                                                , paymentBatch
-                                                                , paymentPeriodForSchemParticipantEnriched
-                                                                , firstPaymentMetadata
-                                                                , null);
-      paymentRecordForDeclaringParticipants = processorPaymentSupport.calculateViaActual(paramProcessor);
+      try (VolumeSource<ProcessorClaimHeader> processorTxnSourceData = getProcessorClaimVolumesForProcessor(schemeParticipantIds, scheme, pendingWorkBatch)) {
+        //@formatter:off
+        final CalculationParameter<ProcessorClaimHeader> paramProcessor = new CalculationParameter<ProcessorClaimHeader>(scheme
+                                                                  , request.getSchemeParticipantType()
+                                                                  , declaringSchemeParticipants
+                                                                  , processorTxnSourceData
+                                                                  , periodSupport.getToday(scheme)
+                                                                  , paymentBatch
+                                                                  , paymentPeriod
+                                                                  , paymentMetadata
+                                                                  , null);
+        paramProcessor.setRecordSink(recordSink);
+        paramProcessor.setSimulation(simulation);
+        paramProcessor.setPendingWorkSource(pendingWorkSource(request, pendingWorkBatch));
+        paymentRecordForDeclaringParticipants = processorPaymentSupport.calculateViaActual(paramProcessor);
+      }
 
       //@formatter:on
 
       break;
     case MRF:
 
-      List<MRFClaimHdr> mrfClaimSourceData = getClaimVolumesForMRF(request.getSchemeParticipantIds(), scheme);
-      //@formatter:off
-      final CalculationParameter<MRFClaimHdr> paramMrf = new CalculationParameter<MRFClaimHdr>(scheme
-                                                                , request.getSchemeParticipantType()
-                                                                , declaringSchemeParticipants
-                                                                , mrfClaimSourceData
-                                                                , periodSupport.getToday(scheme)
-                                                                , paymentBatch
-                                                                , paymentPeriodForSchemParticipantEnriched
-                                                                , firstPaymentMetadata
-                                                                , null);
-      paymentRecordForDeclaringParticipants = mrfPaymentSupport.calculateViaActual(paramMrf);      
+      try (VolumeSource<MRFClaimHdr> mrfClaimSourceData = getClaimVolumesForMRF(schemeParticipantIds, scheme, pendingWorkBatch)) {
+        //@formatter:off
+        final CalculationParameter<MRFClaimHdr> paramMrf = new CalculationParameter<MRFClaimHdr>(scheme
+                                                                  , request.getSchemeParticipantType()
+                                                                  , declaringSchemeParticipants
+                                                                  , mrfClaimSourceData
+                                                                  , periodSupport.getToday(scheme)
+                                                                  , paymentBatch
+                                                                  , paymentPeriod
+                                                                  , paymentMetadata
+                                                                  , null);
+        paramMrf.setRecordSink(recordSink);
+        paramMrf.setSimulation(simulation);
+        paramMrf.setPendingWorkSource(pendingWorkSource(request, pendingWorkBatch));
+        paymentRecordForDeclaringParticipants = mrfPaymentSupport.calculateViaActual(paramMrf);
+      }      
       //@formatter:on
 
       break;
     case CRP:
-      List<CRPClaimHeader> crpClaimSourceData = getClaimVolumesForCRP(request.getSchemeParticipantIds(), scheme);
-      //@formatter:off
-      final CalculationParameter<CRPClaimHeader> paramCrp = new CalculationParameter<CRPClaimHeader>(scheme
-                                                                , request.getSchemeParticipantType()
-                                                                , declaringSchemeParticipants
-                                                                , crpClaimSourceData
-                                                                , periodSupport.getToday(scheme)
-                                                                , paymentBatch
-                                                                , paymentPeriodForSchemParticipantEnriched
-                                                                , firstPaymentMetadata
-                                                                , null);
-      paymentRecordForDeclaringParticipants = crpPaymentSupport.calculateViaActual(paramCrp);
+      try (VolumeSource<CRPClaimHeader> crpClaimSourceData = getClaimVolumesForCRP(schemeParticipantIds, scheme, pendingWorkBatch)) {
+        //@formatter:off
+        final CalculationParameter<CRPClaimHeader> paramCrp = new CalculationParameter<CRPClaimHeader>(scheme
+                                                                  , request.getSchemeParticipantType()
+                                                                  , declaringSchemeParticipants
+                                                                  , crpClaimSourceData
+                                                                  , periodSupport.getToday(scheme)
+                                                                  , paymentBatch
+                                                                  , paymentPeriod
+                                                                  , paymentMetadata
+                                                                  , null);
+        paramCrp.setRecordSink(recordSink);
+        paramCrp.setSimulation(simulation);
+        paramCrp.setPendingWorkSource(pendingWorkSource(request, pendingWorkBatch));
+        paymentRecordForDeclaringParticipants = crpPaymentSupport.calculateViaActual(paramCrp);
+      }
     
-      if (!paymentRecordForDeclaringParticipants.isEmpty()) {
+      // computed in shards, the atypical transactions are calculated once all of the shards have been committed (see run)
+      if (!paymentRecordForDeclaringParticipants.isEmpty() && !simulation.isSimulated() && !isComputedInShards(request)) {
         // @formatter:off
         Map<String,List<PaymentTransactionRec>> paymentRecsPerSchemeParticipantType=paymentRecordForDeclaringParticipants
                                                                                     .stream()
@@ -264,47 +453,132 @@ public class DefaultComputationTemplateImpl extends ComputationTemplate {
               }).collect(Collectors.toList());
           handlingFeePeriodPerSchemeParticiantType.put(entry.getKey(), handlingFeePeriod);
         }
-        final List<PaymentTransactionRec> atypicalTransactions = crpAtypicalPaymentSupport.calculateOnTransactionalData(paymentBatch, declaringSchemeParticipants,
-            request.isInclude(), paymentPeriodForSchemParticipantEnriched, handlingFeePeriodPerSchemeParticiantType, scheme);
-        paymentRecordForDeclaringParticipants.addAll(atypicalTransactions);
+        paymentRecordForDeclaringParticipants.addAll(calculateAtypical(paymentBatch, declaringSchemeParticipants, request, paymentPeriod,
+            handlingFeePeriodPerSchemeParticiantType, scheme, recordSink));
       }
       break;
     //@formatter:on  
     case CONSUMER:
       throw new RuntimeException("Consumer payment transactions now occur in real time. The payment calculation and invoices are generated through the database.");
 //      paymentRecordForDeclaringParticipants = consumerAtypicalPaymentSupport.calculateOnTransactionalData(scheme, paymentBatch, declaringSchemeParticipants, request.isInclude(),
-//          paymentPeriodForSchemParticipantEnriched);
+//          paymentPeriod);
 //      break;
     default:
       break;
     }
 
-    allRecords.addAll(paymentRecordForDeclaringParticipants);
-    allRecords.addAll(paymentRecordForNonDeclaringParticipants);
+    return new ComputedRecords(paymentRecordForDeclaringParticipants, paymentRecordForNonDeclaringParticipants, paymentBatch.getStaleRecordCount());
+  }
 
-    return allRecords;
+  private List<PaymentTransactionRec> calculateAtypical(PaymentBatch paymentBatch, List<MdtParticipantSite> declaringSchemeParticipants, PaymentCalculationRequest request,
+      Period paymentPeriod, Map<String, List<Period>> handlingFeePeriods, Scheme scheme, PaymentRecordSink recordSink) {
+    return crpAtypicalPaymentSupport.calculateOnTransactionalData(paymentBatch, declaringSchemeParticipants, request.isInclude(), paymentPeriod, handlingFeePeriods,
+        scheme, recordSink);
   }
 
-  private boolean shouldConsiderMetadata(PaymentMetadata metadata) {
-    if (metadata.getTransactionType().contains(AUCTION_METADATA)) {
-      return false;
+  /**
+   * Finds the periods of the CRP handling fees which the shards of the payment batch have committed, including those committed by an earlier
+   * run of a resumed batch.
+   * @return Returns the distinct handling fee periods, mapped by the scheme participant ID (CRP ID)
+   */
+  private Map<String, List<Period>> fetchHandlingFeePeriods(PaymentBatch paymentBatch, PaymentMetadata paymentMetadata) {
+    final QPaymentTransactionRec qPaymentTransactionRec = QPaymentTransactionRec.paymentTransactionRec;
+    //@formatter:off
+    final List<Tuple> handlingFees = getQueryFactory().select(qPaymentTransactionRec.schemeParticipantId, qPaymentTransactionRec.period, qPaymentTransactionRec.periodType)
+                                                      .distinct()
+                                                      .from(qPaymentTransactionRec)
+                                                      .where(qPaymentTransactionRec.paymentBatch.id.eq(paymentBatch.getId())
+                                                          .and(qPaymentTransactionRec.paymentType.eq(paymentMetadata.getTransactionType())))
+                                                      .fetch();
+    //@formatter:on
+    final Map<String, List<Period>> handlingFeePeriods = new HashMap<>();
+    for (final Tuple handlingFee : handlingFees) {
+      final Period period = periodSupport.periodFactory(handlingFee.get(qPaymentTransactionRec.period), PeriodType.valueOf(handlingFee.get(qPaymentTransactionRec.periodType)));
+      handlingFeePeriods.computeIfAbsent(handlingFee.get(qPaymentTransactionRec.schemeParticipantId), k -> new ArrayList<>()).add(period);
     }
-    if (metadata.getSchemeParticipantType().equals(SchemeParticipantType.CRP) && !StringUtils.equals(metadata.getTransactionType(), CRP_HANDLING_FEES)) {
-      return false;
+    return handlingFeePeriods;
+  }
+
+  /**
+   * Payment computation runs in shards when {@code payment.computation.parallel.enabled} or {@code payment.computation.checkpoint.enabled} is set,
+   * for manufacturers, processors, MRFs and CRPs.
+   */
+  @Override
+  protected boolean isComputedInShards(PaymentCalculationRequest request) {
+    return (parallelEnabled || checkpointEnabled) && SHARDABLE_PARTICIPANT_TYPES.contains(request.getSchemeParticipantType());
+  }
+
+  /**
+   * Payment computation can be resumed when {@code payment.computation.checkpoint.enabled} is set, for manufacturers, processors, MRFs and CRPs.
+   */
+  @Override
+  protected boolean isResumable(PaymentCalculationRequest request) {
+    return checkpointEnabled && SHARDABLE_PARTICIPANT_TYPES.contains(request.getSchemeParticipantType());
+  }
+
+  /**
+   * @return Returns the payment metadata the computation of the request's scheme participant type uses
+   * @throws IllegalStateException if there is no such metadata
+   */
+  private PaymentMetadata findPaymentMetadata(PaymentCalculationRequest request, Scheme scheme) {
+    final PaymentMetadata paymentMetadata = paymentMetadataCache.snapshot().computationMetadata(request.getSchemeParticipantType());
+    if (null == paymentMetadata) {
+      throw new IllegalStateException("no payment metadata found for scheme " + scheme.getId() + " and scheme participant type " + request.getSchemeParticipantType());
     }
-    return true;
+    return paymentMetadata;
   }
 
   @Override
   protected void validate(PaymentCalculationRequest request) {
     Preconditions.checkArgument((null != request.getSchemeParticipantType()), "scheme participant type is a mandatory for running payment computation process");
+    Preconditions.checkArgument(!request.isIncremental() || (PendingWorkLedger.sourceOf(request.getSchemeParticipantType()) != null),
+        "incremental payment computation is only available for manufacturers, processors, MRFs and CRPs");
   }
 
-  protected List<VUnprocessedVolume> getSalesVolumeForManufacturer(List<String> schemeParticipantIds, Scheme scheme) {
+  /**
+   * @return Returns the pending work ledger source whose claimed headers the computation stales, or null if it is not incremental
+   */
+  private static Source pendingWorkSource(PaymentCalculationRequest request, PaymentBatch pendingWorkBatch) {
+    return pendingWorkBatch != null ? PendingWorkLedger.sourceOf(request.getSchemeParticipantType()) : null;
+  }
+
+  /**
+   * The request's scheme participant IDs are the participants to exclude when {@code include} is false, so they can not be used to fetch
+   * the volume data. The site numbers of the declaring participants are used instead.
+   * @return Returns the IDs used to fetch the volume data of the declaring scheme participants
+   */
+  private static List<String> volumeParticipantIds(PaymentCalculationRequest request, List<MdtParticipantSite> declaringSchemeParticipants) {
+    if (request.isInclude()) {
+      return request.getSchemeParticipantIds();
+    }
+    return declaringSchemeParticipants.stream().map(MdtParticipantSite::getSiteNumber).collect(Collectors.toList());
+  }
+
+  /**
+   * In an incremental computation, claims the pending work ledger entries of the declaring scheme participants for the payment batch. The
+   * entries are consumed in the current transaction, so they stay pending if the computation is rolled back.
+   * @return Returns the payment batch if the computation is incremental, otherwise null
+   */
+  private PaymentBatch claimPendingWork(PaymentCalculationRequest request, PaymentBatch paymentBatch, List<MdtParticipantSite> declaringSchemeParticipants) {
+    if (!request.isIncremental()) {
+      return null;
+    }
+    final List<String> siteNumbers = declaringSchemeParticipants.stream().map(MdtParticipantSite::getSiteNumber).collect(Collectors.toList());
+    pendingWorkLedger.claim(paymentBatch, PendingWorkLedger.sourceOf(request.getSchemeParticipantType()), siteNumbers);
+    return paymentBatch;
+  }
+
+  protected VolumeSource<VUnprocessedVolume> getSalesVolumeForManufacturer(List<String> schemeParticipantIds, Scheme scheme, PaymentBatch pendingWorkBatch) {
+    if (pendingWorkBatch != null) {
+      return manufacturerPaymentSupport.getPendingVolume(schemeParticipantIds, scheme, pendingWorkBatch);
+    }
     return manufacturerPaymentSupport.getUnprocessedVolume(schemeParticipantIds, scheme);
   }
 
-  protected List<ProcessorClaimHeader> getProcessorClaimVolumesForProcessor(List<String> schemeParticipantIds, Scheme scheme) {
+  protected VolumeSource<ProcessorClaimHeader> getProcessorClaimVolumesForProcessor(List<String> schemeParticipantIds, Scheme scheme, PaymentBatch pendingWorkBatch) {
+    if (pendingWorkBatch != null) {
+      return processorPaymentSupport.getPendingVolume(schemeParticipantIds, scheme, pendingWorkBatch);
+    }
     return processorPaymentSupport.getUnprocessedVolume(schemeParticipantIds, scheme);
   }
 
@@ -312,11 +586,17 @@ public class DefaultComputationTemplateImpl extends ComputationTemplate {
     return Collections.singletonList(auctionLotIdentifier);
   }
 
-  protected List<MRFClaimHdr> getClaimVolumesForMRF(List<String> schemeParticipantIds, Scheme scheme) {
+  protected VolumeSource<MRFClaimHdr> getClaimVolumesForMRF(List<String> schemeParticipantIds, Scheme scheme, PaymentBatch pendingWorkBatch) {
+    if (pendingWorkBatch != null) {
+      return mrfPaymentSupport.getPendingVolume(schemeParticipantIds, scheme, pendingWorkBatch);
+    }
     return mrfPaymentSupport.getUnprocessedVolume(schemeParticipantIds, scheme);
   }
 
-  protected List<CRPClaimHeader> getClaimVolumesForCRP(List<String> schemeParticipantIds, Scheme scheme) {
+  protected VolumeSource<CRPClaimHeader> getClaimVolumesForCRP(List<String> schemeParticipantIds, Scheme scheme, PaymentBatch pendingWorkBatch) {
+    if (pendingWorkBatch != null) {
+      return crpPaymentSupport.getPendingVolume(schemeParticipantIds, scheme, pendingWorkBatch);
+    }
     return crpPaymentSupport.getUnprocessedVolume(schemeParticipantIds, scheme);
   }
 
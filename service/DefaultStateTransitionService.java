@@ -14,6 +14,7 @@ import com.serviceco.coex.payment.model.calculation.PaymentTransactionRec.StateT
 import com.serviceco.coex.payment.model.calculation.PaymentTransactionRec.StateTransitionSummary;
 import com.serviceco.coex.payment.repository.ARInvoiceTransactionRecRepository;
 import com.serviceco.coex.payment.repository.PaymentTransactionRecRepository;
+import com.serviceco.coex.payment.support.MoneyAccumulator;
 import com.serviceco.coex.payment.support.DateTimeSupport;
 import com.serviceco.coex.scheme.participant.model.MdtParticipantSite;
 import com.serviceco.coex.scheme.participant.repository.MdtParticipantSiteRepository;
@@ -97,7 +98,7 @@ public class DefaultStateTransitionService implements PaymentTransactionStateTra
     final Map<String, BigDecimal> internal = new HashMap<>();
     final String NUMBER_OF_PAYMENT_TXN = "NUMBER_OF_PAYMENT_TXN";
     final String NUMBER_OF_SCHEME_PARTICIPANT = "NUMBER_OF_SCHEME_PARTICIPANT";
-    final String TOTAL_PAYMENT = "TOTAL_PAYMENT";
+    final MoneyAccumulator totalPayment = new MoneyAccumulator();
     final Set<SchemeParticipantToStateMapper> outgoing = new HashSet<PaymentTransactionRec.SchemeParticipantToStateMapper>();
 
     Scheme scheme = checkAndExtractScheme(request);
@@ -116,7 +117,7 @@ public class DefaultStateTransitionService implements PaymentTransactionStateTra
         final List<SchemeParticipantToStateMapper> incoming = request.getSchemeParticipantToStateMappers();
         internal.put(NUMBER_OF_PAYMENT_TXN, BigDecimal.valueOf(recordsFilteredBySchemeParticipant.size()));
         internal.put(NUMBER_OF_SCHEME_PARTICIPANT, BigDecimal.valueOf(incoming.size()));
-        internal.put(TOTAL_PAYMENT, BigDecimal.ZERO);
+        totalPayment.reset();
         for (final SchemeParticipantToStateMapper mapper : incoming) {
 
           final String schemeParticipantId = mapper.getSchemeParticipantId();
@@ -135,8 +136,7 @@ public class DefaultStateTransitionService implements PaymentTransactionStateTra
               if (dbRow.isPresent()) {
                 // calculate the amount
                 final PaymentTransactionRec payment = dbRow.get();
-                final BigDecimal existingVal = internal.get(TOTAL_PAYMENT);
-                internal.put(TOTAL_PAYMENT, existingVal.add(payment.getGrossAmount()));
+                totalPayment.add(payment.getGrossAmount());
                 payment.setStatus(status);
                 final PaymentTransactionRec persisted = repo.save(payment);
                 outgoing.add(new SchemeParticipantToStateMapper(mapper.getSchemeParticipantId(), persisted.getStatus()));
@@ -158,7 +158,7 @@ public class DefaultStateTransitionService implements PaymentTransactionStateTra
 
         internal.put(NUMBER_OF_PAYMENT_TXN, BigDecimal.valueOf(recordsFilteredBySchemeParticipant.size()));
         internal.put(NUMBER_OF_SCHEME_PARTICIPANT, BigDecimal.valueOf(incoming.size()));
-        internal.put(TOTAL_PAYMENT, BigDecimal.ZERO);
+        totalPayment.reset();
         for (final SchemeParticipantToStateMapper mapper : incoming) {
 
           final String schemeParticipantId = mapper.getSchemeParticipantId();
@@ -177,8 +177,7 @@ public class DefaultStateTransitionService implements PaymentTransactionStateTra
               if (dbRow.isPresent()) {
                 // calculate the amount
                 final PaymentTransactionRec payment = dbRow.get();
-                final BigDecimal existingVal = internal.get(TOTAL_PAYMENT);
-                internal.put(TOTAL_PAYMENT, existingVal.add(payment.getGrossAmount()));
+                totalPayment.add(payment.getGrossAmount());
                 payment.setStatus(status);
                 final PaymentTransactionRec persisted = repo.save(payment);
                 outgoing.add(new SchemeParticipantToStateMapper(mapper.getSchemeParticipantId(), persisted.getStatus()));
@@ -200,7 +199,7 @@ public class DefaultStateTransitionService implements PaymentTransactionStateTra
 
         internal.put(NUMBER_OF_PAYMENT_TXN, BigDecimal.valueOf(recordsFilteredBySchemeParticipant.size()));
         internal.put(NUMBER_OF_SCHEME_PARTICIPANT, BigDecimal.valueOf(incoming.size()));
-        internal.put(TOTAL_PAYMENT, BigDecimal.ZERO);
+        totalPayment.reset();
         for (final SchemeParticipantToStateMapper mapper : incoming) {
 
           final String schemeParticipantId = mapper.getSchemeParticipantId();
@@ -219,8 +218,7 @@ public class DefaultStateTransitionService implements PaymentTransactionStateTra
               if (dbRow.isPresent()) {
                 // calculate the amount
                 final PaymentTransactionRec payment = dbRow.get();
-                final BigDecimal existingVal = internal.get(TOTAL_PAYMENT);
-                internal.put(TOTAL_PAYMENT, existingVal.add(payment.getGrossAmount()));
+                totalPayment.add(payment.getGrossAmount());
                 payment.setStatus(status);
                 final PaymentTransactionRec persisted = repo.save(payment);
                 outgoing.add(new SchemeParticipantToStateMapper(mapper.getSchemeParticipantId(), persisted.getStatus()));
@@ -232,7 +230,7 @@ public class DefaultStateTransitionService implements PaymentTransactionStateTra
       }
     }
 
-    final double totalPaymentAmount = internal.get(TOTAL_PAYMENT) != null ? BigDecimalUtility.asDouble(internal.get(TOTAL_PAYMENT)) : 0;
+    final double totalPaymentAmount = BigDecimalUtility.asDouble(totalPayment.toBigDecimal());
     final int numberOfSchemeParticipants = internal.get(NUMBER_OF_SCHEME_PARTICIPANT) != null ? internal.get(NUMBER_OF_SCHEME_PARTICIPANT).intValue() : 0;
     final long numberOfPaymentTransactions = internal.get(NUMBER_OF_PAYMENT_TXN) != null ? internal.get(NUMBER_OF_PAYMENT_TXN).longValue() : 0;
 
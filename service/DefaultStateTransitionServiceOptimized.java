@@ -15,8 +15,9 @@ import com.serviceco.coex.payment.model.calculation.PaymentTransactionRec.StateT
 import com.serviceco.coex.payment.repository.ARInvoiceTransactionRecRepository;
 import com.serviceco.coex.payment.repository.PaymentTransactionRecRepository;
 import com.serviceco.coex.payment.support.DateTimeSupport;
+import com.serviceco.coex.payment.support.MoneyAccumulator;
+import com.serviceco.coex.payment.support.ParticipantSiteDirectory;
 import com.serviceco.coex.scheme.participant.model.MdtParticipantSite;
-import com.serviceco.coex.scheme.participant.repository.MdtParticipantSiteRepository;
 import com.serviceco.coex.util.BigDecimalUtility;
 import org.apache.commons.lang3.StringUtils;
 import org.hibernate.MultiIdentifierLoadAccess;
@@ -56,7 +57,7 @@ public class DefaultStateTransitionServiceOptimized {
   ARInvoiceTransactionRecRepository arInvoiceRepo;
 
   @Autowired
-  MdtParticipantSiteRepository mdtParticipantSiteRepo;
+  ParticipantSiteDirectory participantSiteDirectory;
   
   public StateTransitionSummary transition(StateTransitionRequest request) {
 
@@ -69,7 +70,7 @@ public class DefaultStateTransitionServiceOptimized {
     final Map<String, BigDecimal> internal = new HashMap<>();
     final String NUMBER_OF_PAYMENT_TXN = "NUMBER_OF_PAYMENT_TXN";
     final String NUMBER_OF_SCHEME_PARTICIPANT = "NUMBER_OF_SCHEME_PARTICIPANT";
-    final String TOTAL_PAYMENT = "TOTAL_PAYMENT";
+    final MoneyAccumulator totalPayment = new MoneyAccumulator();
     final Set<SchemeParticipantToStateMapper> outgoing = new HashSet<PaymentTransactionRec.SchemeParticipantToStateMapper>();
     Session session = em.unwrap(Session.class);
     MultiIdentifierLoadAccess<PaymentTransactionRec> multiLoadAccess = session.byMultipleIds(PaymentTransactionRec.class);
@@ -90,7 +91,7 @@ public class DefaultStateTransitionServiceOptimized {
         final List<SchemeParticipantToStateMapper> incoming = request.getSchemeParticipantToStateMappers();
         internal.put(NUMBER_OF_PAYMENT_TXN, BigDecimal.valueOf(recordsFilteredBySchemeParticipant.size()));
         internal.put(NUMBER_OF_SCHEME_PARTICIPANT, BigDecimal.valueOf(incoming.size()));
-        internal.put(TOTAL_PAYMENT, BigDecimal.ZERO);
+        totalPayment.reset();
         for (final SchemeParticipantToStateMapper mapper : incoming) {
           final List<String> paymentTransactionIds = new ArrayList<>();
           final String schemeParticipantId = mapper.getSchemeParticipantId();
@@ -105,8 +106,7 @@ public class DefaultStateTransitionServiceOptimized {
             @Override
             public void accept(VProcessablePaymentStatusRecord paymentTransactionLine) {
 
-              final BigDecimal existingVal = internal.get(TOTAL_PAYMENT);
-              internal.put(TOTAL_PAYMENT, existingVal.add(paymentTransactionLine.getGrossAmount()));
+              totalPayment.add(paymentTransactionLine.getGrossAmount());
               paymentTransactionIds.add(paymentTransactionLine.getPaymentTransactionId());
               outgoing.add(new SchemeParticipantToStateMapper(mapper.getSchemeParticipantId(), status));
 
@@ -131,7 +131,7 @@ public class DefaultStateTransitionServiceOptimized {
 
         internal.put(NUMBER_OF_PAYMENT_TXN, BigDecimal.valueOf(recordsFilteredBySchemeParticipant.size()));
         internal.put(NUMBER_OF_SCHEME_PARTICIPANT, BigDecimal.valueOf(incoming.size()));
-        internal.put(TOTAL_PAYMENT, BigDecimal.ZERO);
+        totalPayment.reset();
         for (final SchemeParticipantToStateMapper mapper : incoming) {
           final List<String> paymentTransactionIds = new ArrayList<>();
           final String schemeParticipantId = mapper.getSchemeParticipantId();
@@ -146,8 +146,7 @@ public class DefaultStateTransitionServiceOptimized {
             @Override
             public void accept(VGenericPaymentStatusRecord paymentTransactionLine) {
 
-              final BigDecimal existingVal = internal.get(TOTAL_PAYMENT);
-              internal.put(TOTAL_PAYMENT, existingVal.add(paymentTransactionLine.getGrossAmount()));
+              totalPayment.add(paymentTransactionLine.getGrossAmount());
               paymentTransactionIds.add(paymentTransactionLine.getPaymentTransactionId());
               outgoing.add(new SchemeParticipantToStateMapper(mapper.getSchemeParticipantId(), status));
             }
@@ -169,7 +168,7 @@ public class DefaultStateTransitionServiceOptimized {
 
         internal.put(NUMBER_OF_PAYMENT_TXN, BigDecimal.valueOf(recordsFilteredBySchemeParticipant.size()));
         internal.put(NUMBER_OF_SCHEME_PARTICIPANT, BigDecimal.valueOf(incoming.size()));
-        internal.put(TOTAL_PAYMENT, BigDecimal.ZERO);
+        totalPayment.reset();
         for (final SchemeParticipantToStateMapper mapper : incoming) {
           final List<String> paymentTransactionIds = new ArrayList<>();
 
@@ -185,8 +184,7 @@ public class DefaultStateTransitionServiceOptimized {
             @Override
             public void accept(VGenericPaymentStatusRecordAR paymentTransactionLine) {
 
-              final BigDecimal existingVal = internal.get(TOTAL_PAYMENT);
-              internal.put(TOTAL_PAYMENT, existingVal.add(paymentTransactionLine.getGrossAmount()));
+              totalPayment.add(paymentTransactionLine.getGrossAmount());
               paymentTransactionIds.add(paymentTransactionLine.getPaymentTransactionId());
               outgoing.add(new SchemeParticipantToStateMapper(mapper.getSchemeParticipantId(), status));
             }
@@ -198,7 +196,7 @@ public class DefaultStateTransitionServiceOptimized {
       }
     }
 
-    final double totalPaymentAmount = internal.get(TOTAL_PAYMENT) != null ? BigDecimalUtility.asDouble(internal.get(TOTAL_PAYMENT)) : 0;
+    final double totalPaymentAmount = BigDecimalUtility.asDouble(totalPayment.toBigDecimal());
     final int numberOfSchemeParticipants = internal.get(NUMBER_OF_SCHEME_PARTICIPANT) != null ? internal.get(NUMBER_OF_SCHEME_PARTICIPANT).intValue() : 0;
     final long numberOfPaymentTransactions = internal.get(NUMBER_OF_PAYMENT_TXN) != null ? internal.get(NUMBER_OF_PAYMENT_TXN).longValue() : 0;
 
@@ -211,7 +209,7 @@ public class DefaultStateTransitionServiceOptimized {
     Scheme scheme = null;
     if (request.getSchemeParticipantToStateMappers() != null) {
       for (SchemeParticipantToStateMapper schemeParticipantAndStatus : request.getSchemeParticipantToStateMappers()) {
-        Optional<MdtParticipantSite> participantOp = mdtParticipantSiteRepo.findBySiteNumber(schemeParticipantAndStatus.getSchemeParticipantId());
+        Optional<MdtParticipantSite> participantOp = participantSiteDirectory.findBySiteNumber(schemeParticipantAndStatus.getSchemeParticipantId());
         if (participantOp.isPresent()) {
           MdtParticipantSite participant = participantOp.get();
           if (scheme == null) {
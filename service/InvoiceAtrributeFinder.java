@@ -3,15 +3,11 @@ package com.serviceco.coex.payment.service;
 import static com.serviceco.coex.payment.model.invoice.reference.QInvBuNameLov.invBuNameLov;
 import static com.serviceco.coex.payment.model.invoice.reference.QInvDistributionCodeLov.invDistributionCodeLov;
 import static com.serviceco.coex.payment.model.invoice.reference.QInvLegalIdentifierLov.invLegalIdentifierLov;
-import static com.serviceco.coex.payment.model.invoice.reference.QInvPaymentTermsLov.invPaymentTermsLov;
 import static com.serviceco.coex.payment.model.invoice.reference.QInvTaxClassificationRef.invTaxClassificationRef;
-import static com.serviceco.coex.payment.model.invoice.reference.QInvTxnBatchSrcNameLov.invTxnBatchSrcNameLov;
-import static com.serviceco.coex.payment.model.invoice.reference.QInvTxnLineTypeLov.invTxnLineTypeLov;
-import static com.serviceco.coex.payment.model.invoice.reference.QInvTxnTypeNameLov.invTxnTypeNameLov;
 
 import java.time.format.DateTimeFormatter;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.Objects;
 
 import javax.persistence.EntityManager;
 import javax.persistence.PersistenceContext;
@@ -20,6 +16,7 @@ import javax.transaction.Transactional;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
 import com.querydsl.core.BooleanBuilder;
@@ -34,12 +31,9 @@ import com.serviceco.coex.model.dto.Period;
 import com.serviceco.coex.payment.calculation.PaymentTxnType;
 import com.serviceco.coex.payment.model.calculation.PaymentTransactionRec;
 import com.serviceco.coex.payment.model.invoice.reference.InvDistributionCodeLov;
-import com.serviceco.coex.payment.model.invoice.reference.InvPayGroupLov;
-import com.serviceco.coex.payment.model.invoice.reference.InvPaymentTermsLov;
-import com.serviceco.coex.payment.model.invoice.reference.QInvPayGroupLov;
-import com.serviceco.coex.payment.model.invoice.reference.QInvTxnInvoiceLineTypeLov;
 import com.serviceco.coex.payment.service.APInvoiceGenerationService.LegalEntityTuple;
 import com.serviceco.coex.payment.support.DateTimeSupport;
+import com.serviceco.coex.payment.support.InvoiceReferenceCache;
 import com.serviceco.coex.scheme.participant.model.MdtParticipantSite;
 import com.serviceco.coex.util.CaseConverter;
 
@@ -52,12 +46,8 @@ public class InvoiceAtrributeFinder {
   @PersistenceContext
   private EntityManager em;
 
-  private static Map<String, Map<String, Map<String, String>>> TAX_INVOICE_LINE_TYPE = new HashMap<>();
-
-  private static Map<String, Map<String, Map<String, String>>> PAYMENT_TERMS = new HashMap<>();
-
-  private static Map<String, Map<String, Map<String, String>>> PAYMENT_GROUP = new HashMap<>();
-
+  @Autowired
+  private InvoiceReferenceCache invoiceReferenceCache;
 
   public <T> T fetchInvoiceMetaData(EntityPath<T> table, BooleanExpression criteria) {
 
@@ -98,8 +88,7 @@ public class InvoiceAtrributeFinder {
   public String findBatchSource(String invoiceType, String paymentTransactionType) {
 
     try {
-      final String batchSrc = fetchInvoiceMetaData(invTxnBatchSrcNameLov,
-          invTxnBatchSrcNameLov.invoiceType.eq(invoiceType).and(invTxnBatchSrcNameLov.paymentGroup.eq(paymentTransactionType))).getValue();
+      final String batchSrc = Objects.requireNonNull(invoiceReferenceCache.snapshot().batchSource(invoiceType, paymentTransactionType));
       return batchSrc;
     } catch (NullPointerException e) {
       throw new InvoiceAttributeNotFoundException(ExceptionConstants.ERROR_CODES.INVOICE_ATTRIBUTE_NOT_FOUND, e,
@@ -114,8 +103,7 @@ public class InvoiceAtrributeFinder {
   public String findTransactionTypeName(String invoiceType, String paymentTransactionType) {
 
     try {
-      final String transactionType = fetchInvoiceMetaData(invTxnTypeNameLov,
-          invTxnTypeNameLov.invoiceType.eq(invoiceType).and(invTxnTypeNameLov.paymentGroup.eq(paymentTransactionType))).getName();
+      final String transactionType = Objects.requireNonNull(invoiceReferenceCache.snapshot().transactionTypeName(invoiceType, paymentTransactionType));
       return transactionType;
     } catch (NullPointerException e) {
       throw new InvoiceAttributeNotFoundException(ExceptionConstants.ERROR_CODES.INVOICE_ATTRIBUTE_NOT_FOUND, e,
@@ -132,8 +120,7 @@ public class InvoiceAtrributeFinder {
       LOGGER.info("Invoice type in findtransactionType block{}", invoiceType);
       LOGGER.info("payment transaction Type in findtransactionType block{}", paymentTransactionType);
       LOGGER.info("name in findtransactionType block{}", name);
-      final String transactionType = fetchInvoiceMetaData(invTxnTypeNameLov,
-          invTxnTypeNameLov.invoiceType.eq(invoiceType).and(invTxnTypeNameLov.paymentGroup.eq(paymentTransactionType).and(invTxnTypeNameLov.name.eq(name)))).getValue();
+      final String transactionType = Objects.requireNonNull(invoiceReferenceCache.snapshot().transactionTypeId(invoiceType, paymentTransactionType, name));
       LOGGER.info("Transaction type after fetch data in findtransactionType block{}", transactionType);
       return transactionType;
     } catch (NullPointerException e) {
@@ -148,26 +135,8 @@ public class InvoiceAtrributeFinder {
 
   public String findPaymentTerms(String invoiceType, String schemeParticipantType, String paymentType) {
 
-    if (PAYMENT_TERMS.containsKey(invoiceType)) {
-      if (PAYMENT_TERMS.get(invoiceType).containsKey(schemeParticipantType)) {
-        if (PAYMENT_TERMS.get(invoiceType).get(schemeParticipantType).containsKey(paymentType)) {
-          return PAYMENT_TERMS.get(invoiceType).get(schemeParticipantType).get(paymentType);
-        }
-      }
-    }
     try {
-      final InvPaymentTermsLov paymentTerm = getQueryFactory().select(invPaymentTermsLov).from(invPaymentTermsLov).where(invPaymentTermsLov.invoiceType.eq(invoiceType)
-          .and(invPaymentTermsLov.schemeParticipantType.eq(schemeParticipantType).and(invPaymentTermsLov.paymentGroup.eq(paymentType)))).fetchOne();
-      if (!PAYMENT_TERMS.containsKey(invoiceType)) {
-        PAYMENT_TERMS.put(invoiceType, new HashMap<String, Map<String, String>>());
-      }
-      if (!PAYMENT_TERMS.get(invoiceType).containsKey(schemeParticipantType)) {
-        PAYMENT_TERMS.get(invoiceType).put(schemeParticipantType, new HashMap<String, String>());
-      }
-      if (!PAYMENT_TERMS.get(invoiceType).get(schemeParticipantType).containsKey(paymentType)) {
-        PAYMENT_TERMS.get(invoiceType).get(schemeParticipantType).put(paymentType, paymentTerm.getValue());
-      }
-      return paymentTerm.getValue();
+      return Objects.requireNonNull(invoiceReferenceCache.snapshot().paymentTerms(invoiceType, schemeParticipantType, paymentType));
     } catch (NullPointerException e) {
       throw new InvoiceAttributeNotFoundException(ExceptionConstants.ERROR_CODES.INVOICE_ATTRIBUTE_NOT_FOUND, e,
           "Data missing in table [ {0} ] for union of invoice type [ {1} ], scheme participant type [ {2} ] and payment type [ {3} ]", "INV_PAYMENT_TERMS_LOV", invoiceType,
@@ -192,27 +161,7 @@ public class InvoiceAtrributeFinder {
         argPaymentType = paymentType;
       }
 
-      if (PAYMENT_GROUP.containsKey(invoiceType)) {
-        if (PAYMENT_GROUP.get(invoiceType).containsKey(schemeParticipantType)) {
-          if (PAYMENT_GROUP.get(invoiceType).get(schemeParticipantType).containsKey(argPaymentType)) {
-            return PAYMENT_GROUP.get(invoiceType).get(schemeParticipantType).get(argPaymentType);
-          }
-        }
-      }
-
-      final InvPayGroupLov paymentGroup = getQueryFactory().select(QInvPayGroupLov.invPayGroupLov).select(QInvPayGroupLov.invPayGroupLov).from(QInvPayGroupLov.invPayGroupLov)
-          .where(QInvPayGroupLov.invPayGroupLov.invoiceType.eq(invoiceType)
-              .and(QInvPayGroupLov.invPayGroupLov.schemeParticipantType.eq(schemeParticipantType).and(QInvPayGroupLov.invPayGroupLov.paymentType.eq(argPaymentType)))).fetchOne();
-      if (!PAYMENT_GROUP.containsKey(invoiceType)) {
-        PAYMENT_GROUP.put(invoiceType, new HashMap<String, Map<String, String>>());
-      }
-      if (!PAYMENT_GROUP.get(invoiceType).containsKey(schemeParticipantType)) {
-        PAYMENT_GROUP.get(invoiceType).put(schemeParticipantType, new HashMap<String, String>());
-      }
-      if (!PAYMENT_GROUP.get(invoiceType).get(schemeParticipantType).containsKey(argPaymentType)) {
-        PAYMENT_GROUP.get(invoiceType).get(schemeParticipantType).put(argPaymentType, paymentGroup.getValue());
-      }
-      return paymentGroup.getValue();
+      return Objects.requireNonNull(invoiceReferenceCache.snapshot().paymentGroup(invoiceType, schemeParticipantType, argPaymentType));
     } catch (NullPointerException e) {
       throw new InvoiceAttributeNotFoundException(ExceptionConstants.ERROR_CODES.INVOICE_ATTRIBUTE_NOT_FOUND, e,
           "Data missing in table [ {0} ] for union of invoice type [ {1} ], scheme participant type [ {2} ], payment type [ {3} ] and payment method [ {4} ]", "INV_PAY_GROUP_LOV",
@@ -238,7 +187,7 @@ public class InvoiceAtrributeFinder {
   public String findTransactionLineType(String invoiceType) {
 
     try {
-      final String transactionLineType = fetchInvoiceMetaData(invTxnLineTypeLov, invTxnLineTypeLov.invoiceType.eq(invoiceType)).getValue();
+      final String transactionLineType = Objects.requireNonNull(invoiceReferenceCache.snapshot().transactionLineType(invoiceType));
       return transactionLineType;
     } catch (NullPointerException e) {
       throw new InvoiceAttributeNotFoundException(ExceptionConstants.ERROR_CODES.INVOICE_ATTRIBUTE_NOT_FOUND, e, "Data missing in table [ {0} ] for invoice type [ {1} ]",
@@ -252,29 +201,8 @@ public class InvoiceAtrributeFinder {
 
   public String findTaxInvoiceLineType(String invoiceType, String paymentType, String index) {
 
-    if (TAX_INVOICE_LINE_TYPE.containsKey(invoiceType)) {
-      if (TAX_INVOICE_LINE_TYPE.get(invoiceType).containsKey(paymentType)) {
-        if (TAX_INVOICE_LINE_TYPE.get(invoiceType).get(paymentType).containsKey(index)) {
-          return TAX_INVOICE_LINE_TYPE.get(invoiceType).get(paymentType).get(index);
-        }
-      }
-    }
-
     try {
-      final QInvTxnInvoiceLineTypeLov qInvTxnInvoiceLineTypeLov = QInvTxnInvoiceLineTypeLov.invTxnInvoiceLineTypeLov;
-      final String value = getQueryFactory().select(qInvTxnInvoiceLineTypeLov).from(qInvTxnInvoiceLineTypeLov)
-          .where(qInvTxnInvoiceLineTypeLov.invoiceType.eq(invoiceType).and(qInvTxnInvoiceLineTypeLov.paymentType.eq(paymentType).and(qInvTxnInvoiceLineTypeLov.lineType.eq(index))))
-          .fetchOne().getValue();
-      if (!TAX_INVOICE_LINE_TYPE.containsKey(invoiceType)) {
-        TAX_INVOICE_LINE_TYPE.put(invoiceType, new HashMap<String, Map<String, String>>());
-      }
-      if (!TAX_INVOICE_LINE_TYPE.get(invoiceType).containsKey(paymentType)) {
-        TAX_INVOICE_LINE_TYPE.get(invoiceType).put(paymentType, new HashMap<String, String>());
-      }
-      if (!TAX_INVOICE_LINE_TYPE.get(invoiceType).get(paymentType).containsKey(index)) {
-        TAX_INVOICE_LINE_TYPE.get(invoiceType).get(paymentType).put(index, value);
-      }
-      return value;
+      return Objects.requireNonNull(invoiceReferenceCache.snapshot().taxInvoiceLineType(invoiceType, paymentType, index));
     } catch (NullPointerException e) {
       throw new InvoiceAttributeNotFoundException(ExceptionConstants.ERROR_CODES.INVOICE_ATTRIBUTE_NOT_FOUND, e,
           "Data missing in table [ {0} ] for union of invoice type [ {1} ], payment type [ {2} ] and index [ {3} ]", "INV_TXN_INVOICE_LINE_TYPE_LOV", invoiceType, paymentType,
@@ -2,54 +2,169 @@ package com.serviceco.coex.payment.service;
 
 import java.math.BigDecimal;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
 
+import javax.annotation.PreDestroy;
 import javax.persistence.EntityManager;
+import javax.persistence.LockModeType;
 import javax.persistence.PersistenceContext;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
-import org.springframework.transaction.annotation.Propagation;
-import org.springframework.transaction.annotation.Transactional;
 
+import com.google.common.base.Preconditions;
 import com.querydsl.jpa.impl.JPAQueryFactory;
 import com.serviceco.coex.payment.model.invoice.InvoiceTransactionNumberSeq;
 import com.serviceco.coex.payment.model.invoice.QInvoiceTransactionNumberSeq;
 import com.serviceco.coex.payment.repository.InvoiceTransactionNumberSeqRepository;
 
+/**
+ * Allocates the unique numbers which identify AP and AR invoice transactions.
+ *
+ * <p>The INV_TRANSACTION_NUMBER_SEQ row holds the highest number reserved so far. Rather than updating the row for every invoice, the generator
+ * reserves a block of {@code payment.invoice-number.block-size} numbers (defaults to 100) at a time: it locks the row, moves it on by the block
+ * size and commits, in a transaction of its own. The numbers of the block are then handed out from memory, without a lock, until the block is
+ * used up. Several application instances can share the row, as each reserves its own blocks.</p>
+ *
+ * <p>Numbers are unique but, across instances, not in the order invoices are generated. Numbers of a block which are not handed out are lost
+ * when the application stops, unless no other block has been reserved since (see {@link #releaseUnusedNumbers()}).</p>
+ */
 @Component
-@Transactional(propagation = Propagation.REQUIRES_NEW)
 public class InvoiceNumberGenerator {
 
+  private static final Logger LOGGER = LoggerFactory.getLogger(InvoiceNumberGenerator.class);
+
+  private static final long FIRST_TRANSACTION_NUMBER = 1000000000L;
+
   @Autowired
   private InvoiceTransactionNumberSeqRepository invoiceTransactionNumberSeqRepository;
 
+  @Autowired
+  private TransactionIsolator transactionIsolator;
+
   @PersistenceContext
   private EntityManager em;
 
+  @Value("${payment.invoice-number.block-size:100}")
+  private int blockSize;
+
+  private volatile NumberBlock block = NumberBlock.EMPTY;
+
+  /**
+   * A reserved range of transaction numbers, from {@code next} up to and including {@code last}
+   */
+  private static final class NumberBlock {
+
+    private static final NumberBlock EMPTY = new NumberBlock(1L, 0L);
+
+    private final AtomicLong next;
+
+    private final long last;
+
+    private NumberBlock(long first, long last) {
+      this.next = new AtomicLong(first);
+      this.last = last;
+    }
+
+    /**
+     * @return Returns the next number of the block, or -1 if the block has been used up
+     */
+    private long take() {
+      final long number = next.getAndIncrement();
+      return (number <= last) ? number : -1L;
+    }
+  }
+
   private JPAQueryFactory getQueryFactory() {
     final JPAQueryFactory factory = new JPAQueryFactory(em);
     return factory;
   }
 
+  /**
+   * @return Returns a transaction number which has not been returned before
+   */
   public Long createOrFindTransactionNumber() {
+    while (true) {
+      final NumberBlock current = block;
+      final long number = current.take();
+      if (number >= 0L) {
+        return number;
+      }
+      reserveBlock(current);
+    }
+  }
+
+  /**
+   * Reserves a new block, unless another thread has done so since the caller found {@code usedUp} used up.
+   */
+  private synchronized void reserveBlock(NumberBlock usedUp) {
+    if (block != usedUp) {
+      return;
+    }
+    Preconditions.checkState(blockSize > 0, "payment.invoice-number.block-size must be positive");
+    final NumberBlock reserved = transactionIsolator.inNewTransaction(() -> {
+      final InvoiceTransactionNumberSeq invoiceTransaction = getInvoiceTransactionSequence();
+      if (null == invoiceTransaction) {
+        final long last = FIRST_TRANSACTION_NUMBER + blockSize - 1;
+        createInvoiceTransactionNumber(last);
+        return new NumberBlock(FIRST_TRANSACTION_NUMBER, last);
+      }
+      final long first = invoiceTransaction.getInvoiceTransactionNumber().longValue() + 1;
+      final long last = first + blockSize - 1;
+      invoiceTransaction.setInvoiceTransactionNumber(BigDecimal.valueOf(last));
+      invoiceTransactionNumberSeqRepository.save(invoiceTransaction);
+      return new NumberBlock(first, last);
+    });
+    LOGGER.debug("reserved invoice transaction numbers {} to {}", reserved.next.get(), reserved.last);
+    block = reserved;
+  }
+
+  /**
+   * Gives the numbers of the current block which have not been handed out back to INV_TRANSACTION_NUMBER_SEQ, if no other block has been
+   * reserved since. Otherwise the numbers are lost, and are logged as a gap in the transaction numbers.
+   *
+   * <p>The block's next number is moved past its end in the same step as the first unused number is read, so a number taken by a thread
+   * which is still generating an invoice is never released, and no number is handed out once it has been released.</p>
+   */
+  @PreDestroy
+  public synchronized void releaseUnusedNumbers() {
+    final NumberBlock current = block;
+    block = NumberBlock.EMPTY;
+    final long firstUnused = current.next.getAndSet(current.last + 1);
+    if (firstUnused > current.last) {
+      return;
+    }
 
-    InvoiceTransactionNumberSeq invoiceTransaction = getInvoiceTransactionSequence();
-    if (null != invoiceTransaction) {
-      invoiceTransaction.setInvoiceTransactionNumber(invoiceTransaction.getInvoiceTransactionNumber().add(new BigDecimal(1)));
-      invoiceTransaction = invoiceTransactionNumberSeqRepository.save(invoiceTransaction);
+    final long lastUsed = firstUnused - 1;
+    final long unused = (current.last - firstUnused) + 1;
+    final long released = transactionIsolator.inNewTransaction(() -> {
+      final QInvoiceTransactionNumberSeq qInvoiceTransactionNumberSeq = QInvoiceTransactionNumberSeq.invoiceTransactionNumberSeq;
+      return getQueryFactory()
+      //@formatter:off
+                .update(qInvoiceTransactionNumberSeq)
+                .set(qInvoiceTransactionNumberSeq.invoiceTransactionNumber, BigDecimal.valueOf(lastUsed))
+                .where(qInvoiceTransactionNumberSeq.invoiceTransactionNumber.eq(BigDecimal.valueOf(current.last)))
+                .execute();
+      //@formatter:on
+    });
+    if (released > 0) {
+      LOGGER.info("released {} unused invoice transaction numbers {} to {}", unused, firstUnused, current.last);
     } else {
-      invoiceTransaction = createInvoiceTransactionNumber();
+      LOGGER.warn("{} invoice transaction numbers {} to {} were reserved but not used", unused, firstUnused, current.last);
     }
-    return invoiceTransaction.getInvoiceTransactionNumber().longValue();
   }
 
   private InvoiceTransactionNumberSeq getInvoiceTransactionSequence() {
 
     final QInvoiceTransactionNumberSeq qInvoiceTransactionNumberSeq = QInvoiceTransactionNumberSeq.invoiceTransactionNumberSeq;
     final InvoiceTransactionNumberSeq currentSequenceNumber = getQueryFactory()
-    //@formatter:off    
+    //@formatter:off
                                                                         .select(qInvoiceTransactionNumberSeq)
                                                                         .from(qInvoiceTransactionNumberSeq)
+                                                                        .setLockMode(LockModeType.PESSIMISTIC_WRITE)
                                                                         .fetchOne();
     //@formatter:on
 
@@ -57,11 +172,11 @@ public class InvoiceNumberGenerator {
 
   }
 
-  protected InvoiceTransactionNumberSeq createInvoiceTransactionNumber() {
+  protected InvoiceTransactionNumberSeq createInvoiceTransactionNumber(long lastReserved) {
 
     final InvoiceTransactionNumberSeq invoiceTransaction = new InvoiceTransactionNumberSeq();
     invoiceTransaction.setId(UUID.randomUUID().toString());
-    invoiceTransaction.setInvoiceTransactionNumber(BigDecimal.valueOf(1000000000));
+    invoiceTransaction.setInvoiceTransactionNumber(BigDecimal.valueOf(lastReserved));
 
     return invoiceTransactionNumberSeqRepository.save(invoiceTransaction);
   }
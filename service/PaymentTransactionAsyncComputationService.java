@@ -52,6 +52,9 @@ public class PaymentTransactionAsyncComputationService {
   @Autowired
   SchemeService schemeService;
 
+  @Autowired
+  SchemeFanOutExecutor schemeFanOutExecutor;
+
   @Value("${oic.client-user-name}")
   private String oicClientUsername;
 
@@ -78,23 +81,23 @@ public class PaymentTransactionAsyncComputationService {
    * @param request.auctionLotIdentifier For auction payments only. This specifies the LotItem identifier.
    * @param request.auctionLotItemManifestId For auction payments only. This specifies the LotItemManifest identifier.
    * @param request.include If true, payment transactions are generated for the scheme participants passed in. If false, payment transactions are generated for all of the scheme participants associated with the scheme participant type EXCLUDING the scheme participants passed in.
-   * @param request.scheme Required for non-auction payments. If provided, only payments for the specified scheme will be processed. If not provided, payments for all schemes will be processed, but in separate batches. 
+   * @param request.scheme Required for non-auction payments. If provided, only payments for the specified scheme will be processed. If not provided, payments for all schemes will be processed, but in separate batches,
+   *        several schemes at a time (see {@link SchemeFanOutExecutor}). The result of each scheme is posted back as soon as the scheme is finished.
    * @param request.callbackUrl The URL to post the result back to.
    */
   public void compute(PaymentCalculationRequest request) {
 
     
     String requestedSchemeId = request.getSchemeId();
-    if (request.getAuctionLotIdentifier() != null) {
+    if (request.isAuction()) {
       executeForScheme(request, null);
     }
     else if (requestedSchemeId != null) {
       Scheme scheme = schemeService.getById(requestedSchemeId).orElseThrow(() -> new CoexRuntimeException(ExceptionConstants.ERROR_CODES.VALIDATION, null, "Scheme ID is not valid"));
       executeForScheme(request, scheme);
     } else {
-      for (Scheme scheme : schemeService.getAll()) {
-        executeForScheme(request, scheme);
-      }
+      // each scheme is computed in its own transaction and posts its own callback as soon as it finishes
+      schemeFanOutExecutor.execute(schemeService.getAll(), scheme -> executeForScheme(request, scheme));
     }
   }
 
@@ -107,7 +110,7 @@ public class PaymentTransactionAsyncComputationService {
     PaymentAsyncComputationResult result = new PaymentAsyncComputationResult();
     try {
       PaymentTransactionRec.PaymentBatchExecutionSummary executionSummary = null;
-      if (StringUtils.isNotEmpty(request.getAuctionLotIdentifier())) {
+      if (request.isAuction()) {
         executionSummary = auctionComputationService.compute(request, scheme);
       } else {
         executionSummary = computationService.compute(request, scheme);
@@ -2,6 +2,8 @@ package com.serviceco.coex.payment.service;
 
 import com.serviceco.coex.model.Scheme;
 import com.serviceco.coex.payment.api.request.PaymentCalculationRequest;
+import com.serviceco.coex.payment.calculation.PaymentSimulation;
+import com.serviceco.coex.payment.model.calculation.PaymentSimulationResult;
 import com.serviceco.coex.payment.model.calculation.PaymentTransactionRec;
 import com.serviceco.coex.payment.model.calculation.PaymentTransactionRec.PaymentBatchExecutionSummary;
 import com.serviceco.coex.persistence.PersistenceService;
@@ -19,4 +21,14 @@ public interface PaymentTransactionComputationService extends PersistenceService
    */
   PaymentBatchExecutionSummary compute(PaymentCalculationRequest request, Scheme scheme);
 
+  /**
+   * Calculates the payment transactions of a request as {@link #compute} would, with the scheme prices and fees overridden by the simulation,
+   * without writing anything to the database.
+   * @param request The data passed into the payment computation
+   * @param scheme The scheme to compute the payments of
+   * @param simulation The overridden scheme prices and fees
+   * @return Returns the totals by scheme participant and material type
+   */
+  PaymentSimulationResult simulate(PaymentCalculationRequest request, Scheme scheme, PaymentSimulation simulation);
+
 }
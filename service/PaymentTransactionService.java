@@ -8,12 +8,10 @@ import com.serviceco.coex.model.constant.PaymentTransactionType;
 import com.serviceco.coex.model.dto.Period;
 import com.serviceco.coex.payment.model.calculation.PaymentBatch;
 import com.serviceco.coex.payment.model.calculation.PaymentTransactionRec;
-import com.serviceco.coex.payment.repository.PaymentTransactionRecRepository;
 import com.serviceco.coex.scheme.participant.model.MdtParticipant;
 import com.serviceco.coex.scheme.participant.model.MdtParticipantSite;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
 import javax.transaction.Transactional;
@@ -26,9 +24,10 @@ public class PaymentTransactionService {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(PaymentTransactionService.class);
 
-  @Autowired
-  private PaymentTransactionRecRepository paymentTransactionRepository;
-
+  /**
+   * Builds a forecast payment transaction record. The record is not persisted; it should be handed to the
+   * {@link com.serviceco.coex.payment.calculation.PaymentRecordSink} of the current computation run.
+   */
   //@formatter:off
   public PaymentTransactionRec createPaymentTransaction(final PaymentBatch batch
                                                       , final Period period
@@ -67,7 +66,6 @@ public class PaymentTransactionService {
     paymentTransactionRec.setStatus(PaymentTransactionRec.PaymentStatus.AWAITING_REVIEW);
     paymentTransactionRec.setScheme(scheme);
 
-    paymentTransactionRepository.save(paymentTransactionRec);
     //@formatter:off
     LOGGER.info("successfully created payment transaction record - scheme participant {}, material type {}, period {}, amount {}"
     , schemeParticipant.getSiteNumber()
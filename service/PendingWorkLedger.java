@@ -0,0 +1,277 @@
+package com.serviceco.coex.payment.service;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
+
+import com.google.common.collect.Lists;
+import com.querydsl.core.Tuple;
+import com.querydsl.core.types.dsl.BooleanExpression;
+import com.querydsl.core.types.dsl.StringExpression;
+import com.querydsl.jpa.JPAExpressions;
+import com.querydsl.jpa.JPQLQuery;
+import com.querydsl.jpa.impl.JPAQueryFactory;
+import com.serviceco.coex.crp.model.QCRPClaimHeader;
+import com.serviceco.coex.exporter.model.dto.EntryStatus;
+import com.serviceco.coex.manufacturer.model.QSalesVolumeHdr;
+import com.serviceco.coex.model.Scheme;
+import com.serviceco.coex.model.constant.SchemeParticipantType;
+import com.serviceco.coex.mrf.model.QMRFClaimHdr;
+import com.serviceco.coex.payment.model.calculation.PaymentBatch;
+import com.serviceco.coex.payment.model.calculation.PaymentPendingWork;
+import com.serviceco.coex.payment.model.calculation.PaymentPendingWork.Source;
+import com.serviceco.coex.payment.model.calculation.QPaymentPendingWork;
+import com.serviceco.coex.payment.model.calculation.QVUnprocessedVolume;
+import com.serviceco.coex.payment.support.BatchInsertSupport;
+import com.serviceco.coex.processor.model.QProcessorClaimHeader;
+
+/**
+ * The pending work ledger ({@code PAYMENT_PENDING_WORK}) of the incremental payment computation. It holds the volume and claim headers
+ * which have reached FINAL since they were last computed, so an incremental computation reads only those headers instead of every FINAL
+ * header of the scheme.
+ *
+ * <p>Headers are added to the ledger by {@link #enqueue} when they reach FINAL: the services which finalise the volume and claim headers
+ * call it, directly or through the pending work endpoint of
+ * {@link com.serviceco.coex.payment.api.ComputationOfPaymentTransaction}. A header which is finalised again after it has been computed
+ * must be enqueued again. {@link #enqueueUnseenHeaders} scans every FINAL header of a scheme for those which have never been in the ledger
+ * (e.g. those finalised before the ledger existed). It is a one-off backfill, run on request, and is not part of an incremental
+ * computation.</p>
+ *
+ * <p>An incremental computation first {@link #claim claims} the pending entries of its participants whose headers are still FINAL for
+ * its payment batch, then reads the headers {@link #claimedBy claimed by} the batch. Both happen in the transaction which saves the
+ * payment transactions, so the entries are consumed if and only if the payments are committed.</p>
+ */
+@Component
+public class PendingWorkLedger {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(PendingWorkLedger.class);
+
+  private static final int PARTICIPANT_CHUNK_SIZE = 99;
+
+  @PersistenceContext
+  private EntityManager em;
+
+  @Autowired
+  private TransactionIsolator transactionIsolator;
+
+  @Value("${payment.computation.record-sink.batch-size:500}")
+  private int batchSize;
+
+  /**
+   * @param schemeParticipantType The scheme participant type of a payment computation
+   * @return Returns the ledger source of the participant type, or null if the participant type is not computed incrementally
+   */
+  public static Source sourceOf(SchemeParticipantType schemeParticipantType) {
+    switch (schemeParticipantType) {
+    case LRG_MANUFACTURER:
+    case SML_MANUFACTURER:
+      return Source.MANUFACTURER_VOLUME;
+    case PROCESSOR:
+      return Source.PROCESSOR_CLAIM;
+    case MRF:
+      return Source.MRF_CLAIM;
+    case CRP:
+      return Source.CRP_CLAIM;
+    default:
+      return null;
+    }
+  }
+
+  /**
+   * Adds headers which have reached FINAL to the ledger. This should be called by the services which finalise the volume and claim
+   * headers, in the same transaction as the status change, or in a transaction of its own otherwise.
+   * @param scheme The scheme of the headers
+   * @param source The header table
+   * @param schemeParticipantId The site number of the scheme participant of the headers
+   * @param txnHeaderIds The IDs of the headers
+   */
+  @Transactional
+  public void enqueue(Scheme scheme, Source source, String schemeParticipantId, Collection<String> txnHeaderIds) {
+    final Date now = Date.from(Instant.now());
+    final List<PaymentPendingWork> entries = new ArrayList<>();
+    for (final String txnHeaderId : txnHeaderIds) {
+      final PaymentPendingWork entry = new PaymentPendingWork();
+      entry.setId(UUID.randomUUID().toString());
+      entry.setSource(source);
+      entry.setSchemeParticipantId(schemeParticipantId);
+      entry.setTxnHeaderId(txnHeaderId);
+      entry.setEnqueuedTimeStamp(now);
+      entry.setScheme(scheme);
+      entries.add(entry);
+    }
+    save(entries);
+    LOGGER.debug("enqueued {} {} headers of {} in scheme {}", entries.size(), source, schemeParticipantId, scheme.getId());
+  }
+
+  /**
+   * Adds the FINAL headers of the scheme which have never been in the ledger, in a new transaction. Every FINAL header of the scheme is
+   * scanned, so this is meant to backfill the ledger once, not to be run before each computation.
+   * @param scheme The scheme
+   * @param source The header table
+   * @return Returns the number of headers added
+   */
+  public int enqueueUnseenHeaders(Scheme scheme, Source source) {
+    return transactionIsolator.inNewTransaction(() -> {
+      final List<Tuple> headers = fetchUnseenHeaders(scheme, source);
+      final Date now = Date.from(Instant.now());
+      final List<PaymentPendingWork> entries = new ArrayList<>();
+      for (final Tuple header : headers) {
+        final PaymentPendingWork entry = new PaymentPendingWork();
+        entry.setId(UUID.randomUUID().toString());
+        entry.setSource(source);
+        entry.setSchemeParticipantId(header.get(1, String.class));
+        entry.setTxnHeaderId(header.get(0, String.class));
+        entry.setEnqueuedTimeStamp(now);
+        entry.setScheme(scheme);
+        entries.add(entry);
+      }
+      save(entries);
+      LOGGER.info("enqueued {} unseen {} headers of scheme {}", entries.size(), source, scheme.getId());
+      return entries.size();
+    });
+  }
+
+  /**
+   * Consumes the pending entries of the scheme participants by setting their payment batch. Only the entries whose header is still FINAL
+   * are claimed; the others (e.g. a header which has been reopened) stay pending. This must be called in the transaction which saves the
+   * payment transactions computed from the entries.
+   * @param paymentBatch The payment batch computing the entries
+   * @param source The header table
+   * @param schemeParticipantIds The site numbers of the scheme participants being computed
+   * @return Returns the number of entries claimed
+   */
+  public long claim(PaymentBatch paymentBatch, Source source, List<String> schemeParticipantIds) {
+    final QPaymentPendingWork qPendingWork = QPaymentPendingWork.paymentPendingWork;
+    final JPAQueryFactory queryFactory = new JPAQueryFactory(em);
+    final Date now = Date.from(Instant.now());
+    long claimed = 0;
+    for (final List<String> chunk : Lists.partition(schemeParticipantIds, PARTICIPANT_CHUNK_SIZE)) {
+      //@formatter:off
+      claimed += queryFactory.update(qPendingWork)
+                             .set(qPendingWork.paymentBatchId, paymentBatch.getId())
+                             .set(qPendingWork.consumedTimeStamp, now)
+                             .where(qPendingWork.paymentBatchId.isNull()
+                                 .and(qPendingWork.source.eq(source))
+                                 .and(qPendingWork.scheme.eq(paymentBatch.getScheme()))
+                                 .and(qPendingWork.schemeParticipantId.in(chunk))
+                                 .and(qPendingWork.txnHeaderId.in(finalHeaderIds(source))))
+                             .execute();
+      //@formatter:on
+    }
+    LOGGER.info("payment batch {} claimed {} pending {} headers of {} participants", paymentBatch.getId(), claimed, source, schemeParticipantIds.size());
+    return claimed;
+  }
+
+  /**
+   * @param txnHeaderId The header ID of a volume or claim query
+   * @param paymentBatch The payment batch
+   * @param source The header table
+   * @return Returns a predicate which restricts the query to the headers claimed by the payment batch
+   */
+  public BooleanExpression claimedBy(StringExpression txnHeaderId, PaymentBatch paymentBatch, Source source) {
+    final QPaymentPendingWork qPendingWork = QPaymentPendingWork.paymentPendingWork;
+    //@formatter:off
+    return txnHeaderId.in(JPAExpressions.select(qPendingWork.txnHeaderId)
+                                        .from(qPendingWork)
+                                        .where(qPendingWork.paymentBatchId.eq(paymentBatch.getId()).and(qPendingWork.source.eq(source))));
+    //@formatter:on
+  }
+
+  /**
+   * @return Returns a sub query selecting the IDs of the headers of the source which are currently FINAL
+   */
+  private static JPQLQuery<String> finalHeaderIds(Source source) {
+    switch (source) {
+    case MANUFACTURER_VOLUME:
+      final QSalesVolumeHdr qSalesVolumeHdr = QSalesVolumeHdr.salesVolumeHdr;
+      return JPAExpressions.select(qSalesVolumeHdr.id).from(qSalesVolumeHdr).where(qSalesVolumeHdr.entryStatus.eq(EntryStatus.FINAL));
+    case PROCESSOR_CLAIM:
+      final QProcessorClaimHeader qProcessorClaimHeader = QProcessorClaimHeader.processorClaimHeader;
+      return JPAExpressions.select(qProcessorClaimHeader.id).from(qProcessorClaimHeader).where(qProcessorClaimHeader.entryStatus.eq(EntryStatus.FINAL));
+    case MRF_CLAIM:
+      final QMRFClaimHdr qMRFClaimHdr = QMRFClaimHdr.mRFClaimHdr;
+      return JPAExpressions.select(qMRFClaimHdr.id).from(qMRFClaimHdr).where(qMRFClaimHdr.entryStatus.eq(EntryStatus.FINAL));
+    case CRP_CLAIM:
+      final QCRPClaimHeader qCRPClaimHeader = QCRPClaimHeader.cRPClaimHeader;
+      return JPAExpressions.select(qCRPClaimHeader.id).from(qCRPClaimHeader).where(qCRPClaimHeader.entryStatus.eq(EntryStatus.FINAL));
+    default:
+      throw new RuntimeException("Unsupported pending work source " + source);
+    }
+  }
+
+  /**
+   * @return Returns the header ID and the participant site number of each FINAL header which has no ledger entry
+   */
+  private List<Tuple> fetchUnseenHeaders(Scheme scheme, Source source) {
+    final JPAQueryFactory queryFactory = new JPAQueryFactory(em);
+    final QPaymentPendingWork qPendingWork = QPaymentPendingWork.paymentPendingWork;
+    final BooleanExpression inLedger = qPendingWork.source.eq(source);
+    switch (source) {
+    case MANUFACTURER_VOLUME:
+      final QVUnprocessedVolume qUnprocessedVolume = QVUnprocessedVolume.vUnprocessedVolume;
+      //@formatter:off
+      return queryFactory.select(qUnprocessedVolume.volumeHdrId, qUnprocessedVolume.schemeParticipantId).distinct()
+                         .from(qUnprocessedVolume)
+                         .where(qUnprocessedVolume.multiSchemeId.eq(scheme.getMultiSchemeId())
+                             .and(qUnprocessedVolume.volumeHdrId.notIn(JPAExpressions.select(qPendingWork.txnHeaderId).from(qPendingWork).where(inLedger))))
+                         .fetch();
+      //@formatter:on
+    case PROCESSOR_CLAIM:
+      final QProcessorClaimHeader qProcessorClaimHeader = QProcessorClaimHeader.processorClaimHeader;
+      //@formatter:off
+      return queryFactory.select(qProcessorClaimHeader.id, qProcessorClaimHeader.processor.siteNumber)
+                         .from(qProcessorClaimHeader)
+                         .where(qProcessorClaimHeader.entryStatus.eq(EntryStatus.FINAL)
+                             .and(qProcessorClaimHeader.scheme.eq(scheme))
+                             .and(qProcessorClaimHeader.id.notIn(JPAExpressions.select(qPendingWork.txnHeaderId).from(qPendingWork).where(inLedger))))
+                         .fetch();
+      //@formatter:on
+    case MRF_CLAIM:
+      final QMRFClaimHdr qMRFClaimHdr = QMRFClaimHdr.mRFClaimHdr;
+      //@formatter:off
+      return queryFactory.select(qMRFClaimHdr.id, qMRFClaimHdr.mrf.siteNumber)
+                         .from(qMRFClaimHdr)
+                         .where(qMRFClaimHdr.entryStatus.eq(EntryStatus.FINAL)
+                             .and(qMRFClaimHdr.scheme.eq(scheme))
+                             .and(qMRFClaimHdr.id.notIn(JPAExpressions.select(qPendingWork.txnHeaderId).from(qPendingWork).where(inLedger))))
+                         .fetch();
+      //@formatter:on
+    case CRP_CLAIM:
+      final QCRPClaimHeader qCRPClaimHeader = QCRPClaimHeader.cRPClaimHeader;
+      //@formatter:off
+      return queryFactory.select(qCRPClaimHeader.id, qCRPClaimHeader.crp.siteNumber)
+                         .from(qCRPClaimHeader)
+                         .where(qCRPClaimHeader.entryStatus.eq(EntryStatus.FINAL)
+                             .and(qCRPClaimHeader.scheme.eq(scheme))
+                             .and(qCRPClaimHeader.id.notIn(JPAExpressions.select(qPendingWork.txnHeaderId).from(qPendingWork).where(inLedger))))
+                         .fetch();
+      //@formatter:on
+    default:
+      throw new RuntimeException("Unsupported pending work source " + source);
+    }
+  }
+
+  /**
+   * Persists the entries with JDBC batch inserts.
+   */
+  private void save(List<PaymentPendingWork> entries) {
+    if (entries.isEmpty()) {
+      return;
+    }
+    BatchInsertSupport.persistAll(em, batchSize, entries);
+  }
+
+}
@@ -0,0 +1,93 @@
+package com.serviceco.coex.payment.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.serviceco.coex.model.Scheme;
+
+/**
+ * Runs the same background work (e.g. an asynchronous payment computation) for several schemes at the same time.
+ *
+ * <p>The work of each scheme runs on its own thread, so each scheme gets its own transaction from the transactional service the work calls,
+ * and anything the work does when it finishes (e.g. posting the callback) happens as soon as that scheme is done. At most
+ * {@code payment.scheme-fan-out.max-parallelism} schemes (defaults to 4) run at a time; 1 runs the schemes one after the other on the calling
+ * thread.</p>
+ *
+ * <p>A scheme which fails is logged and does not stop the other schemes.</p>
+ */
+@Component
+public class SchemeFanOutExecutor {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(SchemeFanOutExecutor.class);
+
+  @Value("${payment.scheme-fan-out.max-parallelism:4}")
+  private int maxParallelism;
+
+  /**
+   * Runs the work for every scheme and waits for all of them to finish.
+   *
+   * @param allSchemes The schemes
+   * @param work The work for a single scheme
+   * @return Returns the number of schemes for which the work failed
+   */
+  public int execute(Iterable<Scheme> allSchemes, Consumer<Scheme> work) {
+    final List<Scheme> schemes = new ArrayList<>();
+    allSchemes.forEach(schemes::add);
+    final int threads = Math.min(maxParallelism, schemes.size());
+    if (threads <= 1) {
+      int failed = 0;
+      for (final Scheme scheme : schemes) {
+        try {
+          work.accept(scheme);
+        } catch (final RuntimeException e) {
+          LOGGER.error("work for scheme " + scheme.getId() + " failed", e);
+          failed++;
+        }
+      }
+      return failed;
+    }
+
+    LOGGER.info("running {} schemes on {} threads", schemes.size(), threads);
+    final AtomicInteger threadNumber = new AtomicInteger();
+    final ExecutorService executor = Executors.newFixedThreadPool(threads, runnable -> {
+      final Thread thread = new Thread(runnable, "payment-scheme-" + threadNumber.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+
+    try {
+      final List<Future<?>> futures = new ArrayList<>();
+      for (final Scheme scheme : schemes) {
+        futures.add(executor.submit(() -> work.accept(scheme)));
+      }
+
+      int failed = 0;
+      for (int i = 0; i < futures.size(); i++) {
+        try {
+          futures.get(i).get();
+        } catch (final ExecutionException e) {
+          LOGGER.error("work for scheme " + schemes.get(i).getId() + " failed", e.getCause());
+          failed++;
+        } catch (final InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new RuntimeException("interrupted while waiting for scheme " + schemes.get(i).getId(), e);
+        }
+      }
+      return failed;
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+}
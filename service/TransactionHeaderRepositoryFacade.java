@@ -3,10 +3,16 @@ package com.serviceco.coex.payment.service;
 import java.sql.CallableStatement;
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.stream.Collectors;
 
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
 import javax.sql.DataSource;
 import javax.transaction.Transactional;
 
@@ -17,16 +23,23 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
 import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.querydsl.jpa.impl.JPAQueryFactory;
 import com.serviceco.coex.crp.model.CRPClaimHeader;
+import com.serviceco.coex.crp.model.QCRPClaimHeader;
 import com.serviceco.coex.crp.repository.CRPClaimHeaderRepository;
 import com.serviceco.coex.exporter.model.ExportVolumeHeader;
+import com.serviceco.coex.exporter.model.QExportVolumeHeader;
 import com.serviceco.coex.exporter.model.dto.EntryStatus;
 import com.serviceco.coex.exporter.repository.ExportVolumeHeaderRepository;
+import com.serviceco.coex.manufacturer.model.QSalesVolumeHdr;
 import com.serviceco.coex.manufacturer.model.SalesVolumeHdr;
 import com.serviceco.coex.manufacturer.repository.SalesVolumeHeaderRepository;
 import com.serviceco.coex.mrf.model.MRFClaimHdr;
+import com.serviceco.coex.mrf.model.QMRFClaimHdr;
 import com.serviceco.coex.mrf.repository.MRFClaimHdrRepository;
 import com.serviceco.coex.processor.model.ProcessorClaimHeader;
+import com.serviceco.coex.processor.model.QProcessorClaimHeader;
 import com.serviceco.coex.processor.repository.ProcessorClaimHeaderRepository;
 
 /**
@@ -39,6 +52,11 @@ public class TransactionHeaderRepositoryFacade {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(TransactionHeaderRepositoryFacade.class);
 
+  private static final int CHUNK_SIZE = 99;
+
+  @PersistenceContext
+  private EntityManager em;
+
   @Autowired
   private SalesVolumeHeaderRepository manufacturerSalesVolumeRepo;
 
@@ -135,6 +153,55 @@ public class TransactionHeaderRepositoryFacade {
     }
   }
 
+  /**
+   * Updates the status of volume/claim records to INVOICED, in bulk. This has the same effect as calling {@link #updateHeader(PaymentType, PaymentMode, String)}
+   * for each of the IDs, but each record is only updated once and no record is loaded.
+   * 
+   * <p>The IDs are updated with an {@code UPDATE ... SET ENTRY_STATUS = 'INVOICED' WHERE ID IN (...)} on the table of the payment type, 99 IDs at a time.
+   * Null IDs, and payment types without a volume/claim table, are ignored.</p>
+   * 
+   * @param headerIds The IDs of the volume/claim records to update, by payment type
+   * @return Returns the number of records updated
+   */
+  public long updateHeaders(Map<PaymentType, ? extends Collection<String>> headerIds) {
+    long updated = 0;
+    for (final Map.Entry<PaymentType, ? extends Collection<String>> entry : headerIds.entrySet()) {
+      final List<String> ids = entry.getValue().stream().filter(Objects::nonNull).distinct().collect(Collectors.toList());
+      for (final List<String> chunk : Lists.partition(ids, CHUNK_SIZE)) {
+        updated += updateHeaders(entry.getKey(), chunk);
+      }
+    }
+    return updated;
+  }
+
+  private long updateHeaders(PaymentType type, List<String> headerIds) {
+    final JPAQueryFactory queryFactory = new JPAQueryFactory(em);
+    switch (type) {
+    case SCHEME_CONTRIBUTION:
+      final QSalesVolumeHdr qSalesVolumeHdr = QSalesVolumeHdr.salesVolumeHdr;
+      return queryFactory.update(qSalesVolumeHdr).set(qSalesVolumeHdr.entryStatus, EntryStatus.INVOICED).where(qSalesVolumeHdr.id.in(headerIds)).execute();
+
+    case PROCESSING_FEES:
+      final QProcessorClaimHeader qProcessorClaimHeader = QProcessorClaimHeader.processorClaimHeader;
+      return queryFactory.update(qProcessorClaimHeader).set(qProcessorClaimHeader.entryStatus, EntryStatus.INVOICED).where(qProcessorClaimHeader.id.in(headerIds)).execute();
+
+    case EXPORT_REBATE:
+      final QExportVolumeHeader qExportVolumeHeader = QExportVolumeHeader.exportVolumeHeader;
+      return queryFactory.update(qExportVolumeHeader).set(qExportVolumeHeader.entryStatus, EntryStatus.INVOICED).where(qExportVolumeHeader.id.in(headerIds)).execute();
+
+    case RECOVERY_AMOUNT_CLAIM:
+      final QMRFClaimHdr qMRFClaimHdr = QMRFClaimHdr.mRFClaimHdr;
+      return queryFactory.update(qMRFClaimHdr).set(qMRFClaimHdr.entryStatus, EntryStatus.INVOICED).where(qMRFClaimHdr.id.in(headerIds)).execute();
+
+    case HANDLING_FEES:
+      final QCRPClaimHeader qCRPClaimHeader = QCRPClaimHeader.cRPClaimHeader;
+      return queryFactory.update(qCRPClaimHeader).set(qCRPClaimHeader.entryStatus, EntryStatus.INVOICED).where(qCRPClaimHeader.id.in(headerIds)).execute();
+
+    default:
+      return 0;
+    }
+  }
+
   /**
    * Updates the status of consumer refund records (CONSUMER_REFUND_TXN_HDR perhaps?) after they have been included
    * in an invoice.
@@ -0,0 +1,25 @@
+package com.serviceco.coex.payment.service;
+
+import java.util.function.Supplier;
+
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+/**
+ * Runs a unit of work in its own database transaction (and so its own persistence context), independently of any transaction the caller
+ * is part of. If the work throws an exception, only its own transaction is rolled back.
+ */
+@Component
+@Transactional(propagation = Propagation.REQUIRES_NEW)
+public class TransactionIsolator {
+
+  /**
+   * @param work The work to run
+   * @return Returns the result of the work, after its transaction has been committed
+   */
+  public <R> R inNewTransaction(Supplier<R> work) {
+    return work.get();
+  }
+
+}
@@ -0,0 +1,141 @@
+package com.serviceco.coex.payment.service.volume;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import javax.persistence.EntityManager;
+
+import org.hibernate.Hibernate;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.query.Query;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.querydsl.jpa.impl.JPAQuery;
+
+/**
+ * A {@link VolumeSource} backed by a forward only, read only database cursor.
+ *
+ * <p>Rows are read from the cursor {@code fetchSize} at a time. Each chunk is handed to the batch loader (if there is one) before any of
+ * its records are returned, so the loader can fetch the children of the whole chunk (e.g. the claim detail lines) in a few IN list queries
+ * instead of one query per record. When the next chunk is read, the records of the previous chunk and their already loaded children are
+ * detached from the persistence context, so the memory used does not grow with the number of records read. Callers must not rely on a
+ * record still being managed after they have moved past its chunk.</p>
+ *
+ * @param <T> The entity class of the volume records
+ */
+public class ScrollableVolumeSource<T> implements VolumeSource<T> {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ScrollableVolumeSource.class);
+
+  private final EntityManager em;
+
+  private final JPAQuery<T> query;
+
+  private final int fetchSize;
+
+  private final Function<T, ? extends Collection<?>> children;
+
+  private final Consumer<List<T>> batchLoader;
+
+  private ScrollableResults results;
+
+  private long count;
+
+  private int chunks;
+
+  /**
+   * @param em The entity manager the query runs in
+   * @param query The query selecting the volume records
+   * @param fetchSize The number of rows fetched from the database at a time
+   * @param children Returns the child entities of a record which should be detached along with it, or null if there are none
+   * @param batchLoader Loads whatever the records of a chunk need in bulk, or null if there is nothing to load
+   */
+  public ScrollableVolumeSource(EntityManager em, JPAQuery<T> query, int fetchSize, Function<T, ? extends Collection<?>> children, Consumer<List<T>> batchLoader) {
+    this.em = em;
+    this.query = query;
+    this.fetchSize = fetchSize;
+    this.children = children;
+    this.batchLoader = batchLoader;
+  }
+
+  @Override
+  public Iterator<T> iterator() {
+    Preconditions.checkState(results == null, "a volume source can only be iterated once");
+    final Query<?> hibernateQuery = query.createQuery().unwrap(Query.class);
+    hibernateQuery.setFetchSize(fetchSize);
+    hibernateQuery.setReadOnly(true);
+    results = hibernateQuery.scroll(ScrollMode.FORWARD_ONLY);
+
+    return new Iterator<T>() {
+
+      private final List<T> chunk = new ArrayList<>(fetchSize);
+
+      private int position;
+
+      private boolean exhausted;
+
+      @Override
+      public boolean hasNext() {
+        if ((position == chunk.size()) && !exhausted) {
+          readChunk();
+        }
+        return position < chunk.size();
+      }
+
+      @Override
+      public T next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        return chunk.get(position++);
+      }
+
+      @SuppressWarnings("unchecked")
+      private void readChunk() {
+        chunk.forEach(ScrollableVolumeSource.this::detach);
+        chunk.clear();
+        position = 0;
+        while ((chunk.size() < fetchSize) && results.next()) {
+          chunk.add((T) results.get(0));
+        }
+        exhausted = chunk.size() < fetchSize;
+        if (chunk.isEmpty()) {
+          return;
+        }
+        count += chunk.size();
+        chunks++;
+        if (batchLoader != null) {
+          batchLoader.accept(Collections.unmodifiableList(chunk));
+        }
+      }
+    };
+  }
+
+  private void detach(T record) {
+    if (children != null) {
+      final Collection<?> loadedChildren = children.apply(record);
+      if ((loadedChildren != null) && Hibernate.isInitialized(loadedChildren)) {
+        loadedChildren.forEach(em::detach);
+      }
+    }
+    em.detach(record);
+  }
+
+  @Override
+  public void close() {
+    if (results != null) {
+      results.close();
+      LOGGER.info("read {} volume records in {} chunks", count, chunks);
+    }
+  }
+
+}
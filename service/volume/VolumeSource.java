@@ -0,0 +1,41 @@
+package com.serviceco.coex.payment.service.volume;
+
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * A forward only source of volume (claim) records for a payment calculation.
+ *
+ * <p>A source can only be iterated once. Sources backed by a database cursor (see {@link ScrollableVolumeSource}) hold the cursor open
+ * until they are closed, so they should be opened in a try-with-resources block around the calculation which consumes them.</p>
+ *
+ * @param <T> The entity class of the volume records
+ */
+public interface VolumeSource<T> extends Iterable<T>, AutoCloseable {
+
+  /**
+   * Releases the cursor behind this source, if any.
+   */
+  @Override
+  void close();
+
+  /**
+   * @param volumes Volume records which have already been loaded
+   * @return Returns a source which iterates the records
+   */
+  static <T> VolumeSource<T> of(List<T> volumes) {
+    return new VolumeSource<T>() {
+
+      @Override
+      public Iterator<T> iterator() {
+        return volumes.iterator();
+      }
+
+      @Override
+      public void close() {
+        // nothing to release
+      }
+    };
+  }
+
+}
@@ -0,0 +1,58 @@
+package com.serviceco.coex.payment.service.volume;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.querydsl.jpa.impl.JPAQuery;
+
+/**
+ * Opens the {@link VolumeSource}s the calculation support classes read their volume data from.
+ *
+ * <p>The number of rows fetched from the database at a time is configured through the {@code payment.computation.volume-source.fetch-size}
+ * property (defaults to 100).</p>
+ */
+@Component
+public class VolumeSourceFactory {
+
+  @PersistenceContext
+  private EntityManager em;
+
+  @Value("${payment.computation.volume-source.fetch-size:100}")
+  private int fetchSize;
+
+  /**
+   * @param query The query selecting the volume records
+   * @return Returns a source which streams the results of the query
+   */
+  public <T> VolumeSource<T> open(JPAQuery<T> query) {
+    return new ScrollableVolumeSource<>(em, query, fetchSize, null, null);
+  }
+
+  /**
+   * @param query The query selecting the volume (header) records
+   * @param children Returns the child records (e.g. the detail lines) of a header, which are detached along with it
+   * @return Returns a source which streams the results of the query
+   */
+  public <T> VolumeSource<T> open(JPAQuery<T> query, Function<T, ? extends Collection<?>> children) {
+    return new ScrollableVolumeSource<>(em, query, fetchSize, children, null);
+  }
+
+  /**
+   * @param query The query selecting the volume (header) records
+   * @param children Returns the child records (e.g. the detail lines) of a header, which are detached along with it
+   * @param batchLoader Called with each chunk of headers before they are returned, to fetch their children in bulk
+   * @return Returns a source which streams the results of the query
+   */
+  public <T> VolumeSource<T> open(JPAQuery<T> query, Function<T, ? extends Collection<?>> children, Consumer<List<T>> batchLoader) {
+    return new ScrollableVolumeSource<>(em, query, fetchSize, children, batchLoader);
+  }
+
+}
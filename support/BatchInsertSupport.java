@@ -0,0 +1,41 @@
+package com.serviceco.coex.payment.support;
+
+import java.util.Collection;
+
+import javax.persistence.EntityManager;
+
+import org.hibernate.Session;
+
+/**
+ * Writes new entities with JDBC batch inserts.
+ *
+ * <p>The entities are persisted (rather than saved through a Spring Data repository, which merges and so selects every entity with an
+ * assigned id first) and the persistence context is flushed with the Hibernate session's JDBC batch size set to {@code batchSize}. The
+ * session's previous batch size is restored afterwards. The persistence context is not cleared, so the entities remain managed.</p>
+ */
+public final class BatchInsertSupport {
+
+  private BatchInsertSupport() {
+  }
+
+  /**
+   * Persists the entities, in the order given, and flushes them as batches of up to {@code batchSize} INSERT statements.
+   * @param em The transactional entity manager
+   * @param batchSize The JDBC batch size to flush with
+   * @param entities The new entities. Each collection is persisted in turn, so entities referred to by later ones should come first.
+   */
+  public static void persistAll(EntityManager em, int batchSize, Collection<?>... entities) {
+    final Session session = em.unwrap(Session.class);
+    final Integer previousBatchSize = session.getJdbcBatchSize();
+    session.setJdbcBatchSize(batchSize);
+    try {
+      for (final Collection<?> collection : entities) {
+        collection.forEach(em::persist);
+      }
+      em.flush();
+    } finally {
+      session.setJdbcBatchSize(previousBatchSize);
+    }
+  }
+
+}
@@ -0,0 +1,103 @@
+package com.serviceco.coex.payment.support;
+
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.List;
+
+import javax.annotation.PostConstruct;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.querydsl.jpa.impl.JPAQueryFactory;
+import com.serviceco.coex.model.DateDimension;
+import com.serviceco.coex.model.QDateDimension;
+import com.serviceco.coex.model.constant.PeriodType;
+
+/**
+ * Serves DATE_DIMENSION lookups from memory.
+ *
+ * <p>The whole table is loaded into a {@link DateDimensionIndex} the first time it is needed. The index is replaced (never modified) when
+ * it is older than {@code payment.date-dimension.refresh-minutes} (defaults to one day) or when {@link #refresh()} is called (through
+ * {@link PeriodCache#refresh()}, so the resolved periods are discarded as well), so concurrent batches always see a complete copy of the
+ * table.</p>
+ */
+@Component
+public class DateDimensionCalendar {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(DateDimensionCalendar.class);
+
+  @PersistenceContext
+  private EntityManager em;
+
+  @Value("${payment.date-dimension.refresh-minutes:1440}")
+  private long refreshMinutes;
+
+  private RefreshingSnapshot<DateDimensionIndex> index;
+
+  @PostConstruct
+  void init() {
+    index = new RefreshingSnapshot<>(Duration.ofMinutes(refreshMinutes), this::load);
+  }
+
+  /**
+   * @param date The date
+   * @return Returns the date dimension for the date, or null if the table does not contain it
+   */
+  public DateDimension forDate(LocalDate date) {
+    if (date == null) {
+      return null;
+    }
+    return index().get(date);
+  }
+
+  /**
+   * @param type The type of period (W, M, Q or D)
+   * @param value The period value, matching the isoYearWeek, yearMonth, yearQuarter or dateInYYYYMMDDFormat column respectively
+   * @return Returns the first date dimension of the period, or null if the period is unknown
+   */
+  public DateDimension firstOf(PeriodType type, String value) {
+    return index().first(type, value);
+  }
+
+  /**
+   * @param type The type of period (W, M, Q or D)
+   * @param value The period value, matching the isoYearWeek, yearMonth, yearQuarter or dateInYYYYMMDDFormat column respectively
+   * @return Returns the last date dimension of the period, or null if the period is unknown
+   */
+  public DateDimension lastOf(PeriodType type, String value) {
+    return index().last(type, value);
+  }
+
+  /**
+   * @param quarter The yearQuarter value
+   * @return Returns the distinct yearMonth values within the quarter, in date order
+   */
+  public List<String> monthsOfQuarter(String quarter) {
+    return index().monthsOf(quarter);
+  }
+
+  /**
+   * Reloads the DATE_DIMENSION table. Lookups made while the table is being loaded use the previous copy.
+   */
+  public void refresh() {
+    index.refresh();
+  }
+
+  private DateDimensionIndex index() {
+    return index.get();
+  }
+
+  private DateDimensionIndex load() {
+    final QDateDimension qDateDimension = QDateDimension.dateDimension;
+    final List<DateDimension> rows = new JPAQueryFactory(em).select(qDateDimension).from(qDateDimension).fetch();
+    final DateDimensionIndex loaded = DateDimensionIndex.build(rows);
+    LOGGER.info("loaded {} date dimension rows spanning {} days", rows.size(), loaded.size());
+    return loaded;
+  }
+
+}
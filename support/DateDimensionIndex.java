@@ -0,0 +1,146 @@
+package com.serviceco.coex.payment.support;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+import com.serviceco.coex.model.DateDimension;
+import com.serviceco.coex.model.constant.PeriodType;
+
+/**
+ * An immutable, in memory copy of the DATE_DIMENSION table.
+ *
+ * <p>The rows are stored in an array addressed by epoch day, so a date is resolved with a single array access. The first and last day of
+ * every week ({@code isoYearWeek}), month ({@code yearMonth}), quarter ({@code yearQuarter}) and day ({@code dateInYYYYMMDDFormat}) are
+ * precomputed as index ranges into the same array.</p>
+ *
+ * <p>Instances are built once by {@link DateDimensionCalendar} and are safe to share between threads.</p>
+ */
+final class DateDimensionIndex {
+
+  private final long firstEpochDay;
+
+  private final DateDimension[] days;
+
+  private final Map<PeriodType, Map<String, int[]>> ranges;
+
+  private final Map<String, List<String>> monthsPerQuarter;
+
+  private DateDimensionIndex(long firstEpochDay, DateDimension[] days, Map<PeriodType, Map<String, int[]>> ranges, Map<String, List<String>> monthsPerQuarter) {
+    this.firstEpochDay = firstEpochDay;
+    this.days = days;
+    this.ranges = ranges;
+    this.monthsPerQuarter = monthsPerQuarter;
+  }
+
+  /**
+   * Builds the index from all of the rows of the DATE_DIMENSION table.
+   * @param rows The rows. They do not need to be sorted.
+   * @return Returns the index
+   */
+  static DateDimensionIndex build(List<DateDimension> rows) {
+    final List<DateDimension> sorted = new ArrayList<>(rows);
+    sorted.sort(Comparator.comparing(DateDimension::getLocalDate));
+
+    if (sorted.isEmpty()) {
+      return new DateDimensionIndex(0, new DateDimension[0], new EnumMap<>(PeriodType.class), Collections.emptyMap());
+    }
+
+    final long firstEpochDay = sorted.get(0).getLocalDate().toEpochDay();
+    final long lastEpochDay = sorted.get(sorted.size() - 1).getLocalDate().toEpochDay();
+    final DateDimension[] days = new DateDimension[Math.toIntExact(lastEpochDay - firstEpochDay + 1)];
+    for (final DateDimension row : sorted) {
+      days[(int) (row.getLocalDate().toEpochDay() - firstEpochDay)] = row;
+    }
+
+    final Map<PeriodType, Map<String, int[]>> ranges = new EnumMap<>(PeriodType.class);
+    ranges.put(PeriodType.W, rangesBy(days, DateDimension::getIsoYearWeek));
+    ranges.put(PeriodType.M, rangesBy(days, DateDimension::getYearMonth));
+    ranges.put(PeriodType.Q, rangesBy(days, DateDimension::getYearQuarter));
+    ranges.put(PeriodType.D, rangesBy(days, DateDimension::getDateInYYYYMMDDFormat));
+
+    final Map<String, Set<String>> months = new HashMap<>();
+    for (final DateDimension day : days) {
+      if ((day != null) && (day.getYearQuarter() != null)) {
+        months.computeIfAbsent(day.getYearQuarter(), k -> new LinkedHashSet<>()).add(day.getYearMonth());
+      }
+    }
+    final Map<String, List<String>> monthsPerQuarter = new HashMap<>();
+    months.forEach((quarter, monthsOfQuarter) -> monthsPerQuarter.put(quarter, Collections.unmodifiableList(new ArrayList<>(monthsOfQuarter))));
+
+    return new DateDimensionIndex(firstEpochDay, days, ranges, monthsPerQuarter);
+  }
+
+  private static Map<String, int[]> rangesBy(DateDimension[] days, Function<DateDimension, String> key) {
+    final Map<String, int[]> ranges = new HashMap<>();
+    for (int i = 0; i < days.length; i++) {
+      if ((days[i] == null) || (key.apply(days[i]) == null)) {
+        continue;
+      }
+      final int index = i;
+      ranges.merge(key.apply(days[i]), new int[] { index, index }, (existing, single) -> {
+        existing[1] = index;
+        return existing;
+      });
+    }
+    return ranges;
+  }
+
+  /**
+   * @param date The date
+   * @return Returns the row for the date, or null if the table does not contain it
+   */
+  DateDimension get(LocalDate date) {
+    final long offset = date.toEpochDay() - firstEpochDay;
+    if ((offset < 0) || (offset >= days.length)) {
+      return null;
+    }
+    return days[(int) offset];
+  }
+
+  /**
+   * @param type The type of period
+   * @param value The period value (e.g. 2018-07 for a month)
+   * @return Returns the first row of the period, or null if the period is unknown
+   */
+  DateDimension first(PeriodType type, String value) {
+    final int[] range = range(type, value);
+    return range == null ? null : days[range[0]];
+  }
+
+  /**
+   * @param type The type of period
+   * @param value The period value (e.g. 2018-07 for a month)
+   * @return Returns the last row of the period, or null if the period is unknown
+   */
+  DateDimension last(PeriodType type, String value) {
+    final int[] range = range(type, value);
+    return range == null ? null : days[range[1]];
+  }
+
+  /**
+   * @param quarter The quarter value (e.g. 2018-3)
+   * @return Returns the distinct months (yearMonth) of the quarter in date order
+   */
+  List<String> monthsOf(String quarter) {
+    return monthsPerQuarter.getOrDefault(quarter, Collections.emptyList());
+  }
+
+  int size() {
+    return days.length;
+  }
+
+  private int[] range(PeriodType type, String value) {
+    final Map<String, int[]> rangesForType = ranges.get(type);
+    return rangesForType == null ? null : rangesForType.get(value);
+  }
+
+}
@@ -9,6 +9,7 @@ import java.time.Clock;
 import java.time.Instant;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
+import java.time.Year;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
@@ -32,14 +33,13 @@ import javax.persistence.EntityManager;
 import javax.persistence.PersistenceContext;
 
 import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
 import com.google.common.base.Preconditions;
-import com.querydsl.core.types.dsl.BooleanExpression;
 import com.querydsl.jpa.impl.JPAQueryFactory;
 import com.serviceco.coex.exception.CoexRuntimeException;
 import com.serviceco.coex.model.DateDimension;
-import com.serviceco.coex.model.QDateDimension;
 import com.serviceco.coex.model.Scheme;
 import com.serviceco.coex.model.constant.PeriodType;
 import com.serviceco.coex.model.dto.Period;
@@ -89,6 +89,12 @@ public class DateTimeSupport {
   @PersistenceContext
   EntityManager em;
 
+  @Autowired
+  private DateDimensionCalendar dateDimensionCalendar;
+
+  @Autowired
+  private PeriodCache periodCache;
+
   public DateTimeSupport() {
 
     super();
@@ -106,42 +112,33 @@ public class DateTimeSupport {
     return Clock.system(zoneId);
   }
 
+  /**
+   * Finds the date dimension with the same day of month and month as {@code now}, within the ISO week based year matching the year of
+   * {@code now}. Around the new year this can be the same day of a neighbouring calendar year, or no date dimension at all.
+   *
+   * @param now
+   * @return the matching date dimension, or null
+   */
   public DateDimension correspondingDateDimension(final LocalDateTime now) {
 
-    final int thisDay = now.getDayOfMonth();
-    final int thisMonth = now.getMonthValue();
-    final int thisYear = now.getYear();
-
-    final QDateDimension dateDimension = QDateDimension.dateDimension;
-
-    //@formatter:off
-    return getQueryFactory().select(dateDimension)
-                            .from(dateDimension)
-                            .where(dateDimension.dayOfMonth.eq(thisDay)
-                             .and(dateDimension.month.eq(thisMonth)
-                             .and(dateDimension.isoYear.eq(thisYear))))
-                            .fetchOne();
-    //@formatter:on
+    final LocalDate date = now.toLocalDate();
+    for (final int year : new int[] { date.getYear(), date.getYear() + 1, date.getYear() - 1 }) {
+      if ((date.getMonthValue() == 2) && (date.getDayOfMonth() == 29) && !Year.isLeap(year)) {
+        continue;
+      }
+      final DateDimension candidate = dateDimensionCalendar.forDate(date.withYear(year));
+      if ((candidate != null) && (candidate.getIsoYear() != null) && (candidate.getIsoYear().intValue() == date.getYear())) {
+        return candidate;
+      }
+    }
+    return null;
   }
 
   public DateDimension correspondingDateDimension(final LocalDate now) {
     if (now == null) {
       return null;
     }
-    final int thisDay = now.getDayOfMonth();
-    final int thisMonth = now.getMonthValue();
-    final int thisYear = now.getYear();
-
-    final QDateDimension dateDimension = QDateDimension.dateDimension;
-
-    //@formatter:off
-    return getQueryFactory().select(dateDimension)
-                            .from(dateDimension)
-                            .where(dateDimension.dayOfMonth.eq(thisDay)
-                             .and(dateDimension.month.eq(thisMonth)
-                             .and(dateDimension.year.eq(thisYear))))
-                            .fetchOne();
-    //@formatter:on
+    return dateDimensionCalendar.forDate(now);
   }
 
   /**
@@ -192,23 +189,11 @@ public class DateTimeSupport {
    */
   public List<Period> fetchMonthsForQuarter(final Period quarter) {
 
-    final QDateDimension dateDimension = QDateDimension.dateDimension;
-
-    // @formatter:off
-    final List<DateDimension> months = getQueryFactory()
-                                .select(dateDimension)
-                                .from(dateDimension)
-                                .where(dateDimension.yearQuarter.eq(quarter.getValue()))
-                                .fetch()
-                                .stream()
-                                .filter(DateDimension.distinctByKey(DateDimension::getYearMonth))
-                                .collect(Collectors.toList());
-    //@formatter:on
-    return months.stream().map(new Function<DateDimension, Period>() {
+    return dateDimensionCalendar.monthsOfQuarter(quarter.getValue()).stream().map(new Function<String, Period>() {
       @Override
-      public Period apply(DateDimension t) {
+      public Period apply(String t) {
 
-        return new Period(t.getYearMonth(), PeriodType.M);
+        return new Period(t, PeriodType.M);
       }
     }).collect(Collectors.toList());
 
@@ -496,35 +481,11 @@ public class DateTimeSupport {
     checkArgument(period.getType() != null);
     checkArgument(!period.getValue().isEmpty());
 
-    final PeriodType type = period.getType();
-    final QDateDimension qDateDimension = QDateDimension.dateDimension;
-
-    BooleanExpression condition = null;
-    switch (type) {
-    case W:
-      condition = qDateDimension.isoYearWeek.eq(period.getValue());
-      break;
-    case M:
-      condition = qDateDimension.yearMonth.eq(period.getValue());
-      break;
-    case Q:
-      condition = qDateDimension.yearQuarter.eq(period.getValue());
-      break;
-    case D:
-      condition = qDateDimension.dateInYYYYMMDDFormat.eq(period.getValue());
-      break;
-    default:
-      break;
-    }
-
-    final List<DateDimension> dates = getQueryFactory().select(qDateDimension).from(qDateDimension).where(condition).orderBy(qDateDimension.dateInJulianFormat.asc()).fetch();
-    if ((dates != null) && !dates.isEmpty()) {
-      final DateDimension firstForThePeriod = dates.get(0);
-      final DateDimension lastForThePeriod = dates.get(dates.size() - 1);
-      final LocalDate start = firstForThePeriod.getLocalDate();
-      final LocalDate end = lastForThePeriod.getLocalDate();
-      period.setStart(start);
-      period.setEnd(end);
+    final DateDimension firstForThePeriod = dateDimensionCalendar.firstOf(period.getType(), period.getValue());
+    final DateDimension lastForThePeriod = dateDimensionCalendar.lastOf(period.getType(), period.getValue());
+    if ((firstForThePeriod != null) && (lastForThePeriod != null)) {
+      period.setStart(firstForThePeriod.getLocalDate());
+      period.setEnd(lastForThePeriod.getLocalDate());
     }
     return period;
   }
@@ -533,23 +494,17 @@ public class DateTimeSupport {
     return fetchToday(scheme);
   }
  
+  /**
+   * Finds the resolved period (including the months of a quarter) for a period value and type. The period is shared through the
+   * {@link PeriodCache} and must not be modified.
+   *
+   * @param value
+   * @param type
+   * @return the resolved period
+   */
   public Period periodFactory(String value, PeriodType type) {
 
-    final Period period = new Period(value, type);
-    setTerminalDates(period);
-    if (type == PeriodType.Q) {
-      final List<Period> monthsWithoutTerminalDates = fetchMonthsForQuarter(period);
-      final List<Period> months = monthsWithoutTerminalDates.stream().map(new Function<Period, Period>() {
-
-        @Override
-        public Period apply(Period t) {
-
-          return periodFactory(t.getValue(), t.getType());
-        }
-      }).collect(Collectors.toList());
-      period.setPeriods(months);
-    }
-    return period;
+    return periodCache.get(value, type);
   }
 
   public LocalDate getBusinessDay(LocalDate startDate, int day) {
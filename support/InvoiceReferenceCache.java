@@ -0,0 +1,179 @@
+package com.serviceco.coex.payment.support;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import javax.annotation.PostConstruct;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.querydsl.jpa.impl.JPAQueryFactory;
+import com.serviceco.coex.payment.model.invoice.reference.InvPayGroupLov;
+import com.serviceco.coex.payment.model.invoice.reference.InvPaymentTermsLov;
+import com.serviceco.coex.payment.model.invoice.reference.InvTxnBatchSrcNameLov;
+import com.serviceco.coex.payment.model.invoice.reference.InvTxnInvoiceLineTypeLov;
+import com.serviceco.coex.payment.model.invoice.reference.InvTxnLineTypeLov;
+import com.serviceco.coex.payment.model.invoice.reference.InvTxnTypeNameLov;
+import com.serviceco.coex.payment.model.invoice.reference.QInvPayGroupLov;
+import com.serviceco.coex.payment.model.invoice.reference.QInvPaymentTermsLov;
+import com.serviceco.coex.payment.model.invoice.reference.QInvTxnBatchSrcNameLov;
+import com.serviceco.coex.payment.model.invoice.reference.QInvTxnInvoiceLineTypeLov;
+import com.serviceco.coex.payment.model.invoice.reference.QInvTxnLineTypeLov;
+import com.serviceco.coex.payment.model.invoice.reference.QInvTxnTypeNameLov;
+
+/**
+ * Serves the invoice reference (LOV) lookups which do not depend on the scheme from memory, for AP and AR invoice generation.
+ *
+ * <p>The INV_PAYMENT_TERMS_LOV, INV_PAY_GROUP_LOV, INV_TXN_BATCH_SRC_NAME_LOV, INV_TXN_TYPE_NAME_LOV, INV_TXN_LINE_TYPE_LOV and
+ * INV_TXN_INVOICE_LINE_TYPE_LOV tables are loaded into an immutable {@link Snapshot} the first time a value is needed. Each table is held in a
+ * map keyed by the columns it is looked up by. The snapshot is replaced as a whole (never modified) when it is older than
+ * {@code payment.invoice-reference.refresh-minutes} (defaults to one hour) or when {@link #refresh()} is called (see the
+ * {@code /reference-data/refresh} payment transaction endpoint), so it can be shared by any number of invoice generation threads.</p>
+ *
+ * <p>Where a table has several rows for the same key, the first row loaded is used.</p>
+ */
+@Component
+public class InvoiceReferenceCache {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(InvoiceReferenceCache.class);
+
+  @PersistenceUnit
+  private EntityManagerFactory emf;
+
+  @Value("${payment.invoice-reference.refresh-minutes:60}")
+  private long refreshMinutes;
+
+  private RefreshingSnapshot<Snapshot> snapshot;
+
+  @PostConstruct
+  void init() {
+    snapshot = new RefreshingSnapshot<>(Duration.ofMinutes(refreshMinutes), this::load);
+  }
+
+  /**
+   * An immutable copy of the invoice reference tables. Each lookup returns null if the table has no matching row.
+   */
+  public static final class Snapshot {
+
+    private final Map<List<String>, String> paymentTerms;
+
+    private final Map<List<String>, String> paymentGroups;
+
+    private final Map<List<String>, String> batchSources;
+
+    private final Map<List<String>, String> transactionTypeNames;
+
+    private final Map<List<String>, String> transactionTypeIds;
+
+    private final Map<List<String>, String> transactionLineTypes;
+
+    private final Map<List<String>, String> taxInvoiceLineTypes;
+
+    //@formatter:off
+    private Snapshot(List<InvPaymentTermsLov> paymentTerms,
+                     List<InvPayGroupLov> paymentGroups,
+                     List<InvTxnBatchSrcNameLov> batchSources,
+                     List<InvTxnTypeNameLov> transactionTypes,
+                     List<InvTxnLineTypeLov> transactionLineTypes,
+                     List<InvTxnInvoiceLineTypeLov> invoiceLineTypes) {
+      this.paymentTerms = index(paymentTerms, row -> key(row.getInvoiceType(), row.getSchemeParticipantType(), row.getPaymentGroup()), InvPaymentTermsLov::getValue);
+      this.paymentGroups = index(paymentGroups, row -> key(row.getInvoiceType(), row.getSchemeParticipantType(), row.getPaymentType()), InvPayGroupLov::getValue);
+      this.batchSources = index(batchSources, row -> key(row.getInvoiceType(), row.getPaymentGroup()), InvTxnBatchSrcNameLov::getValue);
+      this.transactionTypeNames = index(transactionTypes, row -> key(row.getInvoiceType(), row.getPaymentGroup()), InvTxnTypeNameLov::getName);
+      this.transactionTypeIds = index(transactionTypes, row -> key(row.getInvoiceType(), row.getPaymentGroup(), row.getName()), InvTxnTypeNameLov::getValue);
+      this.transactionLineTypes = index(transactionLineTypes, row -> key(row.getInvoiceType()), InvTxnLineTypeLov::getValue);
+      this.taxInvoiceLineTypes = index(invoiceLineTypes, row -> key(row.getInvoiceType(), row.getPaymentType(), row.getLineType()), InvTxnInvoiceLineTypeLov::getValue);
+    }
+    //@formatter:on
+
+    public String paymentTerms(String invoiceType, String schemeParticipantType, String paymentGroup) {
+      return paymentTerms.get(key(invoiceType, schemeParticipantType, paymentGroup));
+    }
+
+    public String paymentGroup(String invoiceType, String schemeParticipantType, String paymentType) {
+      return paymentGroups.get(key(invoiceType, schemeParticipantType, paymentType));
+    }
+
+    public String batchSource(String invoiceType, String paymentGroup) {
+      return batchSources.get(key(invoiceType, paymentGroup));
+    }
+
+    public String transactionTypeName(String invoiceType, String paymentGroup) {
+      return transactionTypeNames.get(key(invoiceType, paymentGroup));
+    }
+
+    public String transactionTypeId(String invoiceType, String paymentGroup, String name) {
+      return transactionTypeIds.get(key(invoiceType, paymentGroup, name));
+    }
+
+    public String transactionLineType(String invoiceType) {
+      return transactionLineTypes.get(key(invoiceType));
+    }
+
+    public String taxInvoiceLineType(String invoiceType, String paymentType, String lineType) {
+      return taxInvoiceLineTypes.get(key(invoiceType, paymentType, lineType));
+    }
+
+    private static <T> Map<List<String>, String> index(List<T> rows, Function<T, List<String>> key, Function<T, String> value) {
+      final Map<List<String>, String> index = new HashMap<>();
+      for (final T row : rows) {
+        final String rowValue = value.apply(row);
+        if (rowValue != null) {
+          index.putIfAbsent(key.apply(row), rowValue);
+        }
+      }
+      return Collections.unmodifiableMap(index);
+    }
+
+    private static List<String> key(String... columns) {
+      return Collections.unmodifiableList(Arrays.asList(columns));
+    }
+  }
+
+  /**
+   * @return Returns the current snapshot, loading it first if it has not been loaded or has expired
+   */
+  public Snapshot snapshot() {
+    return snapshot.get();
+  }
+
+  /**
+   * Reloads the invoice reference tables. Lookups made while the tables are being loaded use the previous snapshot.
+   */
+  public void refresh() {
+    snapshot.refresh();
+  }
+
+  private Snapshot load() {
+    final Snapshot loaded;
+    final EntityManager em = emf.createEntityManager();
+    try {
+      final JPAQueryFactory queryFactory = new JPAQueryFactory(em);
+      //@formatter:off
+      loaded = new Snapshot(queryFactory.selectFrom(QInvPaymentTermsLov.invPaymentTermsLov).fetch(),
+                            queryFactory.selectFrom(QInvPayGroupLov.invPayGroupLov).fetch(),
+                            queryFactory.selectFrom(QInvTxnBatchSrcNameLov.invTxnBatchSrcNameLov).fetch(),
+                            queryFactory.selectFrom(QInvTxnTypeNameLov.invTxnTypeNameLov).fetch(),
+                            queryFactory.selectFrom(QInvTxnLineTypeLov.invTxnLineTypeLov).fetch(),
+                            queryFactory.selectFrom(QInvTxnInvoiceLineTypeLov.invTxnInvoiceLineTypeLov).fetch());
+      //@formatter:on
+    } finally {
+      em.close();
+    }
+
+    LOGGER.info("loaded the invoice reference tables");
+    return loaded;
+  }
+
+}
@@ -0,0 +1,186 @@
+package com.serviceco.coex.payment.support;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.RoundingMode;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Sums money amounts (gross amounts, GST, volumes, etc.) without creating a new {@link BigDecimal} for every addition.
+ *
+ * <p>The running total is kept as an unscaled long and a scale, the same way a {@link BigDecimal} is, and its scale is the largest scale
+ * added so far. {@link #toBigDecimal()} therefore returns exactly what adding the same amounts to {@link BigDecimal#ZERO} one at a time
+ * would, including the scale. If the total or a rescaled amount no longer fits in a long, the accumulator falls back to adding
+ * {@link BigDecimal}s for the rest of its amounts.</p>
+ *
+ * <p>Instances are not thread safe. Convert the total with {@link #toBigDecimal()} only once all of the amounts have been added.</p>
+ */
+public final class MoneyAccumulator {
+
+  private static final long[] POWERS_OF_TEN = new long[19];
+
+  static {
+    POWERS_OF_TEN[0] = 1L;
+    for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+      POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10L;
+    }
+  }
+
+  private long unscaled;
+
+  private int scale;
+
+  /**
+   * The total once it no longer fits in a long, otherwise null
+   */
+  private BigDecimal overflow;
+
+  /**
+   * Adds an amount to the total.
+   * @param amount The amount to add
+   * @return Returns this accumulator
+   * @throws NullPointerException if the amount is null
+   */
+  public MoneyAccumulator add(BigDecimal amount) {
+    if (overflow == null) {
+      final BigInteger amountUnscaled = amount.unscaledValue();
+      if ((amountUnscaled.bitLength() < 64) && addExact(amountUnscaled.longValue(), amount.scale())) {
+        return this;
+      }
+      overflow = BigDecimal.valueOf(unscaled, scale);
+    }
+    overflow = overflow.add(amount);
+    return this;
+  }
+
+  /**
+   * Rounds an amount half up to a scale, as {@code amount.setScale(roundingScale, RoundingMode.HALF_UP)} would, and adds it to the total.
+   * @param amount The amount to round and add
+   * @param roundingScale The scale to round the amount to, e.g. 2 for cents
+   * @return Returns this accumulator
+   * @throws NullPointerException if the amount is null
+   */
+  public MoneyAccumulator addRounded(BigDecimal amount, int roundingScale) {
+    if ((overflow == null) && (roundingScale >= 0)) {
+      final BigInteger amountUnscaled = amount.unscaledValue();
+      final int difference = amount.scale() - roundingScale;
+      if ((amountUnscaled.bitLength() < 64) && (difference < POWERS_OF_TEN.length)) {
+        final long value = amountUnscaled.longValue();
+        if (difference >= 0) {
+          final long divisor = POWERS_OF_TEN[difference];
+          long rounded = value / divisor;
+          // the remainder is less than 10^18, so doubling it can not overflow
+          if ((Math.abs(value % divisor) * 2) >= divisor) {
+            rounded += Long.signum(value);
+          }
+          if (addExact(rounded, roundingScale)) {
+            return this;
+          }
+        } else if (addExact(0L, roundingScale) && addExact(value, amount.scale())) {
+          // the total is first rescaled to the rounding scale, so the amount is added at that scale
+          return this;
+        }
+      }
+    }
+    return add(amount.setScale(roundingScale, RoundingMode.HALF_UP));
+  }
+
+  /**
+   * Adds the total of another accumulator to this one.
+   * @param other The accumulator to add
+   * @return Returns this accumulator
+   */
+  public MoneyAccumulator add(MoneyAccumulator other) {
+    if ((overflow == null) && (other.overflow == null) && addExact(other.unscaled, other.scale)) {
+      return this;
+    }
+    return add(other.toBigDecimal());
+  }
+
+  /**
+   * Sets the total back to zero (with a scale of zero).
+   */
+  public void reset() {
+    unscaled = 0L;
+    scale = 0;
+    overflow = null;
+  }
+
+  /**
+   * @return Returns the total
+   */
+  public BigDecimal toBigDecimal() {
+    return overflow != null ? overflow : BigDecimal.valueOf(unscaled, scale);
+  }
+
+  /**
+   * Sums an amount of each item.
+   * @param items The items to sum
+   * @param amount Returns the amount of an item
+   * @return Returns an accumulator holding the total
+   */
+  public static <T> MoneyAccumulator sum(Collection<T> items, Function<T, BigDecimal> amount) {
+    final MoneyAccumulator total = new MoneyAccumulator();
+    for (final T item : items) {
+      total.add(amount.apply(item));
+    }
+    return total;
+  }
+
+  /**
+   * Sums an amount of each item by a key of the item.
+   * @param items The items to sum
+   * @param key Returns the key of an item
+   * @param amount Returns the amount of an item
+   * @return Returns an accumulator holding the total of each key, in the order the keys were first seen
+   */
+  public static <T, K> Map<K, MoneyAccumulator> sumBy(Collection<T> items, Function<T, K> key, Function<T, BigDecimal> amount) {
+    final Map<K, MoneyAccumulator> totals = new LinkedHashMap<>();
+    for (final T item : items) {
+      totals.computeIfAbsent(key.apply(item), k -> new MoneyAccumulator()).add(amount.apply(item));
+    }
+    return totals;
+  }
+
+  @Override
+  public String toString() {
+    return toBigDecimal().toPlainString();
+  }
+
+  /**
+   * Adds an unscaled value to the total, rescaling the total or the value to the larger of the two scales. The total is left unchanged if
+   * the result would not fit in a long.
+   * @return Returns true if the value was added, or false if the caller must fall back to {@link BigDecimal}
+   */
+  private boolean addExact(long value, int valueScale) {
+    if (valueScale < 0) {
+      return false;
+    }
+    try {
+      long total = unscaled;
+      long addend = value;
+      int totalScale = scale;
+      if (valueScale > totalScale) {
+        if ((valueScale - totalScale) >= POWERS_OF_TEN.length) {
+          return false;
+        }
+        total = Math.multiplyExact(total, POWERS_OF_TEN[valueScale - totalScale]);
+        totalScale = valueScale;
+      } else if (valueScale < totalScale) {
+        if ((totalScale - valueScale) >= POWERS_OF_TEN.length) {
+          return false;
+        }
+        addend = Math.multiplyExact(addend, POWERS_OF_TEN[totalScale - valueScale]);
+      }
+      unscaled = Math.addExact(total, addend);
+      scale = totalScale;
+      return true;
+    } catch (final ArithmeticException e) {
+      return false;
+    }
+  }
+
+}
@@ -0,0 +1,108 @@
+package com.serviceco.coex.payment.support;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import javax.annotation.PostConstruct;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.querydsl.jpa.impl.JPAQueryFactory;
+import com.serviceco.coex.scheme.participant.model.MdtParticipantSite;
+import com.serviceco.coex.scheme.participant.model.QMdtParticipantSite;
+import com.serviceco.coex.scheme.participant.repository.MdtParticipantSiteRepository;
+
+/**
+ * Serves scheme participant site lookups by site number from memory, for the payment computation, invoicing and state transition services.
+ *
+ * <p>Every MDT_PARTICIPANT_SITE row is loaded, together with its participant and scheme, into an immutable snapshot the first time a site
+ * is needed. The snapshot is keyed by site number and is replaced (never modified) when it is older than
+ * {@code payment.participant-directory.refresh-minutes} (defaults to 15 minutes) or when {@link #refresh()} is called (see the
+ * {@code /reference-data/refresh} payment transaction endpoint).</p>
+ *
+ * <p>The snapshot is loaded through its own entity manager, so the sites are detached and are not tied to the persistence context of any
+ * caller. Callers only read them, or use them as query parameters. A site number which is not in the snapshot (e.g. a site created since it
+ * was loaded) is looked up in the database instead.</p>
+ */
+@Component
+public class ParticipantSiteDirectory {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ParticipantSiteDirectory.class);
+
+  @PersistenceUnit
+  private EntityManagerFactory emf;
+
+  @Autowired
+  private MdtParticipantSiteRepository participantRepository;
+
+  @Value("${payment.participant-directory.refresh-minutes:15}")
+  private long refreshMinutes;
+
+  private RefreshingSnapshot<Snapshot> snapshot;
+
+  private static final class Snapshot {
+
+    private final Map<String, MdtParticipantSite> bySiteNumber;
+
+    private Snapshot(Map<String, MdtParticipantSite> bySiteNumber) {
+      this.bySiteNumber = bySiteNumber;
+    }
+  }
+
+  @PostConstruct
+  void init() {
+    snapshot = new RefreshingSnapshot<>(Duration.ofMinutes(refreshMinutes), this::load);
+  }
+
+  /**
+   * @param siteNumber The site number
+   * @return Returns the site with the site number, in any scheme
+   */
+  public Optional<MdtParticipantSite> findBySiteNumber(String siteNumber) {
+    final MdtParticipantSite site = snapshot.get().bySiteNumber.get(siteNumber);
+    return site != null ? Optional.of(site) : participantRepository.findBySiteNumber(siteNumber);
+  }
+
+  /**
+   * Reloads the participant sites. Lookups made while the sites are being loaded use the previous snapshot.
+   */
+  public void refresh() {
+    snapshot.refresh();
+  }
+
+  private Snapshot load() {
+    final QMdtParticipantSite qSite = QMdtParticipantSite.mdtParticipantSite;
+    final List<MdtParticipantSite> sites;
+    final EntityManager em = emf.createEntityManager();
+    try {
+      //@formatter:off
+      sites = new JPAQueryFactory(em).select(qSite).from(qSite)
+                                     .leftJoin(qSite.participant).fetchJoin()
+                                     .leftJoin(qSite.scheme).fetchJoin()
+                                     .fetch();
+      //@formatter:on
+    } finally {
+      em.close();
+    }
+
+    final Map<String, MdtParticipantSite> bySiteNumber = new HashMap<>();
+    for (final MdtParticipantSite site : sites) {
+      bySiteNumber.put(site.getSiteNumber(), site);
+    }
+
+    LOGGER.info("loaded {} participant sites", bySiteNumber.size());
+    return new Snapshot(Collections.unmodifiableMap(bySiteNumber));
+  }
+
+}
@@ -0,0 +1,192 @@
+package com.serviceco.coex.payment.support;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceUnit;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.querydsl.jpa.impl.JPAQueryFactory;
+import com.serviceco.coex.model.constant.SchemeParticipantType;
+import com.serviceco.coex.payment.model.calculation.PaymentMetadata;
+import com.serviceco.coex.payment.model.calculation.QPaymentMetadata;
+
+/**
+ * Serves PAYMENT_METADATA lookups from memory, for the payment computation and invoicing services.
+ *
+ * <p>Every PAYMENT_METADATA row is loaded into an immutable {@link Snapshot} the first time metadata is needed. The snapshot indexes the rows
+ * by scheme participant type, by transaction type and by invoice type, and holds the metadata a non-auction computation uses for each scheme
+ * participant type (see {@link Snapshot#computationMetadata}). It is replaced (never modified) when it is older than
+ * {@code payment.metadata.refresh-minutes} (defaults to one hour) or when {@link #refresh()} is called. Each snapshot has a higher version
+ * than the one it replaced.</p>
+ *
+ * <p>The snapshot is loaded through its own entity manager, so the rows are detached and are not tied to the persistence context of any
+ * caller. Callers only read them. A caller which needs several lookups to agree should take the {@link #snapshot()} once and use it
+ * throughout.</p>
+ */
+@Component
+public class PaymentMetadataCache {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(PaymentMetadataCache.class);
+
+  private static final String AUCTION_METADATA = "AUCTION";
+  private static final String CRP_HANDLING_FEES = "HANDLING_FEES";
+
+  @PersistenceUnit
+  private EntityManagerFactory emf;
+
+  @Value("${payment.metadata.refresh-minutes:60}")
+  private long refreshMinutes;
+
+  private final AtomicLong versions = new AtomicLong();
+
+  private RefreshingSnapshot<Snapshot> snapshot;
+
+  @PostConstruct
+  void init() {
+    snapshot = new RefreshingSnapshot<>(Duration.ofMinutes(refreshMinutes), this::load);
+  }
+
+  /**
+   * An immutable copy of the payment metadata
+   */
+  public static final class Snapshot {
+
+    private final long version;
+
+    private final Map<SchemeParticipantType, List<PaymentMetadata>> byParticipantType;
+
+    private final Map<SchemeParticipantType, Map<String, List<PaymentMetadata>>> byTransactionType;
+
+    private final Map<SchemeParticipantType, Map<String, List<PaymentMetadata>>> byInvoiceType;
+
+    private final Map<SchemeParticipantType, PaymentMetadata> computationMetadata;
+
+    private Snapshot(long version, List<PaymentMetadata> rows) {
+      this.version = version;
+      final Map<SchemeParticipantType, List<PaymentMetadata>> byParticipantType = new EnumMap<>(SchemeParticipantType.class);
+      final Map<SchemeParticipantType, Map<String, List<PaymentMetadata>>> byTransactionType = new EnumMap<>(SchemeParticipantType.class);
+      final Map<SchemeParticipantType, Map<String, List<PaymentMetadata>>> byInvoiceType = new EnumMap<>(SchemeParticipantType.class);
+      final Map<SchemeParticipantType, PaymentMetadata> computationMetadata = new EnumMap<>(SchemeParticipantType.class);
+      for (final PaymentMetadata row : rows) {
+        final SchemeParticipantType type = row.getSchemeParticipantType();
+        byParticipantType.computeIfAbsent(type, k -> new ArrayList<>()).add(row);
+        byTransactionType.computeIfAbsent(type, k -> new HashMap<>()).computeIfAbsent(row.getTransactionType(), k -> new ArrayList<>()).add(row);
+        byInvoiceType.computeIfAbsent(type, k -> new HashMap<>()).computeIfAbsent(row.getInvoiceType(), k -> new ArrayList<>()).add(row);
+        if (isComputationMetadata(row)) {
+          computationMetadata.putIfAbsent(type, row);
+        }
+      }
+      byParticipantType.replaceAll((type, list) -> Collections.unmodifiableList(list));
+      byTransactionType.replaceAll((type, map) -> unmodifiable(map));
+      byInvoiceType.replaceAll((type, map) -> unmodifiable(map));
+      this.byParticipantType = Collections.unmodifiableMap(byParticipantType);
+      this.byTransactionType = Collections.unmodifiableMap(byTransactionType);
+      this.byInvoiceType = Collections.unmodifiableMap(byInvoiceType);
+      this.computationMetadata = Collections.unmodifiableMap(computationMetadata);
+    }
+
+    /**
+     * @return Returns the version of the snapshot. A snapshot loaded later has a higher version.
+     */
+    public long getVersion() {
+      return version;
+    }
+
+    /**
+     * @param schemeParticipantType The scheme participant type
+     * @return Returns every metadata row of the scheme participant type
+     */
+    public List<PaymentMetadata> find(SchemeParticipantType schemeParticipantType) {
+      return byParticipantType.getOrDefault(schemeParticipantType, Collections.emptyList());
+    }
+
+    /**
+     * @param schemeParticipantType The scheme participant type
+     * @param transactionType The transaction (payment) type, e.g. POSITIVE_AUCTION
+     * @return Returns the metadata rows of the scheme participant type with the transaction type
+     */
+    public List<PaymentMetadata> findByTransactionType(SchemeParticipantType schemeParticipantType, String transactionType) {
+      return byTransactionType.getOrDefault(schemeParticipantType, Collections.emptyMap()).getOrDefault(transactionType, Collections.emptyList());
+    }
+
+    /**
+     * @param schemeParticipantType The scheme participant type
+     * @param invoiceType The invoice type, e.g. AP or AR
+     * @return Returns the metadata rows of the scheme participant type with the invoice type
+     */
+    public List<PaymentMetadata> findByInvoiceType(SchemeParticipantType schemeParticipantType, String invoiceType) {
+      return byInvoiceType.getOrDefault(schemeParticipantType, Collections.emptyMap()).getOrDefault(invoiceType, Collections.emptyList());
+    }
+
+    /**
+     * The metadata of a non-auction payment computation is the first row of the scheme participant type, excluding AUCTION transaction types and,
+     * for CRPs, excluding every transaction type other than HANDLING_FEES.
+     * @param schemeParticipantType The scheme participant type
+     * @return Returns the metadata of a payment computation for the scheme participant type, or null if there is none
+     */
+    public PaymentMetadata computationMetadata(SchemeParticipantType schemeParticipantType) {
+      return computationMetadata.get(schemeParticipantType);
+    }
+
+    private static boolean isComputationMetadata(PaymentMetadata metadata) {
+      if (metadata.getTransactionType().contains(AUCTION_METADATA)) {
+        return false;
+      }
+      if (metadata.getSchemeParticipantType().equals(SchemeParticipantType.CRP) && !StringUtils.equals(metadata.getTransactionType(), CRP_HANDLING_FEES)) {
+        return false;
+      }
+      return true;
+    }
+
+    private static Map<String, List<PaymentMetadata>> unmodifiable(Map<String, List<PaymentMetadata>> map) {
+      map.replaceAll((key, list) -> Collections.unmodifiableList(list));
+      return Collections.unmodifiableMap(map);
+    }
+  }
+
+  /**
+   * @return Returns the current snapshot, loading it first if it has not been loaded or has expired
+   */
+  public Snapshot snapshot() {
+    return snapshot.get();
+  }
+
+  /**
+   * Reloads the payment metadata. Lookups made while the metadata is being loaded use the previous snapshot.
+   * @return Returns the version of the new snapshot
+   */
+  public long refresh() {
+    return snapshot.refresh().getVersion();
+  }
+
+  private Snapshot load() {
+    final QPaymentMetadata qPaymentMetadata = QPaymentMetadata.paymentMetadata;
+    final List<PaymentMetadata> rows;
+    final EntityManager em = emf.createEntityManager();
+    try {
+      rows = new JPAQueryFactory(em).select(qPaymentMetadata).from(qPaymentMetadata).fetch();
+    } finally {
+      em.close();
+    }
+
+    final long version = versions.incrementAndGet();
+    LOGGER.info("loaded {} payment metadata rows, version {}", rows.size(), version);
+    return new Snapshot(version, rows);
+  }
+
+}
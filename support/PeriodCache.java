@@ -0,0 +1,128 @@
+package com.serviceco.coex.payment.support;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import javax.annotation.PostConstruct;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.google.common.base.Preconditions;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
+import com.serviceco.coex.model.DateDimension;
+import com.serviceco.coex.model.constant.PeriodType;
+import com.serviceco.coex.model.dto.Period;
+
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+
+/**
+ * A process wide cache of fully resolved {@link Period} objects, keyed by period value and type.
+ *
+ * <p>A resolved period has its start and end dates set from the DATE_DIMENSION table and, for a quarter, the resolved months of the quarter
+ * (which are shared with the cache as well). The cached periods are shared between threads and batches, so callers must treat them as
+ * immutable. Use {@link DateTimeSupport#setTerminalDates} to resolve a period you intend to modify.</p>
+ *
+ * <p>The cache holds at most {@code payment.period-cache.maximum-size} periods (defaults to 10000). Entries expire with the in memory copy of
+ * the DATE_DIMENSION table, after {@code payment.date-dimension.refresh-minutes}.</p>
+ */
+@Component
+public class PeriodCache {
+
+  @Autowired
+  private DateDimensionCalendar dateDimensionCalendar;
+
+  @Value("${payment.period-cache.maximum-size:10000}")
+  private long maximumSize;
+
+  @Value("${payment.date-dimension.refresh-minutes:1440}")
+  private long refreshMinutes;
+
+  private LoadingCache<Key, Period> periods;
+
+  @EqualsAndHashCode
+  @AllArgsConstructor
+  private static final class Key {
+    private final String value;
+    private final PeriodType type;
+  }
+
+  @PostConstruct
+  void init() {
+    //@formatter:off
+    periods = CacheBuilder.newBuilder()
+                          .maximumSize(maximumSize)
+                          .expireAfterWrite(refreshMinutes, TimeUnit.MINUTES)
+                          .recordStats()
+                          .build(new CacheLoader<Key, Period>() {
+                            @Override
+                            public Period load(Key key) {
+                              return resolve(key.value, key.type);
+                            }
+                          });
+    //@formatter:on
+  }
+
+  /**
+   * @param value The period value, e.g. 2018-07
+   * @param type The period type
+   * @return Returns the resolved period
+   */
+  public Period get(String value, PeriodType type) {
+    Preconditions.checkArgument(value != null, "period value is mandatory");
+    Preconditions.checkArgument(type != null, "period type is mandatory");
+    return periods.getUnchecked(new Key(value, type));
+  }
+
+  /**
+   * @param period A period string including its type, e.g. W2018-45. See {@link Period#parse}.
+   * @return Returns the resolved period
+   */
+  public Period parse(String period) {
+    final Period parsed = Period.parse(period);
+    return get(parsed.getValue(), parsed.getType());
+  }
+
+  /**
+   * Reloads the DATE_DIMENSION table and discards every cached period.
+   */
+  public void refresh() {
+    dateDimensionCalendar.refresh();
+    periods.invalidateAll();
+  }
+
+  public long getHitCount() {
+    return periods.stats().hitCount();
+  }
+
+  public long getMissCount() {
+    return periods.stats().missCount();
+  }
+
+  public CacheStats getStats() {
+    return periods.stats();
+  }
+
+  private Period resolve(String value, PeriodType type) {
+    final Period period = new Period(value, type);
+    final DateDimension first = dateDimensionCalendar.firstOf(type, value);
+    final DateDimension last = dateDimensionCalendar.lastOf(type, value);
+    if ((first != null) && (last != null)) {
+      period.setStart(first.getLocalDate());
+      period.setEnd(last.getLocalDate());
+    }
+    if (type == PeriodType.Q) {
+      final List<Period> months = dateDimensionCalendar.monthsOfQuarter(value).stream().map(month -> get(month, PeriodType.M)).collect(Collectors.toList());
+      period.setPeriods(Collections.unmodifiableList(months));
+    }
+    return period;
+  }
+
+}
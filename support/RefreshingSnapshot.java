@@ -0,0 +1,71 @@
+package com.serviceco.coex.payment.support;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.function.Supplier;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Holds an immutable, in memory copy of reference data which is reloaded when it gets too old.
+ *
+ * <p>The copy is loaded the first time it is needed, and is replaced as a whole (never modified) when it is older than the maximum age or
+ * when {@link #refresh()} is called, so it can be shared by any number of threads. Only one thread loads at a time. Other threads keep
+ * using the previous copy while a refresh is loading, and only wait for the first load or for a copy which has expired.</p>
+ *
+ * @param <T> The type of the copy. The loader must return a complete, immutable copy.
+ */
+public final class RefreshingSnapshot<T> {
+
+  private final Duration maxAge;
+
+  private final Supplier<T> loader;
+
+  private volatile T snapshot;
+
+  private volatile Instant loadedAt;
+
+  /**
+   * @param maxAge The age after which the copy is reloaded
+   * @param loader Loads a new copy
+   */
+  public RefreshingSnapshot(Duration maxAge, Supplier<T> loader) {
+    Preconditions.checkArgument((maxAge != null) && !maxAge.isNegative(), "the maximum age of a snapshot must not be negative");
+    Preconditions.checkArgument(loader != null, "a snapshot loader is mandatory");
+    this.maxAge = maxAge;
+    this.loader = loader;
+  }
+
+  /**
+   * @return Returns the current copy, loading it first if it has not been loaded or has expired
+   */
+  public T get() {
+    final T current = snapshot;
+    if ((current != null) && !expired()) {
+      return current;
+    }
+    synchronized (this) {
+      if ((snapshot == null) || expired()) {
+        return refresh();
+      }
+      return snapshot;
+    }
+  }
+
+  /**
+   * Loads a new copy and makes it the current one.
+   * @return Returns the new copy
+   */
+  public synchronized T refresh() {
+    final T loaded = loader.get();
+    Preconditions.checkState(loaded != null, "the snapshot loader returned null");
+    loadedAt = Instant.now();
+    snapshot = loaded;
+    return loaded;
+  }
+
+  private boolean expired() {
+    return loadedAt.plus(maxAge).isBefore(Instant.now());
+  }
+
+}